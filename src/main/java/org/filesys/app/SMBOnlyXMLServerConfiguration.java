@@ -1336,6 +1336,8 @@ public class SMBOnlyXMLServerConfiguration extends ServerConfiguration {
                 dbgClass = "org.filesys.debug.ConsoleDebug";
             else if ( outType.equalsIgnoreCase( "file"))
                 dbgClass = "org.filesys.debug.LogFileDebug";
+            else if ( outType.equalsIgnoreCase( "asyncfile"))
+                dbgClass = "org.filesys.debug.AsyncLogFileDebug";
             else if ( outType.equalsIgnoreCase( "jdk"))
                 dbgClass = "org.filesys.debug.JdkLoggingDebug";
             else
@@ -1846,6 +1848,8 @@ public class SMBOnlyXMLServerConfiguration extends ServerConfiguration {
 				auditClass = "org.filesys.debug.ConsoleDebug";
 			else if ( outType.equalsIgnoreCase( "file"))
 				auditClass = "org.filesys.debug.LogFileDebug";
+			else if ( outType.equalsIgnoreCase( "asyncfile"))
+				auditClass = "org.filesys.debug.AsyncLogFileDebug";
 			else if ( outType.equalsIgnoreCase( "jdk"))
 				auditClass = "org.filesys.debug.JdkLoggingDebug";
 			else
@@ -34,10 +34,12 @@ import org.filesys.oncrpc.nfs.NFSSrvSession;
 import org.filesys.server.config.InvalidConfigurationException;
 import org.filesys.server.filesys.cache.hazelcast.ClusterConfigSection;
 import org.filesys.util.IPAddress;
+import org.filesys.util.MemorySize;
 import org.springframework.extensions.config.ConfigElement;
 import org.springframework.extensions.config.element.ConfigElementAdapter;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 /**
@@ -397,6 +399,27 @@ public class XMLServerConfiguration extends SMBOnlyXMLServerConfiguration {
 			// Set the FTP data port range
 			ftpConfig.setFTPDataPortLow(rangeFrom);
 			ftpConfig.setFTPDataPortHigh(rangeTo);
+
+			// Check if the passive ports should be pre-bound using a port pool
+			String poolStr = getAttributeWithEnvVars(elem, "preBind");
+
+			if ( poolStr != null && Boolean.parseBoolean(poolStr)) {
+
+				// Check for the port quarantine time, in milliseconds
+				String quarStr = getAttributeWithEnvVars(elem, "quarantine");
+
+				if ( quarStr != null && !quarStr.isEmpty()) {
+					try {
+						ftpConfig.setPassivePortQuarantine(Integer.parseInt(quarStr));
+					}
+					catch (NumberFormatException ex) {
+						throw new InvalidConfigurationException("Invalid FTP data port quarantine value, " + quarStr);
+					}
+				}
+
+				// Enable the passive port pool
+				ftpConfig.setPassivePortPool(true);
+			}
 		}
 
 		// Check if FTP debug is enabled
@@ -592,6 +615,159 @@ public class XMLServerConfiguration extends SMBOnlyXMLServerConfiguration {
 				throw new InvalidConfigurationException("FTPS configuration requires keyStore to be set");
 		}
 		
+		// Check if the NIO engine should be used, sessions are processed using the thread pool
+		elem = findChildNode("enableNIO", ftp.getChildNodes());
+		if ( elem != null) {
+
+			// Check if the worker thread pool size has been specified
+			String attrStr = getAttributeWithEnvVars(elem, "threads");
+
+			if ( attrStr != null && !attrStr.isEmpty()) {
+				try {
+					ftpConfig.setNIOThreadPoolSize( Integer.parseInt(attrStr));
+				}
+				catch (NumberFormatException ex) {
+					throw new InvalidConfigurationException("Invalid FTP NIO threads value, " + attrStr);
+				}
+			}
+
+			// Check if the data transfer thread pool size has been specified
+			attrStr = getAttributeWithEnvVars(elem, "transferThreads");
+
+			if ( attrStr != null && !attrStr.isEmpty()) {
+				try {
+					ftpConfig.setNIOTransferThreadPoolSize( Integer.parseInt(attrStr));
+				}
+				catch (NumberFormatException ex) {
+					throw new InvalidConfigurationException("Invalid FTP NIO transfer threads value, " + attrStr);
+				}
+			}
+
+			// Enable the NIO engine
+			ftpConfig.setNIOEngine( true);
+		}
+
+		// Check if pipelined file transfers should be used, disk and socket I/O are overlapped
+		elem = findChildNode("pipelinedTransfers", ftp.getChildNodes());
+		if ( elem != null) {
+
+			// Get the number of transfer buffers, or use the default
+			int numBufs = FTPConfigSection.DefaultPipelineBuffers;
+			String bufStr = getAttributeWithEnvVars(elem, "buffers");
+
+			if ( bufStr != null && !bufStr.isEmpty()) {
+				try {
+					numBufs = Integer.parseInt(bufStr);
+				}
+				catch (NumberFormatException ex) {
+					throw new InvalidConfigurationException("Invalid FTP pipelined transfer buffers value, " + bufStr);
+				}
+			}
+
+			// Enable pipelined transfers
+			ftpConfig.setPipelineBuffers( numBufs);
+		}
+
+		// Check if MODE Z compressed transfers are enabled
+		elem = findChildNode("modeZ", ftp.getChildNodes());
+		if ( elem != null) {
+
+			// Check for the compression level
+			String attrStr = getAttributeWithEnvVars(elem, "level");
+
+			if ( attrStr != null && !attrStr.isEmpty()) {
+				try {
+					ftpConfig.setModeZLevel( Integer.parseInt(attrStr));
+				}
+				catch (NumberFormatException ex) {
+					throw new InvalidConfigurationException("Invalid FTP MODE Z level value, " + attrStr);
+				}
+			}
+
+			// Check for the maximum concurrent compressed transfers, limits the CPU used for compression
+			attrStr = getAttributeWithEnvVars(elem, "maxCompressedTransfers");
+
+			if ( attrStr != null && !attrStr.isEmpty()) {
+				try {
+					ftpConfig.setModeZMaximumTransfers( Integer.parseInt(attrStr));
+				}
+				catch (NumberFormatException ex) {
+					throw new InvalidConfigurationException("Invalid FTP MODE Z maxCompressedTransfers value, " + attrStr);
+				}
+			}
+
+			// Enable MODE Z
+			ftpConfig.setModeZ( true);
+		}
+
+		// Check if the directory listing cache is enabled
+		elem = findChildNode("listingCache", ftp.getChildNodes());
+		if ( elem != null) {
+
+			// Get the cache size, or use the default
+			long cacheSize = FTPConfigSection.DefaultListingCacheSize;
+			String attrStr = getAttributeWithEnvVars(elem, "size");
+
+			if ( attrStr != null && !attrStr.isEmpty()) {
+				try {
+					cacheSize = MemorySize.getByteValue( attrStr);
+				}
+				catch (NumberFormatException ex) {
+					throw new InvalidConfigurationException("Invalid FTP listing cache size, " + attrStr);
+				}
+			}
+
+			// Get the listing expiry time, in seconds
+			attrStr = getAttributeWithEnvVars(elem, "timeout");
+
+			if ( attrStr != null && !attrStr.isEmpty()) {
+				try {
+					ftpConfig.setListingCacheTimeout( Integer.parseInt(attrStr));
+				}
+				catch (NumberFormatException ex) {
+					throw new InvalidConfigurationException("Invalid FTP listing cache timeout, " + attrStr);
+				}
+			}
+
+			// Enable the listing cache
+			ftpConfig.setListingCacheSize( cacheSize);
+		}
+
+		// Check if there are bandwidth limits
+		elem = findChildNode("bandwidth", ftp.getChildNodes());
+		if ( elem != null) {
+
+			// Check for a global bandwidth limit
+			String rateStr = getAttributeWithEnvVars(elem, "rate");
+
+			if ( rateStr != null && !rateStr.isEmpty())
+				ftpConfig.setBandwidthLimit( parseBandwidthRate( rateStr));
+
+			// Check for per user and per share bandwidth limits
+			NodeList bwNodes = elem.getChildNodes();
+
+			for ( int i = 0; i < bwNodes.getLength(); i++) {
+				if ( bwNodes.item(i).getNodeType() != Node.ELEMENT_NODE)
+					continue;
+
+				Element bwElem = (Element) bwNodes.item(i);
+				String name = getAttributeWithEnvVars(bwElem, "name");
+				rateStr = getAttributeWithEnvVars(bwElem, "rate");
+
+				if ( name == null || name.isEmpty())
+					throw new InvalidConfigurationException("FTP bandwidth " + bwElem.getNodeName() + " name not specified");
+				if ( rateStr == null || rateStr.isEmpty())
+					throw new InvalidConfigurationException("FTP bandwidth rate not specified for " + name);
+
+				if ( bwElem.getNodeName().equals("user"))
+					ftpConfig.setUserBandwidthLimit( name, parseBandwidthRate( rateStr));
+				else if ( bwElem.getNodeName().equals("share"))
+					ftpConfig.setShareBandwidthLimit( name, parseBandwidthRate( rateStr));
+				else
+					throw new InvalidConfigurationException("Invalid FTP bandwidth element, " + bwElem.getNodeName());
+			}
+		}
+
 		// Check if SSLEngine debug output should be enabled
 		elem = findChildNode("sslEngineDebug", ftp.getChildNodes());
 		if ( elem != null) {
@@ -601,6 +777,24 @@ public class XMLServerConfiguration extends SMBOnlyXMLServerConfiguration {
 		}
 	}
 
+	/**
+	 * Parse an FTP bandwidth rate, in bytes per second with an optional K, M or G suffix
+	 *
+	 * @param rateStr String
+	 * @return long
+	 * @exception InvalidConfigurationException Invalid rate value
+	 */
+	private final long parseBandwidthRate(String rateStr)
+		throws InvalidConfigurationException {
+
+		try {
+			return MemorySize.getByteValue( rateStr);
+		}
+		catch (NumberFormatException ex) {
+			throw new InvalidConfigurationException("Invalid FTP bandwidth rate, " + rateStr);
+		}
+	}
+
 	/**
 	 * Process the NFS server XML element
 	 * 
@@ -17,9 +17,12 @@
 
 package org.filesys.audit;
 
+import org.filesys.debug.Debug;
 import org.filesys.debug.DebugInterface;
+import org.filesys.debug.DebugMessage;
 
 import java.util.EnumSet;
+import java.util.function.Supplier;
 
 /**
  * Audit Log Output Class
@@ -49,6 +52,15 @@ public class Audit {
         return m_audit;
     }
 
+    /**
+     * Check if audit logging is enabled
+     *
+     * @return boolean
+     */
+    public static final boolean isEnabled() {
+        return m_audit != null;
+    }
+
     /**
      * Check if the specified audit group is enabled
      *
@@ -128,6 +140,29 @@ public class Audit {
      * @param str String
      */
     public static final void println(String str) {
-        m_audit.debugPrintln(str);
+        if ( m_audit != null)
+            m_audit.debugPrintln(str);
+    }
+
+    /**
+     * Output an audit message, and a newline. The supplier is only called if audit logging is enabled.
+     *
+     * @param msg Supplier&lt;String&gt;
+     */
+    public static final void println(Supplier<String> msg) {
+        if ( m_audit != null)
+            m_audit.debugPrintln(msg, Debug.Debug);
+    }
+
+    /**
+     * Output an audit message built from a template, and a newline. Each '{}' in the template is replaced by the
+     * next argument, the message is only built if audit logging is enabled.
+     *
+     * @param template String
+     * @param args     Object...
+     */
+    public static final void println(String template, Object... args) {
+        if ( m_audit != null)
+            m_audit.debugPrintln(new DebugMessage(template, args), Debug.Debug);
     }
 }
@@ -0,0 +1,626 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.debug;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import org.filesys.server.config.ServerConfiguration;
+import org.filesys.util.MemorySize;
+import org.springframework.extensions.config.ConfigElement;
+
+/**
+ * Asynchronous Log File Debug Class
+ *
+ * <p>Output debug/audit messages to a file using a background writer thread. Request threads add the messages to a
+ * bounded lock-free ring buffer, the writer thread batches the messages into large writes. The log file can be
+ * rotated when it reaches a maximum size and/or after a time interval.
+ *
+ * <p>Template and supplier based messages are queued as-is and the message string is built on the writer thread.
+ *
+ * <p>If the ring buffer is full the message is either dropped, or the request thread waits for space, depending on
+ * the overflow policy. Dropped and blocked messages are counted.
+ *
+ * @author gkspencer
+ */
+public class AsyncLogFileDebug extends DebugInterfaceBase implements Runnable {
+
+    // Defaults
+    public static final int DefaultQueueSize = 8192;
+    public static final int DefaultMaxFiles = 5;
+    public static final long DefaultFlushInterval = 100L;
+
+    // Writer buffer size
+    private static final int WriterBufferSize = 64 * 1024;
+
+    // Line separator
+    private static final String LineSeperator = System.getProperty("line.separator");
+
+    // Overflow policy when the ring buffer is full
+    public enum Overflow {
+        Drop,
+        Block
+    }
+
+    // Partial line, output without a line separator
+    private static class PartialLine {
+        private String m_str;
+
+        PartialLine(String str) {
+            m_str = str;
+        }
+    }
+
+    // Log file name, and append to an existing file
+    private String m_fileName;
+    private boolean m_append;
+
+    // Log file writer, and bytes written to the current log file
+    private Writer m_out;
+    private long m_fileSize;
+
+    // Rotation settings, maximum file size (zero for no size limit), rotation interval in milliseconds (zero for no
+    // time based rotation) and number of rotated files to keep
+    private long m_maxFileSize;
+    private long m_rotateInterval;
+    private int m_maxFiles = DefaultMaxFiles;
+
+    private long m_nextRotation;
+
+    // Ring buffer, overflow policy and flush interval, in milliseconds
+    private LogRingBuffer m_ring;
+    private Overflow m_overflow = Overflow.Drop;
+    private long m_flushInterval = DefaultFlushInterval;
+
+    // Writer thread
+    private Thread m_writerThread;
+    private volatile boolean m_shutdown;
+
+    // Statistics
+    private AtomicLong m_dropCount = new AtomicLong();
+    private AtomicLong m_blockCount = new AtomicLong();
+
+    private volatile long m_lineCount;
+    private volatile long m_batchCount;
+    private volatile long m_rotateCount;
+
+    /**
+     * Default constructor
+     */
+    public AsyncLogFileDebug() {
+    }
+
+    /**
+     * Create an asynchronous log file debug object using the specified file name
+     *
+     * @param fname     String
+     * @param append    boolean
+     * @param queueSize int
+     * @param overflow  Overflow
+     * @exception IOException Error opening the log file
+     */
+    public AsyncLogFileDebug(String fname, boolean append, int queueSize, Overflow overflow)
+        throws IOException {
+
+        m_fileName = fname;
+        m_append = append;
+        m_overflow = overflow;
+
+        m_ring = new LogRingBuffer(queueSize);
+
+        // Open the log file and start the writer thread
+        open();
+        startWriter();
+    }
+
+    /**
+     * Set the log rotation settings, must be called before any output
+     *
+     * @param maxFileSize    long
+     * @param rotateInterval long
+     * @param maxFiles       int
+     */
+    public final void setRotation(long maxFileSize, long rotateInterval, int maxFiles) {
+        m_maxFileSize = maxFileSize;
+        m_rotateInterval = rotateInterval;
+        m_maxFiles = maxFiles;
+
+        if (m_rotateInterval > 0)
+            m_nextRotation = System.currentTimeMillis() + m_rotateInterval;
+    }
+
+    /**
+     * Return the number of messages dropped because the ring buffer was full
+     *
+     * @return long
+     */
+    public final long getDroppedCount() {
+        return m_dropCount.get();
+    }
+
+    /**
+     * Return the number of times a request thread had to wait for space in the ring buffer
+     *
+     * @return long
+     */
+    public final long getBlockedCount() {
+        return m_blockCount.get();
+    }
+
+    /**
+     * Return the number of lines written
+     *
+     * @return long
+     */
+    public final long getLineCount() {
+        return m_lineCount;
+    }
+
+    /**
+     * Return the number of batches written
+     *
+     * @return long
+     */
+    public final long getBatchCount() {
+        return m_batchCount;
+    }
+
+    /**
+     * Return the number of log file rotations
+     *
+     * @return long
+     */
+    public final long getRotationCount() {
+        return m_rotateCount;
+    }
+
+    /**
+     * Return the number of messages waiting to be written
+     *
+     * @return int
+     */
+    public final int getQueuedCount() {
+        return m_ring != null ? m_ring.size() : 0;
+    }
+
+    /**
+     * Close the debug output, writes any queued messages
+     */
+    public void close() {
+
+        // Stop the writer thread, the writer drains the ring buffer before exiting
+        if (m_writerThread != null) {
+            m_shutdown = true;
+            LockSupport.unpark(m_writerThread);
+
+            try {
+                m_writerThread.join(5000);
+            }
+            catch (InterruptedException ex) {
+            }
+            m_writerThread = null;
+        }
+
+        // Close the log file
+        closeFile();
+    }
+
+    /**
+     * Output a debug string with a specific logging level
+     *
+     * @param str   String
+     * @param level int
+     */
+    public void debugPrint(String str, int level) {
+        if (level <= getLogLevel())
+            queueRecord(new PartialLine(str));
+    }
+
+    /**
+     * Output a debug string, and a newline, with a specific logging level
+     *
+     * @param str   String
+     * @param level int
+     */
+    public void debugPrintln(String str, int level) {
+        if (level <= getLogLevel())
+            queueRecord(str);
+    }
+
+    /**
+     * Output a debug message, and a newline, with a specific logging level. The message is formatted by the writer
+     * thread.
+     *
+     * @param msg   DebugMessage
+     * @param level int
+     */
+    public void debugPrintln(DebugMessage msg, int level) {
+        if (level <= getLogLevel())
+            queueRecord(msg);
+    }
+
+    /**
+     * Output a debug message, and a newline, with a specific logging level. The supplier is called by the writer
+     * thread.
+     *
+     * @param msg   Supplier&lt;String&gt;
+     * @param level int
+     */
+    public void debugPrintln(Supplier<String> msg, int level) {
+        if (level <= getLogLevel())
+            queueRecord(msg);
+    }
+
+    /**
+     * Queue a record for the writer thread
+     *
+     * @param rec Object
+     */
+    protected final void queueRecord(Object rec) {
+
+        if (m_ring == null || m_shutdown)
+            return;
+
+        // Add the record to the ring buffer
+        if (m_ring.offer(rec))
+            return;
+
+        // Ring buffer is full, drop the record or wait for space
+        if (m_overflow == Overflow.Drop) {
+            m_dropCount.incrementAndGet();
+            return;
+        }
+
+        m_blockCount.incrementAndGet();
+        LockSupport.unpark(m_writerThread);
+
+        while (m_ring.offer(rec) == false) {
+            if (m_shutdown) {
+                m_dropCount.incrementAndGet();
+                return;
+            }
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+    }
+
+    /**
+     * Format a queued record as a string
+     *
+     * @param rec Object
+     * @return String
+     */
+    protected String formatRecord(Object rec) {
+        if (rec instanceof Supplier)
+            return String.valueOf(((Supplier<?>) rec).get());
+        return rec.toString();
+    }
+
+    /**
+     * Initialize the debug interface using the specified parameters.
+     *
+     * @param params ConfigElement
+     * @param config ServerConfiguration
+     */
+    public void initialize(ConfigElement params, ServerConfiguration config)
+            throws Exception {
+
+        // Call the base class
+        super.initialize(params, config);
+
+        //	Get the output file name and append flag settings
+        ConfigElement logFile = params.getChild("logFile");
+        m_append = params.getChild("append") != null ? true : false;
+
+        //	Check if the log file has been specified
+        if (logFile == null || logFile.getValue() == null || logFile.getValue().length() == 0)
+            throw new Exception("logFile parameter not specified");
+
+        m_fileName = logFile.getValue();
+
+        // Get the ring buffer size
+        int queueSize = DefaultQueueSize;
+        ConfigElement elem = params.getChild("queueSize");
+
+        if (elem != null && elem.getValue() != null) {
+            try {
+                queueSize = Integer.parseInt(elem.getValue());
+            }
+            catch (NumberFormatException ex) {
+                throw new Exception("Invalid queueSize value, " + elem.getValue());
+            }
+
+            if (queueSize < 16)
+                throw new Exception("queueSize must be at least 16");
+        }
+
+        // Get the overflow policy
+        elem = params.getChild("overflow");
+
+        if (elem != null && elem.getValue() != null) {
+            if (elem.getValue().equalsIgnoreCase("drop"))
+                m_overflow = Overflow.Drop;
+            else if (elem.getValue().equalsIgnoreCase("block"))
+                m_overflow = Overflow.Block;
+            else
+                throw new Exception("Invalid overflow policy, " + elem.getValue());
+        }
+
+        // Get the flush interval, in milliseconds
+        elem = params.getChild("flushInterval");
+
+        if (elem != null && elem.getValue() != null) {
+            try {
+                m_flushInterval = Long.parseLong(elem.getValue());
+            }
+            catch (NumberFormatException ex) {
+                throw new Exception("Invalid flushInterval value, " + elem.getValue());
+            }
+
+            if (m_flushInterval < 1L)
+                throw new Exception("flushInterval must be at least 1ms");
+        }
+
+        // Get the log rotation settings
+        long maxFileSize = 0L;
+        long rotateInterval = 0L;
+        int maxFiles = DefaultMaxFiles;
+
+        elem = params.getChild("maxFileSize");
+        if (elem != null && elem.getValue() != null) {
+            try {
+                maxFileSize = MemorySize.getByteValue(elem.getValue());
+            }
+            catch (NumberFormatException ex) {
+                throw new Exception("Invalid maxFileSize value, " + elem.getValue());
+            }
+        }
+
+        elem = params.getChild("rotateInterval");
+        if (elem != null && elem.getValue() != null) {
+            try {
+                rotateInterval = TimeUnit.MINUTES.toMillis(Long.parseLong(elem.getValue()));
+            }
+            catch (NumberFormatException ex) {
+                throw new Exception("Invalid rotateInterval value, " + elem.getValue());
+            }
+        }
+
+        elem = params.getChild("maxFiles");
+        if (elem != null && elem.getValue() != null) {
+            try {
+                maxFiles = Integer.parseInt(elem.getValue());
+            }
+            catch (NumberFormatException ex) {
+                throw new Exception("Invalid maxFiles value, " + elem.getValue());
+            }
+        }
+
+        setRotation(maxFileSize, rotateInterval, maxFiles);
+
+        // Create the ring buffer, open the log file and start the writer thread
+        m_ring = new LogRingBuffer(queueSize);
+
+        open();
+        startWriter();
+    }
+
+    /**
+     * Writer thread, batches queued records into large writes
+     */
+    public void run() {
+
+        boolean done = false;
+
+        while (done == false) {
+
+            // Check for shutdown before draining, so the final drain writes all queued records
+            done = m_shutdown;
+
+            try {
+
+                // Write the queued records
+                int cnt = 0;
+                Object rec = m_ring.poll();
+
+                while (rec != null) {
+                    writeRecord(rec);
+                    cnt++;
+
+                    rec = m_ring.poll();
+                }
+
+                // Flush the batch to the log file
+                if (cnt > 0 && m_out != null) {
+                    m_out.flush();
+
+                    m_batchCount++;
+                }
+
+                // Check if the log file should be rotated
+                if (m_rotateInterval > 0 && System.currentTimeMillis() >= m_nextRotation)
+                    rotate();
+            }
+            catch (IOException ex) {
+
+                // Report the error on the console, cannot use the debug output
+                System.err.println("AsyncLogFileDebug write error, " + ex.getMessage());
+            }
+
+            // Wait for more records
+            if (done == false && m_ring.size() == 0)
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(m_flushInterval));
+        }
+    }
+
+    /**
+     * Write a record to the log file
+     *
+     * @param rec Object
+     * @exception IOException I/O error
+     */
+    private void writeRecord(Object rec)
+        throws IOException {
+
+        if (m_out == null)
+            return;
+
+        // Format the record
+        String str = null;
+        boolean newLine = true;
+
+        if (rec instanceof String)
+            str = (String) rec;
+        else if (rec instanceof PartialLine) {
+            str = ((PartialLine) rec).m_str;
+            newLine = false;
+        }
+        else {
+            try {
+                str = formatRecord(rec);
+            }
+            catch (RuntimeException ex) {
+                str = "Error formatting debug record, " + ex;
+            }
+        }
+
+        // Write the record
+        m_out.write(str);
+        m_fileSize += str.length();
+
+        if (newLine) {
+            m_out.write(LineSeperator);
+            m_fileSize += LineSeperator.length();
+
+            m_lineCount++;
+        }
+
+        // Check if the log file has reached the maximum size
+        if (m_maxFileSize > 0 && m_fileSize >= m_maxFileSize)
+            rotate();
+    }
+
+    /**
+     * Open the log file
+     *
+     * @exception IOException Error opening the log file
+     */
+    private void open()
+        throws IOException {
+
+        File logFile = new File(m_fileName);
+
+        m_fileSize = m_append && logFile.exists() ? logFile.length() : 0L;
+        m_out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, m_append)), WriterBufferSize);
+    }
+
+    /**
+     * Close the log file
+     */
+    private void closeFile() {
+        if (m_out != null) {
+            try {
+                m_out.close();
+            }
+            catch (IOException ex) {
+            }
+            m_out = null;
+        }
+    }
+
+    /**
+     * Rotate the log file, the current log file is renamed with a '.1' extension and older log files are renumbered,
+     * the oldest log file is deleted
+     *
+     * @exception IOException Error opening the new log file
+     */
+    private void rotate()
+        throws IOException {
+
+        // Close the current log file
+        closeFile();
+
+        // Renumber the older log files, delete the oldest file
+        if (m_maxFiles > 0) {
+            File oldest = new File(m_fileName + "." + m_maxFiles);
+            if (oldest.exists())
+                oldest.delete();
+
+            for (int i = m_maxFiles - 1; i >= 1; i--) {
+                File curFile = new File(m_fileName + "." + i);
+                if (curFile.exists())
+                    curFile.renameTo(new File(m_fileName + "." + (i + 1)));
+            }
+
+            new File(m_fileName).renameTo(new File(m_fileName + ".1"));
+        }
+
+        // Open a new log file
+        m_append = false;
+        open();
+
+        m_rotateCount++;
+
+        if (m_rotateInterval > 0)
+            m_nextRotation = System.currentTimeMillis() + m_rotateInterval;
+    }
+
+    /**
+     * Start the writer thread
+     */
+    private void startWriter() {
+        m_writerThread = new Thread(this);
+        m_writerThread.setDaemon(true);
+        m_writerThread.setName("AsyncLogFileDebug");
+        m_writerThread.start();
+    }
+
+    /**
+     * Return the asynchronous log file details as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[AsyncLog ");
+        str.append(m_fileName);
+        str.append(" lines=");
+        str.append(getLineCount());
+        str.append(", batches=");
+        str.append(getBatchCount());
+        str.append(", queued=");
+        str.append(getQueuedCount());
+        str.append(", dropped=");
+        str.append(getDroppedCount());
+        str.append(", blocked=");
+        str.append(getBlockedCount());
+        str.append(", rotations=");
+        str.append(getRotationCount());
+        str.append("]");
+
+        return str.toString();
+    }
+}
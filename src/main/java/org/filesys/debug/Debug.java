@@ -22,6 +22,7 @@ package org.filesys.debug;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.StringTokenizer;
+import java.util.function.Supplier;
 
 /**
  * Debug Output Class
@@ -82,6 +83,16 @@ public final class Debug {
      */
     public static final boolean hasDumpStackTraces() { return m_debug.hasDumpStackTrace(); }
 
+    /**
+     * Check if debug output at the specified level is enabled
+     *
+     * @param level int
+     * @return boolean
+     */
+    public static final boolean isEnabled(int level) {
+        return m_debug.isEnabled(level);
+    }
+
     /**
      * Output a debug string.
      *
@@ -120,6 +131,29 @@ public final class Debug {
         m_debug.debugPrintln(str, level);
     }
 
+    /**
+     * Output a debug message, and a newline. The supplier is only called if the level is enabled.
+     *
+     * @param msg   Supplier&lt;String&gt;
+     * @param level int
+     */
+    public static final void println(Supplier<String> msg, int level) {
+        m_debug.debugPrintln(msg, level);
+    }
+
+    /**
+     * Output a debug message built from a template, and a newline. Each '{}' in the template is replaced by the next
+     * argument, the message is only built if the level is enabled.
+     *
+     * @param level    int
+     * @param template String
+     * @param args     Object...
+     */
+    public static final void println(int level, String template, Object... args) {
+        if (m_debug.isEnabled(level))
+            m_debug.debugPrintln(new DebugMessage(template, args), level);
+    }
+
     /**
      * Output an exception trace to the debug device
      *
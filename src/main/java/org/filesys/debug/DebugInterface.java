@@ -19,6 +19,8 @@
 
 package org.filesys.debug;
 
+import java.util.function.Supplier;
+
 import org.filesys.server.config.ServerConfiguration;
 import org.springframework.extensions.config.ConfigElement;
 
@@ -64,6 +66,30 @@ public interface DebugInterface {
      */
     public void debugPrintln(String str, int level);
 
+    /**
+     * Output a debug message, built from a template and arguments, and a newline with a specific logging level. The
+     * message string is only built if the logging level is enabled.
+     *
+     * @param msg   DebugMessage
+     * @param level int
+     */
+    public default void debugPrintln(DebugMessage msg, int level) {
+        if (isEnabled(level))
+            debugPrintln(msg.format(), level);
+    }
+
+    /**
+     * Output a debug message, and a newline, with a specific logging level. The supplier is only called if the
+     * logging level is enabled.
+     *
+     * @param msg   Supplier&lt;String&gt;
+     * @param level int
+     */
+    public default void debugPrintln(Supplier<String> msg, int level) {
+        if (isEnabled(level))
+            debugPrintln(msg.get(), level);
+    }
+
     /**
      * Output an exception
      *
@@ -89,6 +115,16 @@ public interface DebugInterface {
      */
     public int getLogLevel();
 
+    /**
+     * Check if output at the specified logging level is enabled
+     *
+     * @param level int
+     * @return boolean
+     */
+    public default boolean isEnabled(int level) {
+        return level <= getLogLevel();
+    }
+
     /**
      * Check if exception stacktraces should be dumped out
      *
@@ -87,6 +87,11 @@ public abstract class DebugInterfaceBase implements DebugInterface {
         return m_logLevel;
     }
 
+    @Override
+    public final boolean isEnabled(int level) {
+        return level <= m_logLevel;
+    }
+
     @Override
     public boolean hasDumpStackTrace() {
         return m_dumpStackTrace;
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.debug;
+
+/**
+ * Debug Message Class
+ *
+ * <p>Holds a debug message template and arguments, the message string is only built when the message is output. The
+ * template uses '{}' placeholders that are replaced by the string value of the next argument. A message without
+ * arguments is output as-is.
+ *
+ * <p>Asynchronous debug outputs format the message on the writer thread, so the arguments should be values that will
+ * not change after the message has been queued, such as strings and boxed numbers, and not pooled objects such as
+ * packets or buffers.
+ *
+ * @author gkspencer
+ */
+public final class DebugMessage {
+
+    // Argument placeholder
+    private static final String Placeholder = "{}";
+
+    // Optional prefix, message template and arguments
+    private String m_prefix;
+    private String m_template;
+    private Object[] m_args;
+
+    /**
+     * Class constructor
+     *
+     * @param template String
+     * @param args     Object[]
+     */
+    public DebugMessage(String template, Object[] args) {
+        m_template = template;
+        m_args = args;
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param prefix   String
+     * @param template String
+     * @param args     Object[]
+     */
+    public DebugMessage(String prefix, String template, Object[] args) {
+        m_prefix = prefix;
+        m_template = template;
+        m_args = args;
+    }
+
+    /**
+     * Return the message template
+     *
+     * @return String
+     */
+    public final String getTemplate() {
+        return m_template;
+    }
+
+    /**
+     * Return the message arguments, or null if there are no arguments
+     *
+     * @return Object[]
+     */
+    public final Object[] getArguments() {
+        return m_args;
+    }
+
+    /**
+     * Build the message string
+     *
+     * @return String
+     */
+    public final String format() {
+
+        // Check for a simple message
+        if ((m_args == null || m_args.length == 0) && m_prefix == null)
+            return m_template;
+
+        StringBuilder str = new StringBuilder(m_template != null ? m_template.length() + 64 : 64);
+
+        if (m_prefix != null)
+            str.append(m_prefix);
+
+        formatTo(str, m_template, m_args);
+        return str.toString();
+    }
+
+    /**
+     * Append the formatted message to the specified buffer, '{}' placeholders in the template are replaced by the
+     * arguments in order. Unmatched placeholders are output as-is, extra arguments are ignored.
+     *
+     * @param str      StringBuilder
+     * @param template String
+     * @param args     Object[]
+     */
+    public static void formatTo(StringBuilder str, String template, Object[] args) {
+
+        // Output the template as-is if there are no arguments
+        if (args == null || args.length == 0 || template == null) {
+            str.append(template);
+            return;
+        }
+
+        // Replace the placeholders with the argument values
+        int pos = 0;
+        int argIdx = 0;
+
+        while (argIdx < args.length) {
+            int nextPos = template.indexOf(Placeholder, pos);
+            if (nextPos == -1)
+                break;
+
+            str.append(template, pos, nextPos);
+            str.append(args[argIdx++]);
+
+            pos = nextPos + Placeholder.length();
+        }
+
+        // Append the remaining template text
+        str.append(template, pos, template.length());
+    }
+
+    /**
+     * Return the formatted message
+     *
+     * @return String
+     */
+    public String toString() {
+        return format();
+    }
+}
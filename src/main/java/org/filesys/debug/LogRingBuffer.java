@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.debug;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Log Ring Buffer Class
+ *
+ * <p>Bounded lock-free ring buffer used to pass log records from the request threads to the background log writer.
+ * Any number of threads can add records, there must be a single reader. Each slot has a sequence number that
+ * indicates whether the slot is free or holds a record, so adding a record only requires a compare-and-set on the
+ * tail position.
+ *
+ * @author gkspencer
+ */
+public class LogRingBuffer {
+
+    // Ring slots, and the slot sequence numbers
+    private AtomicReferenceArray<Object> m_slots;
+    private AtomicLongArray m_sequences;
+
+    // Capacity mask, capacity is a power of two
+    private int m_mask;
+
+    // Tail position, where records are added, and head position, where records are removed by the reader
+    private AtomicLong m_tail = new AtomicLong();
+    private AtomicLong m_head = new AtomicLong();
+
+    /**
+     * Class constructor
+     *
+     * @param capacity int Minimum capacity, rounded up to a power of two
+     */
+    public LogRingBuffer(int capacity) {
+
+        // Round the capacity up to a power of two
+        int cap = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+        m_slots = new AtomicReferenceArray<Object>(cap);
+        m_sequences = new AtomicLongArray(cap);
+        m_mask = cap - 1;
+
+        for (int i = 0; i < cap; i++)
+            m_sequences.set(i, i);
+    }
+
+    /**
+     * Return the ring buffer capacity
+     *
+     * @return int
+     */
+    public final int getCapacity() {
+        return m_mask + 1;
+    }
+
+    /**
+     * Return the number of records in the ring buffer
+     *
+     * @return int
+     */
+    public final int size() {
+        return (int) Math.max(0L, m_tail.get() - m_head.get());
+    }
+
+    /**
+     * Add a record to the ring buffer
+     *
+     * @param rec Object
+     * @return boolean false if the ring buffer is full
+     */
+    public final boolean offer(Object rec) {
+
+        long pos = m_tail.get();
+
+        while (true) {
+            int idx = (int) (pos & m_mask);
+            long diff = m_sequences.get(idx) - pos;
+
+            if (diff == 0) {
+
+                // Slot is free, try to claim it
+                if (m_tail.compareAndSet(pos, pos + 1)) {
+
+                    // Store the record, then publish the slot to the reader
+                    m_slots.lazySet(idx, rec);
+                    m_sequences.set(idx, pos + 1);
+                    return true;
+                }
+                pos = m_tail.get();
+            }
+            else if (diff < 0) {
+
+                // Ring buffer is full
+                return false;
+            }
+            else {
+
+                // Another thread claimed the slot, reload the tail
+                pos = m_tail.get();
+            }
+        }
+    }
+
+    /**
+     * Remove the next record from the ring buffer, must only be called by the reader thread
+     *
+     * @return Object, or null if the ring buffer is empty
+     */
+    public final Object poll() {
+
+        long pos = m_head.get();
+        int idx = (int) (pos & m_mask);
+
+        // Check if the slot has been published
+        if (m_sequences.get(idx) != pos + 1)
+            return null;
+
+        Object rec = m_slots.get(idx);
+        m_slots.lazySet(idx, null);
+
+        // Release the slot for the next pass around the ring
+        m_sequences.set(idx, pos + m_mask + 1);
+        m_head.lazySet(pos + 1);
+
+        return rec;
+    }
+}
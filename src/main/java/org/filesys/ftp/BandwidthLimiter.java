@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.ftp;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bandwidth Limiter Class
+ *
+ * <p>Applies the global, user and share token buckets that apply to a data transfer. Data is transferred in chunks no
+ * larger than the smallest bucket burst size, tokens are reserved from all of the buckets and the caller waits for
+ * the longest delay.
+ *
+ * @author gkspencer
+ */
+public class BandwidthLimiter {
+
+    // Token buckets that apply to the transfer
+    private TokenBucket[] m_buckets;
+
+    // Maximum transfer chunk size
+    private int m_maxChunk = Integer.MAX_VALUE;
+
+    /**
+     * Class constructor
+     *
+     * @param buckets TokenBucket[]
+     */
+    public BandwidthLimiter(TokenBucket[] buckets) {
+        m_buckets = buckets;
+
+        for (TokenBucket bucket : buckets)
+            m_maxChunk = Math.min(m_maxChunk, bucket.getBurstSize());
+    }
+
+    /**
+     * Return the maximum size of data to transfer before calling acquire()
+     *
+     * @return int
+     */
+    public final int getMaximumChunk() {
+        return m_maxChunk;
+    }
+
+    /**
+     * Return the token buckets
+     *
+     * @return TokenBucket[]
+     */
+    public final TokenBucket[] getBuckets() {
+        return m_buckets;
+    }
+
+    /**
+     * Acquire tokens for a data transfer, waits until the transfer is within the bandwidth limits
+     *
+     * @param len int
+     * @exception InterruptedIOException Interrupted whilst waiting
+     */
+    public final void acquire(int len)
+        throws InterruptedIOException {
+
+        if (len <= 0)
+            return;
+
+        // Reserve the tokens from all buckets, and find the longest wait
+        long waitTime = 0L;
+
+        for (TokenBucket bucket : m_buckets)
+            waitTime = Math.max(waitTime, bucket.reserve(len));
+
+        // Wait until the transfer is within the limits
+        if (waitTime > 0L) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitTime);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Bandwidth limit wait interrupted");
+            }
+        }
+    }
+
+    /**
+     * Return the bandwidth limiter details as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[Limiter chunk=");
+        str.append(getMaximumChunk());
+
+        for (TokenBucket bucket : m_buckets) {
+            str.append(",");
+            str.append(bucket);
+        }
+        str.append("]");
+
+        return str.toString();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.ftp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bandwidth Manager Class
+ *
+ * <p>Holds the global, per user and per share token buckets used to limit FTP data transfer bandwidth. The buckets
+ * are shared by all data sessions so that the limits apply to the total bandwidth used by the sessions.
+ *
+ * @author gkspencer
+ */
+public class BandwidthManager {
+
+    // Global bucket, or null if there is no global limit
+    private TokenBucket m_global;
+
+    // Per user and per share buckets, keyed by the lowercase user/share name
+    private HashMap<String, TokenBucket> m_userBuckets = new HashMap<String, TokenBucket>();
+    private HashMap<String, TokenBucket> m_shareBuckets = new HashMap<String, TokenBucket>();
+
+    /**
+     * Class constructor
+     *
+     * @param ftpConfig FTPConfigSection
+     */
+    public BandwidthManager(FTPConfigSection ftpConfig) {
+
+        // Create the global bucket
+        if (ftpConfig.getBandwidthLimit() > 0)
+            m_global = new TokenBucket("Global", ftpConfig.getBandwidthLimit());
+
+        // Create the user and share buckets
+        for (Map.Entry<String, Long> entry : ftpConfig.getUserBandwidthLimits().entrySet())
+            m_userBuckets.put(entry.getKey().toLowerCase(), new TokenBucket("User:" + entry.getKey(), entry.getValue()));
+
+        for (Map.Entry<String, Long> entry : ftpConfig.getShareBandwidthLimits().entrySet())
+            m_shareBuckets.put(entry.getKey().toLowerCase(), new TokenBucket("Share:" + entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * Check if any bandwidth limits are configured
+     *
+     * @return boolean
+     */
+    public final boolean hasLimits() {
+        return m_global != null || m_userBuckets.isEmpty() == false || m_shareBuckets.isEmpty() == false;
+    }
+
+    /**
+     * Return the global bucket, or null if there is no global limit
+     *
+     * @return TokenBucket
+     */
+    public final TokenBucket getGlobalBucket() {
+        return m_global;
+    }
+
+    /**
+     * Return the bucket for the specified user, or null if the user does not have a limit
+     *
+     * @param userName String
+     * @return TokenBucket
+     */
+    public final TokenBucket getUserBucket(String userName) {
+        if (userName == null)
+            return null;
+        return m_userBuckets.get(userName.toLowerCase());
+    }
+
+    /**
+     * Return the bucket for the specified share, or null if the share does not have a limit
+     *
+     * @param shareName String
+     * @return TokenBucket
+     */
+    public final TokenBucket getShareBucket(String shareName) {
+        if (shareName == null)
+            return null;
+        return m_shareBuckets.get(shareName.toLowerCase());
+    }
+
+    /**
+     * Return the user buckets
+     *
+     * @return Collection&lt;TokenBucket&gt;
+     */
+    public final Collection<TokenBucket> getUserBuckets() {
+        return m_userBuckets.values();
+    }
+
+    /**
+     * Return the share buckets
+     *
+     * @return Collection&lt;TokenBucket&gt;
+     */
+    public final Collection<TokenBucket> getShareBuckets() {
+        return m_shareBuckets.values();
+    }
+
+    /**
+     * Return the bandwidth limiter for a transfer by the specified user to/from the specified share
+     *
+     * @param userName  String
+     * @param shareName String
+     * @return BandwidthLimiter, or null if there are no limits for the transfer
+     */
+    public final BandwidthLimiter getLimiter(String userName, String shareName) {
+
+        // Build the list of buckets that apply to the transfer
+        ArrayList<TokenBucket> buckets = new ArrayList<TokenBucket>(3);
+
+        if (m_global != null)
+            buckets.add(m_global);
+
+        TokenBucket bucket = getUserBucket(userName);
+        if (bucket != null)
+            buckets.add(bucket);
+
+        bucket = getShareBucket(shareName);
+        if (bucket != null)
+            buckets.add(bucket);
+
+        if (buckets.isEmpty())
+            return null;
+        return new BandwidthLimiter(buckets.toArray(new TokenBucket[buckets.size()]));
+    }
+
+    /**
+     * Return the bandwidth manager details, including the current rates, as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[Bandwidth global=");
+        str.append(m_global != null ? m_global.toString() : "none");
+        str.append(", users=");
+        str.append(m_userBuckets.values());
+        str.append(", shares=");
+        str.append(m_shareBuckets.values());
+        str.append("]");
+
+        return str.toString();
+    }
+}
@@ -21,6 +21,9 @@ package org.filesys.ftp;
 
 import java.net.InetAddress;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
 
 import org.springframework.extensions.config.ConfigElement;
 import org.springframework.extensions.config.element.GenericConfigElement;
@@ -29,6 +32,7 @@ import org.filesys.server.config.ConfigSection;
 import org.filesys.server.config.ConfigurationListener;
 import org.filesys.server.config.InvalidConfigurationException;
 import org.filesys.server.config.ServerConfiguration;
+import org.filesys.server.thread.ThreadRequestPool;
 
 /**
  * FTP Server Configuration Section Class
@@ -44,6 +48,25 @@ public class FTPConfigSection extends ConfigSection {
     public static final String DefaultKeyStoreType = "JKS";
     public static final String DefaultTrustStoreType = "JKS";
 
+    // NIO engine worker thread pool size limits
+    public static final int DefaultNIOThreads = 16;
+    public static final int MinNIOThreads = ThreadRequestPool.MinimumWorkerThreads;
+    public static final int MaxNIOThreads = ThreadRequestPool.MaximumWorkerThreads;
+    public static final int DefaultNIOTransferThreads = 16;
+
+    // Pipelined file transfer buffer count limits
+    public static final int DefaultPipelineBuffers = 2;
+    public static final int MinPipelineBuffers = 2;
+    public static final int MaxPipelineBuffers = 8;
+
+    // MODE Z compression level and concurrent compressed transfer defaults
+    public static final int DefaultModeZLevel = 6;
+    public static final int DefaultModeZTransfers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    // Directory listing cache default size and listing expiry time, in seconds
+    public static final long DefaultListingCacheSize = 4 * 1024 * 1024;
+    public static final int DefaultListingCacheTimeout = 30;
+
     //  Bind address and FTP server port. A port of -1 indicates do not start FTP server.
     private InetAddress m_ftpBindAddress;
     private int m_ftpPort = -1;
@@ -89,6 +112,36 @@ public class FTPConfigSection extends ConfigSection {
     // Only allow FTPS/encrypted session logons
     private boolean m_requireSecureSess;
 
+    // Use the NIO engine, sessions are processed by the thread pool
+    private boolean m_nioEngine;
+
+    // Number of worker threads in the NIO engine thread pool
+    private int m_nioThreads = DefaultNIOThreads;
+
+    // Number of worker threads in the NIO engine data transfer thread pool
+    private int m_nioXferThreads = DefaultNIOTransferThreads;
+
+    // Number of buffers to use for pipelined file transfers, zero if pipelined transfers are disabled
+    private int m_pipelineBufs;
+
+    // MODE Z compressed transfers enabled, compression level and maximum number of concurrent compressed transfers
+    private boolean m_modeZ;
+    private int m_modeZLevel = DefaultModeZLevel;
+    private int m_modeZTransfers = DefaultModeZTransfers;
+
+    // Bandwidth limits, in bytes per second. Global limit, zero if not limited, and per user and per share limits
+    private long m_bwLimit;
+    private HashMap<String, Long> m_userBwLimits = new HashMap<String, Long>();
+    private HashMap<String, Long> m_shareBwLimits = new HashMap<String, Long>();
+
+    // Directory listing cache size, zero if the cache is disabled, and listing expiry time in seconds
+    private long m_listCacheSize;
+    private int m_listCacheTimeout = DefaultListingCacheTimeout;
+
+    // Pre-bound passive port pool enabled, and the time a released port is quarantined before reuse
+    private boolean m_pasvPortPool;
+    private int m_pasvQuarantine = PassivePortPool.DefaultQuarantineTime;
+
     /**
      * Class constructor
      *
@@ -315,6 +368,159 @@ public class FTPConfigSection extends ConfigSection {
         return m_requireSecureSess;
     }
 
+    /**
+     * Determine if the NIO engine is enabled
+     *
+     * @return boolean
+     */
+    public final boolean hasNIOEngine() {
+        return m_nioEngine;
+    }
+
+    /**
+     * Return the number of worker threads in the NIO engine thread pool
+     *
+     * @return int
+     */
+    public final int getNIOThreadPoolSize() {
+        return m_nioThreads;
+    }
+
+    /**
+     * Return the number of worker threads in the NIO engine data transfer thread pool
+     *
+     * @return int
+     */
+    public final int getNIOTransferThreadPoolSize() {
+        return m_nioXferThreads;
+    }
+
+    /**
+     * Check if pipelined file transfers are enabled
+     *
+     * @return boolean
+     */
+    public final boolean hasPipelinedTransfers() {
+        return m_pipelineBufs > 0;
+    }
+
+    /**
+     * Return the number of buffers to use for pipelined file transfers
+     *
+     * @return int
+     */
+    public final int getPipelineBuffers() {
+        return m_pipelineBufs;
+    }
+
+    /**
+     * Check if MODE Z compressed transfers are enabled
+     *
+     * @return boolean
+     */
+    public final boolean hasModeZ() {
+        return m_modeZ;
+    }
+
+    /**
+     * Return the MODE Z compression level
+     *
+     * @return int
+     */
+    public final int getModeZLevel() {
+        return m_modeZLevel;
+    }
+
+    /**
+     * Return the maximum number of concurrent compressed transfers, further transfers are sent without compression
+     *
+     * @return int
+     */
+    public final int getModeZMaximumTransfers() {
+        return m_modeZTransfers;
+    }
+
+    /**
+     * Check if any bandwidth limits are configured
+     *
+     * @return boolean
+     */
+    public final boolean hasBandwidthLimits() {
+        return m_bwLimit > 0 || m_userBwLimits.isEmpty() == false || m_shareBwLimits.isEmpty() == false;
+    }
+
+    /**
+     * Return the global bandwidth limit, in bytes per second, or zero if there is no global limit
+     *
+     * @return long
+     */
+    public final long getBandwidthLimit() {
+        return m_bwLimit;
+    }
+
+    /**
+     * Return the per user bandwidth limits, in bytes per second
+     *
+     * @return Map&lt;String, Long&gt;
+     */
+    public final Map<String, Long> getUserBandwidthLimits() {
+        return m_userBwLimits;
+    }
+
+    /**
+     * Return the per share bandwidth limits, in bytes per second
+     *
+     * @return Map&lt;String, Long&gt;
+     */
+    public final Map<String, Long> getShareBandwidthLimits() {
+        return m_shareBwLimits;
+    }
+
+    /**
+     * Check if the directory listing cache is enabled
+     *
+     * @return boolean
+     */
+    public final boolean hasListingCache() {
+        return m_listCacheSize > 0;
+    }
+
+    /**
+     * Return the directory listing cache size, in bytes
+     *
+     * @return long
+     */
+    public final long getListingCacheSize() {
+        return m_listCacheSize;
+    }
+
+    /**
+     * Return the directory listing cache expiry time, in seconds
+     *
+     * @return int
+     */
+    public final int getListingCacheTimeout() {
+        return m_listCacheTimeout;
+    }
+
+    /**
+     * Check if the passive data ports are pre-bound using a port pool
+     *
+     * @return boolean
+     */
+    public final boolean hasPassivePortPool() {
+        return m_pasvPortPool && hasFTPDataPortRange();
+    }
+
+    /**
+     * Return the passive port quarantine time, in milliseconds
+     *
+     * @return int
+     */
+    public final int getPassivePortQuarantine() {
+        return m_pasvQuarantine;
+    }
+
     /**
      * Set the FTP character set
      *
@@ -717,6 +923,338 @@ public class FTPConfigSection extends ConfigSection {
         return sts;
     }
 
+    /**
+     * Enable/disable the NIO engine
+     *
+     * @param ena boolean
+     * @return int
+     * @exception InvalidConfigurationException Error setting the NIO engine flag
+     */
+    public final int setNIOEngine(boolean ena)
+            throws InvalidConfigurationException {
+
+        //  Inform listeners, validate the configuration change
+        int sts = fireConfigurationChange(ConfigId.FTPNIOEngine, new Boolean(ena));
+
+        //  Set the NIO engine flag
+        m_nioEngine = ena;
+
+        //  Return the change status
+        return sts;
+    }
+
+    /**
+     * Set the number of worker threads in the NIO engine thread pool
+     *
+     * @param poolSize int
+     * @return int
+     * @exception InvalidConfigurationException Error setting the thread pool size
+     */
+    public final int setNIOThreadPoolSize(int poolSize)
+            throws InvalidConfigurationException {
+
+        //  Validate the thread pool size
+        if (poolSize < MinNIOThreads || poolSize > MaxNIOThreads)
+            throw new InvalidConfigurationException("NIO thread pool size out of valid range, " + poolSize);
+
+        //  Inform listeners, validate the configuration change
+        int sts = fireConfigurationChange(ConfigId.FTPNIOThreads, new Integer(poolSize));
+
+        //  Set the thread pool size
+        m_nioThreads = poolSize;
+
+        //  Return the change status
+        return sts;
+    }
+
+    /**
+     * Set the number of worker threads in the NIO engine data transfer thread pool
+     *
+     * @param poolSize int
+     * @return int
+     * @exception InvalidConfigurationException Error setting the thread pool size
+     */
+    public final int setNIOTransferThreadPoolSize(int poolSize)
+            throws InvalidConfigurationException {
+
+        //  Validate the thread pool size
+        if (poolSize < MinNIOThreads || poolSize > MaxNIOThreads)
+            throw new InvalidConfigurationException("NIO transfer thread pool size out of valid range, " + poolSize);
+
+        //  Inform listeners, validate the configuration change
+        int sts = fireConfigurationChange(ConfigId.FTPNIOTransferThreads, new Integer(poolSize));
+
+        //  Set the thread pool size
+        m_nioXferThreads = poolSize;
+
+        //  Return the change status
+        return sts;
+    }
+
+    /**
+     * Set the number of buffers to use for pipelined file transfers, zero disables pipelined transfers
+     *
+     * @param numBufs int
+     * @return int
+     * @exception InvalidConfigurationException Error setting the pipeline buffer count
+     */
+    public final int setPipelineBuffers(int numBufs)
+            throws InvalidConfigurationException {
+
+        //  Validate the buffer count
+        if (numBufs != 0 && (numBufs < MinPipelineBuffers || numBufs > MaxPipelineBuffers))
+            throw new InvalidConfigurationException("Pipeline buffer count out of valid range, " + numBufs);
+
+        //  Inform listeners, validate the configuration change
+        int sts = fireConfigurationChange(ConfigId.FTPPipelineBuffers, new Integer(numBufs));
+
+        //  Set the pipeline buffer count
+        m_pipelineBufs = numBufs;
+
+        //  Return the change status
+        return sts;
+    }
+
+    /**
+     * Enable/disable MODE Z compressed transfers
+     *
+     * @param ena boolean
+     * @return int
+     * @exception InvalidConfigurationException Error setting the MODE Z flag
+     */
+    public final int setModeZ(boolean ena)
+            throws InvalidConfigurationException {
+
+        //  Inform listeners, validate the configuration change
+        int sts = fireConfigurationChange(ConfigId.FTPModeZ, new Boolean(ena));
+
+        //  Set the MODE Z flag
+        m_modeZ = ena;
+
+        //  Return the change status
+        return sts;
+    }
+
+    /**
+     * Set the MODE Z compression level
+     *
+     * @param level int
+     * @return int
+     * @exception InvalidConfigurationException Error setting the compression level
+     */
+    public final int setModeZLevel(int level)
+            throws InvalidConfigurationException {
+
+        //  Validate the compression level
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new InvalidConfigurationException("MODE Z compression level out of valid range, " + level);
+
+        //  Inform listeners, validate the configuration change
+        int sts = fireConfigurationChange(ConfigId.FTPModeZLevel, new Integer(level));
+
+        //  Set the compression level
+        m_modeZLevel = level;
+
+        //  Return the change status
+        return sts;
+    }
+
+    /**
+     * Set the maximum number of concurrent compressed transfers
+     *
+     * @param maxXfers int
+     * @return int
+     * @exception InvalidConfigurationException Error setting the maximum compressed transfers
+     */
+    public final int setModeZMaximumTransfers(int maxXfers)
+            throws InvalidConfigurationException {
+
+        //  Validate the transfer count
+        if (maxXfers < 1)
+            throw new InvalidConfigurationException("MODE Z maximum transfers out of valid range, " + maxXfers);
+
+        //  Inform listeners, validate the configuration change
+        int sts = fireConfigurationChange(ConfigId.FTPModeZTransfers, new Integer(maxXfers));
+
+        //  Set the maximum compressed transfers
+        m_modeZTransfers = maxXfers;
+
+        //  Return the change status
+        return sts;
+    }
+
+    /**
+     * Set the global bandwidth limit
+     *
+     * @param rate long
+     * @return int
+     * @exception InvalidConfigurationException Error setting the bandwidth limit
+     */
+    public final int setBandwidthLimit(long rate)
+            throws InvalidConfigurationException {
+
+        //  Validate the rate, zero disables the limit
+        if (rate < 0)
+            throw new InvalidConfigurationException("Invalid bandwidth limit, " + rate);
+
+        //  Inform listeners, validate the configuration change
+        int sts = fireConfigurationChange(ConfigId.FTPBandwidthLimit, new Long(rate));
+
+        //  Set the global bandwidth limit
+        m_bwLimit = rate;
+
+        //  Return the change status
+        return sts;
+    }
+
+    /**
+     * Set the bandwidth limit for a user
+     *
+     * @param userName String
+     * @param rate long
+     * @return int
+     * @exception InvalidConfigurationException Error setting the bandwidth limit
+     */
+    public final int setUserBandwidthLimit(String userName, long rate)
+            throws InvalidConfigurationException {
+
+        //  Validate the rate, zero removes the limit
+        if (rate < 0)
+            throw new InvalidConfigurationException("Invalid bandwidth limit for user " + userName + ", " + rate);
+
+        //  Inform listeners, validate the configuration change
+        int sts = fireConfigurationChange(ConfigId.FTPUserBandwidthLimit, userName);
+
+        //  Set the user bandwidth limit
+        if (rate > 0)
+            m_userBwLimits.put(userName, rate);
+        else
+            m_userBwLimits.remove(userName);
+
+        //  Return the change status
+        return sts;
+    }
+
+    /**
+     * Set the bandwidth limit for a share
+     *
+     * @param shareName String
+     * @param rate long
+     * @return int
+     * @exception InvalidConfigurationException Error setting the bandwidth limit
+     */
+    public final int setShareBandwidthLimit(String shareName, long rate)
+            throws InvalidConfigurationException {
+
+        //  Validate the rate, zero removes the limit
+        if (rate < 0)
+            throw new InvalidConfigurationException("Invalid bandwidth limit for share " + shareName + ", " + rate);
+
+        //  Inform listeners, validate the configuration change
+        int sts = fireConfigurationChange(ConfigId.FTPShareBandwidthLimit, shareName);
+
+        //  Set the share bandwidth limit
+        if (rate > 0)
+            m_shareBwLimits.put(shareName, rate);
+        else
+            m_shareBwLimits.remove(shareName);
+
+        //  Return the change status
+        return sts;
+    }
+
+    /**
+     * Set the directory listing cache size, zero disables the cache
+     *
+     * @param cacheSize long
+     * @return int
+     * @exception InvalidConfigurationException Error setting the listing cache size
+     */
+    public final int setListingCacheSize(long cacheSize)
+            throws InvalidConfigurationException {
+
+        //  Validate the cache size
+        if (cacheSize < 0)
+            throw new InvalidConfigurationException("Invalid listing cache size, " + cacheSize);
+
+        //  Inform listeners, validate the configuration change
+        int sts = fireConfigurationChange(ConfigId.FTPListingCacheSize, new Long(cacheSize));
+
+        //  Set the listing cache size
+        m_listCacheSize = cacheSize;
+
+        //  Return the change status
+        return sts;
+    }
+
+    /**
+     * Set the directory listing cache expiry time, in seconds
+     *
+     * @param timeout int
+     * @return int
+     * @exception InvalidConfigurationException Error setting the listing cache timeout
+     */
+    public final int setListingCacheTimeout(int timeout)
+            throws InvalidConfigurationException {
+
+        //  Validate the timeout
+        if (timeout < 1)
+            throw new InvalidConfigurationException("Invalid listing cache timeout, " + timeout);
+
+        //  Inform listeners, validate the configuration change
+        int sts = fireConfigurationChange(ConfigId.FTPListingCacheTimeout, new Integer(timeout));
+
+        //  Set the listing cache timeout
+        m_listCacheTimeout = timeout;
+
+        //  Return the change status
+        return sts;
+    }
+
+    /**
+     * Enable/disable the pre-bound passive port pool, requires a data port range
+     *
+     * @param ena boolean
+     * @return int
+     * @exception InvalidConfigurationException Error setting the passive port pool flag
+     */
+    public final int setPassivePortPool(boolean ena)
+            throws InvalidConfigurationException {
+
+        //  Inform listeners, validate the configuration change
+        int sts = fireConfigurationChange(ConfigId.FTPPassivePortPool, new Boolean(ena));
+
+        //  Set the passive port pool flag
+        m_pasvPortPool = ena;
+
+        //  Return the change status
+        return sts;
+    }
+
+    /**
+     * Set the passive port quarantine time, in milliseconds
+     *
+     * @param quarantine int
+     * @return int
+     * @exception InvalidConfigurationException Error setting the quarantine time
+     */
+    public final int setPassivePortQuarantine(int quarantine)
+            throws InvalidConfigurationException {
+
+        //  Validate the quarantine time
+        if (quarantine < 0)
+            throw new InvalidConfigurationException("Invalid passive port quarantine time, " + quarantine);
+
+        //  Inform listeners, validate the configuration change
+        int sts = fireConfigurationChange(ConfigId.FTPPassiveQuarantine, new Integer(quarantine));
+
+        //  Set the quarantine time
+        m_pasvQuarantine = quarantine;
+
+        //  Return the change status
+        return sts;
+    }
+
     /**
      * Close the configuration section
      */
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.ftp;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+import org.filesys.debug.Debug;
+import org.filesys.server.thread.ThreadRequestPool;
+
+/**
+ * FTP Connections Handler Class
+ *
+ * <p>NIO engine for the FTP server. Accepts incoming connections and monitors the command channels of all sessions
+ * using a single selector, idle sessions do not use a thread. When a command channel has data available the session
+ * is queued to the thread pool to process the received commands. Commands that use a data connection are passed to
+ * a seperate transfer thread pool.
+ *
+ * @author gkspencer
+ */
+public class FTPConnectionsHandler {
+
+    // FTP server
+    private FTPServer m_server;
+
+    // Listening server socket channel
+    private ServerSocketChannel m_srvChannel;
+
+    // Selector used to monitor the listening socket and session command channels
+    private Selector m_selector;
+
+    // Thread pools for processing commands, and for commands that use a data connection
+    private ThreadRequestPool m_threadPool;
+    private ThreadRequestPool m_xferThreadPool;
+
+    // Shutdown request flag
+    private volatile boolean m_shutdown;
+
+    /**
+     * Class constructor
+     *
+     * @param srv        FTPServer
+     * @param srvChannel ServerSocketChannel
+     * @param threadPool ThreadRequestPool
+     * @param xferThreadPool ThreadRequestPool
+     */
+    public FTPConnectionsHandler(FTPServer srv, ServerSocketChannel srvChannel, ThreadRequestPool threadPool,
+                                 ThreadRequestPool xferThreadPool) {
+        m_server = srv;
+        m_srvChannel = srvChannel;
+        m_threadPool = threadPool;
+        m_xferThreadPool = xferThreadPool;
+    }
+
+    /**
+     * Check if debug output is enabled
+     *
+     * @return boolean
+     */
+    public final boolean hasDebug() {
+        return m_server.hasDebug();
+    }
+
+    /**
+     * Run the connections handler in the current thread, returns when the handler is stopped
+     *
+     * @exception IOException Error opening the selector
+     */
+    public final void runHandler()
+            throws IOException {
+
+        // Create the selector, register the listening socket for accept events
+        m_selector = Selector.open();
+
+        m_srvChannel.configureBlocking(false);
+        m_srvChannel.register(m_selector, SelectionKey.OP_ACCEPT);
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("[FTP] NIO engine started, using thread pool");
+
+        // Loop until shutdown
+        while (m_shutdown == false) {
+
+            // Wait for connections or command channel data
+            try {
+                m_selector.select();
+            }
+            catch (ClosedSelectorException ex) {
+                break;
+            }
+            catch (IOException ex) {
+
+                // DEBUG
+                if (Debug.EnableError && hasDebug()) {
+                    Debug.println("[FTP] Error waiting for events");
+                    Debug.println(ex);
+                }
+            }
+
+            // Check if the shutdown flag has been set
+            if (m_shutdown == true)
+                break;
+
+            // Iterate the selected keys
+            Iterator<SelectionKey> keysIter = m_selector.selectedKeys().iterator();
+
+            while (keysIter.hasNext()) {
+
+                // Get the current selection key, and remove from the selected list
+                SelectionKey selKey = keysIter.next();
+                keysIter.remove();
+
+                try {
+
+                    if (selKey.isValid() == false)
+                        continue;
+
+                    if (selKey.isAcceptable()) {
+
+                        // Accept the new connection
+                        acceptConnection();
+                    }
+                    else if (selKey.isReadable()) {
+
+                        // Disable read events whilst the session is processing commands, queue the session to
+                        // the thread pool
+                        selKey.interestOps(selKey.interestOps() & ~SelectionKey.OP_READ);
+                        m_threadPool.queueRequest(new FTPThreadRequest((FTPSrvSession) selKey.attachment(), selKey, m_xferThreadPool));
+                    }
+                }
+                catch (CancelledKeyException ex) {
+                }
+            }
+        }
+
+        // Close the selector
+        try {
+            m_selector.close();
+        }
+        catch (IOException ex) {
+        }
+    }
+
+    /**
+     * Stop the connections handler
+     */
+    public final void stopHandler() {
+
+        // Set the shutdown flag, and wakeup the handler
+        m_shutdown = true;
+
+        if (m_selector != null)
+            m_selector.wakeup();
+    }
+
+    /**
+     * Accept a new connection, create the session and register the command channel with the selector
+     */
+    private final void acceptConnection() {
+
+        SocketChannel sockChannel = null;
+
+        try {
+
+            // Accept the new client connection
+            sockChannel = m_srvChannel.accept();
+            if (sockChannel == null)
+                return;
+
+            // Set socket options, and switch to non-blocking mode
+            sockChannel.socket().setTcpNoDelay(true);
+            sockChannel.configureBlocking(false);
+
+            // Debug
+            if (Debug.EnableInfo && hasDebug())
+                Debug.println("[FTP] FTP session request received from " + sockChannel.socket().getInetAddress().getHostAddress());
+
+            // Create the session
+            FTPSrvSession srvSess = new FTPSrvSession(sockChannel, m_server);
+            m_server.initializeSession(srvSess);
+
+            // Send the initial response, and register the command channel for read events
+            try {
+                srvSess.startSession();
+                sockChannel.register(m_selector, SelectionKey.OP_READ, srvSess);
+            }
+            catch (IOException ex) {
+
+                // Close the session
+                srvSess.closeSession();
+                throw ex;
+            }
+        }
+        catch (IOException ex) {
+
+            // DEBUG
+            if (Debug.EnableError && hasDebug()) {
+                Debug.println("[FTP] Failed to accept connection");
+                Debug.println(ex);
+            }
+
+            // Make sure the channel is closed
+            if (sockChannel != null) {
+                try {
+                    sockChannel.close();
+                }
+                catch (IOException ex2) {
+                }
+            }
+        }
+    }
+}
@@ -20,10 +20,24 @@
 package org.filesys.ftp;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.filesys.debug.Debug;
 
 /**
  * FTP Data Session Class
@@ -33,10 +47,20 @@ import java.net.UnknownHostException;
  * <p>The PORT command will actively connect to the specified address/port on the client. The PASV command will create a
  * listening socket and wait for the client to connect.
  *
+ * <p>Data connections use non-blocking socket channels, so the data can be transferred directly between the channel
+ * and a file channel.
+ *
+ * <p>If the data channel protection level is private then the data connection is protected using SSL/TLS, with the
+ * SSL session shared with the control session where the client supports session resumption. If MODE Z is enabled
+ * the data is compressed using deflate.
+ *
  * @author gkspencer
  */
 public class FTPDataSession implements Runnable {
 
+    //  MODE Z compression stream buffer size
+    private static final int ModeZBufferSize = 64 * 1024;
+
     //	FTP session that this data connection is associated with
     private FTPSrvSession m_cmdSess;
 
@@ -56,6 +80,32 @@ public class FTPDataSession implements Runnable {
     //	Adapter to bind the passive socket to
     private InetAddress m_bindAddr;
 
+    //  Passive listening channel and data channel streams
+    private ServerSocketChannel m_passiveChannel;
+
+    //  Pooled passive port, if allocated from the passive port pool
+    private PassivePortPool.Listener m_poolListener;
+    private SocketChannelStreams m_channelStreams;
+
+    //  Secure data connection streams, if the data connection is protected
+    private SSLDataStreams m_sslStreams;
+
+    //  MODE Z compressed data streams, and the compressor/decompressor
+    private DeflaterOutputStream m_zOut;
+    private InflaterInputStream m_zIn;
+
+    private Deflater m_deflater;
+    private Inflater m_inflater;
+
+    //  Compression slot allocated from the server for this data connection
+    private boolean m_compressSlot;
+
+    //  Bandwidth limiter for transfers on this data connection, and the throttled data streams
+    private BandwidthLimiter m_bwLimiter;
+
+    private ThrottledOutputStream m_throttleOut;
+    private ThrottledInputStream m_throttleIn;
+
     //	Transfer in progress and abort file transfer flags
     private boolean m_transfer;
     private boolean m_abort;
@@ -78,7 +128,7 @@ public class FTPDataSession implements Runnable {
         m_cmdSess = sess;
 
         //	Create a server socket to listen for the incoming connection
-        m_passiveSock = new ServerSocket(0, 1, null);
+        openPassiveSocket(0, null);
     }
 
     /**
@@ -100,7 +150,7 @@ public class FTPDataSession implements Runnable {
 
         //	Create a server socket to listen for the incoming connection on the specified network adapter
         m_localPort = localPort;
-        m_passiveSock = new ServerSocket(localPort, 1, bindAddr);
+        openPassiveSocket(localPort, bindAddr);
     }
 
     /**
@@ -120,7 +170,25 @@ public class FTPDataSession implements Runnable {
         m_cmdSess = sess;
 
         //	Create a server socket to listen for the incoming connection on the specified network adapter
-        m_passiveSock = new ServerSocket(0, 1, bindAddr);
+        openPassiveSocket(0, bindAddr);
+    }
+
+    /**
+     * Class constructor
+     *
+     * <p>Create a data connection that uses a pre-bound port from the passive port pool.
+     *
+     * @param sess     FTPSrvSession
+     * @param listener PassivePortPool.Listener
+     */
+    protected FTPDataSession(FTPSrvSession sess, PassivePortPool.Listener listener) {
+
+        //	Set the associated command session
+        m_cmdSess = sess;
+
+        //  Save the pooled listener, connections are accepted by the pool
+        m_poolListener = listener;
+        m_localPort = listener.getPort();
     }
 
     /**
@@ -183,7 +251,9 @@ public class FTPDataSession implements Runnable {
      * @return int
      */
     public final int getLocalPort() {
-        if (m_passiveSock != null)
+        if (m_poolListener != null)
+            return m_poolListener.getPort();
+        else if (m_passiveSock != null)
             return m_passiveSock.getLocalPort();
         else if (m_activeSock != null)
             return m_activeSock.getLocalPort();
@@ -205,10 +275,10 @@ public class FTPDataSession implements Runnable {
      * @return InetAddress
      */
     public final InetAddress getPassiveAddress() {
-        if (m_passiveSock != null) {
+        if (m_passiveSock != null || m_poolListener != null) {
 
             //	Get the server socket local address
-            InetAddress addr = m_passiveSock.getInetAddress();
+            InetAddress addr = m_poolListener != null ? m_poolListener.getAddress() : m_passiveSock.getInetAddress();
             if (addr.getHostAddress().compareTo("0.0.0.0") == 0) {
                 try {
                     addr = InetAddress.getLocalHost();
@@ -227,7 +297,9 @@ public class FTPDataSession implements Runnable {
      * @return int
      */
     public final int getPassivePort() {
-        if (m_passiveSock != null)
+        if (m_poolListener != null)
+            return m_poolListener.getPort();
+        else if (m_passiveSock != null)
             return m_passiveSock.getLocalPort();
         return -1;
     }
@@ -266,23 +338,159 @@ public class FTPDataSession implements Runnable {
     public final Socket getSocket()
             throws IOException {
 
-        //	Check for a passive connection, get the incoming socket connection
-        if (m_passiveSock != null)
-            m_activeSock = m_passiveSock.accept();
-        else {
-            if (m_localPort != 0) {
+        //  Open the data channel, if not already open
+        if (m_channelStreams == null)
+            openDataChannel();
+
+        //	Return the data socket
+        return m_activeSock;
+    }
+
+    /**
+     * Return the data channel, only valid after the data connection has been opened
+     *
+     * @return SocketChannel
+     */
+    public final SocketChannel getChannel() {
+        return m_channelStreams != null ? m_channelStreams.getChannel() : null;
+    }
 
-                //	Use the specified local port
-                m_activeSock = new Socket(m_clientAddr, m_clientPort, null, m_localPort);
-            } else
-                m_activeSock = new Socket(m_clientAddr, m_clientPort);
+    /**
+     * Check if the data connection is protected using SSL/TLS
+     *
+     * @return boolean
+     */
+    public final boolean isSecure() {
+        return m_sslStreams != null;
+    }
+
+    /**
+     * Return the secure data connection streams, including the transfer statistics, or null if the data connection
+     * is not protected
+     *
+     * @return SSLDataStreams
+     */
+    public final SSLDataStreams getSecureStreams() {
+        return m_sslStreams;
+    }
+
+    /**
+     * Return the bandwidth limiter for the data connection, or null if transfers are not limited
+     *
+     * @return BandwidthLimiter
+     */
+    public final BandwidthLimiter getBandwidthLimiter() {
+        return m_bwLimiter;
+    }
+
+    /**
+     * Set the bandwidth limiter for the data connection, must be set before the data streams are requested
+     *
+     * @param limiter BandwidthLimiter
+     */
+    public final void setBandwidthLimiter(BandwidthLimiter limiter) {
+        m_bwLimiter = limiter;
+    }
+
+    /**
+     * Wait for the data channel to be ready for the specified operation, the socket timeout is applied to the wait
+     *
+     * @param ops int
+     * @exception IOException Socket error
+     */
+    public final void waitForChannel(int ops)
+            throws IOException {
+        m_channelStreams.waitForChannel(ops);
+    }
+
+    /**
+     * Return the output stream for the data connection
+     *
+     * @return OutputStream
+     * @exception IOException Socket error
+     */
+    public final OutputStream getOutputStream()
+            throws IOException {
+
+        //  Get the output stream for the connection
+        OutputStream os = null;
+
+        if (m_sslStreams != null)
+            os = m_sslStreams.getOutputStream();
+        else if (m_channelStreams != null)
+            os = m_channelStreams.getOutputStream();
+        else
+            os = m_activeSock.getOutputStream();
+
+        //  Check if the connection is bandwidth limited, limit the data sent on the network
+        if (m_bwLimiter != null) {
+            if (m_throttleOut == null)
+                m_throttleOut = new ThrottledOutputStream(os, m_bwLimiter);
+            os = m_throttleOut;
         }
 
-        //	Set the socket to close immediately
-        m_activeSock.setSoLinger(false, 0);
+        //  Check if MODE Z is enabled, compress the data
+        if (m_cmdSess.isModeZ()) {
 
-        //	Return the data socket
-        return m_activeSock;
+            if (m_zOut == null) {
+
+                //  Use the configured compression level if the server has spare compression capacity, else send
+                //  the data using uncompressed deflate blocks
+                FTPServer ftpServer = m_cmdSess.getFTPServer();
+                m_compressSlot = ftpServer.allocateCompressionSlot();
+
+                m_deflater = new Deflater(m_compressSlot ? ftpServer.getFTPConfiguration().getModeZLevel() : Deflater.NO_COMPRESSION);
+                m_zOut = new DeflaterOutputStream(os, m_deflater, ModeZBufferSize);
+
+                //  DEBUG
+                if (Debug.EnableInfo && m_cmdSess.hasDebug(FTPSrvSession.Dbg.DATAPORT))
+                    m_cmdSess.debugPrintln("MODE Z data connection, " + (m_compressSlot ? "compressed" : "uncompressed, compression limit reached"));
+            }
+
+            return m_zOut;
+        }
+
+        return os;
+    }
+
+    /**
+     * Return the input stream for the data connection
+     *
+     * @return InputStream
+     * @exception IOException Socket error
+     */
+    public final InputStream getInputStream()
+            throws IOException {
+
+        //  Get the input stream for the connection
+        InputStream is = null;
+
+        if (m_sslStreams != null)
+            is = m_sslStreams.getInputStream();
+        else if (m_channelStreams != null)
+            is = m_channelStreams.getInputStream();
+        else
+            is = m_activeSock.getInputStream();
+
+        //  Check if the connection is bandwidth limited, limit the data received from the network
+        if (m_bwLimiter != null) {
+            if (m_throttleIn == null)
+                m_throttleIn = new ThrottledInputStream(is, m_bwLimiter);
+            is = m_throttleIn;
+        }
+
+        //  Check if MODE Z is enabled, decompress the data
+        if (m_cmdSess.isModeZ()) {
+
+            if (m_zIn == null) {
+                m_inflater = new Inflater();
+                m_zIn = new InflaterInputStream(is, m_inflater, ModeZBufferSize);
+            }
+
+            return m_zIn;
+        }
+
+        return is;
     }
 
     /**
@@ -290,6 +498,65 @@ public class FTPDataSession implements Runnable {
      */
     public final void closeSession() {
 
+        //  Finish the compressed data stream, and release the compressor/decompressor
+        if (m_zOut != null) {
+            try {
+                m_zOut.finish();
+                m_zOut.flush();
+            }
+            catch (Exception ex) {
+            }
+
+            //  DEBUG
+            if (Debug.EnableInfo && m_cmdSess.hasDebug(FTPSrvSession.Dbg.DATAPORT))
+                m_cmdSess.debugPrintln("MODE Z data connection closed, in=" + m_deflater.getBytesRead() + ", out=" + m_deflater.getBytesWritten());
+
+            m_deflater.end();
+            m_deflater = null;
+            m_zOut = null;
+
+            if (m_compressSlot) {
+                m_cmdSess.getFTPServer().releaseCompressionSlot();
+                m_compressSlot = false;
+            }
+        }
+
+        if (m_zIn != null) {
+            m_inflater.end();
+            m_inflater = null;
+            m_zIn = null;
+        }
+
+        //  Close the secure connection, sends any buffered data and the close notify to the client
+        if (m_sslStreams != null) {
+            try {
+                m_sslStreams.closeSecure();
+            }
+            catch (Exception ex) {
+            }
+
+            //  DEBUG
+            if (Debug.EnableInfo && m_cmdSess.hasDebug(FTPSrvSession.Dbg.SSL))
+                m_cmdSess.debugPrintln("Secure data connection closed, stats=" + m_sslStreams);
+
+            m_sslStreams = null;
+        }
+
+        //  Release the bandwidth limited streams
+        m_throttleOut = null;
+        m_throttleIn = null;
+        m_bwLimiter = null;
+
+        //  Close the data channel streams
+        if (m_channelStreams != null) {
+            try {
+                m_channelStreams.closeStreams();
+            }
+            catch (Exception ex) {
+            }
+            m_channelStreams = null;
+        }
+
         //	If the data connection is active close it
         if (m_activeSock != null) {
             try {
@@ -300,6 +567,12 @@ public class FTPDataSession implements Runnable {
             m_activeSock = null;
         }
 
+        //  Return a pooled passive port to the pool
+        if (m_poolListener != null) {
+            m_cmdSess.getFTPServer().getPassivePortPool().releaseListener(m_poolListener);
+            m_poolListener = null;
+        }
+
         //	Close the listening socket for a passive connection
         if (m_passiveSock != null) {
             try {
@@ -311,6 +584,113 @@ public class FTPDataSession implements Runnable {
         }
     }
 
+    /**
+     * Create the listening socket for a passive data connection
+     *
+     * @param localPort int
+     * @param bindAddr  InetAddress
+     * @exception IOException Socket error
+     */
+    private final void openPassiveSocket(int localPort, InetAddress bindAddr)
+            throws IOException {
+
+        //  Create the server socket channel
+        m_passiveChannel = ServerSocketChannel.open();
+
+        try {
+            m_passiveChannel.bind(new InetSocketAddress(bindAddr, localPort), 1);
+        }
+        catch (IOException ex) {
+            m_passiveChannel.close();
+            throw ex;
+        }
+
+        m_passiveSock = m_passiveChannel.socket();
+    }
+
+    /**
+     * Open a non-blocking data channel to the client
+     *
+     * @exception IOException Socket error
+     */
+    private final void openDataChannel()
+            throws IOException {
+
+        SocketChannel dataChannel = null;
+
+        if (m_poolListener != null) {
+
+            //  Wait for the passive port pool to accept the client connection, using the session timeout
+            dataChannel = m_poolListener.waitForConnection(m_cmdSess.getFTPServer().getFTPConfiguration().getFTPSrvSessionTimeout());
+        }
+        else if (m_passiveChannel != null) {
+
+            //  Wait for the client to connect, using the session timeout
+            m_passiveChannel.configureBlocking(false);
+            dataChannel = m_passiveChannel.accept();
+
+            if (dataChannel == null) {
+                Selector selector = Selector.open();
+
+                try {
+                    m_passiveChannel.register(selector, SelectionKey.OP_ACCEPT);
+                    int tmo = m_cmdSess.getFTPServer().getFTPConfiguration().getFTPSrvSessionTimeout();
+
+                    while (dataChannel == null) {
+                        if (selector.select(tmo) == 0 && tmo > 0)
+                            throw new SocketTimeoutException("Accept timed out");
+
+                        selector.selectedKeys().clear();
+                        dataChannel = m_passiveChannel.accept();
+                    }
+                }
+                finally {
+                    selector.close();
+                }
+            }
+        }
+        else {
+
+            //  Connect to the client, using the specified local port if set
+            dataChannel = SocketChannel.open();
+
+            try {
+                if (m_localPort != 0)
+                    dataChannel.bind(new InetSocketAddress(m_localPort));
+                dataChannel.connect(new InetSocketAddress(m_clientAddr, m_clientPort));
+            }
+            catch (IOException ex) {
+                dataChannel.close();
+                throw ex;
+            }
+        }
+
+        //  Switch the data channel to non-blocking mode
+        dataChannel.configureBlocking(false);
+        m_channelStreams = new SocketChannelStreams(dataChannel);
+
+        m_activeSock = dataChannel.socket();
+        m_activeSock.setSoLinger(false, 0);
+
+        //  Check if the data connection should be protected using SSL/TLS
+        if (m_cmdSess.isDataProtected()) {
+
+            //  Create the secure streams, and perform the handshake using the session timeout
+            m_sslStreams = new SSLDataStreams(m_channelStreams, m_cmdSess.createDataSSLEngine(), m_cmdSess.getFTPServer().getSSLBufferPool());
+
+            int sockTmo = m_activeSock.getSoTimeout();
+            m_activeSock.setSoTimeout(m_cmdSess.getFTPServer().getFTPConfiguration().getFTPSrvSessionTimeout());
+
+            m_sslStreams.startHandshake();
+            m_activeSock.setSoTimeout(sockTmo);
+
+            //  DEBUG
+            if (Debug.EnableInfo && m_cmdSess.hasDebug(FTPSrvSession.Dbg.SSL))
+                m_cmdSess.debugPrintln("Secure data connection opened, " + (m_sslStreams.isResumedSession() ? "resumed" : "new") +
+                        " session, handshake=" + m_sslStreams.getHandshakeTime() + "ms");
+        }
+    }
+
     /**
      * Run a file send/receive in a seperate thread
      */
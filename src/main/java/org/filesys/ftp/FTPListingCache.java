@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.ftp;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FTP Listing Cache Class
+ *
+ * <p>Caches encoded directory listings so that repeated listings of the same directory, such as from sync tools, do
+ * not need to search the filesystem. Listings are keyed by the share, directory path and listing format, and are only
+ * valid whilst the directory modification date/time is unchanged and the listing has not expired. Changes made via
+ * the FTP server invalidate the listings for the affected directory.
+ *
+ * <p>The share name does not identify the filesystem for temporary shares, such as a per user home directory share,
+ * so listings for temporary shares must not be cached.
+ *
+ * <p>The cache is limited to a maximum total size, the least recently used listings are removed to make space.
+ *
+ * @author gkspencer
+ */
+public class FTPListingCache {
+
+    // Cached listing
+    public static class CachedListing {
+
+        // Encoded listing data, count of records in the listing
+        private byte[] m_data;
+        private int m_count;
+
+        // Directory modification date/time, and the listing expiry time
+        private long m_modifyTime;
+        private long m_expiresAt;
+
+        /**
+         * Class constructor
+         *
+         * @param data       byte[]
+         * @param count      int
+         * @param modifyTime long
+         * @param expiresAt  long
+         */
+        protected CachedListing(byte[] data, int count, long modifyTime, long expiresAt) {
+            m_data = data;
+            m_count = count;
+            m_modifyTime = modifyTime;
+            m_expiresAt = expiresAt;
+        }
+
+        /**
+         * Return the encoded listing data
+         *
+         * @return byte[]
+         */
+        public final byte[] getData() {
+            return m_data;
+        }
+
+        /**
+         * Return the number of records in the listing
+         *
+         * @return int
+         */
+        public final int getRecordCount() {
+            return m_count;
+        }
+    }
+
+    // Listing cache key separator, between the directory part and the listing format part
+    private static final char KeySeparator = '|';
+
+    // Maximum total size of the cached listings, and maximum size of a single listing
+    private long m_maxSize;
+    private int m_maxListingSize;
+
+    // Listing expiry time, in milliseconds
+    private long m_timeout;
+
+    // Cached listings, in least recently used order
+    private LinkedHashMap<String, CachedListing> m_cache = new LinkedHashMap<String, CachedListing>(64, 0.75f, true);
+    private long m_curSize;
+
+    // Cache statistics
+    private long m_hits;
+    private long m_misses;
+
+    /**
+     * Class constructor
+     *
+     * @param maxSize long
+     * @param timeout long
+     */
+    public FTPListingCache(long maxSize, long timeout) {
+        m_maxSize = maxSize;
+        m_maxListingSize = (int) Math.min(maxSize / 4, Integer.MAX_VALUE);
+        m_timeout = timeout;
+    }
+
+    /**
+     * Return the maximum size of a single cached listing
+     *
+     * @return int
+     */
+    public final int getMaximumListingSize() {
+        return m_maxListingSize;
+    }
+
+    /**
+     * Build the listing cache key
+     *
+     * @param shareName String
+     * @param dirPath   String
+     * @param format    String
+     * @return String
+     */
+    public static final String makeKey(String shareName, String dirPath, String format) {
+        StringBuilder str = new StringBuilder(shareName.length() + dirPath.length() + format.length() + 2);
+
+        str.append(shareName.toUpperCase());
+        str.append(normalizePath(dirPath));
+        str.append(KeySeparator);
+        str.append(format);
+
+        return str.toString();
+    }
+
+    /**
+     * Find a cached listing, the listing is only returned if the directory has not been modified
+     *
+     * @param key        String
+     * @param modifyTime long
+     * @return CachedListing, or null if there is no valid cached listing
+     */
+    public synchronized final CachedListing findListing(String key, long modifyTime) {
+
+        CachedListing listing = m_cache.get(key);
+
+        if (listing != null && (listing.m_modifyTime != modifyTime || listing.m_expiresAt < System.currentTimeMillis())) {
+
+            // Listing is out of date, remove it from the cache
+            removeListing(key);
+            listing = null;
+        }
+
+        if (listing != null)
+            m_hits++;
+        else
+            m_misses++;
+
+        return listing;
+    }
+
+    /**
+     * Add a listing to the cache
+     *
+     * @param key        String
+     * @param data       byte[]
+     * @param count      int
+     * @param modifyTime long
+     */
+    public synchronized final void addListing(String key, byte[] data, int count, long modifyTime) {
+
+        // Check if the listing is too large to cache
+        if (data.length > m_maxListingSize)
+            return;
+
+        // Replace any existing listing
+        removeListing(key);
+
+        m_cache.put(key, new CachedListing(data, count, modifyTime, System.currentTimeMillis() + m_timeout));
+        m_curSize += data.length;
+
+        // Remove the least recently used listings until the cache is within the size limit
+        Iterator<Map.Entry<String, CachedListing>> iter = m_cache.entrySet().iterator();
+
+        while (m_curSize > m_maxSize && iter.hasNext()) {
+            m_curSize -= iter.next().getValue().getData().length;
+            iter.remove();
+        }
+    }
+
+    /**
+     * Invalidate all cached listings for a directory
+     *
+     * @param shareName String
+     * @param dirPath   String
+     */
+    public synchronized final void invalidateDirectory(String shareName, String dirPath) {
+
+        if (m_cache.isEmpty())
+            return;
+
+        // Remove all listing formats for the directory. The path case is ignored so that all cached listings for
+        // the directory are removed on a case insensitive share, on a case sensitive share this may also remove
+        // listings for directories with the same name in a different case.
+        String prefix = shareName.toUpperCase() + normalizePath(dirPath) + KeySeparator;
+        Iterator<Map.Entry<String, CachedListing>> iter = m_cache.entrySet().iterator();
+
+        while (iter.hasNext()) {
+            Map.Entry<String, CachedListing> entry = iter.next();
+
+            if (entry.getKey().regionMatches(true, 0, prefix, 0, prefix.length())) {
+                m_curSize -= entry.getValue().getData().length;
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Invalidate the cached listings for the directory containing the specified path
+     *
+     * @param shareName String
+     * @param path      String
+     */
+    public final void invalidateParentDirectory(String shareName, String path) {
+
+        String normPath = normalizePath(path);
+        int pos = normPath.lastIndexOf('\\');
+
+        invalidateDirectory(shareName, pos > 0 ? normPath.substring(0, pos) : "\\");
+    }
+
+    /**
+     * Return the number of cached listings
+     *
+     * @return int
+     */
+    public synchronized final int numberOfListings() {
+        return m_cache.size();
+    }
+
+    /**
+     * Return the total size of the cached listings
+     *
+     * @return long
+     */
+    public synchronized final long getCacheSize() {
+        return m_curSize;
+    }
+
+    /**
+     * Return the cache hit count
+     *
+     * @return long
+     */
+    public synchronized final long getHitCount() {
+        return m_hits;
+    }
+
+    /**
+     * Return the cache miss count
+     *
+     * @return long
+     */
+    public synchronized final long getMissCount() {
+        return m_misses;
+    }
+
+    /**
+     * Remove a listing from the cache
+     *
+     * @param key String
+     */
+    private void removeListing(String key) {
+        CachedListing listing = m_cache.remove(key);
+        if (listing != null)
+            m_curSize -= listing.getData().length;
+    }
+
+    /**
+     * Normalize a share relative directory path, remove any trailing separator
+     *
+     * @param path String
+     * @return String
+     */
+    private static String normalizePath(String path) {
+        if (path == null || path.isEmpty())
+            return "\\";
+
+        String normPath = path.replace('/', '\\');
+        if (normPath.length() > 1 && normPath.endsWith("\\"))
+            normPath = normPath.substring(0, normPath.length() - 1);
+        if (normPath.startsWith("\\") == false)
+            normPath = "\\" + normPath;
+        return normPath;
+    }
+
+    /**
+     * Return the listing cache details as a string
+     *
+     * @return String
+     */
+    public synchronized String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[Listing cache listings=");
+        str.append(m_cache.size());
+        str.append(", size=");
+        str.append(m_curSize);
+        str.append("/");
+        str.append(m_maxSize);
+        str.append(", hits=");
+        str.append(m_hits);
+        str.append(", misses=");
+        str.append(m_misses);
+        str.append("]");
+
+        return str.toString();
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.ftp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import org.filesys.server.filesys.FileInfo;
+
+/**
+ * FTP Listing Writer Class
+ *
+ * <p>Formats directory listing records directly into a reusable byte buffer that is written to the data connection
+ * in large blocks. The constant parts of the listing records are pre-encoded, numbers and dates are formatted without
+ * allocating strings.
+ *
+ * <p>The encoded listing can optionally be captured so that it can be added to the listing cache.
+ *
+ * @author gkspencer
+ */
+public class FTPListingWriter {
+
+    // Listing formats
+    public static final int FormatLong      = 0;
+    public static final int FormatNames     = 1;
+    public static final int FormatMachine   = 2;
+
+    // Default buffer size
+    public static final int DefaultBufferSize = 64 * 1024;
+
+    // Pre-encoded constant parts of the listing records
+    private static final byte[] _longDir    = "drw-rw-rw-   1 user group ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] _longFile   = "-rw-rw-rw-   1 user group ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] _noDate     = "------------".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] _crlf       = { '\r', '\n' };
+
+    private static final byte[][] _months;
+
+    static {
+        _months = new byte[FTPDate._months.length][];
+        for (int i = 0; i < _months.length; i++)
+            _months[i] = FTPDate._months[i].getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Output stream, and the character set for file names
+    private OutputStream m_out;
+    private Charset m_charset;
+
+    // Listing buffer and current position
+    private byte[] m_buf;
+    private int m_pos;
+
+    // Calendar used to format Unix style listing dates, and the current time for the listing
+    private Calendar m_cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+    private long m_timeNow;
+
+    // Captured listing data, and the maximum capture size
+    private ByteArrayOutputStream m_capture;
+    private int m_captureMax;
+
+    // Count of records written, and total bytes written
+    private int m_count;
+    private long m_bytes;
+
+    /**
+     * Default constructor
+     */
+    public FTPListingWriter() {
+        this(DefaultBufferSize);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param bufSize int
+     */
+    public FTPListingWriter(int bufSize) {
+        m_buf = new byte[bufSize];
+    }
+
+    /**
+     * Start a new listing, the buffer is reused from previous listings
+     *
+     * @param out   OutputStream
+     * @param utf8  boolean
+     */
+    public final void startListing(OutputStream out, boolean utf8) {
+        m_out = out;
+        m_charset = utf8 ? StandardCharsets.UTF_8 : Charset.defaultCharset();
+
+        m_pos = 0;
+        m_count = 0;
+        m_bytes = 0L;
+        m_timeNow = System.currentTimeMillis();
+
+        m_capture = null;
+    }
+
+    /**
+     * Capture the encoded listing, up to the specified size
+     *
+     * @param maxSize int
+     */
+    public final void startCapture(int maxSize) {
+        m_capture = new ByteArrayOutputStream(Math.min(maxSize, m_buf.length));
+        m_captureMax = maxSize;
+    }
+
+    /**
+     * Return the captured listing data, or null if the capture was not enabled or the listing was too large
+     *
+     * @return byte[]
+     */
+    public final byte[] getCapturedListing() {
+        return m_capture != null ? m_capture.toByteArray() : null;
+    }
+
+    /**
+     * Return the number of listing records written
+     *
+     * @return int
+     */
+    public final int getRecordCount() {
+        return m_count;
+    }
+
+    /**
+     * Return the total number of bytes written
+     *
+     * @return long
+     */
+    public final long getBytesWritten() {
+        return m_bytes + m_pos;
+    }
+
+    /**
+     * Write a listing record in the specified format
+     *
+     * @param format int
+     * @param finfo  FileInfo
+     * @exception IOException I/O error
+     */
+    public final void writeRecord(int format, FileInfo finfo)
+        throws IOException {
+
+        if (format == FormatNames)
+            writeNameRecord(finfo);
+        else
+            writeLongRecord(finfo);
+    }
+
+    /**
+     * Write a long format, Unix style, listing record
+     *
+     * @param finfo FileInfo
+     * @exception IOException I/O error
+     */
+    public final void writeLongRecord(FileInfo finfo)
+        throws IOException {
+
+        putBytes(finfo.isDirectory() ? _longDir : _longFile);
+        putLong(finfo.getSize());
+        putByte(' ');
+        putUnixDate(finfo.getModifyDateTime());
+        putByte(' ');
+        putString(finfo.getFileName());
+        putBytes(_crlf);
+
+        m_count++;
+    }
+
+    /**
+     * Write a file name listing record
+     *
+     * @param finfo FileInfo
+     * @exception IOException I/O error
+     */
+    public final void writeNameRecord(FileInfo finfo)
+        throws IOException {
+
+        putString(finfo.getFileName());
+        putBytes(_crlf);
+
+        m_count++;
+    }
+
+    /**
+     * Write a pre-formatted listing record, such as a machine listing record
+     *
+     * @param rec CharSequence
+     * @exception IOException I/O error
+     */
+    public final void writeRecord(CharSequence rec)
+        throws IOException {
+
+        putString(rec);
+        putBytes(_crlf);
+
+        m_count++;
+    }
+
+    /**
+     * Write a complete pre-encoded listing, from the listing cache
+     *
+     * @param listing byte[]
+     * @param count   int
+     * @exception IOException I/O error
+     */
+    public final void writeListing(byte[] listing, int count)
+        throws IOException {
+
+        putBytes(listing);
+        m_count += count;
+    }
+
+    /**
+     * Flush the buffered listing data to the output stream
+     *
+     * @exception IOException I/O error
+     */
+    public final void flush()
+        throws IOException {
+
+        if (m_pos > 0) {
+
+            // Capture the listing data, stop capturing if the listing is too large
+            if (m_capture != null) {
+                if (m_capture.size() + m_pos <= m_captureMax)
+                    m_capture.write(m_buf, 0, m_pos);
+                else
+                    m_capture = null;
+            }
+
+            // Write the listing data
+            m_out.write(m_buf, 0, m_pos);
+
+            m_bytes += m_pos;
+            m_pos = 0;
+        }
+
+        m_out.flush();
+    }
+
+    /**
+     * Flush the listing data and close the output stream
+     *
+     * @exception IOException I/O error
+     */
+    public final void close()
+        throws IOException {
+
+        if (m_out != null) {
+            try {
+                flush();
+            }
+            finally {
+                m_out.close();
+                m_out = null;
+            }
+        }
+    }
+
+    /**
+     * Add a byte to the buffer
+     *
+     * @param b int
+     * @exception IOException I/O error
+     */
+    private void putByte(int b)
+        throws IOException {
+
+        if (m_pos == m_buf.length)
+            flush();
+        m_buf[m_pos++] = (byte) b;
+    }
+
+    /**
+     * Add bytes to the buffer
+     *
+     * @param byts byte[]
+     * @exception IOException I/O error
+     */
+    private void putBytes(byte[] byts)
+        throws IOException {
+
+        int off = 0;
+
+        while (off < byts.length) {
+            if (m_pos == m_buf.length)
+                flush();
+
+            int len = Math.min(byts.length - off, m_buf.length - m_pos);
+            System.arraycopy(byts, off, m_buf, m_pos, len);
+
+            m_pos += len;
+            off += len;
+        }
+    }
+
+    /**
+     * Add a string to the buffer, ASCII characters are copied directly, any remaining characters after the first
+     * non-ASCII character are encoded using the listing character set
+     *
+     * @param str CharSequence
+     * @exception IOException I/O error
+     */
+    private void putString(CharSequence str)
+        throws IOException {
+
+        int len = str.length();
+
+        for (int i = 0; i < len; i++) {
+            char ch = str.charAt(i);
+
+            if (ch >= 0x80) {
+                putBytes(str.subSequence(i, len).toString().getBytes(m_charset));
+                return;
+            }
+
+            putByte(ch);
+        }
+    }
+
+    /**
+     * Add a decimal number to the buffer
+     *
+     * @param val long
+     * @exception IOException I/O error
+     */
+    private void putLong(long val)
+        throws IOException {
+
+        if (val < 0) {
+            putByte('-');
+            val = -val;
+        }
+
+        // Make sure there is space for the largest value
+        if (m_buf.length - m_pos < 20)
+            flush();
+
+        // Count the digits, then fill in the digits from the end
+        int digits = 1;
+        for (long v = val / 10; v > 0; v /= 10)
+            digits++;
+
+        int pos = m_pos + digits;
+        m_pos = pos;
+
+        do {
+            m_buf[--pos] = (byte) ('0' + (val % 10));
+            val /= 10;
+        } while (val > 0);
+    }
+
+    /**
+     * Add a two digit number to the buffer, with a leading pad character if less than ten
+     *
+     * @param val int
+     * @param pad int
+     * @exception IOException I/O error
+     */
+    private void putTwoDigits(int val, int pad)
+        throws IOException {
+        putByte(val < 10 ? pad : '0' + (val / 10));
+        putByte('0' + (val % 10));
+    }
+
+    /**
+     * Add a date in Unix listing format, 'Mmm dd hh:mm' if the date is within six months, else 'Mmm dd  yyyy'
+     *
+     * @param dateTime long
+     * @exception IOException I/O error
+     */
+    private void putUnixDate(long dateTime)
+        throws IOException {
+
+        // Check if the date is valid
+        if (dateTime < 0) {
+            putBytes(_noDate);
+            return;
+        }
+
+        // Add the month name and date
+        m_cal.setTimeInMillis(dateTime);
+
+        putBytes(_months[m_cal.get(Calendar.MONTH)]);
+        putByte(' ');
+        putTwoDigits(m_cal.get(Calendar.DATE), ' ');
+        putByte(' ');
+
+        // If the file is less than six months old add the file time, else add the year
+        if (Math.abs(m_timeNow - dateTime) > FTPDate.SIX_MONTHS) {
+            putByte(' ');
+            putLong(m_cal.get(Calendar.YEAR));
+        }
+        else {
+            putTwoDigits(m_cal.get(Calendar.HOUR_OF_DAY), '0');
+            putByte(':');
+            putTwoDigits(m_cal.get(Calendar.MINUTE), '0');
+        }
+    }
+}
@@ -0,0 +1,600 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.ftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.filesys.debug.Debug;
+import org.filesys.server.auth.ClientInfo;
+import org.filesys.server.filesys.AsyncDiskInterface;
+import org.filesys.server.filesys.DiskInterface;
+import org.filesys.server.filesys.NetworkFile;
+import org.filesys.server.filesys.TreeConnection;
+import org.filesys.server.memory.ByteBufferPool;
+import org.filesys.server.thread.ThreadRequest;
+import org.filesys.server.thread.ThreadRequestPool;
+
+/**
+ * FTP Pipelined Transfer Class
+ *
+ * <p>Transfers file data between a file and an FTP data connection using a set of buffers allocated from the shared
+ * memory pool, so that the disk I/O and the socket I/O overlap. The socket side of the transfer runs in the session
+ * thread, the disk side is run by the thread pool, or by the driver if it implements the AsyncDiskInterface. Disk
+ * I/O is sequential, at most one disk request is active at any time.
+ *
+ * <p>If the session thread needs the result of a disk request that has not been started by the thread pool, as all
+ * the worker threads are busy, then the session thread runs the request itself so the transfer cannot stall.
+ *
+ * @author gkspencer
+ */
+public class FTPPipelinedTransfer {
+
+    // Transfer details
+    private FTPSrvSession m_sess;
+    private DiskInterface m_disk;
+    private TreeConnection m_tree;
+    private NetworkFile m_file;
+
+    // Client information for the session, set on the thread that runs a disk request
+    private ClientInfo m_clientInfo;
+
+    // Asynchronous disk interface, if supported by the driver for the tree connection
+    private AsyncDiskInterface m_asyncDisk;
+
+    // Thread pool used to run the disk I/O, and the memory pool the buffers are allocated from
+    private ThreadRequestPool m_threadPool;
+    private ByteBufferPool m_memPool;
+
+    // Buffers that are not in use, and buffers waiting to be written to the socket or disk
+    private ArrayDeque<TransferBuffer> m_freeBufs = new ArrayDeque<TransferBuffer>();
+    private ArrayDeque<TransferBuffer> m_dataBufs = new ArrayDeque<TransferBuffer>();
+
+    // All allocated buffers, released back to the memory pool when the transfer is closed
+    private List<byte[]> m_allocBufs = new ArrayList<byte[]>();
+
+    // Active disk request, and next disk read position
+    private DiskRequest m_activeReq;
+    private long m_readPos;
+
+    // End of file reached, and error from the disk side of the transfer
+    private boolean m_eof;
+    private IOException m_error;
+
+    /**
+     * Transfer Buffer Class
+     */
+    private class TransferBuffer {
+
+        // Buffer, allocated from the memory pool
+        private byte[] m_buf;
+
+        // Valid data length and file position of the data
+        private int m_len;
+        private long m_filePos;
+
+        /**
+         * Class constructor
+         *
+         * @param buf byte[]
+         */
+        TransferBuffer(byte[] buf) {
+            m_buf = buf;
+        }
+    }
+
+    /**
+     * Disk Request Class
+     *
+     * <p>Reads or writes a single buffer, run by the thread pool or by the session thread if the thread pool has not
+     * started the request.
+     */
+    private class DiskRequest implements ThreadRequest {
+
+        // Buffer to read/write, read or write request
+        private TransferBuffer m_xferBuf;
+        private boolean m_read;
+
+        // Request has been started flag
+        private AtomicBoolean m_started = new AtomicBoolean(false);
+
+        /**
+         * Class constructor
+         *
+         * @param xferBuf TransferBuffer
+         * @param read    boolean
+         */
+        DiskRequest(TransferBuffer xferBuf, boolean read) {
+            m_xferBuf = xferBuf;
+            m_read = read;
+        }
+
+        /**
+         * Claim the request so that it is only run once
+         *
+         * @return boolean
+         */
+        final boolean claimRequest() {
+            return m_started.compareAndSet(false, true);
+        }
+
+        /**
+         * Run the request from the thread pool
+         */
+        public void runRequest() {
+            if (claimRequest())
+                runDiskIO();
+        }
+
+        /**
+         * Perform the disk I/O
+         */
+        final void runDiskIO() {
+
+            int len = 0;
+            IOException err = null;
+
+            // Set the session client information for the current thread
+            ClientInfo curInfo = m_sess.getClientInformation();
+            m_sess.setClientInformation(m_clientInfo);
+
+            try {
+                if (m_read)
+                    len = m_disk.readFile(m_sess, m_tree, m_file, m_xferBuf.m_buf, 0, m_xferBuf.m_buf.length, m_xferBuf.m_filePos);
+                else
+                    m_disk.writeFile(m_sess, m_tree, m_file, m_xferBuf.m_buf, 0, m_xferBuf.m_len, m_xferBuf.m_filePos);
+            }
+            catch (IOException ex) {
+                err = ex;
+            }
+            catch (Exception ex) {
+                err = new IOException("Pipelined transfer disk I/O error", ex);
+            }
+            finally {
+                m_sess.setClientInformation(curInfo);
+            }
+
+            // Complete the request
+            diskRequestComplete(this, len, err);
+        }
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param sess       FTPSrvSession
+     * @param disk       DiskInterface
+     * @param tree       TreeConnection
+     * @param file       NetworkFile
+     * @param threadPool ThreadRequestPool
+     * @param memPool    ByteBufferPool
+     */
+    public FTPPipelinedTransfer(FTPSrvSession sess, DiskInterface disk, TreeConnection tree, NetworkFile file,
+                                ThreadRequestPool threadPool, ByteBufferPool memPool) {
+        m_sess = sess;
+        m_disk = disk;
+        m_tree = tree;
+        m_file = file;
+
+        m_clientInfo = sess.getClientInformation();
+
+        m_threadPool = threadPool;
+        m_memPool = memPool;
+
+        // Check if the driver supports asynchronous I/O for the tree connection
+        if (disk instanceof AsyncDiskInterface && ((AsyncDiskInterface) disk).supportsAsyncIO(tree))
+            m_asyncDisk = (AsyncDiskInterface) disk;
+    }
+
+    /**
+     * Allocate the transfer buffers from the memory pool, the largest buffer size from the pool is used
+     *
+     * @param numBufs int
+     * @return boolean true if at least two buffers were allocated
+     */
+    public final boolean allocateBuffers(int numBufs) {
+
+        // Allocate the buffers, do not wait if the pool is exhausted
+        int bufSize = m_memPool.getLargestSize();
+
+        for (int i = 0; i < numBufs; i++) {
+            byte[] buf = m_memPool.allocateBuffer(bufSize);
+            if (buf == null)
+                break;
+
+            m_allocBufs.add(buf);
+            m_freeBufs.add(new TransferBuffer(buf));
+        }
+
+        // A pipelined transfer requires at least two buffers
+        if (m_allocBufs.size() < 2) {
+            releaseBuffers();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Send the file data to the client, starting at the specified file position
+     *
+     * @param os      OutputStream
+     * @param filePos long
+     * @return boolean true if the transfer was aborted by the client
+     * @exception IOException I/O error
+     */
+    public final boolean sendFile(OutputStream os, long filePos)
+            throws IOException {
+
+        // Start reading the file
+        synchronized (this) {
+            m_readPos = filePos;
+            startNextRead();
+        }
+
+        boolean abort = false;
+
+        while (abort == false) {
+
+            // Wait for the next buffer of file data
+            TransferBuffer xferBuf = waitForBuffer(m_dataBufs);
+            if (xferBuf == null)
+                break;
+
+            // DEBUG
+            if (Debug.EnableInfo && m_sess.hasDebug(FTPSrvSession.Dbg.FILEIO))
+                m_sess.debugPrintln(" Write len=" + xferBuf.m_len + " bytes (pipelined)");
+
+            // Write the data to the client, whilst the next buffer is being read from the file
+            os.write(xferBuf.m_buf, 0, xferBuf.m_len);
+
+            // Return the buffer to the free list, and start another read if no read is active
+            synchronized (this) {
+                m_freeBufs.add(xferBuf);
+                startNextRead();
+            }
+
+            // Check if the transfer has been aborted
+            abort = m_sess.checkForAbort();
+        }
+
+        return abort;
+    }
+
+    /**
+     * Receive file data from the client, starting at the specified file position
+     *
+     * @param is      InputStream
+     * @param filePos long
+     * @return boolean true if the transfer was aborted by the client
+     * @exception IOException I/O error
+     */
+    public final boolean receiveFile(InputStream is, long filePos)
+            throws IOException {
+
+        boolean abort = false;
+
+        while (abort == false) {
+
+            // Get a free buffer, wait for a disk write to complete if all buffers are in use
+            TransferBuffer xferBuf = waitForBuffer(m_freeBufs);
+
+            // Fill the buffer from the client, whilst the previous buffer is being written to the file
+            int len = readFully(is, xferBuf.m_buf);
+
+            if (len <= 0) {
+                synchronized (this) {
+                    m_freeBufs.add(xferBuf);
+                }
+                break;
+            }
+
+            // DEBUG
+            if (Debug.EnableInfo && m_sess.hasDebug(FTPSrvSession.Dbg.FILEIO))
+                m_sess.debugPrintln(" Receive len=" + len + " bytes (pipelined)");
+
+            // Queue the buffer to be written to the file
+            xferBuf.m_len = len;
+            xferBuf.m_filePos = filePos;
+            filePos += len;
+
+            synchronized (this) {
+                m_dataBufs.add(xferBuf);
+                startNextWrite();
+            }
+
+            // Check if the file transfer has been aborted
+            abort = m_sess.checkForAbort();
+        }
+
+        // Wait for the queued writes to complete, and check for a write error
+        waitForDiskIdle();
+
+        synchronized (this) {
+            if (m_error != null)
+                throw m_error;
+        }
+
+        return abort;
+    }
+
+    /**
+     * Close the transfer, wait for any active disk request to complete and release the buffers back to the memory pool
+     */
+    public final void closeTransfer() {
+
+        // Wait for the disk side of the transfer to finish using the buffers
+        try {
+            waitForDiskIdle();
+        }
+        catch (IOException ex) {
+        }
+
+        // Release the buffers
+        releaseBuffers();
+    }
+
+    /**
+     * Release the transfer buffers back to the memory pool
+     */
+    private final void releaseBuffers() {
+        for (byte[] buf : m_allocBufs)
+            m_memPool.releaseBuffer(buf);
+
+        m_allocBufs.clear();
+        m_freeBufs.clear();
+        m_dataBufs.clear();
+    }
+
+    /**
+     * Read from the input stream until the buffer is full or the end of the stream is reached
+     *
+     * @param is  InputStream
+     * @param buf byte[]
+     * @return int
+     * @exception IOException Socket error
+     */
+    private final int readFully(InputStream is, byte[] buf)
+            throws IOException {
+
+        int pos = 0;
+
+        while (pos < buf.length) {
+            int len = is.read(buf, pos, buf.length - pos);
+            if (len <= 0)
+                break;
+            pos += len;
+        }
+
+        return pos;
+    }
+
+    /**
+     * Wait for a buffer to become available on the specified list. If the active disk request has not been started
+     * by the thread pool then run it in the current thread.
+     *
+     * @param bufList ArrayDeque&lt;TransferBuffer&gt;
+     * @return TransferBuffer, or null if the end of file has been reached
+     * @exception IOException Disk I/O error
+     */
+    private final TransferBuffer waitForBuffer(ArrayDeque<TransferBuffer> bufList)
+            throws IOException {
+
+        while (true) {
+
+            DiskRequest runReq = null;
+
+            synchronized (this) {
+
+                // Check for an error from the disk side of the transfer
+                if (m_error != null)
+                    throw m_error;
+
+                // Check for an available buffer, or end of file
+                if (bufList.isEmpty() == false)
+                    return bufList.remove();
+                else if (m_eof && m_activeReq == null)
+                    return null;
+
+                // Check if the active request has been started, if not then claim it
+                if (m_activeReq != null && m_activeReq.claimRequest())
+                    runReq = m_activeReq;
+                else {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException ex) {
+                        throw new IOException("Pipelined transfer interrupted");
+                    }
+                }
+            }
+
+            // Run the disk request in the current thread
+            if (runReq != null)
+                runReq.runDiskIO();
+        }
+    }
+
+    /**
+     * Wait for the active disk request to complete
+     *
+     * @exception IOException Transfer interrupted
+     */
+    private final void waitForDiskIdle()
+            throws IOException {
+
+        while (true) {
+
+            DiskRequest runReq = null;
+
+            synchronized (this) {
+
+                // Stop the disk side from starting any more requests
+                m_eof = true;
+
+                if (m_activeReq == null)
+                    return;
+                else if (m_activeReq.claimRequest())
+                    runReq = m_activeReq;
+                else {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException ex) {
+                        throw new IOException("Pipelined transfer interrupted");
+                    }
+                }
+            }
+
+            // Run the disk request in the current thread
+            if (runReq != null)
+                runReq.runDiskIO();
+        }
+    }
+
+    /**
+     * Start a read into the next free buffer, if no disk request is active. Must be called with the object lock held.
+     */
+    private final void startNextRead() {
+
+        // Check if a read can be started
+        if (m_activeReq != null || m_eof || m_error != null || m_freeBufs.isEmpty())
+            return;
+
+        if (m_readPos >= m_file.getFileSize()) {
+            m_eof = true;
+            notifyAll();
+            return;
+        }
+
+        // Start the read
+        TransferBuffer xferBuf = m_freeBufs.remove();
+        xferBuf.m_filePos = m_readPos;
+
+        startDiskRequest(new DiskRequest(xferBuf, true));
+    }
+
+    /**
+     * Start a write of the next queued buffer, if no disk request is active. Must be called with the object lock held.
+     */
+    private final void startNextWrite() {
+
+        // Check if a write can be started
+        if (m_activeReq != null || m_error != null || m_dataBufs.isEmpty())
+            return;
+
+        // Start the write
+        startDiskRequest(new DiskRequest(m_dataBufs.remove(), false));
+    }
+
+    /**
+     * Start a disk request, using the asynchronous disk interface if available or else the thread pool. Must be called
+     * with the object lock held.
+     *
+     * @param req DiskRequest
+     */
+    private final void startDiskRequest(DiskRequest req) {
+
+        m_activeReq = req;
+
+        if (m_asyncDisk != null) {
+
+            // Start the asynchronous I/O, the request cannot be run by the session thread
+            req.claimRequest();
+            TransferBuffer xferBuf = req.m_xferBuf;
+
+            if (req.m_read) {
+                m_asyncDisk.readFileAsync(m_sess, m_tree, m_file, xferBuf.m_buf, 0, xferBuf.m_buf.length, xferBuf.m_filePos)
+                        .whenComplete((len, ex) -> diskRequestComplete(req, len != null ? len.intValue() : 0, asIOException(ex)));
+            }
+            else {
+                m_asyncDisk.writeFileAsync(m_sess, m_tree, m_file, xferBuf.m_buf, 0, xferBuf.m_len, xferBuf.m_filePos)
+                        .whenComplete((len, ex) -> diskRequestComplete(req, 0, asIOException(ex)));
+            }
+        }
+        else {
+
+            // Queue the request to the thread pool
+            m_threadPool.queueRequest(req);
+        }
+    }
+
+    /**
+     * Disk request completed, start the next request
+     *
+     * @param req DiskRequest
+     * @param len int
+     * @param err IOException
+     */
+    private final synchronized void diskRequestComplete(DiskRequest req, int len, IOException err) {
+
+        m_activeReq = null;
+
+        if (err != null) {
+
+            // Save the error, it is returned to the session thread
+            m_error = err;
+        }
+        else if (req.m_read) {
+
+            // Queue the data to be sent, or set end of file
+            if (len > 0) {
+                req.m_xferBuf.m_len = len;
+                m_readPos += len;
+                m_dataBufs.add(req.m_xferBuf);
+            }
+            else {
+                m_freeBufs.add(req.m_xferBuf);
+                m_eof = true;
+            }
+
+            startNextRead();
+        }
+        else {
+
+            // Buffer has been written to the file, start the next write
+            m_freeBufs.add(req.m_xferBuf);
+            startNextWrite();
+        }
+
+        // Wakeup the session thread
+        notifyAll();
+    }
+
+    /**
+     * Convert an asynchronous I/O error to an I/O exception
+     *
+     * @param ex Throwable
+     * @return IOException
+     */
+    private static IOException asIOException(Throwable ex) {
+        if (ex == null)
+            return null;
+
+        Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+
+        if (cause instanceof IOException)
+            return (IOException) cause;
+        return new IOException("Pipelined transfer disk I/O error", cause);
+    }
+}
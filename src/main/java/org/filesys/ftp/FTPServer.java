@@ -19,13 +19,28 @@
 
 package org.filesys.ftp;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
 
 import org.filesys.debug.Debug;
 import org.filesys.server.ServerListener;
@@ -37,6 +52,7 @@ import org.filesys.server.config.InvalidConfigurationException;
 import org.filesys.server.config.ServerConfiguration;
 import org.filesys.server.core.SharedDeviceList;
 import org.filesys.server.filesys.NetworkFileServer;
+import org.filesys.server.thread.ThreadRequestPool;
 import org.filesys.util.UTF8Normalizer;
 
 
@@ -67,6 +83,11 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
     //	Server socket
     private ServerSocket m_srvSock;
 
+    //  NIO engine connections handler and worker thread pool, when enabled
+    private FTPConnectionsHandler m_connHandler;
+    private ThreadRequestPool m_nioThreadPool;
+    private ThreadRequestPool m_nioXferThreadPool;
+
     //	Active session list
     private FTPSessionList m_sessions;
 
@@ -92,6 +113,26 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
     // UTF-8 string normalizer
     private UTF8Normalizer m_normalizer;
 
+    // SSL contexts for FTPS sessions, indexed by the SSL/TLS type. Sessions share the SSL context so that the SSL session
+    // cache is shared by the control and data connections.
+    private HashMap<String, SSLContext> m_sslContexts = new HashMap<String, SSLContext>();
+
+    // Pool of buffers for secure data connections
+    private SSLBufferPool m_sslBufPool = new SSLBufferPool();
+
+    // MODE Z compression slots, limits the number of transfers using CPU for compression
+    private Semaphore m_compressSlots;
+
+    // Bandwidth manager, shared token buckets used to limit data transfer rates. Created when first required, and
+    // rebuilt when the limits change.
+    private volatile BandwidthManager m_bwManager;
+
+    // Directory listing cache, created when first required, and recreated when the cache settings change
+    private volatile FTPListingCache m_listCache;
+
+    // Pool of pre-bound passive data ports, if enabled
+    private PassivePortPool m_pasvPool;
+
     /**
      * Class constructor
      *
@@ -136,6 +177,9 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
 
             // Set the FTP SITE interface
             setSiteInterface(getFTPConfiguration().getFTPSiteInterface());
+
+            // Create the MODE Z compression slots
+            m_compressSlots = new Semaphore(getFTPConfiguration().getModeZMaximumTransfers());
         } else
             setEnabled(false);
 
@@ -195,9 +239,9 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
         //	Check if there is a data port range configured, if not then just create a new FTP data session
         FTPDataSession dataSess = null;
 
-        if (getFTPConfiguration().hasFTPDataPortRange() == false) {
+        if (getFTPConfiguration().hasFTPDataPortRange() == false || m_pasvPool != null) {
 
-            //	Create a normal data session
+            //	Create a normal data session, the data port range is held by the passive port pool if enabled
             dataSess = new FTPDataSession(sess, remAddr, remPort);
 
             //	Return the data session
@@ -253,6 +297,22 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
             return dataSess;
         }
 
+        //  Check if the passive port pool is enabled, allocate a pre-bound port
+        if (m_pasvPool != null) {
+
+            PassivePortPool.Listener listener = m_pasvPool.allocateListener();
+            if (listener == null)
+                throw new IOException("No free data session ports");
+
+            dataSess = new FTPDataSession(sess, listener);
+
+            //	DEBUG
+            if (Debug.EnableInfo && sess.hasDebug(FTPSrvSession.Dbg.DATAPORT))
+                Debug.println("[FTP] Allocated pooled passive data port " + listener.getPort() + " to session " + sess.getSessionId());
+
+            return dataSess;
+        }
+
         //	Check if all available ports in the valid range are in use
         int dataPortLow = getFTPConfiguration().getFTPDataPortLow();
         int dataPortHigh = getFTPConfiguration().getFTPDataPortHigh();
@@ -286,11 +346,11 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
      */
     protected final void releaseDataSession(FTPDataSession dataSess) {
 
-        //	Close the data session
+        //	Close the data session, a pooled passive port is returned to the pool
         dataSess.closeSession();
 
         //	Check if there is a data port range configured, if not then do nothing
-        if (getFTPConfiguration().hasFTPDataPortRange() == false)
+        if (getFTPConfiguration().hasFTPDataPortRange() == false || m_pasvPool != null)
             return;
 
         //	Remove the data session from the allocated session table
@@ -465,6 +525,29 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
         fireSessionLoggedOnEvent(sess);
     }
 
+    /**
+     * Initialize a new session, set the session id and root path, and add to the active session list
+     *
+     * @param srvSess FTPSrvSession
+     */
+    protected final void initializeSession(FTPSrvSession srvSess) {
+
+        //  Set the session id
+        srvSess.setSessionId(getNextSessionId());
+        srvSess.setUniqueId("FTP" + srvSess.getSessionId());
+        srvSess.setDebugPrefix("[FTP" + srvSess.getSessionId() + "] ");
+
+        //	Initialize the root path for the new session, if configured
+        if (hasRootPath())
+            srvSess.setRootPath(getRootPath());
+
+        //	Add the session to the active session list
+        addSession(srvSess);
+
+        //	Inform listeners that a new session has been created
+        fireSessionOpenEvent(srvSess);
+    }
+
     /**
      * Start the SMB server.
      */
@@ -479,15 +562,40 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
         //  Create a server socket to listen for incoming FTP session requests
         try {
 
-            //	Create the server socket to listen for incoming FTP session requests
-            if (hasBindAddress())
-                m_srvSock = new ServerSocket(getPort(), LISTEN_BACKLOG, getBindAddress());
+            //  Check if the NIO engine should be used
+            if (getFTPConfiguration().hasNIOEngine()) {
+
+                //  Create the server socket channel to listen for incoming FTP session requests
+                ServerSocketChannel srvChannel = ServerSocketChannel.open();
+
+                if (hasBindAddress())
+                    srvChannel.bind(new InetSocketAddress(getBindAddress(), getPort()), LISTEN_BACKLOG);
+                else
+                    srvChannel.bind(new InetSocketAddress(getPort()), LISTEN_BACKLOG);
+
+                m_srvSock = srvChannel.socket();
+
+                //  Create the worker thread pool used to process session commands, and a seperate pool for commands
+                //  that use a data connection, so long running transfers do not hold up command processing for other
+                //  sessions. Both are seperate to the core server thread pool.
+                m_nioThreadPool = new ThreadRequestPool("FTPNIOWorker", getFTPConfiguration().getNIOThreadPoolSize());
+                m_nioXferThreadPool = new ThreadRequestPool("FTPNIOTransfer", getFTPConfiguration().getNIOTransferThreadPoolSize());
+
+                //  Create the connections handler
+                m_connHandler = new FTPConnectionsHandler(this, srvChannel, m_nioThreadPool, m_nioXferThreadPool);
+            }
             else {
 
-                // See http://download.oracle.com/javase/1.5.0/docs/guide/net/ipv6_guide/index.html
-                // and Inet6AddressImpl#anyLocalAddress() for details
-                // We are binding to any local address here.
-                m_srvSock = new ServerSocket(getPort(), LISTEN_BACKLOG);
+                //	Create the server socket to listen for incoming FTP session requests
+                if (hasBindAddress())
+                    m_srvSock = new ServerSocket(getPort(), LISTEN_BACKLOG, getBindAddress());
+                else {
+
+                    // See http://download.oracle.com/javase/1.5.0/docs/guide/net/ipv6_guide/index.html
+                    // and Inet6AddressImpl#anyLocalAddress() for details
+                    // We are binding to any local address here.
+                    m_srvSock = new ServerSocket(getPort(), LISTEN_BACKLOG);
+                }
             }
 
             //	DEBUG
@@ -500,6 +608,30 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
             if (Debug.EnableInfo && hasDebug() && getFTPConfiguration().hasFTPDataPortRange())
                 Debug.println("[FTP] Data ports restricted to range " + getFTPConfiguration().getFTPDataPortLow() + " - " + getFTPConfiguration().getFTPDataPortHigh());
 
+            //  Check if the passive data ports should be pre-bound
+            if (getFTPConfiguration().hasPassivePortPool()) {
+
+                //  Create the passive port pool, and start the accept thread
+                m_pasvPool = new PassivePortPool(hasBindAddress() ? getBindAddress() : null, getFTPConfiguration().getFTPDataPortLow(),
+                        getFTPConfiguration().getFTPDataPortHigh(), getFTPConfiguration().getPassivePortQuarantine(), hasDebug());
+
+                if (m_pasvPool.numberOfPorts() > 0) {
+                    m_pasvPool.startPool();
+
+                    //  DEBUG
+                    if (Debug.EnableInfo && hasDebug())
+                        Debug.println("[FTP] Passive port pool enabled, " + m_pasvPool);
+                }
+                else {
+
+                    //  No ports could be bound, use per session passive sockets
+                    Debug.println("[FTP] Passive port pool failed to bind any ports, pool disabled", Debug.Warn);
+
+                    m_pasvPool.closePool();
+                    m_pasvPool = null;
+                }
+            }
+
             // Check if FTPS support is enabled/required
             if (Debug.EnableInfo && hasDebug() && getFTPConfiguration().isFTPSEnabled())
                 Debug.println("[FTP] FTPS support enabled (" + (getFTPConfiguration().requireSecureSession() ? "required" : "optional") + ")");
@@ -508,43 +640,40 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
             setActive(true);
             fireServerEvent(ServerListener.ServerActive);
 
-            //  Wait for incoming connection requests
-            while (hasShutdown() == false) {
+            //  Check if the NIO engine is enabled
+            if (m_connHandler != null) {
 
-                //  Wait for a connection
-                Socket sessSock = getSocket().accept();
-
-                //	Set socket options
-                sessSock.setTcpNoDelay(true);
+                //  Run the NIO connections handler, returns when the server is shutdown
+                m_connHandler.runHandler();
+            }
+            else {
 
-                //  Debug
-                if (Debug.EnableInfo && hasDebug())
-                    Debug.println("[FTP] FTP session request received from " + sessSock.getInetAddress().getHostAddress());
+                //  Wait for incoming connection requests
+                while (hasShutdown() == false) {
 
-                //  Create a server session for the new request, and set the session id.
-                FTPSrvSession srvSess = new FTPSrvSession(sessSock, this);
-                srvSess.setSessionId(getNextSessionId());
-                srvSess.setUniqueId("FTP" + srvSess.getSessionId());
-                srvSess.setDebugPrefix("[FTP" + srvSess.getSessionId() + "] ");
+                    //  Wait for a connection
+                    Socket sessSock = getSocket().accept();
 
-                //	Initialize the root path for the new session, if configured
-                if (hasRootPath())
-                    srvSess.setRootPath(getRootPath());
+                    //	Set socket options
+                    sessSock.setTcpNoDelay(true);
 
-                //	Add the session to the active session list
-                addSession(srvSess);
+                    //  Debug
+                    if (Debug.EnableInfo && hasDebug())
+                        Debug.println("[FTP] FTP session request received from " + sessSock.getInetAddress().getHostAddress());
 
-                //	Inform listeners that a new session has been created
-                fireSessionOpenEvent(srvSess);
+                    //  Create a server session for the new request, and set the session id.
+                    FTPSrvSession srvSess = new FTPSrvSession(sessSock, this);
+                    initializeSession(srvSess);
 
-                //  Start the new session in a seperate thread
-                Thread srvThread = new Thread(FTPThreadGroup, srvSess);
-                srvThread.setDaemon(true);
-                srvThread.setName("Sess_FTP" + srvSess.getSessionId() + "_" + sessSock.getInetAddress().getHostAddress());
-                srvThread.start();
+                    //  Start the new session in a seperate thread
+                    Thread srvThread = new Thread(FTPThreadGroup, srvSess);
+                    srvThread.setDaemon(true);
+                    srvThread.setName("Sess_FTP" + srvSess.getSessionId() + "_" + sessSock.getInetAddress().getHostAddress());
+                    srvThread.start();
 
-                //	Give up the CPU
-                Thread.yield();
+                    //	Give up the CPU
+                    Thread.yield();
+                }
             }
         }
         catch (SocketException ex) {
@@ -610,6 +739,24 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
         //	Set the shutdown flag
         setShutdown(true);
 
+        //  Stop the NIO connections handler and worker thread pool, if enabled
+        if (m_connHandler != null)
+            m_connHandler.stopHandler();
+
+        if (m_nioThreadPool != null) {
+            m_nioThreadPool.shutdownThreadPool();
+            m_nioThreadPool = null;
+        }
+
+        if (m_nioXferThreadPool != null) {
+            m_nioXferThreadPool.shutdownThreadPool();
+            m_nioXferThreadPool = null;
+        }
+
+        //  Close the passive port pool
+        if (m_pasvPool != null)
+            m_pasvPool.closePool();
+
         //	Close the FTP server listening socket to wakeup the main FTP server thread
         try {
             if (getSocket() != null)
@@ -705,6 +852,24 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
                 case ConfigId.UsersList:
                 case ConfigId.DebugDevice:
                 case ConfigId.FTPSrvSessionTimeout:
+                case ConfigId.FTPPipelineBuffers:
+                case ConfigId.FTPModeZ:
+                case ConfigId.FTPModeZLevel:
+                    sts = StsAccepted;
+                    break;
+
+                //  Bandwidth limits, the shared buckets are rebuilt when next required, new transfers use the new limits
+                case ConfigId.FTPBandwidthLimit:
+                case ConfigId.FTPUserBandwidthLimit:
+                case ConfigId.FTPShareBandwidthLimit:
+                    m_bwManager = null;
+                    sts = StsAccepted;
+                    break;
+
+                //  Listing cache settings, the cache is recreated when next required
+                case ConfigId.FTPListingCacheSize:
+                case ConfigId.FTPListingCacheTimeout:
+                    m_listCache = null;
                     sts = StsAccepted;
                     break;
 
@@ -713,9 +878,28 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
                     sts = StsNewSessionsOnly;
                     break;
 
+                //  FTPS key/trust store changes, new secure sessions will use a new SSL context
+                case ConfigId.FTPKeyStore:
+                case ConfigId.FTPKeyStoreType:
+                case ConfigId.FTPKeyPassphrase:
+                case ConfigId.FTPTrustStore:
+                case ConfigId.FTPTrustStoreType:
+                case ConfigId.FTPTrustPassphrase:
+                    synchronized (m_sslContexts) {
+                        m_sslContexts.clear();
+                    }
+                    sts = StsNewSessionsOnly;
+                    break;
+
                 //	Changes that require a restart
                 case ConfigId.FTPBindAddress:
                 case ConfigId.FTPPort:
+                case ConfigId.FTPNIOEngine:
+                case ConfigId.FTPNIOThreads:
+                case ConfigId.FTPNIOTransferThreads:
+                case ConfigId.FTPModeZTransfers:
+                case ConfigId.FTPPassivePortPool:
+                case ConfigId.FTPPassiveQuarantine:
                     sts = StsRestartRequired;
                     break;
             }
@@ -772,4 +956,147 @@ public class FTPServer extends NetworkFileServer implements Runnable, Configurat
     public final UTF8Normalizer getUTF8Normalizer() {
         return m_normalizer;
     }
+
+    /**
+     * Return the pool of buffers for secure data connections
+     *
+     * @return SSLBufferPool
+     */
+    public final SSLBufferPool getSSLBufferPool() {
+        return m_sslBufPool;
+    }
+
+    /**
+     * Return the bandwidth manager, or null if there are no bandwidth limits
+     *
+     * @return BandwidthManager
+     */
+    public final BandwidthManager getBandwidthManager() {
+
+        // Create the bandwidth manager, if bandwidth limits are configured
+        BandwidthManager bwManager = m_bwManager;
+
+        if (bwManager == null && getFTPConfiguration().hasBandwidthLimits()) {
+            synchronized (this) {
+                if (m_bwManager == null)
+                    m_bwManager = new BandwidthManager(getFTPConfiguration());
+                bwManager = m_bwManager;
+            }
+        }
+
+        return bwManager;
+    }
+
+    /**
+     * Return the passive port pool, or null if the pool is not enabled
+     *
+     * @return PassivePortPool
+     */
+    public final PassivePortPool getPassivePortPool() {
+        return m_pasvPool;
+    }
+
+    /**
+     * Return the directory listing cache, or null if the listing cache is not enabled
+     *
+     * @return FTPListingCache
+     */
+    public final FTPListingCache getListingCache() {
+
+        // Create the listing cache, if enabled
+        FTPListingCache listCache = m_listCache;
+
+        if (listCache == null && getFTPConfiguration().hasListingCache()) {
+            synchronized (this) {
+                if (m_listCache == null)
+                    m_listCache = new FTPListingCache(getFTPConfiguration().getListingCacheSize(),
+                            getFTPConfiguration().getListingCacheTimeout() * 1000L);
+                listCache = m_listCache;
+            }
+        }
+
+        return listCache;
+    }
+
+    /**
+     * Allocate a MODE Z compression slot, if all slots are in use the transfer should not use CPU for compression
+     *
+     * @return boolean
+     */
+    protected final boolean allocateCompressionSlot() {
+        return m_compressSlots != null && m_compressSlots.tryAcquire();
+    }
+
+    /**
+     * Release a MODE Z compression slot
+     */
+    protected final void releaseCompressionSlot() {
+        m_compressSlots.release();
+    }
+
+    /**
+     * Return the SSL context for the specified SSL/TLS type, the context is created using the FTPS key store and
+     * trust store when first requested
+     *
+     * @param engineTyp String
+     * @return SSLContext
+     * @exception IOException Error loading the key store or trust store
+     * @throws NoSuchAlgorithmException No such SSL algorithm error
+     * @throws CertificateException Certificate error
+     * @throws KeyStoreException Key store error
+     * @throws UnrecoverableKeyException Unrecoverable key error
+     * @throws KeyManagementException Key management error
+     */
+    protected final SSLContext getSSLContext(String engineTyp)
+            throws IOException, NoSuchAlgorithmException, CertificateException,
+            KeyStoreException, UnrecoverableKeyException, KeyManagementException {
+
+        synchronized (m_sslContexts) {
+
+            // Check if the SSL context has already been created
+            SSLContext sslContext = m_sslContexts.get(engineTyp);
+            if (sslContext != null)
+                return sslContext;
+
+            // Get the FTP configuration
+            FTPConfigSection ftpConfig = getFTPConfiguration();
+
+            // Load the key store and trust store
+            KeyStore keyStore = KeyStore.getInstance(ftpConfig.getKeyStoreType());
+
+            try (FileInputStream keyStream = new FileInputStream(ftpConfig.getKeyStorePath())) {
+                keyStore.load(keyStream, ftpConfig.getKeyStorePassphrase());
+            }
+
+            String defaultAlgorithm = KeyManagerFactory.getDefaultAlgorithm();
+
+            KeyManagerFactory keyFactory = KeyManagerFactory.getInstance(defaultAlgorithm);
+            keyFactory.init(keyStore, ftpConfig.getKeyStorePassphrase());
+
+            defaultAlgorithm = TrustManagerFactory.getDefaultAlgorithm();
+
+            sslContext = SSLContext.getInstance(engineTyp);
+
+            // MNT-7301 FTPS server requires unnecessarily to have a trustStore while a keyStore should be sufficient
+            TrustManager[] trManager = null;
+
+            if (ftpConfig.getTrustStorePath() != null) {
+                KeyStore trustStore = KeyStore.getInstance(ftpConfig.getTrustStoreType());
+
+                try (FileInputStream trustStream = new FileInputStream(ftpConfig.getTrustStorePath())) {
+                    trustStore.load(trustStream, ftpConfig.getTrustStorePassphrase());
+                }
+
+                TrustManagerFactory trustFactory = TrustManagerFactory.getInstance(defaultAlgorithm);
+                trustFactory.init(trustStore);
+                trManager = trustFactory.getTrustManagers();
+            }
+
+            sslContext.init(keyFactory.getKeyManagers(), trManager, null);
+
+            // Cache the SSL context
+            m_sslContexts.put(engineTyp, sslContext);
+            return sslContext;
+        }
+    }
 }
@@ -19,12 +19,10 @@
 
 package org.filesys.ftp;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -33,8 +31,10 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.security.KeyManagementException;
-import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
@@ -50,6 +50,7 @@ import org.filesys.server.auth.ClientInfo;
 import org.filesys.server.auth.ISMBAuthenticator;
 import org.filesys.server.auth.acl.AccessControl;
 import org.filesys.server.auth.acl.AccessControlManager;
+import org.filesys.server.config.CoreServerConfigSection;
 import org.filesys.server.core.ShareType;
 import org.filesys.server.core.SharedDevice;
 import org.filesys.server.core.SharedDeviceList;
@@ -104,6 +105,9 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
     // File transfer buffer size
     private static final int DEFAULT_BUFFERSIZE = (int) (256 * MemorySize.KILOBYTE);
 
+    // Maximum data length for each channel transfer, the transfer is checked for an abort between transfers
+    private static final long ChannelTransferSize = MemorySize.MEGABYTE;
+
     // Carriage return/line feed combination required for response messages
     protected final static String CRLF = "\r\n";
 
@@ -127,9 +131,6 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
     // Machine listing fact names
     protected static final String _factNames[] = {"size", "modify", "create", "type", "unique", "perm", "media-type"};
 
-    // MLSD buffer size to allocate
-    protected static final int MLSD_BUFFER_SIZE = 4096;
-
     // Modify date/time minimum date/time argument length
     protected static final int MDTM_DATETIME_MINLEN = 14; // YYYYMMDDHHMMSS
 
@@ -140,6 +141,7 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
     // Valid protection levels for PROT command
     protected static final String ProtLevels = "CSEP";
     protected static final String ProtLevelClear = "C";
+    protected static final String ProtLevelPrivate = "P";
 
     // Maximum size to extend the command buffer to
     protected static final int DefCommandBufSize = 1024;
@@ -148,11 +150,22 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
     // Session socket
     private Socket m_sock;
 
+    // Channel streams, for sessions using the NIO engine
+    private SocketChannelStreams m_channelStreams;
+
+    // Client information for sessions using the NIO engine, the client information is per thread so it is saved
+    // between requests as the session may be processed by a different thread pool thread for each request
+    private ClientInfo m_nioClientInfo;
+
+    // Data transfer command waiting to be run by the NIO engine transfer thread pool
+    private FTPRequest m_nioXferReq;
+
     // Input/output streams to remote client
     private InputStream m_in;
     private byte[] m_inbuf;
 
     private OutputStreamWriter m_out;
+    private OutputStream m_sockOut;
 
     // List of pending FTP commands
     private List<FTPRequest> m_ftpCmdList;
@@ -178,6 +191,9 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
     // Machine listing fact list
     private int m_mlstFacts = MLST_DEFAULT;
 
+    // Directory listing writer, the listing buffer is reused by each listing
+    private FTPListingWriter m_listWriter;
+
     // Rename from path details
     private FTPPath m_renameFrom;
 
@@ -194,6 +210,12 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
     private ByteBuffer m_sslIn;
     private ByteBuffer m_sslOut;
 
+    // Data connections are protected using SSL/TLS, PROT P
+    private boolean m_dataProtected;
+
+    // Data connections are compressed, MODE Z
+    private boolean m_modeZ;
+
     // Protected buffer size and protection level
     private int m_pbSize = -1;
     private String m_protLevel;
@@ -233,6 +255,30 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
         m_normalizer = srv.getUTF8Normalizer();
     }
 
+    /**
+     * Class constructor
+     *
+     * <p>Create a session that uses a non-blocking socket channel, the session is driven by the NIO engine.
+     *
+     * @param sockChannel SocketChannel
+     * @param srv         FTPServer
+     */
+    public FTPSrvSession(SocketChannel sockChannel, FTPServer srv) {
+        this(sockChannel.socket(), srv);
+
+        // Create the streams over the non-blocking channel
+        m_channelStreams = new SocketChannelStreams(sockChannel);
+    }
+
+    /**
+     * Check if the session is driven by the NIO engine
+     *
+     * @return boolean
+     */
+    public final boolean isNIOSession() {
+        return m_channelStreams != null;
+    }
+
     /**
      * Close the FTP session, and associated data socket if active
      */
@@ -725,8 +771,8 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
 
                 // Output the encrypted response
                 m_sslOut.flip();
-                m_sock.getOutputStream().write(m_sslOut.array(), 0, m_sslOut.remaining());
-                m_sock.getOutputStream().flush();
+                m_sockOut.write(m_sslOut.array(), 0, m_sslOut.remaining());
+                m_sockOut.flush();
             }
         }
     }
@@ -1196,59 +1242,20 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
         }
 
         // Output the directory listing to the client
-        Writer dataWrt = null;
+        FTPListingWriter listWriter = null;
 
         try {
 
-            // Open an output stream to the client
-            if (isUTF8Enabled())
-                dataWrt = new OutputStreamWriter(dataSock.getOutputStream(), "UTF-8");
-            else
-                dataWrt = new OutputStreamWriter(dataSock.getOutputStream());
-
-            // Check if a path has been specified to list
-            List<FileInfo> files = null;
-
-            if (req.hasArgument()) {
-            }
-
-            // Get a list of file information objects for the current directory
-            files = listFilesForPath(ftpPath, false, hidden);
-
-            // Output the file list to the client
-            if (files != null) {
-
-                // DEBUG
-                if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.SEARCH))
-                    debugPrintln("List found " + files.size() + " files in " + ftpPath.getFTPPath());
-
-                // Output the file information to the client
-                StringBuffer str = new StringBuffer(256);
+            // Apply any bandwidth limits to the data connection
+            setDataBandwidthLimit(ftpPath);
 
-                for (int i = 0; i < files.size(); i++) {
+            // Send the directory listing to the client
+            listWriter = getListingWriter();
+            int count = sendDirectoryListing(listWriter, ftpPath, FTPListingWriter.FormatLong, hidden);
 
-                    // Get the current file information
-                    FileInfo finfo = files.get(i);
-
-                    // Build the output record
-                    str.setLength(0);
-
-                    str.append(finfo.isDirectory() ? "d" : "-");
-                    str.append("rw-rw-rw-   1 user group ");
-                    str.append(finfo.getSize());
-                    str.append(" ");
-
-                    FTPDate.packUnixDate(str, new Date(finfo.getModifyDateTime()));
-
-                    str.append(" ");
-
-                    str.append(finfo.getFileName());
-                    str.append(CRLF);
-
-                    // Output the file information record
-                    dataWrt.write(str.toString());
-                }
-            }
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.SEARCH))
+                debugPrintln("List returned " + count + " files in " + ftpPath.getFTPPath());
 
             // End of file list transmission
             sendFTPResponse(226, "Closing data connection");
@@ -1267,8 +1274,8 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
         finally {
 
             // Close the data stream to the client
-            if (dataWrt != null)
-                dataWrt.close();
+            if (listWriter != null)
+                listWriter.close();
 
             // Close the data connection to the client
             if (m_dataSess != null) {
@@ -1341,43 +1348,20 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
         }
 
         // Output the directory listing to the client
-        Writer dataWrt = null;
+        FTPListingWriter listWriter = null;
 
         try {
 
-            // Open an output stream to the client
-            if (isUTF8Enabled())
-                dataWrt = new OutputStreamWriter(dataSock.getOutputStream(), "UTF-8");
-            else
-                dataWrt = new OutputStreamWriter(dataSock.getOutputStream());
-
-            // Check if a path has been specified to list
-            List<FileInfo> files = null;
-
-            if (req.hasArgument()) {
-            }
-
-            // Get a list of file information objects for the current directory
-            files = listFilesForPath(ftpPath, false, false);
+            // Apply any bandwidth limits to the data connection
+            setDataBandwidthLimit(ftpPath);
 
-            // Output the file list to the client
-            if (files != null) {
+            // Send the directory listing to the client
+            listWriter = getListingWriter();
+            int count = sendDirectoryListing(listWriter, ftpPath, FTPListingWriter.FormatNames, false);
 
-                // DEBUG
-                if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.SEARCH))
-                    debugPrintln("List found " + files.size() + " files in " + ftpPath.getFTPPath());
-
-                // Output the file information to the client
-                for (int i = 0; i < files.size(); i++) {
-
-                    // Get the current file information
-                    FileInfo finfo = files.get(i);
-
-                    // Output the file information record
-                    dataWrt.write(finfo.getFileName());
-                    dataWrt.write(CRLF);
-                }
-            }
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.SEARCH))
+                debugPrintln("NList returned " + count + " files in " + ftpPath.getFTPPath());
 
             // End of file list transmission
             sendFTPResponse(226, "Closing data connection");
@@ -1394,8 +1378,8 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
         finally {
 
             // Close the data stream to the client
-            if (dataWrt != null)
-                dataWrt.close();
+            if (listWriter != null)
+                listWriter.close();
 
             // Close the data connection to the client
             if (m_dataSess != null) {
@@ -1750,8 +1734,9 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
 
         try {
 
-            // Open an output stream to the client
-            os = dataSock.getOutputStream();
+            // Apply any bandwidth limits to the data connection, and open an output stream to the client
+            setDataBandwidthLimit(ftpPath);
+            os = m_dataSess.getOutputStream();
 
             // Create a temporary tree connection
             tree = getTreeConnection(ftpPath.getSharedDevice());
@@ -1777,33 +1762,53 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
                 return;
             }
 
-            // Allocate the buffer for the file data
-            byte[] buf = new byte[DEFAULT_BUFFERSIZE];
             long filePos = m_restartPos;
-
-            int len = -1;
             boolean abort = false;
+            FTPPipelinedTransfer pipeXfer = null;
 
-            while (filePos < netFile.getFileSize() && abort == false) {
+            // Check if the file data can be transferred directly from the file to the data channel
+            if (useChannelTransfer(disk, tree, netFile)) {
 
-                // Read another block of data from the file
-                len = disk.readFile(this, tree, netFile, buf, 0, buf.length, filePos);
+                // Send the file data using channel transfers
+                abort = transferFileToChannel((ChannelTransferInterface) disk, tree, netFile, filePos);
+            }
+            else if ((pipeXfer = createPipelinedTransfer(disk, tree, netFile)) != null) {
 
-                // DEBUG
-                if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.FILEIO))
-                    debugPrintln(" Write len=" + len + " bytes");
+                // Send the file data, overlapping the file reads with the socket writes
+                try {
+                    abort = pipeXfer.sendFile(os, filePos);
+                }
+                finally {
+                    pipeXfer.closeTransfer();
+                }
+            }
+            else {
+
+                // Allocate the buffer for the file data
+                byte[] buf = new byte[DEFAULT_BUFFERSIZE];
+                int len = -1;
+
+                while (filePos < netFile.getFileSize() && abort == false) {
+
+                    // Read another block of data from the file
+                    len = disk.readFile(this, tree, netFile, buf, 0, buf.length, filePos);
+
+                    // DEBUG
+                    if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.FILEIO))
+                        debugPrintln(" Write len={} bytes", len);
 
-                // Write the current data block to the client, update the file position
-                if (len > 0) {
+                    // Write the current data block to the client, update the file position
+                    if (len > 0) {
 
-                    // Write the data to the client
-                    os.write(buf, 0, len);
+                        // Write the data to the client
+                        os.write(buf, 0, len);
 
-                    // Update the file position
-                    filePos += len;
+                        // Update the file position
+                        filePos += len;
 
-                    // Check if the transfer has been aborted
-                    abort = checkForAbort();
+                        // Check if the transfer has been aborted
+                        abort = checkForAbort();
+                    }
                 }
             }
 
@@ -1995,41 +2000,63 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
 
                 dataSock.setSoTimeout(getFTPServer().getFTPConfiguration().getFTPSrvSessionTimeout());
 
-                // Open an input stream from the client
-                is = dataSock.getInputStream();
+                // Apply any bandwidth limits to the data connection, and open an input stream from the client
+                setDataBandwidthLimit(ftpPath);
+                is = m_dataSess.getInputStream();
 
                 // DEBUG
                 if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.FILE))
                     debugPrintln("Storing ftp=" + ftpPath.getFTPPath() + ", share=" + ftpPath.getShareName() + ", path="
                             + ftpPath.getSharePath() + (append ? " (Append)" : ""));
 
-                // Allocate the buffer for the file data
-                byte[] buf = new byte[DEFAULT_BUFFERSIZE];
                 long filePos = 0;
-                int len = is.read(buf, 0, buf.length);
                 boolean abort = false;
+                FTPPipelinedTransfer pipeXfer = null;
 
                 // If the data is to be appended then set the starting file position to the end of the
                 // file
                 if (append == true)
                     filePos = netFile.getFileSize();
 
-                // Read/write loop
-                while (len > 0 && abort == false) {
+                // Check if the data can be transferred directly from the data channel to the file
+                if (useChannelTransfer(disk, tree, netFile)) {
 
-                    // DEBUG
-                    if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.FILEIO))
-                        debugPrintln(" Receive len=" + len + " bytes");
+                    // Receive the file data using channel transfers
+                    abort = transferChannelToFile((ChannelTransferInterface) disk, tree, netFile, filePos);
+                }
+                else if ((pipeXfer = createPipelinedTransfer(disk, tree, netFile)) != null) {
 
-                    // Write the current data block to the file, update the file position
-                    disk.writeFile(this, tree, netFile, buf, 0, len, filePos);
-                    filePos += len;
+                    // Receive the file data, overlapping the socket reads with the file writes
+                    try {
+                        abort = pipeXfer.receiveFile(is, filePos);
+                    }
+                    finally {
+                        pipeXfer.closeTransfer();
+                    }
+                }
+                else {
+
+                    // Allocate the buffer for the file data
+                    byte[] buf = new byte[DEFAULT_BUFFERSIZE];
+                    int len = is.read(buf, 0, buf.length);
+
+                    // Read/write loop
+                    while (len > 0 && abort == false) {
+
+                        // DEBUG
+                        if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.FILEIO))
+                            debugPrintln(" Receive len={} bytes", len);
+
+                        // Write the current data block to the file, update the file position
+                        disk.writeFile(this, tree, netFile, buf, 0, len, filePos);
+                        filePos += len;
 
-                    // Read another block of data from the client
-                    len = is.read(buf, 0, buf.length);
+                        // Read another block of data from the client
+                        len = is.read(buf, 0, buf.length);
 
-                    // Check if the file transfer has been aborted
-                    abort = checkForAbort();
+                        // Check if the file transfer has been aborted
+                        abort = checkForAbort();
+                    }
                 }
 
                 // Close the input stream from the client
@@ -2052,6 +2079,9 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
             }
             finally {
                 endTransaction();
+
+                // Invalidate any cached listings for the directory
+                invalidateListings(ftpPath, false);
             }
         }
         catch (SocketException ex) {
@@ -2160,6 +2190,182 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
         }
     }
 
+    /**
+     * Check if file data can be transferred directly between the file and the data channel, requires a plain data
+     * connection (not SSL/TLS protected or compressed) and a driver that supports channel transfers for the file
+     *
+     * @param disk    DiskInterface
+     * @param tree    TreeConnection
+     * @param netFile NetworkFile
+     * @return boolean
+     */
+    private final boolean useChannelTransfer(DiskInterface disk, TreeConnection tree, NetworkFile netFile) {
+        return m_dataSess.getChannel() != null && m_dataSess.isSecure() == false && m_modeZ == false &&
+                disk instanceof ChannelTransferInterface &&
+                ((ChannelTransferInterface) disk).supportsChannelTransfer(tree, netFile);
+    }
+
+    /**
+     * Set the bandwidth limiter for the data connection, using the global, user and share bandwidth limits
+     *
+     * @param ftpPath FTPPath
+     */
+    private final void setDataBandwidthLimit(FTPPath ftpPath) {
+
+        // Check if there are any bandwidth limits
+        BandwidthManager bwManager = getFTPServer().getBandwidthManager();
+        if (bwManager == null || m_dataSess == null)
+            return;
+
+        // Get the limiter for the user and share
+        String userName = getClientInformation() != null ? getClientInformation().getUserName() : null;
+        String shareName = ftpPath != null ? ftpPath.getShareName() : null;
+
+        BandwidthLimiter bwLimiter = bwManager.getLimiter(userName, shareName);
+        m_dataSess.setBandwidthLimiter(bwLimiter);
+
+        // DEBUG
+        if (bwLimiter != null && Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.DATAPORT))
+            debugPrintln("Data connection bandwidth limited, " + bwLimiter);
+    }
+
+    /**
+     * Create a pipelined transfer for the file, if pipelined transfers are enabled and the transfer buffers can be
+     * allocated from the memory pool
+     *
+     * @param disk    DiskInterface
+     * @param tree    TreeConnection
+     * @param netFile NetworkFile
+     * @return FTPPipelinedTransfer, or null if the transfer should use the standard transfer loop
+     */
+    private final FTPPipelinedTransfer createPipelinedTransfer(DiskInterface disk, TreeConnection tree, NetworkFile netFile) {
+
+        // Check if pipelined transfers are enabled
+        FTPConfigSection ftpConfig = getFTPServer().getFTPConfiguration();
+        if (ftpConfig.hasPipelinedTransfers() == false)
+            return null;
+
+        // Get the thread pool and memory pool from the core server configuration
+        CoreServerConfigSection coreConfig = (CoreServerConfigSection) getServer().getConfiguration().getConfigSection(CoreServerConfigSection.SectionName);
+        if (coreConfig == null || coreConfig.getThreadPool() == null || coreConfig.getMemoryPool() == null)
+            return null;
+
+        // Create the pipelined transfer and allocate the buffers
+        FTPPipelinedTransfer pipeXfer = new FTPPipelinedTransfer(this, disk, tree, netFile, coreConfig.getThreadPool(), coreConfig.getMemoryPool());
+
+        if (pipeXfer.allocateBuffers(ftpConfig.getPipelineBuffers()) == false) {
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.FILEIO))
+                debugPrintln(" Pipelined transfer buffers not available, using standard transfer");
+            return null;
+        }
+
+        return pipeXfer;
+    }
+
+    /**
+     * Send file data to the client by transferring the data from the file to the data channel
+     *
+     * @param ctDisk  ChannelTransferInterface
+     * @param tree    TreeConnection
+     * @param netFile NetworkFile
+     * @param filePos long
+     * @return boolean true if the transfer was aborted by the client
+     * @exception IOException I/O error
+     */
+    private final boolean transferFileToChannel(ChannelTransferInterface ctDisk, TreeConnection tree, NetworkFile netFile, long filePos)
+            throws IOException {
+
+        SocketChannel dataChannel = m_dataSess.getChannel();
+        boolean abort = false;
+
+        // Limit the transfer size if the data connection is bandwidth limited
+        BandwidthLimiter bwLimiter = m_dataSess.getBandwidthLimiter();
+        long xferSize = bwLimiter != null ? Math.min(ChannelTransferSize, bwLimiter.getMaximumChunk()) : ChannelTransferSize;
+
+        while (filePos < netFile.getFileSize() && abort == false) {
+
+            // Transfer another block of data from the file
+            long len = ctDisk.transferToChannel(this, tree, netFile, filePos, Math.min(xferSize, netFile.getFileSize() - filePos),
+                    dataChannel);
+
+            // Check for end of file, or wait for the data channel if the socket buffer is full
+            if (len == -1L)
+                break;
+            else if (len == 0L) {
+                m_dataSess.waitForChannel(SelectionKey.OP_WRITE);
+                continue;
+            }
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.FILEIO))
+                debugPrintln(" Transfer len={} bytes", len);
+
+            // Wait if the transfer is over the bandwidth limit
+            if (bwLimiter != null)
+                bwLimiter.acquire((int) len);
+
+            // Update the file position, check if the transfer has been aborted
+            filePos += len;
+            abort = checkForAbort();
+        }
+
+        return abort;
+    }
+
+    /**
+     * Receive file data from the client by transferring the data from the data channel to the file
+     *
+     * @param ctDisk  ChannelTransferInterface
+     * @param tree    TreeConnection
+     * @param netFile NetworkFile
+     * @param filePos long
+     * @return boolean true if the transfer was aborted by the client
+     * @exception IOException I/O error
+     */
+    private final boolean transferChannelToFile(ChannelTransferInterface ctDisk, TreeConnection tree, NetworkFile netFile, long filePos)
+            throws IOException {
+
+        SocketChannel dataChannel = m_dataSess.getChannel();
+        boolean abort = false;
+
+        // Limit the transfer size if the data connection is bandwidth limited
+        BandwidthLimiter bwLimiter = m_dataSess.getBandwidthLimiter();
+        long xferSize = bwLimiter != null ? Math.min(ChannelTransferSize, bwLimiter.getMaximumChunk()) : ChannelTransferSize;
+
+        while (abort == false) {
+
+            // Transfer another block of data to the file
+            long len = ctDisk.transferFromChannel(this, tree, netFile, dataChannel, filePos, xferSize);
+
+            if (len == 0L) {
+
+                // Wait for more data, if the channel is readable but there is no data then the client has closed
+                // the data connection
+                m_dataSess.waitForChannel(SelectionKey.OP_READ);
+                len = ctDisk.transferFromChannel(this, tree, netFile, dataChannel, filePos, xferSize);
+
+                if (len == 0L)
+                    break;
+            }
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.FILEIO))
+                debugPrintln(" Transfer len={} bytes", len);
+
+            // Wait if the transfer is over the bandwidth limit
+            if (bwLimiter != null)
+                bwLimiter.acquire((int) len);
+
+            // Update the file position, check if the transfer has been aborted
+            filePos += len;
+            abort = checkForAbort();
+        }
+
+        return abort;
+    }
+
     /**
      * Process a delete file command
      *
@@ -2219,6 +2425,9 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
                 if (diskCtx.hasChangeHandler())
                     diskCtx.getChangeHandler().notifyFileChanged(NotifyAction.Removed, ftpPath.getSharePath());
 
+                // Invalidate any cached listings for the directory
+                invalidateListings(ftpPath, false);
+
                 // DEBUG
                 if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.FILE))
                     debugPrintln("Deleted ftp=" + ftpPath.getFTPPath() + ", share=" + ftpPath.getShareName() + ", path="
@@ -2401,6 +2610,10 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
                 if (diskCtx.hasChangeHandler())
                     diskCtx.getChangeHandler().notifyRename(m_renameFrom.getSharePath(), ftpPath.getSharePath());
 
+                // Invalidate any cached listings for the old and new paths
+                invalidateListings(m_renameFrom, true);
+                invalidateListings(ftpPath, false);
+
                 // DEBUG
                 if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.FILE))
                     debugPrintln("RenameTo ftp=" + ftpPath.getFTPPath() + ", share=" + ftpPath.getShareName() + ", path="
@@ -2494,6 +2707,9 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
                 if (diskCtx.hasChangeHandler())
                     diskCtx.getChangeHandler().notifyFileChanged(NotifyAction.Added, ftpPath.getSharePath());
 
+                // Invalidate any cached listings for the parent directory
+                invalidateListings(ftpPath, false);
+
                 // DEBUG
                 if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.DIRECTORY))
                     debugPrintln("CreateDir ftp=" + ftpPath.getFTPPath() + ", share=" + ftpPath.getShareName() + ", path="
@@ -2584,6 +2800,9 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
                 if (diskCtx.hasChangeHandler())
                     diskCtx.getChangeHandler().notifyFileChanged(NotifyAction.Removed, ftpPath.getSharePath());
 
+                // Invalidate any cached listings for the directory and its parent directory
+                invalidateListings(ftpPath, true);
+
                 // DEBUG
                 if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.DIRECTORY))
                     debugPrintln("DeleteDir ftp=" + ftpPath.getFTPPath() + ", share=" + ftpPath.getShareName() + ", path="
@@ -2751,54 +2970,20 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
         }
 
         // Output the directory listing to the client
-        Writer dataWrt = null;
+        FTPListingWriter listWriter = null;
 
         try {
 
-            // Open an output stream to the client
-            if (isUTF8Enabled())
-                dataWrt = new OutputStreamWriter(dataSock.getOutputStream(), "UTF-8");
-            else
-                dataWrt = new OutputStreamWriter(dataSock.getOutputStream());
-
-            // Get a list of file information objects for the current directory
-            List<FileInfo> files = null;
-
-            files = listFilesForPath(ftpPath, false, false);
+            // Apply any bandwidth limits to the data connection
+            setDataBandwidthLimit(ftpPath);
 
-            // Output the file list to the client
-            if (files != null) {
+            // Send the directory listing to the client
+            listWriter = getListingWriter();
+            int count = sendDirectoryListing(listWriter, ftpPath, FTPListingWriter.FormatMachine, false);
 
-                // DEBUG
-                if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.SEARCH))
-                    debugPrintln("MLsd found " + files.size() + " files in " + ftpPath.getFTPPath());
-
-                // Output the file information to the client
-                StringBuffer str = new StringBuffer(MLSD_BUFFER_SIZE);
-
-                for (int i = 0; i < files.size(); i++) {
-
-                    // Get the current file information
-                    FileInfo finfo = files.get(i);
-
-                    generateMlstString(finfo, m_mlstFacts, str, false);
-                    str.append(CRLF);
-
-                    // Output the file information record when the buffer is full
-                    if (str.length() >= MLSD_BUFFER_SIZE) {
-
-                        // Output the file data records
-                        dataWrt.write(str.toString());
-
-                        // Reset the buffer
-                        str.setLength(0);
-                    }
-                }
-
-                // Flush any remaining file record data
-                if (str.length() > 0)
-                    dataWrt.write(str.toString());
-            }
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.SEARCH))
+                debugPrintln("MLsd returned " + count + " files in " + ftpPath.getFTPPath());
 
             // End of file list transmission
             sendFTPResponse(226, "Closing data connection");
@@ -2816,8 +3001,8 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
         finally {
 
             // Close the data stream to the client
-            if (dataWrt != null)
-                dataWrt.close();
+            if (listWriter != null)
+                listWriter.close();
 
             // Close the data connection to the client
             if (m_dataSess != null) {
@@ -3004,6 +3189,9 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
                 finfo.setFileInformationFlags(FileInfo.SetModifyDate);
 
                 disk.setFileInformation(this, tree, ftpPath.getSharePath(), finfo);
+
+                // Invalidate any cached listings for the directory
+                invalidateListings(ftpPath, false);
             }
 
             // Get the file information
@@ -3076,6 +3264,9 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
         if (FeatureAUTH)
             sendFTPResponse(" AUTH TLS");
 
+        if (getFTPServer().getFTPConfiguration().hasModeZ())
+            sendFTPResponse(" MODE Z");
+
         sendFTPResponse(211, "END");
     }
 
@@ -3196,7 +3387,7 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
     }
 
     /**
-     * Process a mode command. This command is obsolete.
+     * Process a mode command. Supports the stream and compressed (MODE Z) transfer modes.
      *
      * @param req FTPRequest
      * @exception IOException Socket error
@@ -3208,7 +3399,13 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
         if (req.hasArgument() && req.getArgument().equalsIgnoreCase("S")) {
 
             // Return a success status
+            m_modeZ = false;
             sendFTPResponse(200, "OK");
+        } else if (req.hasArgument() && req.getArgument().equalsIgnoreCase("Z") && getFTPServer().getFTPConfiguration().hasModeZ()) {
+
+            // Enable compressed data transfers
+            m_modeZ = true;
+            sendFTPResponse(200, "MODE Z ok");
         } else {
 
             // Return an error response
@@ -3348,15 +3545,21 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
             return;
         }
 
-        // Only accept the 'clear' protection level
+        // Accept the 'clear' and 'private' protection levels
         if (arg.equals(ProtLevelClear)) {
 
             // Accept the clear protection level, data connections sent in clear text
+            m_dataProtected = false;
+            sendFTPResponse(200, "Protection level accepted");
+        } else if (arg.equals(ProtLevelPrivate) && m_sslContext != null) {
+
+            // Accept the private protection level, data connections use SSL/TLS
+            m_dataProtected = true;
             sendFTPResponse(200, "Protection level accepted");
         } else {
 
-            // Reject the protection level for now, we do not support protected data connections
-            sendFTPResponse(534, "Protected data connections not supported");
+            // Reject the protection level, safe and confidential levels are not supported
+            sendFTPResponse(536, "Protection level not supported");
         }
     }
 
@@ -3382,9 +3585,9 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
         m_sslEngine.closeOutbound();
         getSSLCommand(m_inbuf, 0);
 
-        // Release resources used by the secure connection
+        // Release resources used by the secure connection, the SSL context is kept as data connections may still be
+        // protected
         m_sslEngine = null;
-        m_sslContext = null;
 
         m_sslIn = null;
         m_sslOut = null;
@@ -3585,22 +3788,37 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
     }
 
     /**
-     * Build a list of file name or file information objects for the specified server path
+     * Return the directory listing writer for this session
      *
-     * @param path     FTPPath
-     * @param nameOnly boolean
-     * @param hidden   boolean
-     * @return List of file information objects
+     * @return FTPListingWriter
      */
-    protected final List<FileInfo> listFilesForPath(FTPPath path, boolean nameOnly, boolean hidden) {
+    protected final FTPListingWriter getListingWriter() {
+        if (m_listWriter == null)
+            m_listWriter = new FTPListingWriter();
+        return m_listWriter;
+    }
 
-        // Check if the path is valid
-        if (path == null)
-            return null;
+    /**
+     * Send a directory listing for the specified server path to the client on the data connection. The listing
+     * records are streamed from the folder search, or returned from the listing cache if the directory has not
+     * changed since it was cached.
+     *
+     * @param listWriter FTPListingWriter
+     * @param path       FTPPath
+     * @param format     int
+     * @param hidden     boolean
+     * @return int Number of listing records sent
+     * @exception Exception Error sending the listing
+     */
+    protected final int sendDirectoryListing(FTPListingWriter listWriter, FTPPath path, int format, boolean hidden)
+            throws Exception {
 
-        // Check if the path is the root path
-        List<FileInfo> files = new ArrayList<FileInfo>();
+        // Start the listing
+        listWriter.startListing(m_dataSess.getOutputStream(), isUTF8Enabled());
+
+        StringBuffer mlstStr = format == FTPListingWriter.FormatMachine ? new StringBuffer(256) : null;
 
+        // Check if the path is the root path
         if (path.hasSharedDevice() == false) {
 
             // The first level of directories are mapped to the available shares
@@ -3612,66 +3830,155 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
 
                 while (enm.hasMoreElements()) {
 
-                    // Get the current shared device
-                    SharedDevice shr = enm.nextElement();
-
-                    // Create a file information object for the top level directory details
-                    files.add(new FileInfo(shr.getName(), 0L, FileAttribute.Directory));
+                    // Output a record for the top level directory details
+                    writeListingRecord(listWriter, format, new FileInfo(enm.nextElement().getName(), 0L, FileAttribute.Directory), mlstStr);
                 }
             }
-        } else {
 
-            // Append a wildcard to the search path
-            String searchPath = path.getSharePath();
+            listWriter.flush();
+            return listWriter.getRecordCount();
+        }
 
-            if (path.isDirectory())
-                searchPath = path.makeSharePathToFile("*.*");
+        // Append a wildcard to the search path
+        String searchPath = path.getSharePath();
 
-            // Create a temporary tree connection
-            TreeConnection tree = new TreeConnection(path.getSharedDevice());
+        if (path.isDirectory())
+            searchPath = path.makeSharePathToFile("*.*");
 
-            // Start a search on the specified disk share
-            DiskInterface disk = null;
-            SearchContext ctx = null;
+        // Create a temporary tree connection
+        TreeConnection tree = new TreeConnection(path.getSharedDevice());
+        DiskInterface disk = (DiskInterface) path.getSharedDevice().getInterface();
 
-            int searchAttr = FileAttribute.Directory + FileAttribute.Normal;
-            if (hidden)
-                searchAttr += FileAttribute.Hidden;
+        // Check if the listing can be returned from the listing cache, only whole directory listings are cached. Listings
+        // for temporary shares are not cached, dynamic shares such as a home directory share use the same share name
+        // for a different folder for each user.
+        FTPListingCache listCache = getFTPServer().getListingCache();
+        String cacheKey = null;
+        long dirModifyTime = 0L;
 
-            try {
-                disk = (DiskInterface) path.getSharedDevice().getInterface();
-                ctx = disk.startSearch(this, tree, searchPath, searchAttr, EnumSet.noneOf( SearchFlags.class));
-            }
-            catch (Exception ex) {
+        if (listCache != null && path.isDirectory() && path.getSharedDevice().isTemporary() == false) {
+
+            // Get the directory modification date/time, the cached listing is only valid if the directory is unchanged
+            FileInfo dirInfo = disk.getFileInformation(this, tree, path.getSharePath());
+
+            if (dirInfo != null && dirInfo.hasModifyDateTime()) {
+
+                // Build the cache key, including the options that change the listing output
+                dirModifyTime = dirInfo.getModifyDateTime();
+                cacheKey = FTPListingCache.makeKey(path.getShareName(), path.getSharePath(),
+                        format + (hidden ? "H" : "") + (isUTF8Enabled() ? "U" : "") + (mlstStr != null ? Integer.toString(m_mlstFacts) : ""));
+
+                FTPListingCache.CachedListing cachedList = listCache.findListing(cacheKey, dirModifyTime);
+
+                if (cachedList != null) {
+
+                    // DEBUG
+                    if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.SEARCH))
+                        debugPrintln("Listing cache hit, " + path.getFTPPath() + ", " + listCache);
+
+                    // Send the cached listing
+                    listWriter.writeListing(cachedList.getData(), cachedList.getRecordCount());
+                    listWriter.flush();
+
+                    return listWriter.getRecordCount();
+                }
+
+                // Capture the listing so it can be cached
+                listWriter.startCapture(listCache.getMaximumListingSize());
             }
+        }
 
-            // Add the files to the list
-            if (ctx != null) {
+        // Start a search on the specified disk share
+        int searchAttr = FileAttribute.Directory + FileAttribute.Normal;
+        if (hidden)
+            searchAttr += FileAttribute.Hidden;
 
-                // Get the file names/information
-                while (ctx.hasMoreFiles()) {
+        SearchContext ctx = null;
 
-                    // Check if a file name or file information is required
-                    if (nameOnly) {
+        try {
+            ctx = disk.startSearch(this, tree, searchPath, searchAttr, EnumSet.noneOf(SearchFlags.class));
+        }
+        catch (Exception ex) {
+        }
 
-                        // Add a file name to the list
-                        files.add( new FileInfo( ctx.nextFileName(), 0, FileAttribute.NTNormal));
-                    } else {
+        // Stream the file information records to the client
+        if (ctx != null) {
 
-                        // Create a file information object
-                        FileInfo finfo = new FileInfo();
+            try {
+                FileInfo finfo = new FileInfo();
 
-                        if (ctx.nextFileInfo(finfo) == false)
-                            break;
-                        if (finfo.getFileName() != null)
-                            files.add(finfo);
-                    }
+                while (ctx.hasMoreFiles()) {
+
+                    // Get the next file information, the file information object is reused
+                    finfo.resetInfo();
+
+                    if (ctx.nextFileInfo(finfo) == false)
+                        break;
+                    if (finfo.getFileName() != null)
+                        writeListingRecord(listWriter, format, finfo, mlstStr);
                 }
             }
+            finally {
+                ctx.closeSearch();
+            }
+        }
+
+        // Send the remaining listing data
+        listWriter.flush();
+
+        // Add the listing to the cache
+        if (cacheKey != null) {
+            byte[] listData = listWriter.getCapturedListing();
+
+            if (listData != null)
+                listCache.addListing(cacheKey, listData, listWriter.getRecordCount(), dirModifyTime);
         }
 
-        // Return the list of file names/information
-        return files;
+        return listWriter.getRecordCount();
+    }
+
+    /**
+     * Invalidate any cached listings for the directory containing the specified path, and optionally for the path
+     * itself if it is a directory
+     *
+     * @param path    FTPPath
+     * @param isDir   boolean
+     */
+    protected final void invalidateListings(FTPPath path, boolean isDir) {
+
+        // Check if the listing cache is enabled
+        FTPListingCache listCache = getFTPServer().getListingCache();
+
+        if (listCache == null || path == null || path.hasSharePath() == false)
+            return;
+
+        listCache.invalidateParentDirectory(path.getShareName(), path.getSharePath());
+        if (isDir)
+            listCache.invalidateDirectory(path.getShareName(), path.getSharePath());
+    }
+
+    /**
+     * Write a directory listing record
+     *
+     * @param listWriter FTPListingWriter
+     * @param format     int
+     * @param finfo      FileInfo
+     * @param mlstStr    StringBuffer
+     * @exception IOException I/O error
+     */
+    private final void writeListingRecord(FTPListingWriter listWriter, int format, FileInfo finfo, StringBuffer mlstStr)
+            throws IOException {
+
+        if (format == FTPListingWriter.FormatMachine) {
+
+            // Build the machine listing record
+            mlstStr.setLength(0);
+            generateMlstString(finfo, m_mlstFacts, mlstStr, false);
+
+            listWriter.writeRecord(mlstStr);
+        }
+        else
+            listWriter.writeRecord(format, finfo);
     }
 
     /**
@@ -3763,7 +4070,7 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
      *
      * @return boolean
      */
-    private final boolean checkForAbort() {
+    protected final boolean checkForAbort() {
 
         try {
 
@@ -3895,21 +4202,39 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
                 if (m_sslEngine != null)
                     rdlen = getSSLCommand(m_inbuf, rdlen);
 
-                // Trim the trailing <CR><LF>
+                // Split the received data into commands, the client may send more than one command before
+                // waiting for a response. Commands after the first are queued for processing later.
+                int pos = 0;
+
+                while (pos < rdlen) {
+
+                    // Find the end of the current command, and trim the trailing <CR><LF>
+                    int endPos = pos;
+                    while (endPos < rdlen && m_inbuf[endPos] != '\n')
+                        endPos++;
+
+                    int nextPos = endPos + 1;
 
-                if (rdlen > 0) {
-                    while (rdlen > 0 && m_inbuf[rdlen - 1] == '\r' || m_inbuf[rdlen - 1] == '\n')
-                        rdlen--;
+                    while (endPos > pos && (m_inbuf[endPos - 1] == '\r' || m_inbuf[endPos - 1] == '\n'))
+                        endPos--;
 
-                    // Get the command string, create the new request
-                    String cmd = null;
+                    if (endPos > pos) {
 
-                    if (isUTF8Enabled()) {
-                        cmd = m_normalizer.normalize(new String(m_inbuf, 0, rdlen, "UTF8"));
-                    } else
-                        cmd = new String(m_inbuf, 0, rdlen);
+                        // Get the command string, create the new request
+                        String cmd = null;
+
+                        if (isUTF8Enabled()) {
+                            cmd = m_normalizer.normalize(new String(m_inbuf, pos, endPos - pos, "UTF8"));
+                        } else
+                            cmd = new String(m_inbuf, pos, endPos - pos);
+
+                        if (nextReq == null)
+                            nextReq = new FTPRequest(cmd);
+                        else
+                            m_ftpCmdList.add(new FTPRequest(cmd));
+                    }
 
-                    nextReq = new FTPRequest(cmd);
+                    pos = nextPos;
                 }
             }
         }
@@ -3939,7 +4264,9 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
     }
 
     /**
-     * Get the next command data on an SSL/TLS encrypted connection
+     * Get the next command data on an SSL/TLS encrypted connection. The received data is added to any encrypted data
+     * remaining from the previous read, all complete records are decrypted into the buffer. Any partial record is kept
+     * until more data is received.
      *
      * @param buf byte[]
      * @param len int
@@ -3950,30 +4277,26 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
     protected final int getSSLCommand(byte[] buf, int len)
             throws SocketException, IOException {
 
-        m_sslIn.limit(m_sslIn.capacity());
-        m_sslIn.position(len);
-        m_sslIn.flip();
-
-        m_sslOut.clear();
-
-        // Get the SSL engine status
-        SSLEngineResult sslRes = m_sslEngine.unwrap(m_sslIn, m_sslOut);
-        while (m_sslIn.position() < len) {
-            sslRes = m_sslEngine.unwrap(m_sslIn, m_sslOut);
+        // Add the received data to the encrypted data buffer, extend the buffer if required
+        if (m_sslIn.remaining() < len) {
+            ByteBuffer newBuf = ByteBuffer.allocate(m_sslIn.position() + len);
+            m_sslIn.flip();
+            newBuf.put(m_sslIn);
+            m_sslIn = newBuf;
         }
 
-        // DEBUG
-        if (Debug.EnableDbg && hasDebug(FTPSrvSession.Dbg.SSL))
-            debugPrintln("SSL unwrap() len=" + len + ", returned " + sslRes.bytesProduced() + " bytes, res=" + sslRes + ", sts=" + sslRes.getStatus());
+        m_sslIn.put(buf, 0, len);
 
-        int unwrapLen = sslRes.bytesProduced();
-        boolean loopDone = false;
+        // Decrypt into the callers buffer
+        ByteBuffer cmdBuf = ByteBuffer.wrap(buf);
+        boolean needData = false;
         Runnable task = null;
 
-        while ( !loopDone && m_sslEngine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                sslRes.getStatus() != SSLEngineResult.Status.CLOSED) {
+        while (needData == false) {
+
+            HandshakeStatus hsSts = m_sslEngine.getHandshakeStatus();
 
-            switch (m_sslEngine.getHandshakeStatus()) {
+            switch (hsSts) {
                 case NEED_TASK:
 
                     // DEBUG
@@ -3991,121 +4314,78 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
                     if (Debug.EnableDbg && hasDebug(FTPSrvSession.Dbg.SSL))
                         debugPrintln("SSL engine status=NEED_WRAP");
 
-                    m_sslIn.limit(m_sslIn.capacity());
-                    m_sslIn.flip();
-
+                    // Send handshake data to the client
                     m_sslOut.clear();
+                    SSLEngineResult sslRes = m_sslEngine.wrap(ByteBuffer.allocate(0), m_sslOut);
 
-                    while (m_sslEngine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
-                        sslRes = m_sslEngine.wrap(m_sslIn, m_sslOut);
-
-                        // DEBUG
-                        if (Debug.EnableDbg && hasDebug(FTPSrvSession.Dbg.SSL))
-                            debugPrintln("  wrap() returned " + sslRes.bytesProduced() + " bytes, res=" + sslRes + ", sts=" + sslRes.getStatus());
-
-                        if ( sslRes.bytesProduced() == 0)
-                            break;
-                    }
+                    // DEBUG
+                    if (Debug.EnableDbg && hasDebug(FTPSrvSession.Dbg.SSL))
+                        debugPrintln("  wrap() returned " + sslRes.bytesProduced() + " bytes, res=" + sslRes + ", sts=" + sslRes.getStatus());
 
-                    // Send the output to the client
                     m_sslOut.flip();
 
                     if (m_sslOut.remaining() > 0) {
-
-                        // DEBUG
-                        if (Debug.EnableDbg && hasDebug(FTPSrvSession.Dbg.SSL))
-                            debugPrintln("  Send data to client = " + m_sslOut.remaining());
-
-                        // Send the encrypted data to the client
-                        m_sock.getOutputStream().write(m_sslOut.array(), 0, m_sslOut.remaining());
-                        m_sock.getOutputStream().flush();
+                        m_sockOut.write(m_sslOut.array(), 0, m_sslOut.remaining());
+                        m_sockOut.flush();
                     }
+                    else if (sslRes.getStatus() == SSLEngineResult.Status.CLOSED)
+                        return cmdBuf.position();
                     break;
-                case NEED_UNWRAP:
+                default:
 
-                    // DEBUG
-                    if (Debug.EnableDbg && hasDebug(FTPSrvSession.Dbg.SSL))
-                        debugPrintln("SSL engine status=NEED_UNWRAP");
+                    // Check if there is any encrypted data to process
+                    if (hsSts != HandshakeStatus.NEED_UNWRAP && m_sslIn.position() == 0) {
+                        needData = true;
+                        break;
+                    }
 
-                    // Read more data from the socket
-                    int rdlen = m_in.read(m_inbuf);
+                    // Decrypt the next record
+                    m_sslIn.flip();
+                    sslRes = m_sslEngine.unwrap(m_sslIn, cmdBuf);
+                    m_sslIn.compact();
 
-                    // Check if there is no more data, the other side has dropped the connection
-                    if (rdlen == -1) {
+                    // DEBUG
+                    if (Debug.EnableDbg && hasDebug(FTPSrvSession.Dbg.SSL))
+                        debugPrintln("SSL unwrap() returned " + sslRes.bytesProduced() + " bytes, res=" + sslRes + ", sts=" + sslRes.getStatus());
 
-                        // DEBUG
-                        if (Debug.EnableDbg && hasDebug(FTPSrvSession.Dbg.SSL))
-                            debugPrintln("  Socket read returned -1, closing session");
+                    if (sslRes.getStatus() == SSLEngineResult.Status.CLOSED) {
 
-                        // Close the FTP session
-                        closeSession();
-                        return 0;
+                        // Client has closed the secure connection
+                        return cmdBuf.position();
                     }
+                    else if (sslRes.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
 
-                    m_sslIn.limit(m_sslIn.capacity());
-                    m_sslIn.position(rdlen);
-                    m_sslIn.flip();
-
-                    while (m_sslEngine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP && m_sslIn.remaining() > 0) {
-                        m_sslOut.limit(m_sslOut.capacity());
-                        sslRes = m_sslEngine.unwrap(m_sslIn, m_sslOut);
+                        // Need more data, if the handshake is in progress then read more data from the socket
+                        if (m_sslEngine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP && cmdBuf.position() == 0) {
 
-                        // DEBUG
-                        if (Debug.EnableDbg && hasDebug(FTPSrvSession.Dbg.SSL))
-                            debugPrintln("  unwrap() len=" + rdlen + ",returned " + sslRes.bytesProduced() + " bytes, res=" + sslRes + ", sts=" + sslRes.getStatus());
+                            int rdlen = m_in.read(buf);
 
-                        // Run the SSL engine task in the current thread
-                        if (m_sslEngine.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
-                            while ((task = m_sslEngine.getDelegatedTask()) != null) {
-                                task.run();
+                            // Check if there is no more data, the other side has dropped the connection
+                            if (rdlen == -1) {
 
                                 // DEBUG
                                 if (Debug.EnableDbg && hasDebug(FTPSrvSession.Dbg.SSL))
-                                    debugPrintln("  task during unwrap");
-                            }
-                        }
-                    }
+                                    debugPrintln("  Socket read returned -1, closing session");
 
-                    m_sslOut.flip();
-                    if (m_sslOut.remaining() > 0) {
-                        if (m_sslEngine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING) {
-                            unwrapLen = m_sslOut.remaining();
-                            loopDone = true;
-                        } else {
-
-                            // DEBUG
-                            if (Debug.EnableDbg && hasDebug(FTPSrvSession.Dbg.SSL))
-                                debugPrintln("  Send data to client = " + m_sslOut.remaining());
+                                // Close the FTP session
+                                closeSession();
+                                return 0;
+                            }
 
-                            // Send the encrypted data to the client
-                            m_sock.getOutputStream().write(m_sslOut.array(), 0, m_sslOut.remaining());
-                            m_sock.getOutputStream().flush();
+                            m_sslIn.put(buf, 0, rdlen);
                         }
+                        else
+                            needData = true;
                     }
-                    break;
-                case NOT_HANDSHAKING:
-
-                    // DEBUG
-                    if (Debug.EnableDbg && hasDebug(FTPSrvSession.Dbg.SSL))
-                        debugPrintln("SSL engine status=NOT_HANDSHAKING");
-                    loopDone = true;
-                    break;
-                case FINISHED:
-
-                    // DEBUG
-                    if (Debug.EnableDbg && hasDebug(FTPSrvSession.Dbg.SSL))
-                        debugPrintln("SSL engine status=FINISHED");
-                    loopDone = true;
+                    else if (sslRes.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW ||
+                            (sslRes.bytesConsumed() == 0 && sslRes.bytesProduced() == 0))
+                        needData = true;
                     break;
             }
         }
 
-        // Move decrypted data to the input buffer
-        if (unwrapLen > 0)
-            System.arraycopy(m_sslOut.array(), 0, m_inbuf, 0, unwrapLen);
-
         // Return the decrypted data length
-        return unwrapLen;
+        return cmdBuf.position();
     }
 
     /**
@@ -4123,34 +4403,8 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
             throws IOException, NoSuchAlgorithmException, CertificateException,
             KeyStoreException, UnrecoverableKeyException, KeyManagementException {
 
-        // Get the FTP configuration
-        FTPConfigSection ftpConfig = getFTPServer().getFTPConfiguration();
-
-        // Load the key store and trust store
-        KeyStore keyStore = KeyStore.getInstance(ftpConfig.getKeyStoreType());
-        keyStore.load(new FileInputStream(ftpConfig.getKeyStorePath()), ftpConfig.getKeyStorePassphrase());
-
-        String defaultAlgorithm = KeyManagerFactory.getDefaultAlgorithm();
-
-        KeyManagerFactory keyFactory = KeyManagerFactory.getInstance(defaultAlgorithm);
-        keyFactory.init(keyStore, ftpConfig.getKeyStorePassphrase());
-
-        defaultAlgorithm = TrustManagerFactory.getDefaultAlgorithm();
-
-        m_sslContext = SSLContext.getInstance(engineTyp);
-
-        // MNT-7301 FTPS server requires unnecessarily to have a trustStore while a keyStore should be sufficient
-        TrustManager[] trManager = null;
-
-        if (ftpConfig.getTrustStorePath() != null) {
-            KeyStore trustStore = KeyStore.getInstance(ftpConfig.getTrustStoreType());
-            trustStore.load(new FileInputStream(ftpConfig.getTrustStorePath()), ftpConfig.getTrustStorePassphrase());
-            TrustManagerFactory trustFactory = TrustManagerFactory.getInstance(defaultAlgorithm);
-            trustFactory.init(trustStore);
-            trManager = trustFactory.getTrustManagers();
-        }
-
-        m_sslContext.init(keyFactory.getKeyManagers(), trManager, null);
+        // Get the shared SSL context, sessions can be resumed by the data connections
+        m_sslContext = getFTPServer().getSSLContext(engineTyp);
 
         m_sslEngine = m_sslContext.createSSLEngine();
         m_sslEngine.setUseClientMode(false);
@@ -4159,11 +4413,46 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
         m_sslEngine.beginHandshake();
 
         SSLSession sslSess = m_sslEngine.getSession();
-        m_sslOut = ByteBuffer.allocate(sslSess.getApplicationBufferSize() + 50);
+        m_sslOut = ByteBuffer.allocate(Math.max(sslSess.getPacketBufferSize(), sslSess.getApplicationBufferSize() + 50));
 
         if (m_inbuf.length < sslSess.getApplicationBufferSize())
             m_inbuf = new byte[sslSess.getApplicationBufferSize()];
-        m_sslIn = ByteBuffer.wrap(m_inbuf);
+
+        // Buffer for received encrypted data, holds a partial record plus the next socket read
+        m_sslIn = ByteBuffer.allocate(sslSess.getPacketBufferSize() + m_inbuf.length);
+    }
+
+    /**
+     * Check if data connections are compressed, MODE Z
+     *
+     * @return boolean
+     */
+    protected final boolean isModeZ() {
+        return m_modeZ;
+    }
+
+    /**
+     * Check if data connections should be protected using SSL/TLS
+     *
+     * @return boolean
+     */
+    protected final boolean isDataProtected() {
+        return m_dataProtected && m_sslContext != null;
+    }
+
+    /**
+     * Create an SSL engine for a protected data connection, using the same SSL context as the control session so that
+     * the SSL session can be resumed
+     *
+     * @return SSLEngine
+     */
+    protected final SSLEngine createDataSSLEngine() {
+
+        SSLEngine sslEngine = m_sslContext.createSSLEngine(getRemoteAddress().getHostAddress(), getFTPServer().getPort());
+        sslEngine.setUseClientMode(false);
+        sslEngine.setWantClientAuth(true);
+
+        return sslEngine;
     }
 
     /**
@@ -4305,22 +4594,8 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
 
         try {
 
-            // Debug
-            if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.STATE))
-                debugPrintln("FTP session started");
-
-            // Create the input/output streams
-            m_in = m_sock.getInputStream();
-            m_out = new OutputStreamWriter(m_sock.getOutputStream());
-
-            m_inbuf = new byte[DefCommandBufSize];
-
-            // Return the initial response
-            sendFTPResponse(220, "FTP server ready");
-
-            // Start/end times if timing debug is enabled
-            long startTime = 0L;
-            long endTime = 0L;
+            // Create the input/output streams, send the initial response
+            startSession();
 
             // The server session loops until the NetBIOS hangup state is set.
             FTPRequest ftpReq = null;
@@ -4332,262 +4607,175 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
                 if (ftpReq == null)
                     continue;
 
-                // Debug
-                if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.TIMING))
-                    startTime = System.currentTimeMillis();
-
-                if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.RXDATA))
-                    debugPrintln("Rx cmd=" + ftpReq);
-
-                // Parse the received command, and validate
-                switch (ftpReq.isCommand()) {
-
-                    // User command
-                    case USER:
-                        procUser(ftpReq);
-                        break;
-
-                    // Password command
-                    case PASS:
-                        procPassword(ftpReq);
-                        break;
-
-                    // Quit command
-                    case QUIT:
-                        procQuit(ftpReq);
-                        break;
-
-                    // Type command
-                    case TYPE:
-                        procType(ftpReq);
-                        break;
-
-                    // Port command
-                    case PORT:
-                        procPort(ftpReq);
-                        break;
-
-                    // Passive command
-                    case PASV:
-                        procPassive(ftpReq);
-                        break;
-
-                    // Restart position command
-                    case REST:
-                        procRestart(ftpReq);
-                        break;
-
-                    // Return file command
-                    case RETR:
-                        procReturnFile(ftpReq);
-
-                        // Reset the restart position
-                        m_restartPos = 0;
-                        break;
-
-                    // Store file command
-                    case STOR:
-                        procStoreFile(ftpReq, false);
-                        break;
-
-                    // Append file command
-                    case APPE:
-                        procStoreFile(ftpReq, true);
-                        break;
-
-                    // Print working directory command
-                    case PWD:
-                    case XPWD:
-                        procPrintWorkDir(ftpReq);
-                        break;
-
-                    // Change working directory command
-                    case CWD:
-                    case XCWD:
-                        procChangeWorkDir(ftpReq);
-                        break;
-
-                    // Change to previous directory command
-                    case CDUP:
-                    case XCUP:
-                        procCdup(ftpReq);
-                        break;
-
-                    // Full directory listing command
-                    case LIST:
-                        procList(ftpReq);
-                        break;
-
-                    // Short directory listing command
-                    case NLST:
-                        procNList(ftpReq);
-                        break;
-
-                    // Delete file command
-                    case DELE:
-                        procDeleteFile(ftpReq);
-                        break;
-
-                    // Rename file from command
-                    case RNFR:
-                        procRenameFrom(ftpReq);
-                        break;
+                // Process the request
+                processCommand(ftpReq);
 
-                    // Rename file to comand
-                    case RNTO:
-                        procRenameTo(ftpReq);
-                        break;
+            } // end while state
+        }
+        catch (SocketException ex) {
 
-                    // Create new directory command
-                    case MKD:
-                    case XMKD:
-                        procCreateDirectory(ftpReq);
-                        break;
+            // DEBUG
+            if (Debug.EnableWarn && hasDebug(FTPSrvSession.Dbg.STATE))
+                debugPrintln("Socket closed by remote client");
+        }
+        catch (Exception ex) {
 
-                    // Delete directory command
-                    case RMD:
-                    case XRMD:
-                        procRemoveDirectory(ftpReq);
-                        break;
+            // Output the exception details
+            if (isShutdown() == false) {
+                debugPrintln(ex);
+            }
+        }
 
-                    // Return file size command
-                    case SIZE:
-                        procFileSize(ftpReq);
-                        break;
+        // Cleanup the session, make sure all resources are released
+        closeSession();
 
-                    // Return the modification date/time
-                    case MDTM:
-                        procGetModifyDateTime(ftpReq);
-                        break;
+        // Debug
+        if (hasDebug(FTPSrvSession.Dbg.STATE))
+            debugPrintln("Server session closed");
+    }
 
-                    // Set modify date/time command
-                    case MFMT:
-                        procModifyDateTime(ftpReq);
-                        break;
+    /**
+     * Create the input/output streams for the session and send the initial response
+     *
+     * @exception IOException Socket error
+     */
+    protected final void startSession()
+            throws IOException {
 
-                    // System status command
-                    case SYST:
-                        procSystemStatus(ftpReq);
-                        break;
+        // Debug
+        if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.STATE))
+            debugPrintln("FTP session started");
 
-                    // Server status command
-                    case STAT:
-                        procServerStatus(ftpReq);
-                        break;
+        // Create the input/output streams
+        if (m_channelStreams != null) {
+            m_in = m_channelStreams.getInputStream();
+            m_sockOut = m_channelStreams.getOutputStream();
+        }
+        else {
+            m_in = m_sock.getInputStream();
+            m_sockOut = m_sock.getOutputStream();
+        }
 
-                    // Help command
-                    case HELP:
-                        procHelp(ftpReq);
-                        break;
+        m_out = new OutputStreamWriter(m_sockOut);
 
-                    // No-op command
-                    case NOOP:
-                        procNoop(ftpReq);
-                        break;
+        m_inbuf = new byte[DefCommandBufSize];
 
-                    // Abort command
-                    case ABOR:
-                        procAbort(ftpReq);
-                        break;
+        // Return the initial response
+        sendFTPResponse(220, "FTP server ready");
+    }
 
-                    // Server features command
-                    case FEAT:
-                        procFeatures(ftpReq);
-                        break;
+    /**
+     * Process the commands received on a session using the NIO engine. Called from a thread pool thread when the
+     * selector indicates there is data to read on the command channel, processes the received commands and
+     * returns when there is no more data available, or a command that uses a data connection is received.
+     *
+     * @return boolean true if the session is still active
+     */
+    protected final boolean processNIOCommands() {
+        return runNIOCommands(null);
+    }
 
-                    // Options command
-                    case OPTS:
-                        procOptions(ftpReq);
-                        break;
+    /**
+     * Process the pending data transfer command on a session using the NIO engine, then any commands received after
+     * it. Called from a transfer thread pool thread.
+     *
+     * @return boolean true if the session is still active
+     */
+    protected final boolean processNIOTransfer() {
 
-                    // Machine listing, single folder
-                    case MLST:
-                        procMachineListing(ftpReq);
-                        break;
+        // Get the pending data transfer command
+        FTPRequest xferReq = m_nioXferReq;
+        m_nioXferReq = null;
 
-                    // Machine listing, folder contents
-                    case MLSD:
-                        procMachineListingContents(ftpReq);
-                        break;
+        return runNIOCommands(xferReq);
+    }
 
-                    // Site specific commands
-                    case SITE:
-                        procSite(ftpReq);
-                        break;
+    /**
+     * Check if there is a data transfer command waiting to be run by the NIO engine transfer thread pool
+     *
+     * @return boolean
+     */
+    protected final boolean hasNIOTransfer() {
+        return m_nioXferReq != null;
+    }
 
-                    // Structure command (obsolete)
-                    case STRU:
-                        procStructure(ftpReq);
-                        break;
+    /**
+     * Check if a command uses a data connection
+     *
+     * @param ftpReq FTPRequest
+     * @return boolean
+     */
+    private static boolean isDataTransferCommand(FTPRequest ftpReq) {
+
+        switch (ftpReq.isCommand()) {
+            case RETR:
+            case STOR:
+            case APPE:
+            case LIST:
+            case NLST:
+            case MLSD:
+                return true;
+            default:
+                return false;
+        }
+    }
 
-                    // Mode command (obsolete)
-                    case MODE:
-                        procMode(ftpReq);
-                        break;
+    /**
+     * Process commands on a session using the NIO engine, starting with the data transfer command if specified.
+     * Stops when there is no more data available, or a data transfer command is received that must be passed to
+     * the transfer thread pool.
+     *
+     * @param xferReq FTPRequest
+     * @return boolean true if the session is still active
+     */
+    private boolean runNIOCommands(FTPRequest xferReq) {
 
-                    // Allocate command (obsolete)
-                    case ALLO:
-                        procAllocate(ftpReq);
-                        break;
+        // Set the client information for the current thread
+        setClientInformation(m_nioClientInfo);
 
-                    // Extended Port command
-                    case EPRT:
-                        procExtendedPort(ftpReq);
-                        break;
+        try {
 
-                    // Extended Passive command
-                    case EPSV:
-                        procExtendedPassive(ftpReq);
-                        break;
+            // Run the data transfer command
+            if (xferReq != null)
+                processCommand(xferReq);
 
-                    // SSL/TLS authentication
-                    case AUTH:
-                        procAuth(ftpReq);
-                        break;
+            // Process commands until there is no more data available, the first read for a command request will
+            // not block
+            boolean firstReq = xferReq == null;
 
-                    // Protected buffer size
-                    case PBSZ:
-                        procProtectedBufferSize(ftpReq);
-                        break;
+            while (m_sock != null && (firstReq || m_ftpCmdList.size() > 0 || m_in.available() > 0)) {
+                firstReq = false;
 
-                    // Data channel protection level
-                    case PROT:
-                        procDataChannelProtection(ftpReq);
-                        break;
+                // Get the next request
+                FTPRequest ftpReq = getNextCommand(true);
 
-                    // Clear command channel
-                    case CCC:
-                        procClearCommandChannel(ftpReq);
-                        break;
+                if (ftpReq != null) {
 
-                    // Unknown/unimplemented command
-                    default:
-                        if (ftpReq.isCommand() != FTPCommand.INVALID_CMD)
-                            sendFTPResponse(502, "Command " + ftpReq.isCommand().name() + " not implemented");
-                        else
-                            sendFTPResponse(502, "Command not implemented");
+                    // Pass data transfer commands to the transfer thread pool, so they do not hold up command
+                    // processing for other sessions
+                    if (isDataTransferCommand(ftpReq)) {
+                        m_nioXferReq = ftpReq;
                         break;
-                }
+                    }
 
-                // Debug
-                if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.TIMING)) {
-                    endTime = System.currentTimeMillis();
-                    long duration = endTime - startTime;
-                    if (duration > 20)
-                        debugPrintln("Processed cmd " + ftpReq.isCommand().name() + " in " + duration + "ms");
+                    // Process the request
+                    processCommand(ftpReq);
                 }
+            }
+        }
+        catch (ClosedChannelException ex) {
 
-                // Commit/rollback a transaction that the filesystem driver may have stored in the
-                // session
-                endTransaction();
-
-            } // end while state
+            // Session has been closed, server may be shutting down
+            closeSession();
         }
         catch (SocketException ex) {
 
             // DEBUG
             if (Debug.EnableWarn && hasDebug(FTPSrvSession.Dbg.STATE))
                 debugPrintln("Socket closed by remote client");
+
+            // Close the session
+            closeSession();
         }
         catch (Exception ex) {
 
@@ -4595,13 +4783,281 @@ public class FTPSrvSession extends SrvSession<FTPSrvSession.Dbg> implements Runn
             if (isShutdown() == false) {
                 debugPrintln(ex);
             }
+
+            // Close the session
+            closeSession();
         }
+        finally {
 
-        // Cleanup the session, make sure all resources are released
-        closeSession();
+            // Save the client information, and clear it from the current thread
+            m_nioClientInfo = getClientInformation();
+            setClientInformation(null);
+        }
+
+        // Check if the session is still active
+        return m_sock != null;
+    }
+
+    /**
+     * Process an FTP command
+     *
+     * @param ftpReq FTPRequest
+     * @exception IOException Socket error
+     */
+    protected final void processCommand(FTPRequest ftpReq)
+            throws IOException {
+
+        // Start/end times if timing debug is enabled
+        long startTime = 0L;
+        long endTime = 0L;
 
         // Debug
-        if (hasDebug(FTPSrvSession.Dbg.STATE))
-            debugPrintln("Server session closed");
+        if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.TIMING))
+            startTime = System.currentTimeMillis();
+
+        if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.RXDATA))
+            debugPrintln("Rx cmd=" + ftpReq);
+
+        // Parse the received command, and validate
+        switch (ftpReq.isCommand()) {
+
+            // User command
+            case USER:
+                procUser(ftpReq);
+                break;
+
+            // Password command
+            case PASS:
+                procPassword(ftpReq);
+                break;
+
+            // Quit command
+            case QUIT:
+                procQuit(ftpReq);
+                break;
+
+            // Type command
+            case TYPE:
+                procType(ftpReq);
+                break;
+
+            // Port command
+            case PORT:
+                procPort(ftpReq);
+                break;
+
+            // Passive command
+            case PASV:
+                procPassive(ftpReq);
+                break;
+
+            // Restart position command
+            case REST:
+                procRestart(ftpReq);
+                break;
+
+            // Return file command
+            case RETR:
+                procReturnFile(ftpReq);
+
+                // Reset the restart position
+                m_restartPos = 0;
+                break;
+
+            // Store file command
+            case STOR:
+                procStoreFile(ftpReq, false);
+                break;
+
+            // Append file command
+            case APPE:
+                procStoreFile(ftpReq, true);
+                break;
+
+            // Print working directory command
+            case PWD:
+            case XPWD:
+                procPrintWorkDir(ftpReq);
+                break;
+
+            // Change working directory command
+            case CWD:
+            case XCWD:
+                procChangeWorkDir(ftpReq);
+                break;
+
+            // Change to previous directory command
+            case CDUP:
+            case XCUP:
+                procCdup(ftpReq);
+                break;
+
+            // Full directory listing command
+            case LIST:
+                procList(ftpReq);
+                break;
+
+            // Short directory listing command
+            case NLST:
+                procNList(ftpReq);
+                break;
+
+            // Delete file command
+            case DELE:
+                procDeleteFile(ftpReq);
+                break;
+
+            // Rename file from command
+            case RNFR:
+                procRenameFrom(ftpReq);
+                break;
+
+            // Rename file to comand
+            case RNTO:
+                procRenameTo(ftpReq);
+                break;
+
+            // Create new directory command
+            case MKD:
+            case XMKD:
+                procCreateDirectory(ftpReq);
+                break;
+
+            // Delete directory command
+            case RMD:
+            case XRMD:
+                procRemoveDirectory(ftpReq);
+                break;
+
+            // Return file size command
+            case SIZE:
+                procFileSize(ftpReq);
+                break;
+
+            // Return the modification date/time
+            case MDTM:
+                procGetModifyDateTime(ftpReq);
+                break;
+
+            // Set modify date/time command
+            case MFMT:
+                procModifyDateTime(ftpReq);
+                break;
+
+            // System status command
+            case SYST:
+                procSystemStatus(ftpReq);
+                break;
+
+            // Server status command
+            case STAT:
+                procServerStatus(ftpReq);
+                break;
+
+            // Help command
+            case HELP:
+                procHelp(ftpReq);
+                break;
+
+            // No-op command
+            case NOOP:
+                procNoop(ftpReq);
+                break;
+
+            // Abort command
+            case ABOR:
+                procAbort(ftpReq);
+                break;
+
+            // Server features command
+            case FEAT:
+                procFeatures(ftpReq);
+                break;
+
+            // Options command
+            case OPTS:
+                procOptions(ftpReq);
+                break;
+
+            // Machine listing, single folder
+            case MLST:
+                procMachineListing(ftpReq);
+                break;
+
+            // Machine listing, folder contents
+            case MLSD:
+                procMachineListingContents(ftpReq);
+                break;
+
+            // Site specific commands
+            case SITE:
+                procSite(ftpReq);
+                break;
+
+            // Structure command (obsolete)
+            case STRU:
+                procStructure(ftpReq);
+                break;
+
+            // Mode command (obsolete)
+            case MODE:
+                procMode(ftpReq);
+                break;
+
+            // Allocate command (obsolete)
+            case ALLO:
+                procAllocate(ftpReq);
+                break;
+
+            // Extended Port command
+            case EPRT:
+                procExtendedPort(ftpReq);
+                break;
+
+            // Extended Passive command
+            case EPSV:
+                procExtendedPassive(ftpReq);
+                break;
+
+            // SSL/TLS authentication
+            case AUTH:
+                procAuth(ftpReq);
+                break;
+
+            // Protected buffer size
+            case PBSZ:
+                procProtectedBufferSize(ftpReq);
+                break;
+
+            // Data channel protection level
+            case PROT:
+                procDataChannelProtection(ftpReq);
+                break;
+
+            // Clear command channel
+            case CCC:
+                procClearCommandChannel(ftpReq);
+                break;
+
+            // Unknown/unimplemented command
+            default:
+                if (ftpReq.isCommand() != FTPCommand.INVALID_CMD)
+                    sendFTPResponse(502, "Command " + ftpReq.isCommand().name() + " not implemented");
+                else
+                    sendFTPResponse(502, "Command not implemented");
+                break;
+        }
+
+        // Debug
+        if (Debug.EnableInfo && hasDebug(FTPSrvSession.Dbg.TIMING)) {
+            endTime = System.currentTimeMillis();
+            long duration = endTime - startTime;
+            if (duration > 20)
+                debugPrintln("Processed cmd " + ftpReq.isCommand().name() + " in " + duration + "ms");
+        }
+
+        // Commit/rollback a transaction that the filesystem driver may have stored in the
+        // session
+        endTransaction();
     }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.ftp;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+
+import org.filesys.server.thread.ThreadRequest;
+import org.filesys.server.thread.ThreadRequestPool;
+
+/**
+ * FTP Thread Request Class
+ *
+ * <p>Holds the details of an NIO channel based FTP session that has received data on the command channel, for
+ * processing by a thread pool. A command that uses a data connection is queued to the transfer thread pool as a
+ * seperate request, reads on the command channel stay disabled until the transfer, and any commands received behind
+ * it, have been processed.
+ *
+ * @author gkspencer
+ */
+public class FTPThreadRequest implements ThreadRequest {
+
+    // FTP session
+    private FTPSrvSession m_sess;
+
+    // Selection key for the command channel
+    private SelectionKey m_selectionKey;
+
+    // Thread pool for commands that use a data connection, and flag to indicate this is a transfer request
+    private ThreadRequestPool m_xferThreadPool;
+    private boolean m_transfer;
+
+    /**
+     * Class constructor
+     *
+     * @param sess           FTPSrvSession
+     * @param selKey         SelectionKey
+     * @param xferThreadPool ThreadRequestPool
+     */
+    public FTPThreadRequest(FTPSrvSession sess, SelectionKey selKey, ThreadRequestPool xferThreadPool) {
+        m_sess = sess;
+        m_selectionKey = selKey;
+        m_xferThreadPool = xferThreadPool;
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param sess           FTPSrvSession
+     * @param selKey         SelectionKey
+     * @param xferThreadPool ThreadRequestPool
+     * @param transfer       boolean
+     */
+    protected FTPThreadRequest(FTPSrvSession sess, SelectionKey selKey, ThreadRequestPool xferThreadPool, boolean transfer) {
+        this(sess, selKey, xferThreadPool);
+        m_transfer = transfer;
+    }
+
+    /**
+     * Run the FTP request
+     */
+    public void runRequest() {
+
+        // Process the received commands, or the pending data transfer command, check if the session is still active
+        if (m_sess.isShutdown() == false && (m_transfer ? m_sess.processNIOTransfer() : m_sess.processNIOCommands())) {
+
+            // Check if a data transfer command is pending, run it using the transfer thread pool
+            if (m_sess.hasNIOTransfer()) {
+                m_xferThreadPool.queueRequest(new FTPThreadRequest(m_sess, m_selectionKey, m_xferThreadPool, true));
+                return;
+            }
+
+            try {
+
+                // Re-enable read events for the command channel
+                m_selectionKey.interestOps(m_selectionKey.interestOps() | SelectionKey.OP_READ);
+                m_selectionKey.selector().wakeup();
+            }
+            catch (CancelledKeyException ex) {
+            }
+        }
+        else {
+
+            // Cancel the selection key
+            m_selectionKey.cancel();
+            m_selectionKey.selector().wakeup();
+        }
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.ftp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.filesys.debug.Debug;
+
+/**
+ * Passive Port Pool Class
+ *
+ * <p>Pool of pre-bound listening sockets over the FTP data port range, used for passive mode data connections. Ports
+ * are allocated from a free queue and returned to a quarantine queue when released, a port is only reused once its
+ * quarantine time has expired so that late connections for a previous transfer are not accepted by a new transfer.
+ *
+ * <p>All of the listening sockets are registered with a single selector, incoming connections are accepted by the
+ * pool thread and handed to the data session that has the port allocated. Connections to ports that are not
+ * allocated are closed.
+ *
+ * @author gkspencer
+ */
+public class PassivePortPool implements Runnable {
+
+    // Default port quarantine time, in milliseconds
+    public static final int DefaultQuarantineTime = 2000;
+
+    // Listen backlog for the pooled sockets
+    private static final int ListenBacklog = 8;
+
+    // Passive listener
+    public static class Listener {
+
+        // Listening channel and port
+        private ServerSocketChannel m_channel;
+        private int m_port;
+
+        // Port allocated to a data session, and connection waiting to be claimed by the data session
+        private boolean m_allocated;
+        private SocketChannel m_pending;
+
+        // Time the port was released, used for the quarantine
+        private long m_releaseTime;
+
+        /**
+         * Class constructor
+         *
+         * @param channel ServerSocketChannel
+         * @param port    int
+         */
+        protected Listener(ServerSocketChannel channel, int port) {
+            m_channel = channel;
+            m_port = port;
+        }
+
+        /**
+         * Return the listening port
+         *
+         * @return int
+         */
+        public final int getPort() {
+            return m_port;
+        }
+
+        /**
+         * Return the listening address
+         *
+         * @return InetAddress
+         */
+        public final InetAddress getAddress() {
+            return m_channel.socket().getInetAddress();
+        }
+
+        /**
+         * Wait for the client to connect to the port
+         *
+         * @param tmo int Timeout in milliseconds, zero to wait indefinitely
+         * @return SocketChannel
+         * @exception IOException Timeout or the port has been released
+         */
+        public synchronized final SocketChannel waitForConnection(int tmo)
+            throws IOException {
+
+            long endTime = System.currentTimeMillis() + tmo;
+
+            while (m_pending == null) {
+
+                // Check if the port has been released
+                if (m_allocated == false)
+                    throw new IOException("Passive port released");
+
+                // Check for a timeout
+                long waitTime = 0L;
+
+                if (tmo > 0) {
+                    waitTime = endTime - System.currentTimeMillis();
+                    if (waitTime <= 0L)
+                        throw new SocketTimeoutException("Accept timed out");
+                }
+
+                try {
+                    wait(waitTime);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Accept interrupted");
+                }
+            }
+
+            // Return the connection
+            SocketChannel dataChannel = m_pending;
+            m_pending = null;
+
+            return dataChannel;
+        }
+
+        /**
+         * Incoming connection accepted by the pool thread
+         *
+         * @param dataChannel SocketChannel
+         * @return boolean true if the connection was handed to a data session
+         */
+        protected synchronized final boolean connectionArrived(SocketChannel dataChannel) {
+
+            // Only accept one connection for an allocated port
+            if (m_allocated == false || m_pending != null)
+                return false;
+
+            m_pending = dataChannel;
+            notifyAll();
+
+            return true;
+        }
+
+        /**
+         * Mark the listener as allocated
+         */
+        protected synchronized final void setAllocated() {
+            m_allocated = true;
+        }
+
+        /**
+         * Mark the listener as released, close any unclaimed connection
+         */
+        protected synchronized final void setReleased() {
+            m_allocated = false;
+            m_releaseTime = System.currentTimeMillis();
+
+            closeChannel(m_pending);
+            m_pending = null;
+
+            notifyAll();
+        }
+    }
+
+    // Pooled listeners
+    private ArrayList<Listener> m_listeners = new ArrayList<Listener>();
+
+    // Free and quarantined listeners, the quarantine queue is in release order
+    private ArrayDeque<Listener> m_freeQueue = new ArrayDeque<Listener>();
+    private ArrayDeque<Listener> m_quarantine = new ArrayDeque<Listener>();
+
+    // Quarantine time, in milliseconds
+    private long m_quarantineTime;
+
+    // Selector used to accept connections on all pooled ports, and the accept thread
+    private Selector m_selector;
+    private Thread m_thread;
+    private volatile boolean m_shutdown;
+
+    // Pool statistics
+    private long m_allocCount;
+    private long m_exhaustedCount;
+    private long m_rejectCount;
+
+    // Debug enable
+    private boolean m_debug;
+
+    /**
+     * Class constructor
+     *
+     * @param bindAddr       InetAddress
+     * @param portLow        int
+     * @param portHigh       int
+     * @param quarantineTime int
+     * @param debug          boolean
+     * @exception IOException Failed to open the selector
+     */
+    public PassivePortPool(InetAddress bindAddr, int portLow, int portHigh, int quarantineTime, boolean debug)
+        throws IOException {
+
+        m_quarantineTime = quarantineTime;
+        m_debug = debug;
+
+        // Open the selector used to accept connections
+        m_selector = Selector.open();
+
+        // Bind the listening sockets for the port range
+        for (int port = portLow; port <= portHigh; port++) {
+
+            ServerSocketChannel channel = null;
+
+            try {
+                channel = ServerSocketChannel.open();
+                channel.bind(new InetSocketAddress(bindAddr, port), ListenBacklog);
+                channel.configureBlocking(false);
+
+                Listener listener = new Listener(channel, port);
+                channel.register(m_selector, SelectionKey.OP_ACCEPT, listener);
+
+                m_listeners.add(listener);
+                m_freeQueue.add(listener);
+            }
+            catch (IOException ex) {
+
+                // Skip ports that are in use
+                closeChannel(channel);
+
+                if (Debug.EnableInfo && m_debug)
+                    Debug.println("[FTP] Passive port pool failed to bind port " + port + ", " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Return the number of pooled ports
+     *
+     * @return int
+     */
+    public final int numberOfPorts() {
+        return m_listeners.size();
+    }
+
+    /**
+     * Return the number of free ports, including ports that are quarantined
+     *
+     * @return int
+     */
+    public synchronized final int numberOfFreePorts() {
+        return m_freeQueue.size() + m_quarantine.size();
+    }
+
+    /**
+     * Start the accept thread
+     */
+    public final void startPool() {
+        m_thread = new Thread(this);
+        m_thread.setDaemon(true);
+        m_thread.setName("FTPPassivePortPool");
+        m_thread.start();
+    }
+
+    /**
+     * Allocate a passive listener
+     *
+     * @return Listener, or null if there are no free ports
+     */
+    public synchronized final Listener allocateListener() {
+
+        // Move listeners that have completed their quarantine to the free queue
+        long now = System.currentTimeMillis();
+
+        while (m_quarantine.isEmpty() == false && m_quarantine.peekFirst().m_releaseTime + m_quarantineTime <= now)
+            m_freeQueue.addLast(m_quarantine.pollFirst());
+
+        // Allocate a free listener
+        Listener listener = m_freeQueue.pollFirst();
+
+        if (listener == null) {
+            m_exhaustedCount++;
+            return null;
+        }
+
+        listener.setAllocated();
+        m_allocCount++;
+
+        return listener;
+    }
+
+    /**
+     * Release a passive listener, the listener is quarantined before it can be reused
+     *
+     * @param listener Listener
+     */
+    public final void releaseListener(Listener listener) {
+
+        // Close any unclaimed connection, mark the listener as released
+        listener.setReleased();
+
+        synchronized (this) {
+            if (m_shutdown == false)
+                m_quarantine.addLast(listener);
+        }
+    }
+
+    /**
+     * Close the pool, stop the accept thread and close all listening sockets
+     */
+    public final void closePool() {
+
+        m_shutdown = true;
+
+        // Stop the accept thread
+        try {
+            m_selector.close();
+        }
+        catch (IOException ex) {
+        }
+
+        if (m_thread != null) {
+            try {
+                m_thread.join(1000);
+            }
+            catch (InterruptedException ex) {
+            }
+            m_thread = null;
+        }
+
+        // Close the listening sockets, wakeup any waiting data sessions
+        for (Listener listener : m_listeners) {
+            listener.setReleased();
+            closeChannel(listener.m_channel);
+        }
+
+        synchronized (this) {
+            m_freeQueue.clear();
+            m_quarantine.clear();
+        }
+    }
+
+    /**
+     * Accept thread, accepts connections for all pooled ports
+     */
+    public void run() {
+
+        while (m_shutdown == false) {
+
+            try {
+
+                // Wait for incoming connections
+                m_selector.select();
+
+                Iterator<SelectionKey> iter = m_selector.selectedKeys().iterator();
+
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+
+                    if (key.isValid() == false || key.isAcceptable() == false)
+                        continue;
+
+                    // Accept the connection, pass it to the data session that has the port allocated
+                    Listener listener = (Listener) key.attachment();
+                    SocketChannel dataChannel = listener.m_channel.accept();
+
+                    if (dataChannel != null && listener.connectionArrived(dataChannel) == false) {
+
+                        // Port is not allocated, or already has a connection, reject the connection
+                        closeChannel(dataChannel);
+
+                        synchronized (this) {
+                            m_rejectCount++;
+                        }
+
+                        // DEBUG
+                        if (Debug.EnableInfo && m_debug)
+                            Debug.println("[FTP] Passive port pool rejected connection on port " + listener.getPort());
+                    }
+                }
+            }
+            catch (ClosedSelectorException ex) {
+                break;
+            }
+            catch (IOException ex) {
+                if (m_shutdown == false && Debug.EnableError && m_debug)
+                    Debug.println("[FTP] Passive port pool accept error, " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Close a channel, ignoring errors
+     *
+     * @param channel Channel
+     */
+    private static void closeChannel(Channel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException ex) {
+            }
+        }
+    }
+
+    /**
+     * Return the passive port pool details as a string
+     *
+     * @return String
+     */
+    public synchronized String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[Passive ports=");
+        str.append(m_listeners.size());
+        str.append(", free=");
+        str.append(m_freeQueue.size());
+        str.append(", quarantined=");
+        str.append(m_quarantine.size());
+        str.append(", allocs=");
+        str.append(m_allocCount);
+        str.append(", exhausted=");
+        str.append(m_exhaustedCount);
+        str.append(", rejected=");
+        str.append(m_rejectCount);
+        str.append("]");
+
+        return str.toString();
+    }
+}
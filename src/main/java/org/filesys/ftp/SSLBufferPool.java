@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.ftp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SSL Buffer Pool Class
+ *
+ * <p>Pool of direct byte buffers used by secure data connections for the SSLEngine network and application
+ * buffers. All pooled buffers are the same size, large enough to hold a maximum size TLS record. Requests for larger
+ * buffers are allocated but not pooled.
+ *
+ * @author gkspencer
+ */
+public class SSLBufferPool {
+
+    // Default pooled buffer size, large enough for a maximum size TLS record, and maximum number of pooled buffers
+    public static final int DefaultBufferSize = 34 * 1024;
+    public static final int DefaultMaxBuffers = 64;
+
+    // Pooled buffer size, and maximum number of buffers to keep in the pool
+    private int m_bufSize;
+    private int m_maxBufs;
+
+    // Pooled buffers
+    private ConcurrentLinkedQueue<ByteBuffer> m_pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private AtomicInteger m_poolCount = new AtomicInteger();
+
+    // Allocation statistics
+    private AtomicInteger m_allocCount = new AtomicInteger();
+    private AtomicInteger m_reuseCount = new AtomicInteger();
+
+    /**
+     * Default constructor
+     */
+    public SSLBufferPool() {
+        this(DefaultBufferSize, DefaultMaxBuffers);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param bufSize int
+     * @param maxBufs int
+     */
+    public SSLBufferPool(int bufSize, int maxBufs) {
+        m_bufSize = bufSize;
+        m_maxBufs = maxBufs;
+    }
+
+    /**
+     * Return the pooled buffer size
+     *
+     * @return int
+     */
+    public final int getBufferSize() {
+        return m_bufSize;
+    }
+
+    /**
+     * Return the number of buffers currently in the pool
+     *
+     * @return int
+     */
+    public final int getPooledCount() {
+        return m_poolCount.get();
+    }
+
+    /**
+     * Return the number of new buffers that have been allocated
+     *
+     * @return int
+     */
+    public final int getAllocationCount() {
+        return m_allocCount.get();
+    }
+
+    /**
+     * Return the number of allocations that have been satisfied from the pool
+     *
+     * @return int
+     */
+    public final int getReuseCount() {
+        return m_reuseCount.get();
+    }
+
+    /**
+     * Allocate a buffer of at least the specified size, the returned buffer is cleared
+     *
+     * @param siz int
+     * @return ByteBuffer
+     */
+    public final ByteBuffer allocateBuffer(int siz) {
+
+        // Allocate a non-pooled buffer if the requested size is larger than the pooled buffer size
+        if (siz > m_bufSize) {
+            m_allocCount.incrementAndGet();
+            return ByteBuffer.allocateDirect(siz);
+        }
+
+        // Get a buffer from the pool, or allocate a new buffer
+        ByteBuffer buf = m_pool.poll();
+
+        if (buf != null) {
+            m_poolCount.decrementAndGet();
+            m_reuseCount.incrementAndGet();
+            buf.clear();
+        }
+        else {
+            m_allocCount.incrementAndGet();
+            buf = ByteBuffer.allocateDirect(m_bufSize);
+        }
+
+        return buf;
+    }
+
+    /**
+     * Release a buffer back to the pool
+     *
+     * @param buf ByteBuffer
+     */
+    public final void releaseBuffer(ByteBuffer buf) {
+
+        // Only pool buffers of the pooled size, and only up to the maximum pool size
+        if (buf == null || buf.capacity() != m_bufSize)
+            return;
+
+        if (m_poolCount.incrementAndGet() <= m_maxBufs)
+            m_pool.offer(buf);
+        else
+            m_poolCount.decrementAndGet();
+    }
+
+    /**
+     * Return the buffer pool details as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[SSL buffers size=");
+        str.append(getBufferSize());
+        str.append(", pooled=");
+        str.append(getPooledCount());
+        str.append("/");
+        str.append(m_maxBufs);
+        str.append(", allocs=");
+        str.append(getAllocationCount());
+        str.append(", reused=");
+        str.append(getReuseCount());
+        str.append("]");
+
+        return str.toString();
+    }
+}
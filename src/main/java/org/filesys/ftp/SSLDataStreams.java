@@ -0,0 +1,752 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.ftp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * SSL Data Streams Class
+ *
+ * <p>Provides input and output streams for a TLS protected FTP data connection, using an SSLEngine over the
+ * non-blocking data channel. The network and application buffers are direct buffers allocated from a shared pool.
+ *
+ * <p>Data written to the output stream is buffered until a full TLS record can be sent, large writes are wrapped
+ * directly from the callers buffer in full size records. Transfer statistics are kept for each data connection.
+ *
+ * @author gkspencer
+ */
+public class SSLDataStreams {
+
+    // Maximum plaintext length of a TLS record
+    public static final int MaxRecordSize = 16384;
+
+    // Empty buffer used when wrapping handshake data
+    private static final ByteBuffer EmptyBuffer = ByteBuffer.allocate(0);
+
+    // Channel streams for the data connection, and the socket channel
+    private SocketChannelStreams m_channelStreams;
+    private SocketChannel m_channel;
+
+    // SSL engine for the data connection
+    private SSLEngine m_engine;
+
+    // Buffer pool, and network/application buffers
+    private SSLBufferPool m_bufPool;
+
+    private ByteBuffer m_netIn;
+    private ByteBuffer m_netOut;
+    private ByteBuffer m_appIn;
+    private ByteBuffer m_appOut;
+
+    // Size of a network packet, the output buffer is sent when it cannot hold another packet
+    private int m_packetSize;
+
+    // End of data received, streams closed
+    private boolean m_eof;
+    private boolean m_closed;
+
+    // Input and output streams
+    private InputStream m_in;
+    private OutputStream m_out;
+
+    // Transfer statistics
+    private long m_startTime;
+    private long m_endTime;
+    private long m_handshakeTime;
+    private boolean m_resumed;
+
+    private long m_appBytesIn;
+    private long m_appBytesOut;
+    private long m_netBytesIn;
+    private long m_netBytesOut;
+
+    private int m_recordsIn;
+    private int m_recordsOut;
+
+    /**
+     * SSL Input Stream Class
+     */
+    private class SSLInputStream extends InputStream {
+
+        /**
+         * Read a single byte
+         *
+         * @return int
+         * @exception IOException Socket error
+         */
+        public int read()
+            throws IOException {
+
+            byte[] byt = new byte[1];
+            int rdlen = read( byt, 0, 1);
+
+            return rdlen == 1 ? byt[0] & 0xFF : -1;
+        }
+
+        /**
+         * Read a block of data, wait for data if none is available
+         *
+         * @param buf byte[]
+         * @param off int
+         * @param len int
+         * @return int
+         * @exception IOException Socket error
+         */
+        public int read(byte[] buf, int off, int len)
+            throws IOException {
+            return readSecure( buf, off, len);
+        }
+
+        /**
+         * Return the number of bytes that can be read without waiting
+         *
+         * @return int
+         */
+        public int available() {
+            return m_appIn.remaining();
+        }
+
+        /**
+         * Close the input stream, closes the secure connection
+         *
+         * @exception IOException Socket error
+         */
+        public void close()
+            throws IOException {
+            closeSecure();
+        }
+    }
+
+    /**
+     * SSL Output Stream Class
+     */
+    private class SSLOutputStream extends OutputStream {
+
+        /**
+         * Write a single byte
+         *
+         * @param byt int
+         * @exception IOException Socket error
+         */
+        public void write(int byt)
+            throws IOException {
+
+            byte[] buf = new byte[1];
+            buf[0] = (byte) byt;
+
+            writeSecure( buf, 0, 1);
+        }
+
+        /**
+         * Write a block of data
+         *
+         * @param buf byte[]
+         * @param off int
+         * @param len int
+         * @exception IOException Socket error
+         */
+        public void write(byte[] buf, int off, int len)
+            throws IOException {
+            writeSecure( buf, off, len);
+        }
+
+        /**
+         * Flush buffered data to the network
+         *
+         * @exception IOException Socket error
+         */
+        public void flush()
+            throws IOException {
+            flushSecure();
+        }
+
+        /**
+         * Close the output stream, closes the secure connection
+         *
+         * @exception IOException Socket error
+         */
+        public void close()
+            throws IOException {
+            closeSecure();
+        }
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param channelStreams SocketChannelStreams
+     * @param engine         SSLEngine
+     * @param bufPool        SSLBufferPool
+     */
+    public SSLDataStreams(SocketChannelStreams channelStreams, SSLEngine engine, SSLBufferPool bufPool) {
+        m_channelStreams = channelStreams;
+        m_channel = channelStreams.getChannel();
+        m_engine = engine;
+        m_bufPool = bufPool;
+
+        // Allocate the network and application buffers
+        m_packetSize = engine.getSession().getPacketBufferSize();
+
+        m_netIn = bufPool.allocateBuffer( m_packetSize);
+        m_netOut = bufPool.allocateBuffer( m_packetSize);
+        m_appIn = bufPool.allocateBuffer( engine.getSession().getApplicationBufferSize());
+        m_appOut = bufPool.allocateBuffer( MaxRecordSize);
+
+        // Application input buffer is kept in read mode, application output buffer is limited to a single record
+        m_appIn.flip();
+        m_appOut.limit( MaxRecordSize);
+
+        m_in = new SSLInputStream();
+        m_out = new SSLOutputStream();
+    }
+
+    /**
+     * Return the input stream
+     *
+     * @return InputStream
+     */
+    public final InputStream getInputStream() {
+        return m_in;
+    }
+
+    /**
+     * Return the output stream
+     *
+     * @return OutputStream
+     */
+    public final OutputStream getOutputStream() {
+        return m_out;
+    }
+
+    /**
+     * Return the SSL engine
+     *
+     * @return SSLEngine
+     */
+    public final SSLEngine getEngine() {
+        return m_engine;
+    }
+
+    /**
+     * Return the handshake time, in milliseconds
+     *
+     * @return long
+     */
+    public final long getHandshakeTime() {
+        return m_handshakeTime;
+    }
+
+    /**
+     * Check if the handshake resumed an existing SSL session
+     *
+     * @return boolean
+     */
+    public final boolean isResumedSession() {
+        return m_resumed;
+    }
+
+    /**
+     * Return the number of data bytes received
+     *
+     * @return long
+     */
+    public final long getBytesReceived() {
+        return m_appBytesIn;
+    }
+
+    /**
+     * Return the number of data bytes sent
+     *
+     * @return long
+     */
+    public final long getBytesSent() {
+        return m_appBytesOut;
+    }
+
+    /**
+     * Return the number of network bytes received, including the TLS record overhead
+     *
+     * @return long
+     */
+    public final long getNetworkBytesReceived() {
+        return m_netBytesIn;
+    }
+
+    /**
+     * Return the number of network bytes sent, including the TLS record overhead
+     *
+     * @return long
+     */
+    public final long getNetworkBytesSent() {
+        return m_netBytesOut;
+    }
+
+    /**
+     * Return the number of TLS records received that contained data
+     *
+     * @return int
+     */
+    public final int getRecordsReceived() {
+        return m_recordsIn;
+    }
+
+    /**
+     * Return the number of TLS records sent that contained data
+     *
+     * @return int
+     */
+    public final int getRecordsSent() {
+        return m_recordsOut;
+    }
+
+    /**
+     * Return the transfer time, from the end of the handshake to the close of the connection, or the current time
+     * if the connection is still open, in milliseconds
+     *
+     * @return long
+     */
+    public final long getTransferTime() {
+        long endTime = m_endTime != 0L ? m_endTime : System.currentTimeMillis();
+        return m_startTime != 0L ? endTime - m_startTime : 0L;
+    }
+
+    /**
+     * Return the transfer throughput, in kilobytes per second
+     *
+     * @return long
+     */
+    public final long getThroughput() {
+        long xferTime = Math.max(getTransferTime(), 1L);
+        return ((m_appBytesIn + m_appBytesOut) * 1000L) / (xferTime * 1024L);
+    }
+
+    /**
+     * Perform the SSL handshake
+     *
+     * @exception IOException Socket error
+     */
+    public final void startHandshake()
+        throws IOException {
+
+        // Start the handshake
+        long hsStart = System.currentTimeMillis();
+
+        m_engine.beginHandshake();
+        processHandshake();
+
+        // Record the handshake time, if the session was created before the handshake started then it was resumed
+        m_startTime = System.currentTimeMillis();
+        m_handshakeTime = m_startTime - hsStart;
+
+        m_resumed = m_engine.getSession().getCreationTime() < hsStart;
+    }
+
+    /**
+     * Close the secure connection, send a close notify to the client and release the buffers
+     *
+     * @exception IOException Socket error
+     */
+    public final void closeSecure()
+        throws IOException {
+
+        // Check if the connection has already been closed
+        if ( m_closed)
+            return;
+
+        m_closed = true;
+        m_endTime = System.currentTimeMillis();
+
+        try {
+
+            // Send any buffered data, then the close notify
+            if ( m_engine.isOutboundDone() == false) {
+                flushApplicationOutput();
+
+                m_engine.closeOutbound();
+
+                while ( m_engine.isOutboundDone() == false) {
+                    SSLEngineResult sslRes = m_engine.wrap( EmptyBuffer, m_netOut);
+                    if ( sslRes.bytesProduced() == 0 && sslRes.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW)
+                        break;
+
+                    flushNetworkOutput();
+                }
+            }
+
+            flushNetworkOutput();
+        }
+        finally {
+
+            // Release the buffers back to the pool
+            m_bufPool.releaseBuffer( m_netIn);
+            m_bufPool.releaseBuffer( m_netOut);
+            m_bufPool.releaseBuffer( m_appIn);
+            m_bufPool.releaseBuffer( m_appOut);
+
+            m_netIn = null;
+            m_netOut = null;
+            m_appOut = null;
+            m_appIn = EmptyBuffer;
+        }
+    }
+
+    /**
+     * Read data from the secure connection, wait for data if none is available
+     *
+     * @param buf byte[]
+     * @param off int
+     * @param len int
+     * @return int
+     * @exception IOException Socket error
+     */
+    private int readSecure(byte[] buf, int off, int len)
+        throws IOException {
+
+        if ( len == 0)
+            return 0;
+
+        // Unwrap received records until there is data available, or the end of the data is reached
+        while ( m_appIn.hasRemaining() == false) {
+
+            if ( m_eof || m_closed)
+                return -1;
+
+            // Unwrap the next record
+            SSLEngineResult sslRes = unwrapNetworkInput();
+
+            switch ( sslRes.getStatus()) {
+
+                // Need more data from the network
+                case BUFFER_UNDERFLOW:
+                    if ( readNetworkInput() == -1)
+                        m_eof = true;
+                    break;
+
+                // Client has sent a close notify
+                case CLOSED:
+                    m_eof = true;
+                    break;
+
+                // Application buffer cannot hold the record, the buffer is sized to the maximum record size
+                case BUFFER_OVERFLOW:
+                    throw new SSLException( "Data connection record too large");
+
+                default:
+                    break;
+            }
+
+            // Check if the engine needs to send data or run tasks
+            if ( isHandshaking( sslRes.getHandshakeStatus()))
+                processHandshake();
+        }
+
+        // Return the available data
+        int rdlen = Math.min( len, m_appIn.remaining());
+        m_appIn.get( buf, off, rdlen);
+
+        return rdlen;
+    }
+
+    /**
+     * Write data to the secure connection, data is buffered until a full record can be sent
+     *
+     * @param buf byte[]
+     * @param off int
+     * @param len int
+     * @exception IOException Socket error
+     */
+    private void writeSecure(byte[] buf, int off, int len)
+        throws IOException {
+
+        if ( m_closed)
+            throw new SSLException( "Data connection closed");
+
+        while ( len > 0) {
+
+            if ( m_appOut.position() == 0 && len >= MaxRecordSize) {
+
+                // Wrap full size records directly from the callers buffer
+                int wrapLen = len - ( len % MaxRecordSize);
+                ByteBuffer srcBuf = ByteBuffer.wrap( buf, off, wrapLen);
+
+                while ( srcBuf.hasRemaining())
+                    wrapData( srcBuf);
+
+                off += wrapLen;
+                len -= wrapLen;
+            }
+            else {
+
+                // Buffer the data until a full record is available
+                int cpLen = Math.min( len, m_appOut.remaining());
+                m_appOut.put( buf, off, cpLen);
+
+                off += cpLen;
+                len -= cpLen;
+
+                if ( m_appOut.hasRemaining() == false)
+                    flushApplicationOutput();
+            }
+        }
+    }
+
+    /**
+     * Send all buffered data to the network
+     *
+     * @exception IOException Socket error
+     */
+    private void flushSecure()
+        throws IOException {
+
+        if ( m_closed)
+            return;
+
+        flushApplicationOutput();
+        flushNetworkOutput();
+    }
+
+    /**
+     * Wrap the buffered application data
+     *
+     * @exception IOException Socket error
+     */
+    private void flushApplicationOutput()
+        throws IOException {
+
+        m_appOut.flip();
+
+        while ( m_appOut.hasRemaining())
+            wrapData( m_appOut);
+
+        m_appOut.clear();
+        m_appOut.limit( MaxRecordSize);
+    }
+
+    /**
+     * Wrap a record of data from the source buffer into the network output buffer, the network buffer is sent when it
+     * cannot hold another record
+     *
+     * @param srcBuf ByteBuffer
+     * @exception IOException Socket error
+     */
+    private void wrapData(ByteBuffer srcBuf)
+        throws IOException {
+
+        // Make sure there is space for the record
+        if ( m_netOut.remaining() < m_packetSize)
+            flushNetworkOutput();
+
+        SSLEngineResult sslRes = m_engine.wrap( srcBuf, m_netOut);
+
+        switch ( sslRes.getStatus()) {
+            case BUFFER_OVERFLOW:
+                flushNetworkOutput();
+                break;
+            case CLOSED:
+                throw new SSLException( "Data connection closed");
+            default:
+                break;
+        }
+
+        // Update the statistics
+        if ( sslRes.bytesConsumed() > 0) {
+            m_appBytesOut += sslRes.bytesConsumed();
+            m_recordsOut++;
+        }
+
+        // Check if the engine needs to send data or run tasks
+        if ( isHandshaking( sslRes.getHandshakeStatus())) {
+            flushNetworkOutput();
+            processHandshake();
+        }
+    }
+
+    /**
+     * Process handshake messages until the handshake is complete
+     *
+     * @exception IOException Socket error
+     */
+    private void processHandshake()
+        throws IOException {
+
+        HandshakeStatus hsStatus = m_engine.getHandshakeStatus();
+
+        while ( isHandshaking( hsStatus)) {
+
+            switch ( hsStatus) {
+
+                // Run the delegated tasks
+                case NEED_TASK:
+                    Runnable task;
+                    while (( task = m_engine.getDelegatedTask()) != null)
+                        task.run();
+                    break;
+
+                // Send handshake data
+                case NEED_WRAP:
+                    SSLEngineResult sslRes = m_engine.wrap( EmptyBuffer, m_netOut);
+                    if ( sslRes.getStatus() == SSLEngineResult.Status.CLOSED && sslRes.bytesProduced() == 0)
+                        throw new SSLException( "Data connection closed during handshake");
+
+                    flushNetworkOutput();
+                    break;
+
+                // Receive handshake data
+                default:
+                    sslRes = unwrapNetworkInput();
+
+                    if ( sslRes.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        if ( readNetworkInput() == -1)
+                            throw new EOFException( "Data connection closed during handshake");
+                    }
+                    else if ( sslRes.getStatus() == SSLEngineResult.Status.CLOSED)
+                        throw new SSLException( "Data connection closed during handshake");
+                    break;
+            }
+
+            hsStatus = m_engine.getHandshakeStatus();
+        }
+    }
+
+    /**
+     * Check if the handshake status indicates the engine needs to send or receive data, or run tasks
+     *
+     * @param hsStatus HandshakeStatus
+     * @return boolean
+     */
+    private boolean isHandshaking(HandshakeStatus hsStatus) {
+        return hsStatus != HandshakeStatus.NOT_HANDSHAKING && hsStatus != HandshakeStatus.FINISHED;
+    }
+
+    /**
+     * Unwrap received network data into the application input buffer
+     *
+     * @return SSLEngineResult
+     * @exception SSLException SSL error
+     */
+    private SSLEngineResult unwrapNetworkInput()
+        throws SSLException {
+
+        m_netIn.flip();
+        m_appIn.compact();
+
+        SSLEngineResult sslRes = m_engine.unwrap( m_netIn, m_appIn);
+
+        m_appIn.flip();
+        m_netIn.compact();
+
+        // Update the statistics
+        if ( sslRes.bytesProduced() > 0) {
+            m_appBytesIn += sslRes.bytesProduced();
+            m_recordsIn++;
+        }
+
+        return sslRes;
+    }
+
+    /**
+     * Read network data into the network input buffer, wait for data if none is available
+     *
+     * @return int
+     * @exception IOException Socket error
+     */
+    private int readNetworkInput()
+        throws IOException {
+
+        int rdlen = m_channel.read( m_netIn);
+
+        while ( rdlen == 0) {
+            m_channelStreams.waitForChannel( SelectionKey.OP_READ);
+            rdlen = m_channel.read( m_netIn);
+        }
+
+        if ( rdlen > 0)
+            m_netBytesIn += rdlen;
+
+        return rdlen;
+    }
+
+    /**
+     * Send the network output buffer
+     *
+     * @exception IOException Socket error
+     */
+    private void flushNetworkOutput()
+        throws IOException {
+
+        m_netOut.flip();
+
+        while ( m_netOut.hasRemaining()) {
+            int wrlen = m_channel.write( m_netOut);
+
+            if ( wrlen == 0)
+                m_channelStreams.waitForChannel( SelectionKey.OP_WRITE);
+            else
+                m_netBytesOut += wrlen;
+        }
+
+        m_netOut.clear();
+    }
+
+    /**
+     * Return the transfer statistics as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[");
+        str.append(m_engine.getSession().getProtocol());
+        str.append(",");
+        str.append(m_engine.getSession().getCipherSuite());
+        str.append(m_resumed ? ",resumed" : ",new session");
+        str.append(",handshake=");
+        str.append(getHandshakeTime());
+        str.append("ms,sent=");
+        str.append(getBytesSent());
+        str.append("/");
+        str.append(getRecordsSent());
+        str.append(" records,rcvd=");
+        str.append(getBytesReceived());
+        str.append("/");
+        str.append(getRecordsReceived());
+        str.append(" records,net=");
+        str.append(getNetworkBytesSent());
+        str.append("/");
+        str.append(getNetworkBytesReceived());
+        str.append(",time=");
+        str.append(getTransferTime());
+        str.append("ms,");
+        str.append(getThroughput());
+        str.append("KB/s]");
+
+        return str.toString();
+    }
+}
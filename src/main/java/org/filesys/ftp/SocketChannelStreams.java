@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.ftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Socket Channel Streams Class
+ *
+ * <p>Provides input and output streams over a non-blocking socket channel, so the existing stream based FTP command
+ * and data transfer code can be used with channels that are also registered with a selector. A read or write that
+ * cannot complete immediately waits for the channel to become ready using a temporary selector, with the socket
+ * timeout applied to the wait. The selector is closed when the wait completes so that idle sessions do not hold a
+ * selector.
+ *
+ * <p>The streams are not thread safe, they are used by the thread that is currently processing the session.
+ *
+ * @author gkspencer
+ */
+public class SocketChannelStreams {
+
+    // Size of the buffer used to check for available data
+    private static final int AvailableBufferSize = 1024;
+
+    // Socket channel, must be in non-blocking mode
+    private SocketChannel m_channel;
+
+    // Data read during an available check that has not been returned to the caller yet
+    private ByteBuffer m_availBuf;
+    private boolean m_eof;
+
+    // Input and output streams
+    private InputStream m_in;
+    private OutputStream m_out;
+
+    /**
+     * Channel Input Stream Class
+     */
+    private class ChannelInputStream extends InputStream {
+
+        /**
+         * Read a single byte
+         *
+         * @return int
+         * @exception IOException Socket error
+         */
+        public int read()
+            throws IOException {
+
+            byte[] byt = new byte[1];
+            int rdlen = read( byt, 0, 1);
+
+            return rdlen == 1 ? byt[0] & 0xFF : -1;
+        }
+
+        /**
+         * Read a block of data, wait for data if none is available
+         *
+         * @param buf byte[]
+         * @param off int
+         * @param len int
+         * @return int
+         * @exception IOException Socket error
+         */
+        public int read(byte[] buf, int off, int len)
+            throws IOException {
+            return readChannel( buf, off, len);
+        }
+
+        /**
+         * Return the number of bytes that can be read without waiting
+         *
+         * @return int
+         * @exception IOException Socket error
+         */
+        public int available()
+            throws IOException {
+            return availableChannel();
+        }
+
+        /**
+         * Close the input stream, closes the channel
+         *
+         * @exception IOException Socket error
+         */
+        public void close()
+            throws IOException {
+            closeStreams();
+        }
+    }
+
+    /**
+     * Channel Output Stream Class
+     */
+    private class ChannelOutputStream extends OutputStream {
+
+        /**
+         * Write a single byte
+         *
+         * @param byt int
+         * @exception IOException Socket error
+         */
+        public void write(int byt)
+            throws IOException {
+
+            byte[] buf = new byte[1];
+            buf[0] = (byte) byt;
+
+            writeChannel( buf, 0, 1);
+        }
+
+        /**
+         * Write a block of data, wait for the channel if the data cannot be written immediately
+         *
+         * @param buf byte[]
+         * @param off int
+         * @param len int
+         * @exception IOException Socket error
+         */
+        public void write(byte[] buf, int off, int len)
+            throws IOException {
+            writeChannel( buf, off, len);
+        }
+
+        /**
+         * Close the output stream, closes the channel
+         *
+         * @exception IOException Socket error
+         */
+        public void close()
+            throws IOException {
+            closeStreams();
+        }
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param channel SocketChannel
+     */
+    public SocketChannelStreams(SocketChannel channel) {
+        m_channel = channel;
+
+        m_in = new ChannelInputStream();
+        m_out = new ChannelOutputStream();
+    }
+
+    /**
+     * Return the socket channel
+     *
+     * @return SocketChannel
+     */
+    public final SocketChannel getChannel() {
+        return m_channel;
+    }
+
+    /**
+     * Return the input stream
+     *
+     * @return InputStream
+     */
+    public final InputStream getInputStream() {
+        return m_in;
+    }
+
+    /**
+     * Return the output stream
+     *
+     * @return OutputStream
+     */
+    public final OutputStream getOutputStream() {
+        return m_out;
+    }
+
+    /**
+     * Check if there is data read during an available check that has not been returned to the caller
+     *
+     * @return boolean
+     */
+    public final boolean hasBufferedData() {
+        return m_availBuf != null && m_availBuf.hasRemaining();
+    }
+
+    /**
+     * Wait for the channel to be ready for the specified operation
+     *
+     * @param ops int
+     * @exception IOException Socket error
+     */
+    protected final void waitForChannel(int ops)
+        throws IOException {
+
+        // Open a temporary selector, and register the channel, closing the selector deregisters the channel
+        int readyCnt = 0;
+        int tmo = m_channel.socket().getSoTimeout();
+
+        try ( Selector selector = Selector.open()) {
+            m_channel.register( selector, ops);
+
+            // Wait for the channel to become ready, use the socket timeout
+            readyCnt = selector.select( tmo);
+        }
+
+        if ( readyCnt == 0 && tmo > 0)
+            throw new SocketTimeoutException( ops == SelectionKey.OP_READ ? "Read timed out" : "Write timed out");
+    }
+
+    /**
+     * Read data from the channel, wait for data if none is available
+     *
+     * @param buf byte[]
+     * @param off int
+     * @param len int
+     * @return int
+     * @exception IOException Socket error
+     */
+    private int readChannel(byte[] buf, int off, int len)
+        throws IOException {
+
+        if ( len == 0)
+            return 0;
+
+        // Return data read during an available check first
+        if ( hasBufferedData()) {
+            int rdlen = Math.min( len, m_availBuf.remaining());
+            m_availBuf.get( buf, off, rdlen);
+
+            return rdlen;
+        }
+        else if ( m_eof)
+            return -1;
+
+        // Read from the channel, wait until there is data or the connection is closed
+        ByteBuffer dataBuf = ByteBuffer.wrap( buf, off, len);
+        int rdlen = m_channel.read( dataBuf);
+
+        while ( rdlen == 0) {
+            waitForChannel( SelectionKey.OP_READ);
+            rdlen = m_channel.read( dataBuf);
+        }
+
+        return rdlen;
+    }
+
+    /**
+     * Return the amount of data that can be read without waiting
+     *
+     * @return int
+     * @exception IOException Socket error
+     */
+    private int availableChannel()
+        throws IOException {
+
+        // Check for buffered data
+        if ( hasBufferedData())
+            return m_availBuf.remaining();
+        else if ( m_eof)
+            return 0;
+
+        // Check for data on the channel, without waiting
+        if ( m_availBuf == null)
+            m_availBuf = ByteBuffer.allocate( AvailableBufferSize);
+
+        m_availBuf.clear();
+        int rdlen = m_channel.read( m_availBuf);
+        m_availBuf.flip();
+
+        if ( rdlen == -1)
+            m_eof = true;
+
+        return m_availBuf.remaining();
+    }
+
+    /**
+     * Write data to the channel, wait for the channel if the data cannot be written immediately
+     *
+     * @param buf byte[]
+     * @param off int
+     * @param len int
+     * @exception IOException Socket error
+     */
+    private void writeChannel(byte[] buf, int off, int len)
+        throws IOException {
+
+        ByteBuffer dataBuf = ByteBuffer.wrap( buf, off, len);
+
+        while ( dataBuf.hasRemaining()) {
+            if ( m_channel.write( dataBuf) == 0)
+                waitForChannel( SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Close the streams and the channel
+     *
+     * @exception IOException Socket error
+     */
+    public final void closeStreams()
+        throws IOException {
+
+        // Close the channel
+        m_channel.close();
+    }
+}
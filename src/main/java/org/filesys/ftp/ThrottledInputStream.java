@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.ftp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Throttled Input Stream Class
+ *
+ * <p>Input stream that limits the rate data is read using a bandwidth limiter. Reads are limited to the limiter
+ * chunk size, the tokens for the data are acquired after the read so the sender is held back by flow control.
+ *
+ * @author gkspencer
+ */
+public class ThrottledInputStream extends FilterInputStream {
+
+    // Bandwidth limiter
+    private BandwidthLimiter m_limiter;
+
+    /**
+     * Class constructor
+     *
+     * @param in      InputStream
+     * @param limiter BandwidthLimiter
+     */
+    public ThrottledInputStream(InputStream in, BandwidthLimiter limiter) {
+        super(in);
+
+        m_limiter = limiter;
+    }
+
+    /**
+     * Read a byte
+     *
+     * @return int
+     * @exception IOException I/O error
+     */
+    public int read()
+        throws IOException {
+        int b = in.read();
+        if (b != -1)
+            m_limiter.acquire(1);
+        return b;
+    }
+
+    /**
+     * Read data
+     *
+     * @param buf byte[]
+     * @param off int
+     * @param len int
+     * @return int
+     * @exception IOException I/O error
+     */
+    public int read(byte[] buf, int off, int len)
+        throws IOException {
+
+        int rdlen = in.read(buf, off, Math.min(len, m_limiter.getMaximumChunk()));
+        if (rdlen > 0)
+            m_limiter.acquire(rdlen);
+        return rdlen;
+    }
+
+}
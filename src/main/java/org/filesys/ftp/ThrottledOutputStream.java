@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.ftp;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Throttled Output Stream Class
+ *
+ * <p>Output stream that limits the rate data is written using a bandwidth limiter.
+ *
+ * @author gkspencer
+ */
+public class ThrottledOutputStream extends FilterOutputStream {
+
+    // Bandwidth limiter
+    private BandwidthLimiter m_limiter;
+
+    /**
+     * Class constructor
+     *
+     * @param out     OutputStream
+     * @param limiter BandwidthLimiter
+     */
+    public ThrottledOutputStream(OutputStream out, BandwidthLimiter limiter) {
+        super(out);
+
+        m_limiter = limiter;
+    }
+
+    /**
+     * Write a byte
+     *
+     * @param b int
+     * @exception IOException I/O error
+     */
+    public void write(int b)
+        throws IOException {
+        m_limiter.acquire(1);
+        out.write(b);
+    }
+
+    /**
+     * Write data, split into chunks that are within the bandwidth limits
+     *
+     * @param buf byte[]
+     * @param off int
+     * @param len int
+     * @exception IOException I/O error
+     */
+    public void write(byte[] buf, int off, int len)
+        throws IOException {
+
+        while (len > 0) {
+            int wlen = Math.min(len, m_limiter.getMaximumChunk());
+
+            m_limiter.acquire(wlen);
+            out.write(buf, off, wlen);
+
+            off += wlen;
+            len -= wlen;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.ftp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token Bucket Class
+ *
+ * <p>Token bucket rate limiter used to shape FTP data transfer bandwidth. Tokens are bytes, the bucket refills at the
+ * configured rate up to the burst size. A bucket may be shared by many data sessions so that the total rate across
+ * the sessions is limited.
+ *
+ * <p>Callers reserve tokens before transferring data, if there are not enough tokens the bucket goes into debt and the
+ * caller is given the time to wait until the debt has been repaid. The wait is done outside of the bucket lock.
+ *
+ * @author gkspencer
+ */
+public class TokenBucket {
+
+    // Minimum burst size, and the default burst time as a fraction of a second
+    public static final int MinimumBurstSize = 16 * 1024;
+    public static final int DefaultBurstDivisor = 4;
+
+    // Time window used to calculate the current transfer rate
+    private static final long RateWindow = TimeUnit.SECONDS.toNanos(1);
+
+    // Bucket name, rate in bytes per second and burst size in bytes
+    private String m_name;
+    private long m_rate;
+    private int m_burst;
+
+    // Available tokens, negative if the bucket is in debt, and the time the tokens were last refilled
+    private long m_tokens;
+    private long m_lastRefill;
+
+    // Total bytes transferred, and the current rate calculation window
+    private long m_totalBytes;
+    private long m_windowStart;
+    private long m_windowBytes;
+    private long m_currentRate;
+
+    /**
+     * Class constructor
+     *
+     * @param name String
+     * @param rate long
+     */
+    public TokenBucket(String name, long rate) {
+        this(name, rate, (int) Math.min(Math.max(rate / DefaultBurstDivisor, MinimumBurstSize), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param name  String
+     * @param rate  long
+     * @param burst int
+     */
+    public TokenBucket(String name, long rate, int burst) {
+        m_name = name;
+        m_rate = rate;
+        m_burst = burst;
+
+        m_tokens = burst;
+        m_lastRefill = System.nanoTime();
+        m_windowStart = m_lastRefill;
+    }
+
+    /**
+     * Return the bucket name
+     *
+     * @return String
+     */
+    public final String getName() {
+        return m_name;
+    }
+
+    /**
+     * Return the configured rate, in bytes per second
+     *
+     * @return long
+     */
+    public final long getRate() {
+        return m_rate;
+    }
+
+    /**
+     * Return the burst size, in bytes
+     *
+     * @return int
+     */
+    public final int getBurstSize() {
+        return m_burst;
+    }
+
+    /**
+     * Return the total number of bytes transferred using this bucket
+     *
+     * @return long
+     */
+    public synchronized final long getTotalBytes() {
+        return m_totalBytes;
+    }
+
+    /**
+     * Return the current transfer rate, in bytes per second
+     *
+     * @return long
+     */
+    public synchronized final long getCurrentRate() {
+
+        // Close the current window if it has expired, so an idle bucket reports a falling rate
+        updateRate(System.nanoTime());
+        return m_currentRate;
+    }
+
+    /**
+     * Reserve tokens for a transfer, and return the time the caller must wait before transferring the data
+     *
+     * @param len int
+     * @return long Wait time in nanoseconds, zero if the data can be transferred immediately
+     */
+    public synchronized final long reserve(int len) {
+
+        // Refill the bucket
+        long now = System.nanoTime();
+        long elapsed = now - m_lastRefill;
+
+        if (elapsed > 0) {
+
+            // Check if the bucket has been idle long enough to fill, so that a long idle time cannot overflow the
+            // refill calculation
+            if (elapsed >= ((m_burst - m_tokens) * RateWindow) / m_rate)
+                m_tokens = m_burst;
+            else
+                m_tokens = Math.min(m_burst, m_tokens + (elapsed * m_rate) / RateWindow);
+            m_lastRefill = now;
+        }
+
+        // Take the tokens, the bucket may go into debt
+        m_tokens -= len;
+
+        // Update the rate statistics
+        updateRate(now);
+
+        m_totalBytes += len;
+        m_windowBytes += len;
+
+        // Calculate the time until the debt is repaid
+        if (m_tokens >= 0)
+            return 0L;
+        return (-m_tokens * RateWindow) / m_rate;
+    }
+
+    /**
+     * Update the current rate, if the rate window has expired
+     *
+     * @param now long
+     */
+    private void updateRate(long now) {
+        long windowLen = now - m_windowStart;
+
+        if (windowLen >= RateWindow) {
+
+            // Calculate the rate for the last window, idle time lowers the rate
+            m_currentRate = (m_windowBytes * RateWindow) / windowLen;
+
+            m_windowStart = now;
+            m_windowBytes = 0L;
+        }
+    }
+
+    /**
+     * Return the token bucket details as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[");
+        str.append(getName());
+        str.append(" rate=");
+        str.append(getRate());
+        str.append(", burst=");
+        str.append(getBurstSize());
+        str.append(", current=");
+        str.append(getCurrentRate());
+        str.append(", total=");
+        str.append(getTotalBytes());
+        str.append("]");
+
+        return str.toString();
+    }
+}
@@ -72,6 +72,9 @@ public class RpcPacket {
     // Associated RPC packet
     private RpcPacket m_assocPacket;
 
+    // Allow the response to be sent after the request processing returns, via the packet handler
+    private boolean m_deferAllowed;
+
     /**
      * Default constructor
      */
@@ -157,6 +160,25 @@ public class RpcPacket {
         return m_pktHandler;
     }
 
+    /**
+     * Determine if the response may be deferred, and sent via the packet handler when an asynchronous operation
+     * completes
+     *
+     * @return boolean
+     */
+    public final boolean allowDeferredResponse() {
+        return m_deferAllowed && m_pktHandler != null;
+    }
+
+    /**
+     * Enable/disable deferred responses for this request
+     *
+     * @param defer boolean
+     */
+    public final void setAllowDeferredResponse(boolean defer) {
+        m_deferAllowed = defer;
+    }
+
     /**
      * Detemrine if the packet is allocated from a packet pool
      *
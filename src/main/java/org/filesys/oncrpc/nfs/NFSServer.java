@@ -412,12 +412,15 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
             }
 
             // Handoff to the RPC processor for the session
-            response = nfsSess.getRpcProcessor().processRpc(rpc, nfsSess);
-        }
+            try {
+                response = nfsSess.getRpcProcessor().processRpc(rpc, nfsSess);
+            }
+            finally {
 
-        // Commit/rollback a transaction that the filesystem driver may have stored in the session
-        if (nfsSess != null)
-            nfsSess.endTransaction();
+                // Commit/rollback a transaction that the filesystem driver may have stored in the session
+                nfsSess.endTransaction();
+            }
+        }
 
         //	Dump the response
         if (Debug.EnableInfo && hasDebug(NFSSrvSession.Dbg.DUMPDATA)) {
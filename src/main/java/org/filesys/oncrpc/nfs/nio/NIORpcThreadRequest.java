@@ -22,6 +22,7 @@ import org.filesys.oncrpc.Rpc;
 import org.filesys.oncrpc.RpcPacket;
 import org.filesys.oncrpc.RpcPacketHandler;
 import org.filesys.oncrpc.nfs.NFSSrvSession;
+import org.filesys.server.filesys.DeferredPacketException;
 import org.filesys.server.thread.ThreadRequest;
 
 import java.nio.channels.SelectionKey;
@@ -125,6 +126,10 @@ public class NIORpcThreadRequest implements ThreadRequest {
                         // Set the RPC client address/port
                         rpcPkt.setClientDetails( m_sess.getRemoteAddress(), m_sess.getRemotePort(), Rpc.ProtocolId.TCP);
 
+                        // Allow the response to be sent when an asynchronous read/write completes
+                        rpcPkt.setPacketHandler( pktHandler);
+                        rpcPkt.setAllowDeferredResponse( true);
+
                         // Process the RPC request
                         rpcResponse = m_sess.getNFSServer().processRpc(rpcPkt);
 
@@ -142,6 +147,12 @@ public class NIORpcThreadRequest implements ThreadRequest {
                         rpcResponse = null;
                     }
                 }
+                catch (DeferredPacketException ex) {
+
+                    // Response will be sent, and the request released, when the asynchronous I/O completes
+                    rpcPkt = null;
+                    rpcResponse = null;
+                }
                 catch (Throwable ex) {
 
                     // DEBUG
@@ -162,12 +162,12 @@ public class TcpRpcChannelPacketHandler extends RpcChannelPacketHandler {
     }
 
     /**
-     * Send an RPC response
+     * Send an RPC response, responses may be sent from asynchronous I/O completion threads
      *
      * @param rpc RpcPacket
      * @exception IOException Socket error
      */
-    public void sendRpcResponse(RpcPacket rpc)
+    public synchronized void sendRpcResponse(RpcPacket rpc)
             throws IOException {
 
         // Wrap the buffer and output to the socket channel
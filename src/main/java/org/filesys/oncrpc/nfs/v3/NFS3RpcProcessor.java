@@ -31,6 +31,7 @@ import org.filesys.util.HexDump;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.EnumSet;
+import java.util.concurrent.CompletionException;
 
 /**
  * NFS v3 RPC Processor Class
@@ -113,122 +114,126 @@ public class NFS3RpcProcessor implements RpcSessionProcessor {
         RpcPacket response = null;
         NFS3.ProcedureId procId = NFS3.ProcedureId.fromInt( rpc.getProcedureId());
 
-        switch ( procId) {
-
-            //	Null request
-            case Null:
-                response = procNull(nfsSess, rpc);
-                break;
-
-            // Get attributes request
-            case GetAttr:
-                response = procGetAttr(nfsSess, rpc);
-                break;
-
-            //	Set attributes request
-            case SetAttr:
-                response = procSetAttr(nfsSess, rpc);
-                break;
-
-            //	Lookup request
-            case Lookup:
-                response = procLookup(nfsSess, rpc);
-                break;
-
-            //	Access request
-            case Access:
-                response = procAccess(nfsSess, rpc);
-                break;
-
-            //	Read symbolic link request
-            case ReadLink:
-                response = procReadLink(nfsSess, rpc);
-                break;
-
-            //	Read file request
-            case Read:
-                response = procRead(nfsSess, rpc);
-                break;
-
-            //	Write file request
-            case Write:
-                response = procWrite(nfsSess, rpc);
-                break;
-
-            //	Create file request
-            case Create:
-                response = procCreate(nfsSess, rpc);
-                break;
-
-            //	Create directory request
-            case MkDir:
-                response = procMkDir(nfsSess, rpc);
-                break;
-
-            //	Create symbolic link request
-            case SymLink:
-                response = procSymLink(nfsSess, rpc);
-                break;
-
-            //	Create special device request
-            case MkNode:
-                response = procMkNode(nfsSess, rpc);
-                break;
-
-            //	Delete file request
-            case Remove:
-                response = procRemove(nfsSess, rpc);
-                break;
-
-            //	Delete directory request
-            case RmDir:
-                response = procRmDir(nfsSess, rpc);
-                break;
-
-            //	Rename request
-            case Rename:
-                response = procRename(nfsSess, rpc);
-                break;
-
-            //	Create hard link request
-            case Link:
-                response = procLink(nfsSess, rpc);
-                break;
-
-            //	Read directory request
-            case ReadDir:
-                response = procReadDir(nfsSess, rpc);
-                break;
-
-            //	Read directory plus request
-            case ReadDirPlus:
-                response = procReadDirPlus(nfsSess, rpc);
-                break;
-
-            //	Filesystem status request
-            case FsStat:
-                response = procFsStat(nfsSess, rpc);
-                break;
-
-            //	Filesystem information request
-            case FsInfo:
-                response = procFsInfo(nfsSess, rpc);
-                break;
-
-            //	Retrieve POSIX information request
-            case PathConf:
-                response = procPathConf(nfsSess, rpc);
-                break;
-
-            //	Commit request
-            case Commit:
-                response = procCommit(nfsSess, rpc);
-                break;
-        }
-
-        // Commit/rollback a transaction that the filesystem driver may have stored in the session
-        if (nfsSess != null)
-            nfsSess.endTransaction();
+        try {
+            switch ( procId) {
+
+                //	Null request
+                case Null:
+                    response = procNull(nfsSess, rpc);
+                    break;
+
+                // Get attributes request
+                case GetAttr:
+                    response = procGetAttr(nfsSess, rpc);
+                    break;
+
+                //	Set attributes request
+                case SetAttr:
+                    response = procSetAttr(nfsSess, rpc);
+                    break;
+
+                //	Lookup request
+                case Lookup:
+                    response = procLookup(nfsSess, rpc);
+                    break;
+
+                //	Access request
+                case Access:
+                    response = procAccess(nfsSess, rpc);
+                    break;
+
+                //	Read symbolic link request
+                case ReadLink:
+                    response = procReadLink(nfsSess, rpc);
+                    break;
+
+                //	Read file request
+                case Read:
+                    response = procRead(nfsSess, rpc);
+                    break;
+
+                //	Write file request
+                case Write:
+                    response = procWrite(nfsSess, rpc);
+                    break;
+
+                //	Create file request
+                case Create:
+                    response = procCreate(nfsSess, rpc);
+                    break;
+
+                //	Create directory request
+                case MkDir:
+                    response = procMkDir(nfsSess, rpc);
+                    break;
+
+                //	Create symbolic link request
+                case SymLink:
+                    response = procSymLink(nfsSess, rpc);
+                    break;
+
+                //	Create special device request
+                case MkNode:
+                    response = procMkNode(nfsSess, rpc);
+                    break;
+
+                //	Delete file request
+                case Remove:
+                    response = procRemove(nfsSess, rpc);
+                    break;
+
+                //	Delete directory request
+                case RmDir:
+                    response = procRmDir(nfsSess, rpc);
+                    break;
+
+                //	Rename request
+                case Rename:
+                    response = procRename(nfsSess, rpc);
+                    break;
+
+                //	Create hard link request
+                case Link:
+                    response = procLink(nfsSess, rpc);
+                    break;
+
+                //	Read directory request
+                case ReadDir:
+                    response = procReadDir(nfsSess, rpc);
+                    break;
+
+                //	Read directory plus request
+                case ReadDirPlus:
+                    response = procReadDirPlus(nfsSess, rpc);
+                    break;
+
+                //	Filesystem status request
+                case FsStat:
+                    response = procFsStat(nfsSess, rpc);
+                    break;
+
+                //	Filesystem information request
+                case FsInfo:
+                    response = procFsInfo(nfsSess, rpc);
+                    break;
+
+                //	Retrieve POSIX information request
+                case PathConf:
+                    response = procPathConf(nfsSess, rpc);
+                    break;
+
+                //	Commit request
+                case Commit:
+                    response = procCommit(nfsSess, rpc);
+                    break;
+            }
+        }
+        finally {
+
+            // Commit/rollback a transaction that the filesystem driver may have stored in the session
+            if (nfsSess != null)
+                nfsSess.endTransaction();
+        }
 
         //	Dump the response
         if (Debug.EnableInfo && nfsSess.hasDebug(NFSSrvSession.Dbg.DUMPDATA)) {
@@ -1020,8 +1025,10 @@ public class NFS3RpcProcessor implements RpcSessionProcessor {
      * @param nfsSess NFSSrvSession
      * @param rpc  RpcPacket
      * @return RpcPacket
+     * @exception DeferredPacketException Asynchronous read in progress, the response is sent when the read completes
      */
-    private final RpcPacket procRead(NFSSrvSession nfsSess, RpcPacket rpc) {
+    private final RpcPacket procRead(NFSSrvSession nfsSess, RpcPacket rpc)
+            throws DeferredPacketException {
 
         //	Unpack the read parameters
         byte[] handle = new byte[NFS3.FileHandleSize];
@@ -1075,6 +1082,19 @@ public class NFS3RpcProcessor implements RpcSessionProcessor {
             //	the read.
             int bufPos = respRpc.getPosition();
 
+            //	Check if the disk driver supports asynchronous I/O, the response is sent when the read completes
+            if ( rpc.allowDeferredResponse() && disk instanceof AsyncDiskInterface && ((AsyncDiskInterface) disk).supportsAsyncIO( conn)) {
+
+                //	Make sure the network file is open
+                synchronized (netFile) {
+                    if (netFile.isClosed())
+                        netFile.openFile(false);
+                }
+
+                procReadAsync(nfsSess, rpc, respRpc, (AsyncDiskInterface) disk, conn, netFile, finfo, shareId, bufPos, count, offset);
+                throw new DeferredPacketException( "Asynchronous read in progress");
+            }
+
             //	Read the network file
             int rdlen = -1;
 
@@ -1088,29 +1108,18 @@ public class NFS3RpcProcessor implements RpcSessionProcessor {
                 rdlen = disk.readFile(nfsSess, conn, netFile, respRpc.getBuffer(), bufPos + 12, count, offset);
             }
 
-            //	Set the read length
-            respRpc.packInt(rdlen);
-
-            // Set the end of file flag
-            if ( finfo.getSize() > (offset + count)) {
-
-                // Not at end of file
-                respRpc.packInt( Rpc.False);
-            }
-            else {
-
-                // Read is up to end of file
-                respRpc.packInt( Rpc.True);
-            }
-            respRpc.packInt(rdlen);
-
-            //	Set the response length
-            respRpc.setLength((bufPos + 12 + ((rdlen + 3) & 0xFFFFFFFC)) - respRpc.getOffset());
+            //	Pack the read length and end of file flag
+            packReadResponse(respRpc, finfo, bufPos, rdlen, count, offset);
 
             //	DEBUG
             if (Debug.EnableInfo && nfsSess.hasDebug(NFSSrvSession.Dbg.FILEIO))
                 nfsSess.debugPrintln("Read fid=" + netFile.getFileId() + ", name=" + netFile.getName() + ", rdlen=" + rdlen);
         }
+        catch (DeferredPacketException ex) {
+
+            //	Asynchronous read in progress, rethrow the exception
+            throw ex;
+        }
         catch (BadHandleException ex) {
             errorSts = NFS3.StatusCode.BadHandle;
         }
@@ -1146,14 +1155,147 @@ public class NFS3RpcProcessor implements RpcSessionProcessor {
         return respRpc;
     }
 
+    /**
+     * Pack the read length and end of file flag into a read response, and set the response length
+     *
+     * @param respRpc RpcPacket
+     * @param finfo   FileInfo
+     * @param bufPos  int
+     * @param rdlen   int
+     * @param count   int
+     * @param offset  long
+     */
+    private final void packReadResponse(RpcPacket respRpc, FileInfo finfo, int bufPos, int rdlen, int count, long offset) {
+
+        //	Set the read length
+        respRpc.packInt(rdlen);
+
+        // Set the end of file flag
+        if ( finfo.getSize() > (offset + count)) {
+
+            // Not at end of file
+            respRpc.packInt( Rpc.False);
+        }
+        else {
+
+            // Read is up to end of file
+            respRpc.packInt( Rpc.True);
+        }
+        respRpc.packInt(rdlen);
+
+        //	Set the response length
+        respRpc.setLength((bufPos + 12 + ((rdlen + 3) & 0xFFFFFFFC)) - respRpc.getOffset());
+    }
+
+    /**
+     * Start an asynchronous file read, the response is sent and the request released when the read completes
+     *
+     * @param nfsSess NFSSrvSession
+     * @param rpc     Request RPC
+     * @param respRpc Response RPC, with the post operation attributes packed
+     * @param disk    AsyncDiskInterface
+     * @param conn    TreeConnection
+     * @param netFile NetworkFile
+     * @param finfo   FileInfo
+     * @param shareId int
+     * @param bufPos  int
+     * @param count   int
+     * @param offset  long
+     */
+    private final void procReadAsync(final NFSSrvSession nfsSess, final RpcPacket rpc, final RpcPacket respRpc, AsyncDiskInterface disk,
+                                     TreeConnection conn, final NetworkFile netFile, final FileInfo finfo, final int shareId,
+                                     final int bufPos, final int count, final long offset) {
+
+        disk.readFileAsync(nfsSess, conn, netFile, respRpc.getBuffer(), bufPos + 12, count, offset).whenComplete(( rdlen, err) -> {
+
+            //	Check if the read failed
+            if ( err != null) {
+
+                //	DEBUG
+                if (Debug.EnableError && nfsSess.hasDebug(NFSSrvSession.Dbg.ERROR)) {
+                    nfsSess.debugPrintln("Read Exception: netFile=" + netFile + ", cache=" + nfsSess.getFileCache().numberOfEntries());
+                    Debug.println(err);
+                }
+
+                //	Pack the error response
+                respRpc.buildErrorResponse(mapAsyncIOError(err).intValue());
+                packPostOpAttr(nfsSess, null, shareId, respRpc);
+            }
+            else {
+
+                //	Pack the read length and end of file flag
+                packReadResponse(respRpc, finfo, bufPos, rdlen, count, offset);
+
+                //	DEBUG
+                if (Debug.EnableInfo && nfsSess.hasDebug(NFSSrvSession.Dbg.FILEIO))
+                    nfsSess.debugPrintln("Read fid=" + netFile.getFileId() + ", name=" + netFile.getName() + ", rdlen=" + rdlen + " (async)");
+            }
+
+            //	Send the response, and release the request
+            sendDeferredResponse(nfsSess, rpc, respRpc);
+        });
+    }
+
+    /**
+     * Map an asynchronous I/O error to an NFS status code
+     *
+     * @param err Throwable
+     * @return NFS3.StatusCode
+     */
+    private final NFS3.StatusCode mapAsyncIOError(Throwable err) {
+
+        //	Get the original exception
+        if ( err instanceof CompletionException && err.getCause() != null)
+            err = err.getCause();
+
+        if ( err instanceof AccessDeniedException)
+            return NFS3.StatusCode.Access;
+        else if ( err instanceof DiskFullException)
+            return NFS3.StatusCode.NoSpc;
+        return NFS3.StatusCode.ServerFault;
+    }
+
+    /**
+     * Send a deferred response via the packet handler that received the request, and release the request and
+     * any associated response packet back to the pool
+     *
+     * @param nfsSess NFSSrvSession
+     * @param rpc     Request RPC
+     * @param respRpc Response RPC
+     */
+    private final void sendDeferredResponse(NFSSrvSession nfsSess, RpcPacket rpc, RpcPacket respRpc) {
+
+        try {
+
+            //	Send the response
+            rpc.getPacketHandler().sendRpcResponse(respRpc);
+        }
+        catch (Exception ex) {
+
+            //	DEBUG
+            if (Debug.EnableError && nfsSess.hasDebug(NFSSrvSession.Dbg.ERROR))
+                nfsSess.debugPrintln("Error sending deferred response, ex=" + ex);
+        }
+        finally {
+
+            //	Release the request packet, and the response packet if allocated seperately
+            nfsSess.getNFSServer().getPacketPool().releasePacket(rpc);
+
+            if ( rpc.hasAssociatedPacket() && rpc.getAssociatedPacket().isAllocatedFromPool())
+                nfsSess.getNFSServer().getPacketPool().releasePacket(rpc.getAssociatedPacket());
+        }
+    }
+
     /**
      * Process the write file request
      *
      * @param nfsSess NFSSrvSession
      * @param rpc  RpcPacket
      * @return RpcPacket
+     * @exception DeferredPacketException Asynchronous write in progress, the response is sent when the write completes
      */
-    private final RpcPacket procWrite(NFSSrvSession nfsSess, RpcPacket rpc) {
+    private final RpcPacket procWrite(NFSSrvSession nfsSess, RpcPacket rpc)
+            throws DeferredPacketException {
 
         //	Unpack the read parameters
         byte[] handle = new byte[NFS3.FileHandleSize];
@@ -1198,6 +1340,23 @@ public class NFS3RpcProcessor implements RpcSessionProcessor {
             //	Check if threaded writes should be used
             FileInfo preInfo = null;
 
+            //	Check if the disk driver supports asynchronous I/O, the response is sent when the write completes
+            if ( rpc.allowDeferredResponse() && disk instanceof AsyncDiskInterface && ((AsyncDiskInterface) disk).supportsAsyncIO( conn)) {
+
+                synchronized (netFile) {
+
+                    //	Make sure the network file is open
+                    if (netFile.isClosed())
+                        netFile.openFile(false);
+
+                    //	Get the pre-operation file details
+                    preInfo = disk.getFileInformation(nfsSess, conn, path);
+                }
+
+                procWriteAsync(nfsSess, rpc, (AsyncDiskInterface) disk, conn, netFile, path, preInfo, shareId, count, offset, stable);
+                throw new DeferredPacketException( "Asynchronous write in progress");
+            }
+
             synchronized (netFile) {
 
                 //	Make sure the network file is open
@@ -1211,27 +1370,18 @@ public class NFS3RpcProcessor implements RpcSessionProcessor {
                 disk.writeFile(nfsSess, conn, netFile, rpc.getBuffer(), rpc.getPosition(), count, offset);
             }
 
-            //	Get file information for the path and pack the response
-            FileInfo finfo = disk.getFileInformation(nfsSess, conn, path);
-
-            // Set the current file size from the open file
-            finfo.setFileSize(netFile.getFileSize());
-
-            // Pack the response
-            rpc.buildResponseHeader();
-            rpc.packInt(NFS3.StatusCode.Success.intValue());
-
-            packPreOpAttr(nfsSess, preInfo, rpc);
-            packPostOpAttr(nfsSess, finfo, shareId, rpc);
-
-            rpc.packInt(count);
-            rpc.packInt(stable);
-            rpc.packLong( nfsSess.getNFSServer().getWriteVerifier());
+            //	Pack the write response
+            packWriteResponse(nfsSess, rpc, disk, conn, netFile, path, preInfo, shareId, count, stable);
 
             //	DEBUG
             if (Debug.EnableInfo && nfsSess.hasDebug(NFSSrvSession.Dbg.FILEIO))
                 nfsSess.debugPrintln("Write fid=" + netFile.getFileId() + ", name=" + netFile.getName() + ", wrlen=" + count);
         }
+        catch (DeferredPacketException ex) {
+
+            //	Asynchronous write in progress, rethrow the exception
+            throw ex;
+        }
         catch (BadHandleException ex) {
             errorSts = NFS3.StatusCode.BadHandle;
         }
@@ -1272,6 +1422,101 @@ public class NFS3RpcProcessor implements RpcSessionProcessor {
         return rpc;
     }
 
+    /**
+     * Pack a successful write response
+     *
+     * @param nfsSess NFSSrvSession
+     * @param rpc     RpcPacket
+     * @param disk    DiskInterface
+     * @param conn    TreeConnection
+     * @param netFile NetworkFile
+     * @param path    String
+     * @param preInfo FileInfo
+     * @param shareId int
+     * @param count   int
+     * @param stable  int
+     * @exception IOException I/O error
+     */
+    private final void packWriteResponse(NFSSrvSession nfsSess, RpcPacket rpc, DiskInterface disk, TreeConnection conn, NetworkFile netFile,
+                                         String path, FileInfo preInfo, int shareId, int count, int stable)
+            throws IOException {
+
+        //	Get file information for the path and pack the response
+        FileInfo finfo = disk.getFileInformation(nfsSess, conn, path);
+
+        // Set the current file size from the open file
+        finfo.setFileSize(netFile.getFileSize());
+
+        // Pack the response
+        rpc.buildResponseHeader();
+        rpc.packInt(NFS3.StatusCode.Success.intValue());
+
+        packPreOpAttr(nfsSess, preInfo, rpc);
+        packPostOpAttr(nfsSess, finfo, shareId, rpc);
+
+        rpc.packInt(count);
+        rpc.packInt(stable);
+        rpc.packLong( nfsSess.getNFSServer().getWriteVerifier());
+    }
+
+    /**
+     * Start an asynchronous file write, the response is sent and the request released when the write completes
+     *
+     * @param nfsSess NFSSrvSession
+     * @param rpc     Request RPC
+     * @param disk    AsyncDiskInterface
+     * @param conn    TreeConnection
+     * @param netFile NetworkFile
+     * @param path    String
+     * @param preInfo FileInfo
+     * @param shareId int
+     * @param count   int
+     * @param offset  long
+     * @param stable  int
+     */
+    private final void procWriteAsync(final NFSSrvSession nfsSess, final RpcPacket rpc, final AsyncDiskInterface disk,
+                                      final TreeConnection conn, final NetworkFile netFile, final String path, final FileInfo preInfo,
+                                      final int shareId, final int count, long offset, final int stable) {
+
+        disk.writeFileAsync(nfsSess, conn, netFile, rpc.getBuffer(), rpc.getPosition(), count, offset).whenComplete(( wrlen, err) -> {
+
+            //	Pack the write response
+            NFS3.StatusCode errorSts = NFS3.StatusCode.Success;
+
+            if ( err == null) {
+                try {
+                    packWriteResponse(nfsSess, rpc, (DiskInterface) disk, conn, netFile, path, preInfo, shareId, count, stable);
+
+                    //	DEBUG
+                    if (Debug.EnableInfo && nfsSess.hasDebug(NFSSrvSession.Dbg.FILEIO))
+                        nfsSess.debugPrintln("Write fid=" + netFile.getFileId() + ", name=" + netFile.getName() + ", wrlen=" + count + " (async)");
+                }
+                catch (Exception ex) {
+                    err = ex;
+                }
+            }
+
+            //	Check if the write failed
+            if ( err != null) {
+
+                //	DEBUG
+                if (Debug.EnableError && nfsSess.hasDebug(NFSSrvSession.Dbg.ERROR)) {
+                    nfsSess.debugPrintln("Write Exception: netFile=" + netFile + ", cache=" + nfsSess.getFileCache().numberOfEntries());
+                    Debug.println(err);
+                }
+
+                //	Pack the error response
+                rpc.buildErrorResponse(mapAsyncIOError(err).intValue());
+                packWccData(rpc, null); // before attributes
+                packWccData(rpc, null); // after attributes
+            }
+
+            //	Send the response, and release the request
+            rpc.setLength();
+            sendDeferredResponse(nfsSess, rpc, rpc);
+        });
+    }
+
     /**
      * Process the create file request
      *
@@ -23,6 +23,8 @@ import java.net.InetAddress;
 import java.util.EnumSet;
 
 import org.filesys.debug.Debug;
+import org.filesys.debug.DebugInterface;
+import org.filesys.debug.DebugMessage;
 import org.filesys.server.auth.AuthContext;
 import org.filesys.server.auth.ClientInfo;
 import org.filesys.server.core.SharedDevice;
@@ -129,8 +131,26 @@ public abstract class SrvSession <T extends Enum<T>> {
      * @param str String
      */
     public final void debugPrintln(String str) {
-        Debug.print(m_dbgPrefix);
-        Debug.println(str);
+
+        // Output the prefix and message as a single record, so the output is not split by other threads
+        DebugInterface dbg = Debug.getDebugInterface();
+
+        if (dbg.isEnabled(Debug.Debug))
+            dbg.debugPrintln(new DebugMessage(m_dbgPrefix, str, null), Debug.Debug);
+    }
+
+    /**
+     * Output a message built from a template, and a newline, to the debug device. Each '{}' in the template is
+     * replaced by the next argument, the message is only built when it is output.
+     *
+     * @param template String
+     * @param args     Object...
+     */
+    public final void debugPrintln(String template, Object... args) {
+        DebugInterface dbg = Debug.getDebugInterface();
+
+        if (dbg.isEnabled(Debug.Debug))
+            dbg.debugPrintln(new DebugMessage(m_dbgPrefix, template, args), Debug.Debug);
     }
 
     /**
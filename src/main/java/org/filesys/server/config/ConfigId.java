@@ -109,6 +109,20 @@ public class ConfigId {
 	public static final int FTPKeyProvider		= GroupFTP + 20;
 	public static final int FTPTrustProvider	= GroupFTP + 21;
     public static final int FTPSrvSessionTimeout= GroupFTP + 22;
+    public static final int FTPNIOEngine        = GroupFTP + 23;
+    public static final int FTPPipelineBuffers  = GroupFTP + 24;
+    public static final int FTPModeZ            = GroupFTP + 25;
+    public static final int FTPModeZLevel       = GroupFTP + 26;
+    public static final int FTPModeZTransfers   = GroupFTP + 27;
+    public static final int FTPBandwidthLimit   = GroupFTP + 28;
+    public static final int FTPUserBandwidthLimit = GroupFTP + 29;
+    public static final int FTPShareBandwidthLimit= GroupFTP + 30;
+    public static final int FTPListingCacheSize = GroupFTP + 31;
+    public static final int FTPListingCacheTimeout= GroupFTP + 32;
+    public static final int FTPPassivePortPool  = GroupFTP + 33;
+    public static final int FTPPassiveQuarantine= GroupFTP + 34;
+    public static final int FTPNIOThreads       = GroupFTP + 35;
+    public static final int FTPNIOTransferThreads = GroupFTP + 36;
 
 	// NFS server variables
 	public static final int NFSPortMapEnable 	= GroupNFS + 1;
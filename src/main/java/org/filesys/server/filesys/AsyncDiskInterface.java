@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.server.filesys;
+
+import org.filesys.server.SrvSession;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous Disk Interface
+ *
+ * <p>Optional interface that a DiskInterface driver can implement to provide non-blocking file I/O. The protocol
+ * handlers check for this interface and, if the driver supports asynchronous I/O for the tree connection, start the
+ * I/O and complete the response when the returned future completes, so the worker thread is not blocked whilst the
+ * I/O is in progress.
+ *
+ * <p>The returned futures complete exceptionally with the same IOException sub-classes that the equivalent blocking
+ * DiskInterface methods throw.
+ *
+ * @author gkspencer
+ */
+public interface AsyncDiskInterface {
+
+    /**
+     * Check if asynchronous I/O is available for the specified tree connection
+     *
+     * @param tree Tree connection
+     * @return boolean
+     */
+    public boolean supportsAsyncIO(TreeConnection tree);
+
+    /**
+     * Open a file on the file system.
+     *
+     * @param sess   Server session
+     * @param tree   Tree connection
+     * @param params File open parameters
+     * @return CompletableFuture&lt;NetworkFile&gt;
+     */
+    public CompletableFuture<NetworkFile> openFileAsync(SrvSession<?> sess, TreeConnection tree, FileOpenParams params);
+
+    /**
+     * Read a block of data from the specified file. The buffer must not be used until the read completes.
+     *
+     * @param sess    Session details
+     * @param tree    Tree connection
+     * @param file    Network file
+     * @param buf     Buffer to return data to
+     * @param bufPos  Starting position in the return buffer
+     * @param siz     Maximum size of data to return
+     * @param filePos File offset to read data
+     * @return CompletableFuture&lt;Integer&gt; Number of bytes read
+     */
+    public CompletableFuture<Integer> readFileAsync(SrvSession<?> sess, TreeConnection tree, NetworkFile file, byte[] buf, int bufPos,
+                                                    int siz, long filePos);
+
+    /**
+     * Write a block of data to the file. The buffer must not be changed until the write completes.
+     *
+     * @param sess    Server session
+     * @param tree    Tree connection
+     * @param file    Network file details
+     * @param buf     Data to be written
+     * @param bufoff  Offset within the buffer that the data starts
+     * @param siz     Data length
+     * @param fileoff Position within the file that the data is to be written.
+     * @return CompletableFuture&lt;Integer&gt; Number of bytes actually written
+     */
+    public CompletableFuture<Integer> writeFileAsync(SrvSession<?> sess, TreeConnection tree, NetworkFile file, byte[] buf, int bufoff,
+                                                     int siz, long fileoff);
+
+    /**
+     * Flush any buffered output for the specified file.
+     *
+     * @param sess Server session
+     * @param tree Tree connection
+     * @param file Network file context.
+     * @return CompletableFuture&lt;Void&gt;
+     */
+    public CompletableFuture<Void> flushFileAsync(SrvSession<?> sess, TreeConnection tree, NetworkFile file);
+}
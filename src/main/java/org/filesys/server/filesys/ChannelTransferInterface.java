@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.server.filesys;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.filesys.server.SrvSession;
+
+/**
+ * Channel Transfer Interface
+ *
+ * <p>Optional interface that a DiskInterface driver can implement to transfer file data directly between a file and
+ * a network channel, without the data being copied into a buffer by the protocol handler. Used by the FTP server
+ * for file transfers on plain data connections.
+ *
+ * <p>The channels may be in non-blocking mode, a transfer may transfer less than the requested length.
+ *
+ * @author gkspencer
+ */
+public interface ChannelTransferInterface {
+
+    /**
+     * Check if channel transfers are available for the specified file
+     *
+     * @param tree Tree connection
+     * @param file Network file
+     * @return boolean
+     */
+    public boolean supportsChannelTransfer(TreeConnection tree, NetworkFile file);
+
+    /**
+     * Transfer data from a file to a channel
+     *
+     * @param sess    Server session
+     * @param tree    Tree connection
+     * @param file    Network file
+     * @param filePos File offset to transfer data from
+     * @param len     Maximum length of data to transfer
+     * @param target  Channel to write the data to
+     * @return long Number of bytes transferred, or -1 if the file offset is at or beyond the end of file
+     * @exception IOException I/O error
+     */
+    public long transferToChannel(SrvSession<?> sess, TreeConnection tree, NetworkFile file, long filePos, long len,
+                                  WritableByteChannel target)
+        throws IOException;
+
+    /**
+     * Transfer data from a channel to a file
+     *
+     * @param sess    Server session
+     * @param tree    Tree connection
+     * @param file    Network file
+     * @param src     Channel to read the data from
+     * @param filePos File offset to write the data to
+     * @param len     Maximum length of data to transfer
+     * @return long Number of bytes transferred, zero if no data was available
+     * @exception IOException I/O error
+     */
+    public long transferFromChannel(SrvSession<?> sess, TreeConnection tree, NetworkFile file, ReadableByteChannel src,
+                                    long filePos, long len)
+        throws IOException;
+}
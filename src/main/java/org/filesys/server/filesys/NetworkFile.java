@@ -857,14 +857,20 @@ public abstract class NetworkFile {
      *
      * @param lock FileLock
      */
-    public final synchronized void addLock(FileLock lock) {
+    public final void addLock(FileLock lock) {
 
-        // Check if the lock list has been allocated
-        if (m_lockList == null)
-            m_lockList = new FileLockList();
+        // Inform the file implementation that the byte range locks are changing
+        byteRangeLocksChanged();
+
+        synchronized ( this) {
+
+            // Check if the lock list has been allocated
+            if (m_lockList == null)
+                m_lockList = new FileLockList();
 
-        // Add the lock
-        m_lockList.addLock(lock);
+            // Add the lock
+            m_lockList.addLock(lock);
+        }
     }
 
     /**
@@ -872,24 +878,47 @@ public abstract class NetworkFile {
      *
      * @param lock FileLock
      */
-    public final synchronized void removeLock(FileLock lock) {
+    public final void removeLock(FileLock lock) {
 
         // Check if the lock list is allocated
         if (m_lockList == null)
             return;
 
-        // Remove the lock
-        m_lockList.removeLock(lock);
+        // Inform the file implementation that the byte range locks are changing
+        byteRangeLocksChanged();
+
+        synchronized ( this) {
+
+            // Remove the lock
+            if (m_lockList != null)
+                m_lockList.removeLock(lock);
+        }
     }
 
     /**
      * Remove all locks from the lock list
      */
-    public final synchronized void removeAllLocks() {
+    public final void removeAllLocks() {
 
         // Check if the lock list is valid
-        if (m_lockList != null)
-            m_lockList.removeAllLocks();
+        if (m_lockList == null)
+            return;
+
+        // Inform the file implementation that the byte range locks are changing
+        byteRangeLocksChanged();
+
+        synchronized ( this) {
+            if (m_lockList != null)
+                m_lockList.removeAllLocks();
+        }
+    }
+
+    /**
+     * Byte range locks on the file are about to change, the lock list may be updated by another thread. Called
+     * without the network file lock held. File implementations that buffer data can override this to write the
+     * buffered data so that it is visible to other clients.
+     */
+    protected void byteRangeLocksChanged() {
     }
 
     /**
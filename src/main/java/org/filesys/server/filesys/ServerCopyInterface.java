@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.server.filesys;
+
+import java.io.IOException;
+
+import org.filesys.server.SrvSession;
+
+/**
+ * Server Copy Interface
+ *
+ * <p>Optional interface that a DiskInterface driver can implement to copy data between two open files without the
+ * data being sent to the client, used by the server side copy I/O controls. If the driver does not implement this
+ * interface the server copies the data using the DiskInterface read and write methods.
+ *
+ * @author gkspencer
+ */
+public interface ServerCopyInterface {
+
+    /**
+     * Copy a range of data from one open file to another, both files must be open on this driver
+     *
+     * @param sess     Server session
+     * @param tree     Tree connection
+     * @param srcFile  Source file
+     * @param srcOff   Source file offset
+     * @param destFile Destination file
+     * @param destOff  Destination file offset
+     * @param len      Length of data to copy
+     * @return long Number of bytes copied, which is less than the requested length if the end of the source file is
+     * reached, or -1 if the driver cannot copy the data for these files
+     * @exception IOException I/O error
+     */
+    public long copyFileData(SrvSession<?> sess, TreeConnection tree, NetworkFile srcFile, long srcOff, NetworkFile destFile,
+                             long destOff, long len)
+            throws IOException;
+}
@@ -22,11 +22,14 @@ package org.filesys.server.filesys.cache.cluster;
 import org.filesys.debug.Debug;
 import org.filesys.server.filesys.DiskDeviceContext;
 import org.filesys.server.filesys.DiskSharedDevice;
+import org.filesys.server.filesys.cache.FileState;
 import org.filesys.server.filesys.cache.FileStateCache;
 import org.filesys.server.filesys.cache.StateCacheException;
 import org.filesys.server.locking.OpLockManager;
 
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Cluster File State Cache Class
@@ -41,6 +44,9 @@ public abstract class ClusterFileStateCache extends FileStateCache {
     // List of nodes to be purged from the state cache on the next expiry pass
     private ClusterNodeList m_purgeList;
 
+    // Listeners for file state changes made by remote nodes
+    private List<ClusterStateChangeListener> m_changeListeners = new CopyOnWriteArrayList<ClusterStateChangeListener>();
+
     /**
      * Class constructor
      */
@@ -194,6 +200,47 @@ public abstract class ClusterFileStateCache extends FileStateCache {
         }
     }
 
+    /**
+     * Add a remote state change listener
+     *
+     * @param l ClusterStateChangeListener
+     */
+    public final void addStateChangeListener(ClusterStateChangeListener l) {
+        m_changeListeners.add(l);
+    }
+
+    /**
+     * Remove a remote state change listener
+     *
+     * @param l ClusterStateChangeListener
+     */
+    public final void removeStateChangeListener(ClusterStateChangeListener l) {
+        m_changeListeners.remove(l);
+    }
+
+    /**
+     * Inform the state change listeners that a file state has been updated by a remote node
+     *
+     * @param path   String
+     * @param reason FileState.ChangeReason
+     */
+    protected final void notifyRemoteStateChanged(String path, FileState.ChangeReason reason) {
+        for (ClusterStateChangeListener l : m_changeListeners)
+            l.remoteStateChanged(path, reason);
+    }
+
+    /**
+     * Inform the state change listeners that a file or folder has been renamed by a remote node
+     *
+     * @param oldPath  String
+     * @param newPath  String
+     * @param isFolder boolean
+     */
+    protected final void notifyRemoteStateRenamed(String oldPath, String newPath, boolean isFolder) {
+        for (ClusterStateChangeListener l : m_changeListeners)
+            l.remoteStateRenamed(oldPath, newPath, isFolder);
+    }
+
     /**
      * Add a node to the state cache purge list, as it has left the cluster
      *
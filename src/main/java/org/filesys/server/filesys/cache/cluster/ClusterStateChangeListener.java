@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.filesys.server.filesys.cache.cluster;
+
+import org.filesys.server.filesys.cache.FileState;
+
+/**
+ * Cluster State Change Listener Interface
+ *
+ * <p>Receives notifications of file state changes made by other nodes in the cluster, allows local caches that
+ * are keyed independently of the file state cache to invalidate their entries.
+ *
+ * @author gkspencer
+ */
+public interface ClusterStateChangeListener {
+
+    /**
+     * A file state has been updated by a remote node
+     *
+     * @param path   String
+     * @param reason FileState.ChangeReason
+     */
+    public void remoteStateChanged(String path, FileState.ChangeReason reason);
+
+    /**
+     * A file or folder has been renamed by a remote node
+     *
+     * @param oldPath  String
+     * @param newPath  String
+     * @param isFolder boolean
+     */
+    public void remoteStateRenamed(String oldPath, String newPath, boolean isFolder);
+}
@@ -2666,6 +2666,9 @@ public abstract class HazelCastClusterFileStateCache extends ClusterFileStateCac
                 }
             }
 
+            // Inform local listeners of the remote update
+            notifyRemoteStateChanged(msg.getPath(), reason);
+
             // Check if there is cached data in the per-node cache
             PerNodeState perNode = m_perNodeCache.get(msg.getPath());
 
@@ -2730,6 +2733,9 @@ public abstract class HazelCastClusterFileStateCache extends ClusterFileStateCac
         // Check if the message is from another node
         if ( !msg.isFromLocalNode(m_localNode)) {
 
+            // Inform local listeners of the remote rename
+            notifyRemoteStateRenamed(msg.getOldPath(), msg.getNewPath(), msg.isFolderPath());
+
             // Update the per node data to the new path
             PerNodeState perNode = m_perNodeCache.remove(msg.getOldPath());
             if (perNode != null)
@@ -87,6 +87,18 @@ public class BackgroundLoadSave {
     public static final long MinimumTransactionTimeout = 2000L; // "
     public static final long MaximumTransactionTimeout = 60000L; // "
 
+    // Batched queue write linger time and batch size default, minimum and maximum values
+    public static final long DefaultBatchLinger = 5L;       // milliseconds
+    public static final long MinimumBatchLinger = 0L;       // "
+    public static final long MaximumBatchLinger = 1000L;    // "
+
+    public static final int DefaultBatchSize = 500;
+    public static final int MinimumBatchSize = 1;
+    public static final int MaximumBatchSize = 10000;
+
+    // Time to wait for the batch writer to flush pending requests during shutdown
+    private static final long BatchShutdownWait = 5000L; // milliseconds
+
     // Name, used to prefix worker thread names
     private String m_name;
 
@@ -103,6 +115,9 @@ public class BackgroundLoadSave {
 
     private TransactionQueueLoader m_tranLoader;
 
+    // Batched queue writer, only used if the database queue interface supports batched writes
+    private volatile QueueBatchWriter m_batchWriter;
+
     // Maximum in-memory file request size and low water mark
     private int m_maxQueueSize;
     private int m_lowQueueSize;
@@ -243,17 +258,8 @@ public class BackgroundLoadSave {
                     // Check if the request was processed successfully
                     if (reqSts == Status.Success || reqSts == Status.Error) {
 
-                        try {
-
-                            // Delete the file request from the queue
-                            getDBQueueInterface().deleteFileRequest(fileReq);
-                        }
-                        catch (DBException ex) {
-
-                            // DEBUG
-                            if (Debug.EnableError && hasDebug())
-                                Debug.println("BackgroundLoadSave Error: " + ex.toString());
-                        }
+                        // Delete the file request from the queue, or add to the next batch of deletes
+                        deleteQueuedRequest(fileReq);
 
                         // Reset the associated file state(s) to expire in a short while
                         if (fileReq instanceof MultipleFileRequest) {
@@ -302,8 +308,13 @@ public class BackgroundLoadSave {
                             }
                         }
 
-                        // Add the request to the end of the in-memory queue
-                        mi_queue.addRequest(fileReq);
+                        // Add the request to the end of the in-memory queue, a requeued save is processed after new
+                        // requests. If the save has been merged with a newer save for the file then delete the request.
+                        if (fileReq.isType() == FileRequest.RequestType.Save)
+                            fileReq.setPriority(FileRequest.Priority.Low);
+
+                        if (mi_queue.addRequest(fileReq) != null)
+                            deleteQueuedRequest(fileReq);
                     }
                 }
             }
@@ -465,8 +476,11 @@ public class BackgroundLoadSave {
                     // Calculate the number of records to load
                     int recCnt = getMaximumQueueSize() - mi_queue.numberOfRequests();
 
-                    // Load a block of file request records
-                    loadCnt = getDBQueueInterface().loadFileRequests(mi_lastSeqNo, mi_loadType, tempQueue, recCnt);
+                    // Load a block of file request records, claim the records if the queue supports batched operations
+                    if (getDBQueueInterface() instanceof DBQueueBatchInterface)
+                        loadCnt = ((DBQueueBatchInterface) getDBQueueInterface()).claimFileRequests(mi_lastSeqNo, mi_loadType, tempQueue, recCnt);
+                    else
+                        loadCnt = getDBQueueInterface().loadFileRequests(mi_lastSeqNo, mi_loadType, tempQueue, recCnt);
 
                     // Check if any records were loaded
                     if (loadCnt > 0) {
@@ -494,8 +508,15 @@ public class BackgroundLoadSave {
                                 Debug.println(ex);
                             }
 
-                            // Add the file request to the main in-memory queue
-                            mi_queue.addRequest(fileReq);
+                            // Add the file request to the main in-memory queue, if the request has been merged with
+                            // a queued save request for the same file then delete the request
+                            if (mi_queue.addRequest(fileReq) != null) {
+                                deleteQueuedRequest(fileReq);
+
+                                // DEBUG
+                                if (Debug.EnableInfo && hasDebug())
+                                    Debug.println("BackgroundLoadSave Merged save request=" + fileReq);
+                            }
                         }
 
                         // If we loaded less records than expected clear the new record flag
@@ -723,6 +744,299 @@ public class BackgroundLoadSave {
         }
     }
 
+    /**
+     * Queue Batch Writer Thread Inner Class
+     *
+     * <p>Collects file request queue inserts and deletes and writes them to the queue database in batches. The
+     * writer waits for the linger time after the first request arrives, or until the batch is full, so that a burst
+     * of requests is written with a single batched statement and commit.
+     */
+    protected class QueueBatchWriter implements Runnable {
+
+        // Batch writer thread
+        private Thread mi_thread;
+
+        // Shutdown flag
+        private volatile boolean mi_shutdown = false;
+
+        // Batch interface, linger time and maximum batch size
+        private DBQueueBatchInterface mi_batchInterface;
+        private long mi_linger;
+        private int mi_maxBatch;
+
+        // Pending queue and delete requests
+        private List<FileRequest> mi_queueList = new ArrayList<FileRequest>();
+        private List<FileRequest> mi_deleteList = new ArrayList<FileRequest>();
+
+        // Batch statistics
+        private long mi_batchCnt;
+        private long mi_queuedCnt;
+        private long mi_deletedCnt;
+
+        /**
+         * Class constructor
+         *
+         * @param name       String
+         * @param batchIface DBQueueBatchInterface
+         * @param linger     long
+         * @param maxBatch   int
+         */
+        public QueueBatchWriter(String name, DBQueueBatchInterface batchIface, long linger, int maxBatch) {
+            mi_batchInterface = batchIface;
+            mi_linger = linger;
+            mi_maxBatch = maxBatch;
+
+            mi_thread = new Thread(this);
+            mi_thread.setName(name);
+            mi_thread.setDaemon(true);
+            mi_thread.start();
+        }
+
+        /**
+         * Request the batch writer thread to shutdown, pending requests are flushed before the thread exits
+         */
+        public final void shutdownRequest() {
+            mi_shutdown = true;
+
+            synchronized (this) {
+                notify();
+            }
+
+            // Wait for the pending requests to be written
+            try {
+                mi_thread.join(BatchShutdownWait);
+            }
+            catch (InterruptedException ex) {
+            }
+        }
+
+        /**
+         * Add a file request to the next batch of queue inserts
+         *
+         * @param fileReq FileRequest
+         */
+        public final synchronized void addQueueRequest(FileRequest fileReq) {
+            mi_queueList.add(fileReq);
+            checkWakeup();
+        }
+
+        /**
+         * Add a file request to the next batch of queue deletes
+         *
+         * @param fileReq FileRequest
+         */
+        public final synchronized void addDeleteRequest(FileRequest fileReq) {
+            mi_deleteList.add(fileReq);
+            checkWakeup();
+        }
+
+        /**
+         * Return the number of pending requests
+         *
+         * @return int
+         */
+        public final synchronized int numberOfPendingRequests() {
+            return mi_queueList.size() + mi_deleteList.size();
+        }
+
+        /**
+         * Return the number of batches written
+         *
+         * @return long
+         */
+        public final long getBatchCount() {
+            return mi_batchCnt;
+        }
+
+        /**
+         * Return the number of requests queued via batches
+         *
+         * @return long
+         */
+        public final long getQueuedCount() {
+            return mi_queuedCnt;
+        }
+
+        /**
+         * Return the number of requests deleted via batches
+         *
+         * @return long
+         */
+        public final long getDeletedCount() {
+            return mi_deletedCnt;
+        }
+
+        /**
+         * Wakeup the writer thread if this is the first pending request or the batch is full, the caller
+         * must hold the writer lock
+         */
+        private void checkWakeup() {
+            int pending = mi_queueList.size() + mi_deleteList.size();
+            if (pending == 1 || pending >= mi_maxBatch)
+                notify();
+        }
+
+        /**
+         * Run the thread
+         */
+        public void run() {
+
+            // Loop until shutdown, then flush any remaining requests
+            boolean flushed = false;
+
+            while (flushed == false) {
+
+                List<FileRequest> queueList = null;
+                List<FileRequest> deleteList = null;
+
+                synchronized (this) {
+
+                    try {
+
+                        // Wait for a request to be added
+                        while (mi_shutdown == false && mi_queueList.isEmpty() && mi_deleteList.isEmpty())
+                            wait();
+
+                        // Linger for a short while so that more requests can be added to the batch
+                        long endTime = System.currentTimeMillis() + mi_linger;
+                        long waitTime = mi_linger;
+
+                        while (mi_shutdown == false && waitTime > 0 && (mi_queueList.size() + mi_deleteList.size()) < mi_maxBatch) {
+                            wait(waitTime);
+                            waitTime = endTime - System.currentTimeMillis();
+                        }
+                    }
+                    catch (InterruptedException ex) {
+                    }
+
+                    // Take the current batch
+                    if (mi_queueList.isEmpty() == false) {
+                        queueList = mi_queueList;
+                        mi_queueList = new ArrayList<FileRequest>();
+                    }
+
+                    if (mi_deleteList.isEmpty() == false) {
+                        deleteList = mi_deleteList;
+                        mi_deleteList = new ArrayList<FileRequest>();
+                    }
+
+                    // Exit after the final flush when shutting down
+                    if (mi_shutdown == true)
+                        flushed = true;
+                }
+
+                // Write the queue inserts, then the deletes
+                if (queueList != null)
+                    writeQueueBatch(queueList);
+
+                if (deleteList != null)
+                    writeDeleteBatch(deleteList);
+
+                if (queueList != null || deleteList != null)
+                    mi_batchCnt++;
+            }
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug())
+                Debug.println("BackgroundLoadSave Batch writer shutdown, batches=" + mi_batchCnt + ", queued=" + mi_queuedCnt + ", deleted=" + mi_deletedCnt);
+        }
+
+        /**
+         * Write a batch of file request queue inserts, then notify the queue loaders
+         *
+         * @param queueList List of FileRequest
+         */
+        private void writeQueueBatch(List<FileRequest> queueList) {
+
+            try {
+
+                // Write the batch of file requests
+                mi_batchInterface.queueFileRequests(queueList);
+                mi_queuedCnt += queueList.size();
+
+                // DEBUG
+                if (Debug.EnableInfo && hasDebug())
+                    Debug.println("BackgroundLoadSave Batch queued " + queueList.size() + " requests");
+
+                // Notify the queue loaders, only the highest sequence number for each queue is required
+                int maxReadSeq = 0;
+                int maxWriteSeq = 0;
+
+                for (FileRequest fileReq : queueList) {
+                    SingleFileRequest singleReq = (SingleFileRequest) fileReq;
+
+                    if (singleReq.isTransaction() == false) {
+                        if (singleReq.isType() == FileRequest.RequestType.Load)
+                            maxReadSeq = Math.max(maxReadSeq, singleReq.getSequenceNumber());
+                        else
+                            maxWriteSeq = Math.max(maxWriteSeq, singleReq.getSequenceNumber());
+                    }
+                    else
+                        fileRequestQueued(singleReq);
+                }
+
+                if (maxReadSeq > 0 && m_readLoader != null)
+                    m_readLoader.notifyNewRecord(maxReadSeq);
+                if (maxWriteSeq > 0 && m_writeLoader != null)
+                    m_writeLoader.notifyNewRecord(maxWriteSeq);
+            }
+            catch (DBException ex) {
+
+                // DEBUG
+                if (Debug.EnableError && hasDebug())
+                    Debug.println("BackgroundLoadSave Batch queue failed, count=" + queueList.size() + ", " + ex.toString());
+
+                // The batch was rolled back, queue the requests individually
+                for (FileRequest fileReq : queueList) {
+                    try {
+                        getDBQueueInterface().queueFileRequest(fileReq);
+                        fileRequestQueued((SingleFileRequest) fileReq);
+                    }
+                    catch (DBException ex2) {
+
+                        // DEBUG
+                        if (Debug.EnableError && hasDebug())
+                            Debug.println(ex2);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Write a batch of file request queue deletes
+         *
+         * @param deleteList List of FileRequest
+         */
+        private void writeDeleteBatch(List<FileRequest> deleteList) {
+
+            try {
+
+                // Delete the batch of file requests
+                mi_batchInterface.deleteFileRequests(deleteList);
+                mi_deletedCnt += deleteList.size();
+            }
+            catch (DBException ex) {
+
+                // DEBUG
+                if (Debug.EnableError && hasDebug())
+                    Debug.println("BackgroundLoadSave Batch delete failed, count=" + deleteList.size() + ", " + ex.toString());
+
+                // The batch was rolled back, delete the requests individually
+                for (FileRequest fileReq : deleteList) {
+                    try {
+                        getDBQueueInterface().deleteFileRequest(fileReq);
+                    }
+                    catch (DBException ex2) {
+
+                        // DEBUG
+                        if (Debug.EnableError && hasDebug())
+                            Debug.println("BackgroundLoadSave Error: " + ex2.toString());
+                    }
+                }
+            }
+        }
+    }
+
     ;
 
     /**
@@ -739,9 +1053,10 @@ public class BackgroundLoadSave {
         m_stateCache = stateCache;
         m_fileLoader = bgLoader;
 
-        // Create the file request queues
-        m_readQueue = new FileRequestQueue();
-        m_writeQueue = new FileRequestQueue();
+        // Create the file request queues, requests are processed in priority order and queued saves for the same
+        // file are merged
+        m_readQueue = new FileRequestQueue(true);
+        m_writeQueue = new FileRequestQueue(true);
 
         // Set the in-memory queue size and low water mark
         m_maxQueueSize = RequestQueueDefaultSize;
@@ -766,9 +1081,10 @@ public class BackgroundLoadSave {
         m_stateCache = stateCache;
         m_fileLoader = bgLoader;
 
-        // Create the file request queues
-        m_readQueue = new FileRequestQueue();
-        m_writeQueue = new FileRequestQueue();
+        // Create the file request queues, requests are processed in priority order and queued saves for the same
+        // file are merged
+        m_readQueue = new FileRequestQueue(true);
+        m_writeQueue = new FileRequestQueue(true);
 
         // Set the in-memory queue size and low water mark
         m_maxQueueSize = RequestQueueDefaultSize;
@@ -820,11 +1136,49 @@ public class BackgroundLoadSave {
             m_tranLoader = new TransactionQueueLoader(getName() + "_TranLdr", m_writeQueue);
     }
 
+    /**
+     * Enable batched queue writes, start the batch writer thread. Batching is only enabled if the database
+     * queue interface supports batched operations.
+     *
+     * @param linger   long
+     * @param maxBatch int
+     * @return boolean
+     */
+    public final boolean enableBatchWrites(long linger, int maxBatch) {
+
+        // Check if the database queue interface supports batched writes
+        if (getDBQueueInterface() instanceof DBQueueBatchInterface == false)
+            return false;
+
+        // Create the batch writer thread
+        if (m_batchWriter == null)
+            m_batchWriter = new QueueBatchWriter(getName() + "_Batch", (DBQueueBatchInterface) getDBQueueInterface(), linger, maxBatch);
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("BackgroundLoadSave Batched queue writes enabled, linger=" + linger + "ms, batchSize=" + maxBatch);
+
+        return true;
+    }
+
+    /**
+     * Check if batched queue writes are enabled
+     *
+     * @return boolean
+     */
+    public final boolean hasBatchWrites() {
+        return m_batchWriter != null;
+    }
+
     /**
      * Shutdown the background load/save thread pool
      */
     public final void shutdownThreads() {
 
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("BackgroundLoadSave " + getName() + " readQueue=" + m_readQueue + ", writeQueue=" + m_writeQueue);
+
         // Shutdown the worker threads
         if (m_readThreads != null) {
             for (int i = 0; i < m_readThreads.length; i++)
@@ -836,6 +1190,12 @@ public class BackgroundLoadSave {
                 m_writeThreads[i].shutdownRequest();
         }
 
+        // Shutdown the batch writer, flushes any pending queue writes
+        if (m_batchWriter != null) {
+            m_batchWriter.shutdownRequest();
+            m_batchWriter = null;
+        }
+
         // Shutdown the queue loaders
         m_readLoader.shutdownRequest();
         m_readLoader = null;
@@ -866,28 +1226,21 @@ public class BackgroundLoadSave {
             if (fileReq.hasFileState())
                 fileReq.getFileState().setExpiryTime(FileState.NoTimeout);
 
+            // Add the request to the next batch, the queue loaders are notified when the batch has been written
+            QueueBatchWriter batchWriter = m_batchWriter;
+
+            if (batchWriter != null) {
+                batchWriter.addQueueRequest(fileReq);
+                return;
+            }
+
             try {
 
                 // Write a file request record to the queue database
                 getDBQueueInterface().queueFileRequest(fileReq);
 
-                // Check if the request is part of a transaction, or a standalone request
-                if (fileReq.isTransaction() == false) {
-
-                    // Check if the in-memory queue is empty, if so then wakeup the queue loader to
-                    // load the new request
-                    if (fileReq.isType() == FileRequest.RequestType.Load)
-                        m_readLoader.notifyNewRecord(fileReq.getSequenceNumber());
-                    else
-                        m_writeLoader.notifyNewRecord(fileReq.getSequenceNumber());
-                } else {
-
-                    //
-                    // Check if this request is the last file in the current transaction, if so then
-                    // the transaction is ready to be processed
-                    if (fileReq.isLastTransactionFile())
-                        m_tranLoader.addTransaction("" + fileReq.getTransactionId());
-                }
+                // Notify the queue loader, or transaction loader
+                fileRequestQueued(fileReq);
             }
             catch (DBException ex) {
 
@@ -898,6 +1251,83 @@ public class BackgroundLoadSave {
         }
     }
 
+    /**
+     * Cancel the queued save requests for a file that has been deleted, the requests are removed from the
+     * in-memory queue and deleted from the queue database
+     *
+     * @param fid  int
+     * @param stid int
+     * @return int
+     */
+    public final int cancelFileRequests(int fid, int stid) {
+
+        // Remove the queued save requests for the file
+        List<FileRequest> cancelList = m_writeQueue.removeFileRequests(fid, stid);
+        if (cancelList == null)
+            return 0;
+
+        // Delete the cancelled requests from the queue database
+        for (FileRequest fileReq : cancelList)
+            deleteQueuedRequest(fileReq);
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("BackgroundLoadSave Cancelled " + cancelList.size() + " save request(s) for deleted file, fid=" + fid + ", stid=" + stid);
+
+        return cancelList.size();
+    }
+
+    /**
+     * Delete a file request from the queue database, or add to the next batch of deletes
+     *
+     * @param fileReq FileRequest
+     */
+    protected final void deleteQueuedRequest(FileRequest fileReq) {
+
+        try {
+
+            // Delete the file request from the queue, or add to the next batch of deletes
+            QueueBatchWriter batchWriter = m_batchWriter;
+
+            if (batchWriter != null)
+                batchWriter.addDeleteRequest(fileReq);
+            else
+                getDBQueueInterface().deleteFileRequest(fileReq);
+        }
+        catch (DBException ex) {
+
+            // DEBUG
+            if (Debug.EnableError && hasDebug())
+                Debug.println("BackgroundLoadSave Error: " + ex.toString());
+        }
+    }
+
+    /**
+     * A file request has been written to the queue database, notify the queue loader or transaction loader
+     *
+     * @param fileReq SingleFileRequest
+     */
+    protected final void fileRequestQueued(SingleFileRequest fileReq) {
+
+        // Check if the request is part of a transaction, or a standalone request
+        if (fileReq.isTransaction() == false) {
+
+            // Check if the in-memory queue is empty, if so then wakeup the queue loader to
+            // load the new request
+            if (fileReq.isType() == FileRequest.RequestType.Load)
+                m_readLoader.notifyNewRecord(fileReq.getSequenceNumber());
+            else
+                m_writeLoader.notifyNewRecord(fileReq.getSequenceNumber());
+        } else {
+
+            //
+            // Check if this request is the last file in the current transaction, if so then
+            // the transaction is ready to be processed
+            if (fileReq.isLastTransactionFile())
+                m_tranLoader.addTransaction("" + fileReq.getTransactionId());
+        }
+    }
+
     /**
      * Flush the current pending transaction request
      *
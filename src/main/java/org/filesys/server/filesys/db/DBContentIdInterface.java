@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.filesys.server.filesys.db;
+
+import org.filesys.util.StringList;
+
+/**
+ * Database Content Id Interface
+ *
+ * <p>Optional interface implemented by a database interface that supports the object id interface, to allow file data
+ * objects to be shared by content. Each stored object is recorded against a content id, a hash of the file data, with
+ * a count of the files/streams that reference the object. A file save with content that is already stored only needs
+ * to update the file id to object id mapping.
+ *
+ * <p>Adding a content reference to a file/stream releases the reference to the previous content of the file/stream,
+ * and updates the file id to object id mapping. Content that is no longer referenced is kept until it is removed by
+ * the removeUnreferencedContent() method, so the content may be referenced again until then.
+ *
+ * @author gkspencer
+ */
+public interface DBContentIdInterface {
+
+    /**
+     * Add a reference to stored content for a file/stream. Returns null, and makes no changes, if the content is
+     * not stored.
+     *
+     * @param fileId    int
+     * @param streamId  int
+     * @param contentId String
+     * @return String object id of the stored content, or null
+     * @exception DBException Database error
+     */
+    public String addContentReference(int fileId, int streamId, String contentId)
+            throws DBException;
+
+    /**
+     * Record a new stored object for the specified content, and add a reference to the content for the file/stream.
+     * If the content has been stored by another file save then the existing object id is returned, and the new object
+     * is not recorded.
+     *
+     * @param fileId    int
+     * @param streamId  int
+     * @param contentId String
+     * @param objectId  String
+     * @return String object id of the stored content
+     * @exception DBException Database error
+     */
+    public String saveContentId(int fileId, int streamId, String contentId, String objectId)
+            throws DBException;
+
+    /**
+     * Release the content reference for a deleted file/stream, and delete the file id to object id mapping
+     *
+     * @param fileId   int
+     * @param streamId int
+     * @exception DBException Database error
+     */
+    public void deleteContentReference(int fileId, int streamId)
+            throws DBException;
+
+    /**
+     * Remove the content records that are no longer referenced, and return the object ids so that the objects can
+     * be deleted from the store
+     *
+     * @return StringList object ids that are no longer referenced, or null
+     * @exception DBException Database error
+     */
+    public StringList removeUnreferencedContent()
+            throws DBException;
+}
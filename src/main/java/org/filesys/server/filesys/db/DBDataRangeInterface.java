@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.server.filesys.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Database Data Range Interface
+ *
+ * <p>Optional interface implemented by a database interface that can load individual file data fragments, allowing
+ * file data to be loaded on demand by range rather than loading the whole file.
+ *
+ * @author gkspencer
+ */
+public interface DBDataRangeInterface {
+
+    /**
+     * Open a stream to read a single file data fragment. Fragments are numbered from zero, each fragment holds
+     * the number of bytes returned by DBDataDetails.getDataFragmentSize(), the last fragment may be shorter.
+     *
+     * @param fileId   int
+     * @param streamId int
+     * @param fragNo   int
+     * @return InputStream
+     * @exception DBException Database error
+     * @exception IOException I/O error
+     */
+    public InputStream loadFileDataFragment(int fileId, int streamId, int fragNo)
+            throws DBException, IOException;
+}
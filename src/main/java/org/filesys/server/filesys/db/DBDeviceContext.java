@@ -31,6 +31,7 @@ import org.filesys.server.filesys.*;
 import org.filesys.server.filesys.cache.FileState;
 import org.filesys.server.filesys.cache.FileStateCacheListener;
 import org.filesys.server.filesys.cache.FileStateLockManager;
+import org.filesys.server.filesys.cache.cluster.ClusterFileStateCache;
 import org.filesys.server.filesys.loader.DeleteFileRequest;
 import org.filesys.server.filesys.loader.FileLoader;
 import org.filesys.server.filesys.loader.FileRequestQueue;
@@ -38,6 +39,7 @@ import org.filesys.server.filesys.quota.QuotaManagerException;
 import org.filesys.server.locking.LockManager;
 import org.filesys.server.locking.OpLockManager;
 import org.filesys.server.thread.ThreadRequestPool;
+import org.filesys.server.thread.TimedThreadRequest;
 import org.filesys.util.MemorySize;
 import org.springframework.extensions.config.ConfigElement;
 
@@ -102,6 +104,41 @@ public class DBDeviceContext extends DiskDeviceContext implements FileStateCache
     // File close post processor enable/disable
     private boolean m_postClose = true;
 
+    // Path lookup/file information cache, and timed request to remove expired entries
+    private DBMetadataCache m_metadataCache;
+    private MetadataExpiryTimedRequest m_metadataExpiryReq;
+
+    /**
+     * Metadata Cache Expiry Checker Timed Thread Request Class
+     */
+    private class MetadataExpiryTimedRequest extends TimedThreadRequest {
+
+        /**
+         * Class constructor
+         *
+         * @param name     String
+         * @param interval long
+         */
+        public MetadataExpiryTimedRequest(String name, long interval) {
+            super(name, -interval, interval);
+        }
+
+        /**
+         * Expiry checker method
+         */
+        protected void runTimedRequest() {
+
+            // Remove expired entries from the metadata cache
+            if (hasMetadataCache()) {
+                int expireCnt = getMetadataCache().removeExpiredEntries();
+
+                // DEBUG
+                if (Debug.EnableInfo && hasDebug() && expireCnt > 0)
+                    Debug.println("Expired " + expireCnt + " metadata cache entries for " + getDeviceName() + ", cache=" + getMetadataCache().numberOfEntries());
+            }
+        }
+    }
+
     /**
      * Class constructor
      *
@@ -267,6 +304,61 @@ public class DBDeviceContext extends DiskDeviceContext implements FileStateCache
             setQuotaManager(new DBQuotaManager(this, quotaDebug));
         }
 
+        // Check if the metadata cache should be enabled
+        if (args.getChild("MetadataCache") != null) {
+
+            int maxEntries = DBMetadataCache.DefaultMaxEntries;
+            long timeout = DBMetadataCache.DefaultTimeout;
+            long negTimeout = DBMetadataCache.DefaultNegativeTimeout;
+
+            // Check if the maximum number of cache entries has been specified
+            nameVal = args.getChild("MetadataCacheSize");
+            if (nameVal != null) {
+                try {
+                    maxEntries = Integer.parseInt(nameVal.getValue());
+
+                    if (maxEntries < DBMetadataCache.MinimumMaxEntries || maxEntries > DBMetadataCache.MaximumMaxEntries)
+                        throw new DeviceContextException("MetadataCacheSize out of valid range (" + DBMetadataCache.MinimumMaxEntries + " - "
+                                + DBMetadataCache.MaximumMaxEntries + ")");
+                }
+                catch (NumberFormatException ex) {
+                    throw new DeviceContextException("Invalid MetadataCacheSize value, " + nameVal.getValue(), ex);
+                }
+            }
+
+            // Check if the entry timeout has been specified, in seconds
+            nameVal = args.getChild("MetadataCacheTimeout");
+            if (nameVal != null) {
+                try {
+                    timeout = Long.parseLong(nameVal.getValue()) * 1000L;
+
+                    if (timeout <= 0 || timeout > DBMetadataCache.MaximumTimeout)
+                        throw new DeviceContextException("MetadataCacheTimeout out of valid range (1 - " + DBMetadataCache.MaximumTimeout / 1000L + ")");
+                }
+                catch (NumberFormatException ex) {
+                    throw new DeviceContextException("Invalid MetadataCacheTimeout value, " + nameVal.getValue(), ex);
+                }
+            }
+
+            // Check if the negative entry timeout has been specified, in seconds, zero disables negative entries
+            nameVal = args.getChild("MetadataNegativeTimeout");
+            if (nameVal != null) {
+                try {
+                    negTimeout = Long.parseLong(nameVal.getValue()) * 1000L;
+
+                    if (negTimeout < 0 || negTimeout > timeout)
+                        throw new DeviceContextException("MetadataNegativeTimeout out of valid range (0 - " + timeout / 1000L + ")");
+                }
+                catch (NumberFormatException ex) {
+                    throw new DeviceContextException("Invalid MetadataNegativeTimeout value, " + nameVal.getValue(), ex);
+                }
+            }
+
+            // Create the metadata cache
+            m_metadataCache = new DBMetadataCache(maxEntries, timeout, negTimeout);
+            m_metadataCache.setDebug(args.getChild("MetadataCacheDebug") != null);
+        }
+
         // Get the retention period in days, if specified
         nameVal = args.getChild("RetentionPeriod");
         if (nameVal != null) {
@@ -539,6 +631,24 @@ public class DBDeviceContext extends DiskDeviceContext implements FileStateCache
      */
     public final boolean isPostCloseEnabled() { return m_postClose; }
 
+    /**
+     * Check if the metadata cache is enabled
+     *
+     * @return boolean
+     */
+    public final boolean hasMetadataCache() {
+        return m_metadataCache != null;
+    }
+
+    /**
+     * Return the metadata cache
+     *
+     * @return DBMetadataCache
+     */
+    public final DBMetadataCache getMetadataCache() {
+        return m_metadataCache;
+    }
+
     /**
      * Determine if the retention period is enabled
      *
@@ -726,6 +836,12 @@ public class DBDeviceContext extends DiskDeviceContext implements FileStateCache
      */
     public void CloseContext() {
 
+        // Stop the metadata cache expiry checker
+        if (m_metadataExpiryReq != null && m_metadataExpiryReq.hasThreadRequestPool()) {
+            m_metadataExpiryReq.getThreadRequestPool().removeTimedRequest(m_metadataExpiryReq);
+            m_metadataExpiryReq = null;
+        }
+
         // Close the file loader
         if (getFileLoader() != null)
             getFileLoader().shutdownLoader(false);
@@ -739,6 +855,19 @@ public class DBDeviceContext extends DiskDeviceContext implements FileStateCache
         if (hasStateCache())
             getStateCache().removeAllFileStates();
 
+        // Release the metadata cache entries
+        if (hasMetadataCache()) {
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug())
+                Debug.println("DBDeviceContext closed, " + getMetadataCache());
+
+            if (getStateCache() instanceof ClusterFileStateCache)
+                ((ClusterFileStateCache) getStateCache()).removeStateChangeListener(getMetadataCache());
+
+            getMetadataCache().removeAllEntries();
+        }
+
         // Call the base class
         super.CloseContext();
     }
@@ -768,21 +897,33 @@ public class DBDeviceContext extends DiskDeviceContext implements FileStateCache
             }
         }
 
+        // Register the metadata cache for remote state updates if the file state cache is clustered
+        if (hasMetadataCache() && getStateCache() instanceof ClusterFileStateCache)
+            ((ClusterFileStateCache) getStateCache()).addStateChangeListener(getMetadataCache());
+
+        // Get the thread pool, if available
+        ThreadRequestPool threadPool = null;
+        ServerConfiguration config = disk.getConfiguration();
+        if (config != null) {
+            CoreServerConfigSection coreConfig = (CoreServerConfigSection) config.getConfigSection(CoreServerConfigSection.SectionName);
+            if (coreConfig != null)
+                threadPool = coreConfig.getThreadPool();
+        }
+
+        // Queue a timed request to remove expired metadata cache entries, if the thread pool is available. Without
+        // the thread pool expired entries are removed when looked up, or evicted when the cache is full.
+        if (hasMetadataCache() && threadPool != null) {
+            long interval = Math.max(1L, getMetadataCache().getTimeout() / 1000L);
+            m_metadataExpiryReq = new MetadataExpiryTimedRequest("MetadataExpire_" + disk.getName(), interval);
+            threadPool.queueTimedRequest(m_metadataExpiryReq);
+        }
+
         // Create the file state based lock manager
         setFileStateLockManager(new FileStateLockManager(getStateCache()));
 
         // Start the lock manager, use the thread pool if available
         if (getLockManager() != null) {
 
-            // Get the thread pool, if available
-            ThreadRequestPool threadPool = null;
-            ServerConfiguration config = disk.getConfiguration();
-            if (config != null) {
-                CoreServerConfigSection coreConfig = (CoreServerConfigSection) config.getConfigSection(CoreServerConfigSection.SectionName);
-                if (coreConfig != null)
-                    threadPool = coreConfig.getThreadPool();
-            }
-
             // Start the lock manager
             getFileStateLockManager().startLockManager("OplockExpire_" + disk.getName(), threadPool);
         }
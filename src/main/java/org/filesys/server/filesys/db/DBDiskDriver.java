@@ -290,6 +290,9 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
 
                 //  Call the database interface
                 dbCtx.getDBInterface().setFileInformation(file.getDirectoryId(), file.getFileId(), finfo);
+
+                //  Invalidate the cached file information
+                invalidateFileInfo(dbCtx, file.getFileId());
             }
             catch (DBException ex) {
                 throw new IOException( ex.getMessage(), ex.getCause());
@@ -384,6 +387,9 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
                 //  Use the database interface to create the new file record
                 fid = dbCtx.getDBInterface().createFileRecord(dname, dirId, params, retain);
 
+                //  Remove any negative metadata cache entry for the new directory
+                invalidateMetadata(dbCtx, dirId, dname);
+
                 //  Indicate that the path exists
                 fstate.setFileStatus(FileStatus.DirectoryExists, FileState.ChangeReason.FolderCreated);
 
@@ -522,6 +528,9 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
                 //  Create a new file record
                 fid = dbCtx.getDBInterface().createFileRecord(fname, dirId, params, retain);
 
+                //  Remove any negative metadata cache entry for the new file
+                invalidateMetadata(dbCtx, dirId, fname);
+
                 //  Indicate that the file exists
                 fstate.setFileStatus(FileStatus.FileExists, FileState.ChangeReason.FileCreated);
 
@@ -638,6 +647,9 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
             //  Delete the directory file record, or mark as deleted if the trashcan is enabled
             dbCtx.getDBInterface().deleteFileRecord(dinfo.getDirectoryId(), dinfo.getFileId(), dbCtx.isTrashCanEnabled());
 
+            //  Remove the directory from the metadata cache
+            invalidateMetadata(dbCtx, dir, dinfo.getFileId());
+
             //  Indicate that the path does not exist
             fstate.setFileStatus(FileStatus.NotExist, FileState.ChangeReason.FolderDeleted);
             fstate.setFileId(-1);
@@ -756,6 +768,9 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
             //  Delete the file record
             dbCtx.getDBInterface().deleteFileRecord(dbInfo.getDirectoryId(), fstate.getFileId(), dbCtx.isTrashCanEnabled());
 
+            //  Remove the file from the metadata cache
+            invalidateMetadata(dbCtx, name, fstate.getFileId());
+
             //  Indicate that the path does not exist
             fstate.setFileStatus(FileStatus.NotExist, FileState.ChangeReason.FileDeleted);
             fstate.setFileId(-1);
@@ -1311,6 +1326,11 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
             //  Rename the file/folder, this may also link the file/folder to a new parent directory
             dbCtx.getDBInterface().renameFileRecord(dirId, fid, newFname, newDirId);
 
+            //  Remove the old and new names from the metadata cache
+            invalidateMetadata(dbCtx, oldName, fid);
+            invalidateMetadata(dbCtx, newName, -1);
+            invalidateMetadata(dbCtx, newDirId, newFname);
+
             //  Update the file state with the new file name/path
             dbCtx.getStateCache().renameFileState(newName, fstate, curInfo.isDirectory());
 
@@ -1472,6 +1492,9 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
             if (dbFlags != 0)
                 dbCtx.getDBInterface().setFileInformation(dbInfo.getDirectoryId(), dbInfo.getFileId(), info);
 
+            //  Invalidate the cached file information
+            invalidateFileInfo(dbCtx, dbInfo.getFileId());
+
             //  Use the original information flags when updating the cached file information details
             info.setFileInformationFlags(origFlags);
 
@@ -1717,6 +1740,9 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
                 //  Set the file change date/time
                 dbCtx.getDBInterface().setFileInformation(jfile.getDirectoryId(), jfile.getFileId(), finfo);
 
+                //  Invalidate the cached file information
+                invalidateFileInfo(dbCtx, jfile.getFileId());
+
                 //  Update the cached file information
                 dbInfo.setChangeDateTime(finfo.getChangeDateTime());
                 dbInfo.setAllocationSize(siz);
@@ -2017,6 +2043,25 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
             }
         }
 
+        //  Check the metadata cache
+        DBMetadataCache mdCache = dbCtx.getMetadataCache();
+
+        if (mdCache != null) {
+
+            int cachedId = mdCache.findFileId(dirId, name);
+            if (cachedId != DBMetadataCache.NotCached) {
+
+                //  Debug
+                if (Debug.EnableInfo && hasDebug())
+                    Debug.println("@@ Metadata cache hit - getFileId() name=" + name + ", fid=" + cachedId);
+
+                //  Update the file state, return the file id or -1 if the file does not exist
+                if (state != null && cachedId != -1)
+                    state.setFileId(cachedId);
+                return cachedId;
+            }
+        }
+
         //  Get the file id from the database
         int fileId = -1;
 
@@ -2024,6 +2069,14 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
 
             //  Get the file id
             fileId = dbCtx.getDBInterface().getFileId(dirId, name, false, true);
+
+            //  Add the file id, or a negative entry, to the metadata cache
+            if (mdCache != null) {
+                if (fileId != -1)
+                    mdCache.addFileId(dirId, name, path, fileId);
+                else
+                    mdCache.addNotExist(dirId, name, path);
+            }
         }
         catch (DBException ex) {
             Debug.println( ex);
@@ -2166,10 +2219,12 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
         //  Build up the current path as we traverse the list
         StringBuffer pathStr = new StringBuffer("\\");
 
-        //  Check for paths in the file state cache
+        //  Check for paths in the file state cache, and metadata cache
         FileStateCache cache = ctx.getStateCache();
         FileState fstate = null;
 
+        DBMetadataCache mdCache = ctx.getMetadataCache();
+
         //  Traverse the path list, initialize the directory id to the root id
         int dirId = 0;
         int parentId = -1;
@@ -2195,9 +2250,16 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
                     dirId = ids[idx];
                 } else {
 
-                    //  Search for the current directory in the database
+                    //  Search for the current directory in the metadata cache, then the database
                     parentId = dirId;
-                    dirId = ctx.getDBInterface().getFileId(dirId, curPath, true, true);
+                    dirId = mdCache != null ? mdCache.findDirectoryId(parentId, curPath) : DBMetadataCache.NotCached;
+
+                    if (dirId == DBMetadataCache.NotCached) {
+                        dirId = ctx.getDBInterface().getFileId(parentId, curPath, true, true);
+
+                        if (mdCache != null && dirId != -1)
+                            mdCache.addDirectoryId(parentId, curPath, pathStr.toString(), dirId);
+                    }
 
                     if (dirId != -1) {
 
@@ -2214,8 +2276,16 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
                             //  Create a new file state for the current path
                             fstate = cache.findFileState(pathStr.toString(), true);
 
-                            //  Get the file information
-                            DBFileInfo finfo = ctx.getDBInterface().getFileInformation(parentId, dirId, DBInterface.FileInfoLevel.All);
+                            //  Get the file information, from the metadata cache or the database
+                            DBFileInfo finfo = mdCache != null ? mdCache.findFileInfo(parentId, curPath, dirId) : null;
+
+                            if (finfo == null) {
+                                finfo = ctx.getDBInterface().getFileInformation(parentId, dirId, DBInterface.FileInfoLevel.All);
+
+                                if (mdCache != null && finfo != null)
+                                    mdCache.addFileInfo(parentId, curPath, pathStr.toString(), dirId, finfo);
+                            }
+
                             fstate.addAttribute(FileState.FileInformation, finfo);
                             fstate.setFileStatus(finfo.isDirectory() ? FileStatus.DirectoryExists : FileStatus.FileExists);
                             fstate.setFileId(dirId);
@@ -2266,17 +2336,40 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
                 return finfo;
         }
 
-        //  Get the file information from the database
+        //  Check the metadata cache
+        DBMetadataCache mdCache = dbCtx.getMetadataCache();
+        String name = null;
         DBFileInfo finfo = null;
 
-        try {
+        if (mdCache != null) {
+
+            //  Get the file name from the path
+            name = path.substring(path.lastIndexOf(FileName.DOS_SEPERATOR) + 1);
+            finfo = mdCache.findFileInfo(dirId, name, fid);
 
-            //  Get the file information
-            finfo = dbCtx.getDBInterface().getFileInformation(dirId, fid, DBInterface.FileInfoLevel.All);
+            //  Debug
+            if (finfo != null && Debug.EnableInfo && hasDebug())
+                Debug.println("@@ Metadata cache hit - getFileInfo() path=" + path);
         }
-        catch (DBException ex) {
-            Debug.println(ex);
-            finfo = null;
+
+        //  Get the file information from the database
+        if (finfo == null) {
+
+            try {
+
+                //  Get the file information
+                finfo = dbCtx.getDBInterface().getFileInformation(dirId, fid, DBInterface.FileInfoLevel.All);
+
+                //  Add the file information to the metadata cache
+                if (mdCache != null && finfo != null) {
+                    finfo.setFullName(path);
+                    mdCache.addFileInfo(dirId, name, path, fid, finfo);
+                }
+            }
+            catch (DBException ex) {
+                Debug.println(ex);
+                finfo = null;
+            }
         }
 
         //  Set the full path for the file
@@ -2413,6 +2506,51 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
         return cache.findFileState(path, create);
     }
 
+    /**
+     * Remove a file or folder from the metadata cache, if enabled
+     *
+     * @param ctx  DBDeviceContext
+     * @param path String
+     * @param fid  int
+     */
+    protected final void invalidateMetadata(DBDeviceContext ctx, String path, int fid) {
+        DBMetadataCache mdCache = ctx.getMetadataCache();
+
+        if (mdCache != null) {
+            mdCache.removePath(path);
+
+            if (fid != -1)
+                mdCache.removeFileId(fid);
+        }
+    }
+
+    /**
+     * Remove the cached file information for a file or folder from the metadata cache, if enabled
+     *
+     * @param ctx DBDeviceContext
+     * @param fid int
+     */
+    protected final void invalidateFileInfo(DBDeviceContext ctx, int fid) {
+        DBMetadataCache mdCache = ctx.getMetadataCache();
+
+        if (mdCache != null && fid != -1)
+            mdCache.removeFileInfo(fid);
+    }
+
+    /**
+     * Remove the metadata cache entry for a name within a folder, if enabled
+     *
+     * @param ctx   DBDeviceContext
+     * @param dirId int
+     * @param name  String
+     */
+    protected final void invalidateMetadata(DBDeviceContext ctx, int dirId, String name) {
+        DBMetadataCache mdCache = ctx.getMetadataCache();
+
+        if (mdCache != null && name != null)
+            mdCache.removeEntry(dirId, name);
+    }
+
     /**
      * Update the parent folder path file information last write and change timestamps
      *
@@ -2438,6 +2576,12 @@ public class DBDiskDriver implements DiskInterface, DiskSizeInterface, DiskVolum
             fstate.updateChangeDateTime( updTime);
             fstate.updateAccessDateTime();
 
+            // Invalidate the cached file information for the folder, the timestamps are no longer current
+            if (fstate.getFileId() != -1)
+                invalidateFileInfo(ctx, fstate.getFileId());
+            else
+                invalidateMetadata(ctx, parentPath, -1);
+
             // Update the cached file information, if available
             DBFileInfo finfo = (DBFileInfo) fstate.findAttribute(FileState.FileInformation);
             if (finfo != null) {
@@ -25,6 +25,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.jar.JarEntry;
@@ -53,6 +54,8 @@ import org.filesys.server.filesys.loader.FileRequest;
 import org.filesys.server.filesys.loader.FileRequestQueue;
 import org.filesys.server.filesys.loader.FileSegment;
 import org.filesys.server.filesys.loader.FileSegmentInfo;
+import org.filesys.server.filesys.loader.FragmentLoader;
+import org.filesys.server.filesys.loader.FragmentMap;
 import org.filesys.server.filesys.loader.MultipleFileRequest;
 import org.filesys.server.filesys.loader.SingleFileRequest;
 import org.filesys.util.MemorySize;
@@ -75,7 +78,7 @@ import org.springframework.extensions.config.ConfigElement;
  *
  * @author gkspencer
  */
-public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileStateListener {
+public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileStateListener, RangeFileLoader {
 
     // Temporary sub-directory/file/Jar prefix
     public static final String TempDirPrefix    = "ldr";
@@ -194,6 +197,9 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
     private int m_tempCount;
     private int m_tempMax;
 
+    // Temporary file cache, keeps loaded file data in the temporary area up to a disk space budget
+    private TempFileCache m_tempCache;
+
     // Current transaction id, cumulative file size, file count and time last file was added to the
     // current transaction.
     // Transaction lock used to synchronize access to the values.
@@ -210,6 +216,18 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
     private long m_tranTimeout;
     private TransactionTimer m_transTimer;
 
+    // Load file data on demand by range, number of fragments to prefetch and prefetch threads
+    private boolean m_rangeLoad;
+    private int m_rangePrefetch = FragmentLoader.DefaultPrefetch;
+    private int m_rangeThreads = FragmentLoader.DefaultThreads;
+
+    private FragmentLoader m_fragLoader;
+
+    // Batched queue writes, linger time and maximum batch size
+    private boolean m_queueBatch;
+    private long m_batchLinger = BackgroundLoadSave.DefaultBatchLinger;
+    private int m_batchSize = BackgroundLoadSave.DefaultBatchSize;
+
     // List of file processors that process cached files before storing and after loading.
     private FileProcessorList m_fileProcessors;
 
@@ -396,6 +414,15 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
         return m_curTempDir;
     }
 
+    /**
+     * Return the temporary file cache, or null if not enabled
+     *
+     * @return TempFileCache
+     */
+    public final TempFileCache getTempFileCache() {
+        return m_tempCache;
+    }
+
     /**
      * Check if Jars files should be kept in the temporary area
      *
@@ -574,6 +601,13 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
             // Check if the file is being opened for sequential access and the data has not yet been loaded
             FileSegment fileSeg = cacheFile.getFileSegment();
 
+            // Update the temporary file cache statistics, and check if the cache is over budget
+            if (m_tempCache != null) {
+                if (create == false && params.isOverwrite() == false)
+                    m_tempCache.recordAccess(fileSeg.getFileInfo().hasStatus());
+                m_tempCache.checkCacheSize();
+            }
+
             if (create == true || params.isOverwrite() == true) {
 
                 // Indicate that the file data is available, this is a new file or the existing file is being overwritten
@@ -632,6 +666,10 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
             // Get the file segment details
             FileSegment fileSeg = cacheFile.getFileSegment();
 
+            // Update the temporary file size in the temporary file cache
+            if (m_tempCache != null)
+                m_tempCache.updateFileSize(fileSeg.getTemporaryFile());
+
             // Check if the file data has been updated, if so then queue a file save
             if (fileSeg.isUpdated() && netFile.hasDeleteOnClose() == false) {
 
@@ -703,6 +741,14 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
     public void deleteFile(String fname, int fid, int stid)
             throws IOException {
 
+        // Cancel any queued saves for the file, there is no need to save data for a deleted file
+        if (m_backgroundLoader != null)
+            m_backgroundLoader.cancelFileRequests(fid, stid);
+
+        // Remove the file from the temporary file cache
+        if (m_tempCache != null)
+            m_tempCache.removeFile(fid, stid);
+
         // Delete the file data from the database
         try {
 
@@ -859,10 +905,115 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
             runFileLoadedProcessors(getContext(), loadReq.getFileState(), fileSeg);
         }
 
+        // Update the temporary file size in the temporary file cache, and check if the cache is over budget
+        if (m_tempCache != null && loadSts != BackgroundLoadSave.Status.Requeue) {
+            m_tempCache.updateFileSize(loadReq.getTemporaryFile());
+            m_tempCache.checkCacheSize();
+        }
+
         // Return the load file status
         return loadSts;
     }
 
+    /**
+     * Load a range of file data on demand
+     *
+     * @param netFile FileCachedNetworkFile
+     * @param fileOff long
+     * @param len     long
+     * @return boolean
+     * @throws IOException I/O error
+     */
+    public boolean loadFileRange(FileCachedNetworkFile netFile, long fileOff, long len)
+            throws IOException {
+
+        // Check if range loading is enabled
+        FragmentLoader fragLoader = m_fragLoader;
+        if (fragLoader == null)
+            return false;
+
+        // Check if the file segment is being loaded by range, or switch the file segment to range loading
+        FileSegmentInfo segInfo = netFile.getFileSegment().getFileInfo();
+
+        if (segInfo.getFragmentMap() == null && initializeRangeLoad(netFile, segInfo) == false)
+            return false;
+
+        // Load the required range of the file data
+        fragLoader.loadRange(netFile.getFileId(), netFile.getStreamId(), segInfo, fileOff, len, CachedNetworkFile.DataLoadWaitTime);
+        return true;
+    }
+
+    /**
+     * Switch a file segment to range loading, if the file data has not been loaded and is stored as multiple
+     * fragments
+     *
+     * @param netFile FileCachedNetworkFile
+     * @param segInfo FileSegmentInfo
+     * @return boolean
+     * @throws IOException I/O error
+     */
+    private final boolean initializeRangeLoad(FileCachedNetworkFile netFile, FileSegmentInfo segInfo)
+            throws IOException {
+
+        // File processors need the whole file, so are only run after a full load
+        if (hasFileProcessors())
+            return false;
+
+        synchronized (segInfo) {
+
+            // Check if another thread has switched the segment to range loading
+            if (segInfo.getFragmentMap() != null)
+                return true;
+
+            // Only switch to range loading if a full file data load has not been started
+            if (segInfo.hasStatus() != FileSegmentInfo.State.Initial || segInfo.isQueued())
+                return false;
+
+            // Get the file data details
+            DBDataDetails dataDetails = null;
+
+            try {
+                dataDetails = getDBDataInterface().getFileDataDetails(netFile.getFileId(), netFile.getStreamId());
+            }
+            catch (DBException ex) {
+
+                // DEBUG
+                if (Debug.EnableError && hasDebug())
+                    Debug.println("## DBFileLoader range load details error, " + ex.toString());
+
+                return false;
+            }
+
+            // Files stored in a Jar, or as a single fragment, are loaded as a whole
+            long fileSize = netFile.getFileSize();
+
+            if (dataDetails == null || dataDetails.isStoredInJar() || dataDetails.numberOfDataFragments() < 2 ||
+                    dataDetails.getDataFragmentSize() <= 0 ||
+                    fileSize > (long) dataDetails.numberOfDataFragments() * dataDetails.getDataFragmentSize())
+                return false;
+
+            // Set the temporary file to the full file length, fragments are written into place as they are loaded
+            RandomAccessFile tempFile = new RandomAccessFile(segInfo.getTemporaryFile(), "rw");
+
+            try {
+                tempFile.setLength(fileSize);
+            }
+            finally {
+                tempFile.close();
+            }
+
+            // Set the fragment map, and mark the file data as loading
+            segInfo.setFragmentMap(new FragmentMap(fileSize, dataDetails.getDataFragmentSize()));
+            segInfo.setStatus(FileSegmentInfo.State.Loading);
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug())
+                Debug.println("## DBFileLoader range load fid=" + netFile.getFileId() + ", stream=" + netFile.getStreamId() + ", " + segInfo);
+        }
+
+        return true;
+    }
+
     /**
      * Load the requested file from a Jar file. The Jar file must first be loaded
      * from the database, then the file data is unpacked to the temporary file. The Jar file is
@@ -1702,6 +1853,21 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
                 throw new FileLoaderException("FragmentSize is out of valid range (64K - 20Mb");
         }
 
+        // Check if the temporary file cache size has been specified, loaded file data is kept in the temporary area
+        // until the cache size is reached
+        nv = params.getChild("TempCacheSize");
+
+        if (nv != null) {
+
+            // Create the temporary file cache
+            long cacheSize = MemorySize.getByteValue(nv.getValue());
+
+            if (cacheSize < TempFileCache.MinimumCacheSize)
+                throw new FileLoaderException("TempCacheSize is below the minimum size (1Mb)");
+
+            m_tempCache = new TempFileCache(m_tempDir, cacheSize, DBFileSegmentInfo);
+        }
+
         // Check if transaction request Jar files should be kept in the temporary area
         nv = params.getChild("KeepJars");
         if (nv != null)
@@ -1759,6 +1925,78 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
         if (params.getChild("ThreadDebug") != null)
             m_threadDebug = true;
 
+        // Check if file data should be loaded on demand, by range
+        if (params.getChild("RangeLoad") != null) {
+
+            // Enable range loading
+            m_rangeLoad = true;
+
+            // Check if the number of fragments to prefetch has been specified
+            nv = params.getChild("RangePrefetch");
+            if (nv != null) {
+                try {
+                    m_rangePrefetch = Integer.parseInt(nv.getValue());
+
+                    if (m_rangePrefetch < 0 || m_rangePrefetch > FragmentLoader.MaximumPrefetch)
+                        throw new FileLoaderException("RangePrefetch out of valid range (0 - " + FragmentLoader.MaximumPrefetch + ")");
+                }
+                catch (NumberFormatException ex) {
+                    throw new FileLoaderException("Invalid RangePrefetch value, " + nv.getValue());
+                }
+            }
+
+            // Check if the number of prefetch threads has been specified
+            nv = params.getChild("RangeThreads");
+            if (nv != null) {
+                try {
+                    m_rangeThreads = Integer.parseInt(nv.getValue());
+
+                    if (m_rangeThreads < 1 || m_rangeThreads > FragmentLoader.MaximumThreads)
+                        throw new FileLoaderException("RangeThreads out of valid range (1 - " + FragmentLoader.MaximumThreads + ")");
+                }
+                catch (NumberFormatException ex) {
+                    throw new FileLoaderException("Invalid RangeThreads value, " + nv.getValue());
+                }
+            }
+        }
+
+        // Check if file request queue writes should be batched
+        if (params.getChild("QueueBatch") != null) {
+
+            // Enable batched queue writes
+            m_queueBatch = true;
+
+            // Check if the batch linger time has been specified
+            nv = params.getChild("QueueBatchLinger");
+            if (nv != null) {
+                try {
+                    m_batchLinger = Long.parseLong(nv.getValue());
+
+                    if (m_batchLinger < BackgroundLoadSave.MinimumBatchLinger || m_batchLinger > BackgroundLoadSave.MaximumBatchLinger)
+                        throw new FileLoaderException("QueueBatchLinger out of valid range (" + BackgroundLoadSave.MinimumBatchLinger + " - "
+                                + BackgroundLoadSave.MaximumBatchLinger + ")");
+                }
+                catch (NumberFormatException ex) {
+                    throw new FileLoaderException("Invalid QueueBatchLinger value, " + nv.getValue());
+                }
+            }
+
+            // Check if the maximum batch size has been specified
+            nv = params.getChild("QueueBatchSize");
+            if (nv != null) {
+                try {
+                    m_batchSize = Integer.parseInt(nv.getValue());
+
+                    if (m_batchSize < BackgroundLoadSave.MinimumBatchSize || m_batchSize > BackgroundLoadSave.MaximumBatchSize)
+                        throw new FileLoaderException("QueueBatchSize out of valid range (" + BackgroundLoadSave.MinimumBatchSize + " - "
+                                + BackgroundLoadSave.MaximumBatchSize + ")");
+                }
+                catch (NumberFormatException ex) {
+                    throw new FileLoaderException("Invalid QueueBatchSize value, " + nv.getValue());
+                }
+            }
+        }
+
     }
 
     /**
@@ -1802,6 +2040,12 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
                 Debug.println(ex);
         }
 
+        // Rebuild the temporary file cache from the files saved at the last shutdown
+        if (m_tempCache != null) {
+            m_tempCache.setDebug(hasDebug());
+            m_tempCache.loadCache();
+        }
+
         // Check if there are any file save requests pending in the queue database
         FileRequestQueue saveQueue = new FileRequestQueue();
 
@@ -1823,6 +2067,20 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
         // Start the worker thread pool
         m_backgroundLoader.startThreads(saveQueue.numberOfRequests());
 
+        // Enable batched queue writes, if enabled and supported by the database interface
+        if (m_queueBatch && m_backgroundLoader.enableBatchWrites(m_batchLinger, m_batchSize) == false)
+            Debug.println("[DBLoader] Batched queue writes not supported by the database interface", Debug.Warn);
+
+        // Create the range loader, if enabled and supported by the database interface
+        if (m_rangeLoad) {
+            if (getDBDataInterface() instanceof DBDataRangeInterface) {
+                m_fragLoader = new DBFragmentLoader("DBLdrRange", m_rangeThreads, m_rangePrefetch);
+                m_fragLoader.setDebug(hasDebug());
+            }
+            else
+                Debug.println("[DBLoader] Range loading not supported by the database interface", Debug.Warn);
+        }
+
         // Check if transactions are enabled, if so then start the transaction timer thread
         if (getSmallFileSize() > 0) {
 
@@ -1845,9 +2103,25 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
         if (m_backgroundLoader != null)
             m_backgroundLoader.shutdownThreads();
 
+        // Shutdown the range load prefetch threads
+        if (m_fragLoader != null) {
+            m_fragLoader.shutdown();
+            m_fragLoader = null;
+        }
+
         // Shutdown the transaction timer thread, if active
         if (m_transTimer != null)
             m_transTimer.shutdownRequest();
+
+        // Save the temporary file cache so it can be used when the loader is restarted
+        if (m_tempCache != null) {
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug())
+                Debug.println("[DBLoader] Temp file cache " + m_tempCache);
+
+            m_tempCache.saveCache();
+        }
     }
 
     /**
@@ -2059,8 +2333,8 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 
         if (segInfo != null) {
 
-            // Check if the file has a request queued
-            if (segInfo.isQueued() == false) {
+            // Check if the file has a request queued, or fragments being loaded
+            if (segInfo.isQueued() == false && segInfo.isRangeLoading() == false) {
 
                 try {
 
@@ -2068,9 +2342,16 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
                     // be loaded again if required.
                     if (segInfo.hasStatus() != FileSegmentInfo.State.Initial) {
 
+                        // Check if the temporary file can be kept in the temporary file cache
+                        boolean cached = false;
+
+                        if (m_tempCache != null)
+                            cached = m_tempCache.detachSegment(segInfo, (DBFileInfo) state.findAttribute(FileState.FileInformation));
+
                         // Delete the temporary file
                         try {
-                            segInfo.deleteTemporaryFile();
+                            if (cached == false)
+                                segInfo.deleteTemporaryFile();
                         }
                         catch (IOException ex) {
 
@@ -2087,6 +2368,7 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 
                         // Remove the file segment, reset the file segment back to the initial state
                         state.removeAttribute(DBFileSegmentInfo);
+                        segInfo.setFragmentMap(null);
                         segInfo.setStatus(FileSegmentInfo.State.Initial);
 
                         // Reset the file state to indicate file data load required
@@ -2094,7 +2376,7 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 
                         // Check if the temporary file sub-directory is now empty, and it is not the
                         // current temporary sub-directory
-                        if (segInfo.getTemporaryFile().startsWith(m_curTempName) == false) {
+                        if (cached == false && segInfo.getTemporaryFile().startsWith(m_curTempName) == false) {
 
                             // Check if the sub-directory is empty
                             File tempFile = new File(segInfo.getTemporaryFile());
@@ -2109,7 +2391,7 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 
                         // Debug
                         if (Debug.EnableInfo && hasDebug())
-                            Debug.println("$$ Deleted temporary file " + segInfo.getTemporaryFile() + " [EXPIRED] $$");
+                            Debug.println("$$ " + (cached ? "Cached" : "Deleted") + " temporary file " + segInfo.getTemporaryFile() + " [EXPIRED] $$");
                     }
 
                     // If the file state is not to be deleted reset the file state expiration timer
@@ -2155,10 +2437,15 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
         // Check if the file state has an associated file
         FileSegmentInfo segInfo = (FileSegmentInfo) state.findAttribute(DBFileSegmentInfo);
 
-        if (segInfo != null && segInfo.isQueued() == false && segInfo.hasStatus() != FileSegmentInfo.State.SaveWait) {
+        if (segInfo != null && segInfo.isQueued() == false && segInfo.isRangeLoading() == false &&
+                segInfo.hasStatus() != FileSegmentInfo.State.SaveWait) {
 
             try {
 
+                // Remove the file from the temporary file cache
+                if (m_tempCache != null)
+                    m_tempCache.removeSegment(segInfo.getTemporaryFile());
+
                 // Delete the temporary file
                 segInfo.deleteTemporaryFile();
 
@@ -2198,7 +2485,26 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
 
             // Check if the file segment has been attached to the file state
             FileSegmentInfo fileSegInfo = (FileSegmentInfo) state.findAttribute(DBFileSegmentInfo);
-            if (fileSegInfo == null) {
+            DBFileInfo finfo = (DBFileInfo) state.findAttribute(FileState.FileInformation);
+            String cachedFile = null;
+
+            if (fileSegInfo == null && m_tempCache != null && params.isOverwrite() == false)
+                cachedFile = m_tempCache.findCachedFile(fid, stid, finfo, m_curTempDir);
+
+            if (cachedFile != null) {
+
+                // Use the file data from the temporary file cache
+                fileSegInfo = new FileSegmentInfo(cachedFile);
+                fileSeg = new FileSegment(fileSegInfo, params.isReadOnlyAccess() == false);
+                fileSeg.setStatus(FileSegmentInfo.State.Available);
+
+                // Add the segment to the file state cache
+                state.addAttribute(DBFileSegmentInfo, fileSegInfo);
+
+                // DEBUG
+                if (Debug.EnableInfo && hasDebug())
+                    Debug.println("## DBFileLoader using cached file " + cachedFile);
+            } else if (fileSegInfo == null) {
 
                 // Check if we need to create a new temporary sub-directory
                 if (m_tempCount++ >= m_tempMax)
@@ -2229,7 +2535,6 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
                 state.addAttribute(DBFileSegmentInfo, fileSegInfo);
 
                 // Check if the file is zero length, if so then set the file segment state to indicate it is available
-                DBFileInfo finfo = (DBFileInfo) state.findAttribute(FileState.FileInformation);
                 if (finfo != null && finfo.getSize() == 0)
                     fileSeg.setStatus(FileSegmentInfo.State.Available);
             } else {
@@ -2249,6 +2554,10 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
                 }
             }
 
+            // Add, or update, the file in the temporary file cache
+            if (m_tempCache != null)
+                m_tempCache.attachSegment(fid, stid, state, fileSegInfo);
+
             // Create the new network file
             FileStateProxy stateProxy = m_stateCache.getFileStateProxy(state);
             netFile = new FileCachedNetworkFile(fname, fid, stid, did, stateProxy, fileSeg, this);
@@ -2309,6 +2618,52 @@ public class DBFileLoader implements FileLoader, BackgroundFileLoader, FileState
         }
     }
 
+    /**
+     * Database Fragment Loader Class
+     *
+     * <p>Loads individual file data fragments using the database data range interface.
+     */
+    protected class DBFragmentLoader extends FragmentLoader {
+
+        /**
+         * Class constructor
+         *
+         * @param name     String
+         * @param threads  int
+         * @param prefetch int
+         */
+        public DBFragmentLoader(String name, int threads, int prefetch) {
+            super(name, threads, prefetch);
+        }
+
+        @Override
+        protected InputStream openFragment(int fileId, int streamId, FragmentMap fragMap, int fragNo)
+                throws IOException {
+
+            try {
+                return ((DBDataRangeInterface) getDBDataInterface()).loadFileDataFragment(fileId, streamId, fragNo);
+            }
+            catch (DBException ex) {
+                throw new IOException("Failed to load fragment " + fragNo + " of fid=" + fileId, ex);
+            }
+        }
+
+        @Override
+        protected void rangeLoadComplete(FileSegmentInfo segInfo) {
+
+            // All fragments have been loaded, the file data is now available
+            segInfo.setStatus(FileSegmentInfo.State.Available);
+
+            // Update the temporary file size in the temporary file cache
+            if (m_tempCache != null)
+                m_tempCache.updateFileSize(segInfo.getTemporaryFile());
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug())
+                Debug.println("## DBFileLoader range load complete, " + segInfo);
+        }
+    }
+
     /**
      * Set the database context
      *
@@ -0,0 +1,642 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.filesys.server.filesys.db;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.filesys.debug.Debug;
+import org.filesys.server.filesys.FileName;
+import org.filesys.server.filesys.cache.FileState;
+import org.filesys.server.filesys.cache.cluster.ClusterStateChangeListener;
+
+/**
+ * Database Metadata Cache Class
+ *
+ * <p>Caches database path lookups keyed by the parent directory id and case folded file name. Each entry holds the
+ * file id and, optionally, the file information loaded from the database. Lookups for names that do not exist are
+ * cached as negative entries with a shorter timeout.
+ *
+ * <p>The cache is bounded by a maximum number of entries, the least recently used entries are evicted. Entries are
+ * invalidated by the disk driver when files are created, deleted, renamed or updated, and by remote state updates
+ * when running in a cluster.
+ *
+ * @author gkspencer
+ */
+public class DBMetadataCache implements ClusterStateChangeListener {
+
+    // Default, minimum and maximum number of cache entries
+    public static final int DefaultMaxEntries   = 10000;
+    public static final int MinimumMaxEntries   = 100;
+    public static final int MaximumMaxEntries   = 1000000;
+
+    // Default entry timeouts, and the maximum timeout
+    public static final long DefaultTimeout         = 120000L;  // milliseconds
+    public static final long DefaultNegativeTimeout = 15000L;   // "
+    public static final long MaximumTimeout         = 3600000L; // "
+
+    // File id returned when there is no cache entry
+    public static final int NotCached = -2;
+
+    /**
+     * Cache Entry Class
+     */
+    private static final class CacheEntry {
+
+        // Entry key, parent directory id and normalized path
+        String key;
+        int dirId;
+        String path;
+
+        // File id, or -1 for a negative entry, and optional file information
+        int fileId;
+        DBFileInfo finfo;
+
+        // Entry is known to be a directory
+        boolean isDir;
+
+        // Entry expiry time
+        long expiresAt;
+    }
+
+    // Maximum number of entries and entry timeouts
+    private int m_maxEntries;
+    private long m_timeout;
+    private long m_negTimeout;
+
+    // Cache entries in least recently used order, and indexes by file id and path
+    private LinkedHashMap<String, CacheEntry> m_cache;
+    private HashMap<Integer, CacheEntry> m_fidIndex = new HashMap<Integer, CacheEntry>();
+    private HashMap<String, CacheEntry> m_pathIndex = new HashMap<String, CacheEntry>();
+
+    // Cache statistics
+    private long m_hits;
+    private long m_negHits;
+    private long m_misses;
+    private long m_evictions;
+    private long m_invalidations;
+
+    // Enable debug output
+    private boolean m_debug;
+
+    /**
+     * Default constructor
+     */
+    public DBMetadataCache() {
+        this(DefaultMaxEntries, DefaultTimeout, DefaultNegativeTimeout);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param maxEntries int
+     * @param timeout    long
+     * @param negTimeout long
+     */
+    public DBMetadataCache(int maxEntries, long timeout, long negTimeout) {
+        m_maxEntries = maxEntries;
+        m_timeout = timeout;
+        m_negTimeout = negTimeout;
+
+        m_cache = new LinkedHashMap<String, CacheEntry>(Math.min(maxEntries, 1024), 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                if (size() <= m_maxEntries)
+                    return false;
+
+                // Evict the least recently used entry
+                unindexEntry(eldest.getValue());
+                m_evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Return the maximum number of cache entries
+     *
+     * @return int
+     */
+    public final int getMaximumEntries() {
+        return m_maxEntries;
+    }
+
+    /**
+     * Return the cache entry timeout, in milliseconds
+     *
+     * @return long
+     */
+    public final long getTimeout() {
+        return m_timeout;
+    }
+
+    /**
+     * Return the number of cache entries
+     *
+     * @return int
+     */
+    public final synchronized int numberOfEntries() {
+        return m_cache.size();
+    }
+
+    /**
+     * Return the number of cache hits
+     *
+     * @return long
+     */
+    public final long getHitCount() {
+        return m_hits;
+    }
+
+    /**
+     * Return the number of negative entry cache hits
+     *
+     * @return long
+     */
+    public final long getNegativeHitCount() {
+        return m_negHits;
+    }
+
+    /**
+     * Return the number of cache misses
+     *
+     * @return long
+     */
+    public final long getMissCount() {
+        return m_misses;
+    }
+
+    /**
+     * Return the number of entries evicted due to the cache size limit
+     *
+     * @return long
+     */
+    public final long getEvictionCount() {
+        return m_evictions;
+    }
+
+    /**
+     * Return the number of entries removed by invalidation
+     *
+     * @return long
+     */
+    public final long getInvalidationCount() {
+        return m_invalidations;
+    }
+
+    /**
+     * Check if debug output is enabled
+     *
+     * @return boolean
+     */
+    public final boolean hasDebug() {
+        return m_debug;
+    }
+
+    /**
+     * Enable/disable debug output
+     *
+     * @param dbg boolean
+     */
+    public final void setDebug(boolean dbg) {
+        m_debug = dbg;
+    }
+
+    /**
+     * Find the file id for a file or folder
+     *
+     * @param dirId int
+     * @param name  String
+     * @return int the file id, -1 if the file is known not to exist, or NotCached
+     */
+    public final synchronized int findFileId(int dirId, String name) {
+
+        // Find a valid entry
+        CacheEntry entry = findEntry(dirId, name);
+        if (updateStatistics(entry, true) == false)
+            return NotCached;
+
+        return entry.fileId;
+    }
+
+    /**
+     * Find the file id for a folder, only entries that are known to be folders, or are negative entries, are used
+     *
+     * @param dirId int
+     * @param name  String
+     * @return int the folder id, -1 if the name is known not to exist, or NotCached
+     */
+    public final synchronized int findDirectoryId(int dirId, String name) {
+
+        // Find a valid entry, the entry type must be known
+        CacheEntry entry = findEntry(dirId, name);
+        if (updateStatistics(entry, entry != null && (entry.fileId == -1 || entry.isDir)) == false)
+            return NotCached;
+
+        return entry.fileId;
+    }
+
+    /**
+     * Find the file information for a file or folder, returns a copy of the cached file information
+     *
+     * @param dirId int
+     * @param name  String
+     * @param fid   int
+     * @return DBFileInfo
+     */
+    public final synchronized DBFileInfo findFileInfo(int dirId, String name, int fid) {
+
+        // Find a valid entry that has the file information for the required file id
+        CacheEntry entry = findEntry(dirId, name);
+        if (updateStatistics(entry, entry != null && entry.finfo != null && entry.fileId == fid) == false)
+            return null;
+
+        return copyFileInfo(entry.finfo);
+    }
+
+    /**
+     * Add, or update, the file id for a file or folder
+     *
+     * @param dirId int
+     * @param name  String
+     * @param path  String
+     * @param fid   int
+     */
+    public final synchronized void addFileId(int dirId, String name, String path, int fid) {
+        CacheEntry entry = getEntry(dirId, name, path, fid);
+        entry.expiresAt = System.currentTimeMillis() + m_timeout;
+    }
+
+    /**
+     * Add, or update, the file id for a folder
+     *
+     * @param dirId int
+     * @param name  String
+     * @param path  String
+     * @param fid   int
+     */
+    public final synchronized void addDirectoryId(int dirId, String name, String path, int fid) {
+        CacheEntry entry = getEntry(dirId, name, path, fid);
+        entry.isDir = true;
+        entry.expiresAt = System.currentTimeMillis() + m_timeout;
+    }
+
+    /**
+     * Add, or update, the file information for a file or folder, a copy of the file information is cached
+     *
+     * @param dirId int
+     * @param name  String
+     * @param path  String
+     * @param fid   int
+     * @param finfo DBFileInfo
+     */
+    public final synchronized void addFileInfo(int dirId, String name, String path, int fid, DBFileInfo finfo) {
+        CacheEntry entry = getEntry(dirId, name, path, fid);
+        entry.finfo = copyFileInfo(finfo);
+        entry.isDir = finfo.isDirectory();
+        entry.expiresAt = System.currentTimeMillis() + m_timeout;
+    }
+
+    /**
+     * Add a negative entry for a file or folder that does not exist
+     *
+     * @param dirId int
+     * @param name  String
+     * @param path  String
+     */
+    public final synchronized void addNotExist(int dirId, String name, String path) {
+        if (m_negTimeout <= 0)
+            return;
+
+        CacheEntry entry = getEntry(dirId, name, path, -1);
+        entry.expiresAt = System.currentTimeMillis() + m_negTimeout;
+    }
+
+    /**
+     * Remove the entry for a file or folder
+     *
+     * @param dirId int
+     * @param name  String
+     */
+    public final synchronized void removeEntry(int dirId, String name) {
+        CacheEntry entry = m_cache.remove(makeKey(dirId, name));
+        if (entry != null) {
+            unindexEntry(entry);
+            m_invalidations++;
+        }
+    }
+
+    /**
+     * Remove the entry for a file id
+     *
+     * @param fid int
+     */
+    public final synchronized void removeFileId(int fid) {
+        CacheEntry entry = m_fidIndex.get(fid);
+        if (entry != null)
+            removeEntry(entry);
+    }
+
+    /**
+     * Remove the cached file information for a file id, the file id mapping is retained
+     *
+     * @param fid int
+     */
+    public final synchronized void removeFileInfo(int fid) {
+        CacheEntry entry = m_fidIndex.get(fid);
+        if (entry != null && entry.finfo != null) {
+            entry.finfo = null;
+            m_invalidations++;
+        }
+    }
+
+    /**
+     * Remove the entry for a path
+     *
+     * @param path String
+     */
+    public final synchronized void removePath(String path) {
+        if (path == null)
+            return;
+
+        CacheEntry entry = m_pathIndex.get(normalizePath(path));
+        if (entry != null)
+            removeEntry(entry);
+    }
+
+    /**
+     * Remove all entries from the cache
+     */
+    public final synchronized void removeAllEntries() {
+        m_cache.clear();
+        m_fidIndex.clear();
+        m_pathIndex.clear();
+    }
+
+    /**
+     * Remove expired entries from the cache
+     *
+     * @return int
+     */
+    public final synchronized int removeExpiredEntries() {
+
+        // Scan the cache for expired entries
+        long timeNow = System.currentTimeMillis();
+        int expireCnt = 0;
+
+        Iterator<CacheEntry> iter = m_cache.values().iterator();
+
+        while (iter.hasNext()) {
+            CacheEntry entry = iter.next();
+
+            if (entry.expiresAt <= timeNow) {
+                iter.remove();
+                unindexEntry(entry);
+                expireCnt++;
+            }
+        }
+
+        return expireCnt;
+    }
+
+    /**
+     * A file state has been updated by a remote node
+     *
+     * @param path   String
+     * @param reason FileState.ChangeReason
+     */
+    public void remoteStateChanged(String path, FileState.ChangeReason reason) {
+
+        // DEBUG
+        if (Debug.EnableDbg && hasDebug())
+            Debug.println("DBMetadataCache remote update path=" + path + ", reason=" + reason.name());
+
+        removePath(path);
+    }
+
+    /**
+     * A file or folder has been renamed by a remote node
+     *
+     * @param oldPath  String
+     * @param newPath  String
+     * @param isFolder boolean
+     */
+    public void remoteStateRenamed(String oldPath, String newPath, boolean isFolder) {
+
+        // DEBUG
+        if (Debug.EnableDbg && hasDebug())
+            Debug.println("DBMetadataCache remote rename from=" + oldPath + ", to=" + newPath);
+
+        // Entries are keyed by the parent folder id so entries below a renamed folder remain valid
+        removePath(oldPath);
+        removePath(newPath);
+    }
+
+    /**
+     * Find a valid entry, expired entries are removed
+     *
+     * @param dirId int
+     * @param name  String
+     * @return CacheEntry
+     */
+    private CacheEntry findEntry(int dirId, String name) {
+        CacheEntry entry = m_cache.get(makeKey(dirId, name));
+
+        if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+
+            // Remove the expired entry
+            m_cache.remove(entry.key);
+            unindexEntry(entry);
+            entry = null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Update the cache statistics for a lookup
+     *
+     * @param entry  CacheEntry
+     * @param usable boolean
+     * @return boolean true if the entry can be used
+     */
+    private boolean updateStatistics(CacheEntry entry, boolean usable) {
+        if (entry == null || usable == false) {
+            m_misses++;
+            return false;
+        }
+
+        if (entry.fileId == -1)
+            m_negHits++;
+        else
+            m_hits++;
+
+        return true;
+    }
+
+    /**
+     * Get, or create, an entry for the specified file id, cached file information is cleared if the file id
+     * has changed
+     *
+     * @param dirId int
+     * @param name  String
+     * @param path  String
+     * @param fid   int
+     * @return CacheEntry
+     */
+    private CacheEntry getEntry(int dirId, String name, String path, int fid) {
+        String key = makeKey(dirId, name);
+        CacheEntry entry = m_cache.get(key);
+
+        if (entry == null) {
+
+            // Create a new entry
+            entry = new CacheEntry();
+            entry.key = key;
+            entry.dirId = dirId;
+            entry.fileId = fid;
+
+            m_cache.put(key, entry);
+        }
+        else if (entry.fileId != fid) {
+
+            // Reset the entry for the new file id
+            if (entry.fileId != -1 && m_fidIndex.get(entry.fileId) == entry)
+                m_fidIndex.remove(entry.fileId);
+
+            entry.fileId = fid;
+            entry.finfo = null;
+            entry.isDir = false;
+        }
+
+        // Index the entry by file id and path
+        if (fid != -1)
+            m_fidIndex.put(fid, entry);
+
+        if (path != null) {
+            String normPath = normalizePath(path);
+
+            if (entry.path != null && entry.path.equals(normPath) == false && m_pathIndex.get(entry.path) == entry)
+                m_pathIndex.remove(entry.path);
+
+            entry.path = normPath;
+            m_pathIndex.put(normPath, entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Remove an entry from the cache and indexes
+     *
+     * @param entry CacheEntry
+     */
+    private void removeEntry(CacheEntry entry) {
+        m_cache.remove(entry.key);
+        unindexEntry(entry);
+        m_invalidations++;
+    }
+
+    /**
+     * Remove an entry from the file id and path indexes
+     *
+     * @param entry CacheEntry
+     */
+    private void unindexEntry(CacheEntry entry) {
+        if (entry.fileId != -1 && m_fidIndex.get(entry.fileId) == entry)
+            m_fidIndex.remove(entry.fileId);
+
+        if (entry.path != null && m_pathIndex.get(entry.path) == entry)
+            m_pathIndex.remove(entry.path);
+    }
+
+    /**
+     * Build the cache key for a parent folder id and file name
+     *
+     * @param dirId int
+     * @param name  String
+     * @return String
+     */
+    private static String makeKey(int dirId, String name) {
+        StringBuilder key = new StringBuilder(name.length() + 12);
+
+        key.append(dirId);
+        key.append(':');
+        key.append(FileState.normalizePath(name, false));
+
+        return key.toString();
+    }
+
+    /**
+     * Normalize a path for the path index, uppercase and strip any trailing separator
+     *
+     * @param path String
+     * @return String
+     */
+    private static String normalizePath(String path) {
+        if (path.length() > 1 && path.endsWith(FileName.DOS_SEPERATOR_STR))
+            path = path.substring(0, path.length() - 1);
+
+        return FileState.normalizePath(path, false);
+    }
+
+    /**
+     * Copy file information
+     *
+     * @param finfo DBFileInfo
+     * @return DBFileInfo
+     */
+    private static DBFileInfo copyFileInfo(DBFileInfo finfo) {
+        DBFileInfo copyInfo = new DBFileInfo();
+
+        copyInfo.copyFrom(finfo);
+        copyInfo.setFileType(finfo.isFileType());
+        copyInfo.setFullName(finfo.getFullName());
+
+        return copyInfo;
+    }
+
+    /**
+     * Return the metadata cache details as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[Metadata cache entries=");
+        str.append(numberOfEntries());
+        str.append("/");
+        str.append(getMaximumEntries());
+        str.append(", hits=");
+        str.append(getHitCount());
+        str.append(", negHits=");
+        str.append(getNegativeHitCount());
+        str.append(", misses=");
+        str.append(getMissCount());
+        str.append(", evicted=");
+        str.append(getEvictionCount());
+        str.append(", invalidated=");
+        str.append(getInvalidationCount());
+        str.append("]");
+
+        return str.toString();
+    }
+}
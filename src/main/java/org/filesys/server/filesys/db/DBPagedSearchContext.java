@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.filesys.server.filesys.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.filesys.debug.Debug;
+import org.filesys.server.filesys.FileAttribute;
+import org.filesys.server.filesys.FileInfo;
+import org.filesys.util.WildCard;
+
+/**
+ * Database Paged Search Context Class
+ *
+ * <p>Search context that loads folder entries from the database in pages, ordered by file name. Each page is
+ * loaded using a keyset query that starts after the last name of the previous page, the database connection is
+ * only held whilst a page is being loaded. Abandoned searches do not pin pooled connections, and the memory used
+ * is bounded by the page size.
+ *
+ * <p>Resume ids are the position of an entry within the search. A restart within the current page is resolved
+ * locally, a restart outside the current page reloads the search from the start, or from the restart file name.
+ *
+ * @author gkspencer
+ */
+public abstract class DBPagedSearchContext extends DBSearchContext {
+
+    // Default, minimum and maximum number of entries per page
+    public static final int DefaultPageSize = 512;
+    public static final int MinimumPageSize = 16;
+    public static final int MaximumPageSize = 8192;
+
+    // Number of entries to load per page
+    private int m_pageSize;
+
+    // Current page of entries, index of the next entry and position of the first entry within the search
+    private List<DBFileInfo> m_page;
+    private int m_pageIdx;
+    private int m_pageBase;
+
+    // Name of the last entry in the current page, and flag to indicate the current page is the last page
+    private String m_lastName;
+    private boolean m_lastPage;
+    private boolean m_loaded;
+
+    // Number of pages loaded
+    private int m_pageLoads;
+
+    /**
+     * Class constructor
+     *
+     * @param filter   WildCard
+     * @param pageSize int
+     */
+    protected DBPagedSearchContext(WildCard filter, int pageSize) {
+        super(null, filter);
+
+        m_pageSize = pageSize;
+        m_page = new ArrayList<DBFileInfo>(pageSize);
+    }
+
+    /**
+     * Load a page of folder entries, ordered by file name. The implementation must release the database
+     * connection before returning.
+     *
+     * @param startName String, or null to start at the first entry
+     * @param inclusive boolean, true to include an entry that matches the start name
+     * @param maxRows   int
+     * @param page      List of DBFileInfo to add the entries to
+     * @exception DBException Database error
+     */
+    protected abstract void loadPage(String startName, boolean inclusive, int maxRows, List<DBFileInfo> page)
+            throws DBException;
+
+    /**
+     * Return the page size
+     *
+     * @return int
+     */
+    public final int getPageSize() {
+        return m_pageSize;
+    }
+
+    /**
+     * Return the number of pages loaded
+     *
+     * @return int
+     */
+    public final int getPageLoadCount() {
+        return m_pageLoads;
+    }
+
+    /**
+     * Load the first page of the search, allows database errors to be reported when the search is started
+     *
+     * @exception DBException Database error
+     */
+    public final void startPagedSearch()
+            throws DBException {
+        m_pageBase = 0;
+        loadNextPage(null, false);
+    }
+
+    /**
+     * Return the resume id for the current file/directory in the search.
+     *
+     * @return int
+     */
+    public int getResumeId() {
+        return m_pageBase + m_pageIdx;
+    }
+
+    /**
+     * Determine if there are more files for the active search.
+     *
+     * @return boolean
+     */
+    public boolean hasMoreFiles() {
+        if (m_loaded == false || m_pageIdx < m_page.size())
+            return true;
+        return m_lastPage == false;
+    }
+
+    /**
+     * Return the next file from the search, or return false if there are no more files
+     *
+     * @param info FileInfo
+     * @return boolean
+     */
+    public boolean nextFileInfo(FileInfo info) {
+
+        // Get the next entry
+        DBFileInfo finfo = nextEntry();
+        if (finfo == null)
+            return false;
+
+        // Copy the file details
+        info.copyFrom(finfo);
+        info.setFileType(finfo.isFileType());
+
+        // Check if files should be marked as offline
+        if (hasMarkAsOffline() && info.hasAttribute(FileAttribute.NTOffline) == false) {
+            if (getOfflineFileSize() == 0 || info.getSize() >= getOfflineFileSize())
+                info.setFileAttributes(info.getFileAttributes() + FileAttribute.NTOffline);
+        }
+
+        return true;
+    }
+
+    /**
+     * Return the file name of the next file in the active search. Returns null if the search is complete.
+     *
+     * @return String
+     */
+    public String nextFileName() {
+
+        // Get the next entry
+        DBFileInfo finfo = nextEntry();
+        return finfo != null ? finfo.getFileName() : null;
+    }
+
+    /**
+     * Restart a search at the specified resume point.
+     *
+     * @param resumeId Resume point id.
+     * @return true if the search can be restarted, else false.
+     */
+    public boolean restartAt(int resumeId) {
+
+        if (resumeId < 0)
+            return false;
+
+        // Check if the resume point is within the current page
+        if (m_loaded && resumeId >= m_pageBase && resumeId <= m_pageBase + m_page.size()) {
+            m_pageIdx = resumeId - m_pageBase;
+            return true;
+        }
+
+        // Reload the search from the start and skip whole pages until the resume point is reached
+        try {
+            startPagedSearch();
+
+            while (resumeId > m_pageBase + m_page.size() && m_lastPage == false) {
+                m_pageBase += m_page.size();
+                loadNextPage(m_lastName, false);
+            }
+        }
+        catch (DBException ex) {
+            if (Debug.hasDumpStackTraces())
+                Debug.println(ex);
+            return false;
+        }
+
+        // Position at the resume point
+        if (resumeId > m_pageBase + m_page.size())
+            return false;
+
+        m_pageIdx = resumeId - m_pageBase;
+        return true;
+    }
+
+    /**
+     * Restart the current search at the specified file.
+     *
+     * @param info File to restart the search at.
+     * @return true if the search can be restarted, else false.
+     */
+    public boolean restartAt(FileInfo info) {
+
+        // Search the current page for the restart file, the file is returned again by the next call
+        if (m_loaded) {
+            for (int idx = Math.min(m_pageIdx, m_page.size()) - 1; idx >= 0; idx--) {
+                if (m_page.get(idx).getFileName().equalsIgnoreCase(info.getFileName())) {
+                    m_pageIdx = idx;
+                    return true;
+                }
+            }
+        }
+
+        // Reload a page starting at the restart file name, the restart file is usually the last entry of the
+        // previous page
+        try {
+            m_pageBase = Math.max(0, m_pageBase - 1);
+            loadNextPage(info.getFileName(), true);
+        }
+        catch (DBException ex) {
+            if (Debug.hasDumpStackTraces())
+                Debug.println(ex);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Return the total number of file entries for this search if known, else return -1
+     *
+     * @return int
+     */
+    public int numberOfEntries() {
+
+        // Only known once the last page has been loaded
+        if (m_loaded && m_lastPage)
+            return m_pageBase + m_page.size();
+        return -1;
+    }
+
+    /**
+     * Close the search
+     */
+    public void closeSearch() {
+
+        // Release the current page
+        m_page.clear();
+        m_pageIdx = 0;
+        m_lastPage = true;
+
+        // Call the base class
+        super.closeSearch();
+    }
+
+    /**
+     * Return the next entry that matches the search filter, loading the next page if required
+     *
+     * @return DBFileInfo
+     */
+    private DBFileInfo nextEntry() {
+
+        try {
+
+            // Load the first page, if not already loaded
+            if (m_loaded == false)
+                startPagedSearch();
+
+            while (true) {
+
+                // Check if the current page has been consumed, load the next page
+                if (m_pageIdx >= m_page.size()) {
+                    if (m_lastPage || m_page.isEmpty())
+                        return null;
+
+                    m_pageBase += m_page.size();
+                    loadNextPage(m_lastName, false);
+
+                    if (m_page.isEmpty())
+                        return null;
+                }
+
+                // Get the next entry, check it against the search filter
+                DBFileInfo finfo = m_page.get(m_pageIdx++);
+
+                if (m_filter == null || m_filter.matchesPattern(finfo.getFileName()))
+                    return finfo;
+            }
+        }
+        catch (DBException ex) {
+
+            // DEBUG
+            if (Debug.hasDumpStackTraces())
+                Debug.println(ex);
+
+            // End the search
+            m_page.clear();
+            m_pageIdx = 0;
+            m_lastPage = true;
+        }
+
+        return null;
+    }
+
+    /**
+     * Load the next page of entries
+     *
+     * @param startName String
+     * @param inclusive boolean
+     * @exception DBException Database error
+     */
+    private void loadNextPage(String startName, boolean inclusive)
+            throws DBException {
+
+        // Load the page
+        m_page.clear();
+        m_pageIdx = 0;
+
+        loadPage(startName, inclusive, m_pageSize, m_page);
+
+        m_pageLoads++;
+        m_loaded = true;
+
+        // A short page is the last page
+        m_lastPage = m_page.size() < m_pageSize;
+
+        if (m_page.isEmpty() == false)
+            m_lastName = m_page.get(m_page.size() - 1).getFileName();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.filesys.server.filesys.db;
+
+import java.util.List;
+
+import org.filesys.server.filesys.loader.FileRequest;
+import org.filesys.server.filesys.loader.FileRequestQueue;
+
+/**
+ * Database Queue Batch Interface
+ *
+ * <p>Optional interface implemented by a database queue interface that can queue and delete file requests in
+ * batches. Each batch should be written using a single JDBC batch statement and committed as a single database
+ * transaction, so that a burst of file requests costs a few round trips rather than one round trip per request.
+ *
+ * @author gkspencer
+ */
+public interface DBQueueBatchInterface {
+
+    /**
+     * Queue a batch of file requests. The requests must be written atomically, either all requests are queued or
+     * none are, and the sequence number of each request must be set before the method returns.
+     *
+     * @param reqList List of FileRequest
+     * @exception DBException Database error
+     */
+    public void queueFileRequests(List<FileRequest> reqList)
+            throws DBException;
+
+    /**
+     * Delete a batch of file requests from the pending queue. The requests must be deleted atomically.
+     *
+     * @param reqList List of FileRequest
+     * @exception DBException Database error
+     */
+    public void deleteFileRequests(List<FileRequest> reqList)
+            throws DBException;
+
+    /**
+     * Load and claim a block of file requests from the database into the specified queue. The requests must be
+     * selected and marked as claimed within a single database transaction so that a request is only returned once,
+     * even when the queue is shared by multiple loaders. Claimed requests remain in the queue until deleted, claims
+     * left by a previous server run must be released by the queue cleanup at startup.
+     *
+     * @param seqNo    int
+     * @param reqType  FileRequest.RequestType
+     * @param reqQueue FileRequestQueue
+     * @param recLimit int
+     * @return int
+     * @exception DBException Database error
+     */
+    public int claimFileRequests(int seqNo, FileRequest.RequestType reqType, FileRequestQueue reqQueue, int recLimit)
+            throws DBException;
+}
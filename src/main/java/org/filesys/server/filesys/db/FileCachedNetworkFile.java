@@ -148,6 +148,17 @@ public class FileCachedNetworkFile extends CachedNetworkFile {
         m_lastReadPos = fileOff;
         m_lastReadLen = len;
 
+        // Check if the file data can be loaded on demand, for the range being read
+        if (m_cacheFile.isDataAvailable() == false && loadFileRange(fileOff, len)) {
+
+            // DEBUG
+            if ( hasDebug())
+                Debug.println("FileCachedNetworkFile Range Read, file=" + getName() + ", fid=" + getFileId() + ", " + m_cacheFile.getFileInfo());
+
+            // Read the file using the file segment
+            return m_cacheFile.readBytes(buf, len, pos, fileOff);
+        }
+
         // Check if the file data has been loaded
         if (m_cacheFile.hasStatus() == FileSegmentInfo.State.Initial && m_cacheFile.isQueued() == false) {
 
@@ -316,6 +327,9 @@ public class FileCachedNetworkFile extends CachedNetworkFile {
         if (getGrantedAccess() == NetworkFile.Access.READ_ONLY)
             throw new AccessDeniedException("File is read-only");
 
+        // Make sure all the file data is loaded if the file is being loaded by range
+        loadAllFileData();
+
         // Write the file using the file segment
         m_cacheFile.writeBytes(buf, len, pos, offset);
 
@@ -367,6 +381,9 @@ public class FileCachedNetworkFile extends CachedNetworkFile {
         if (getGrantedAccess() == NetworkFile.Access.READ_ONLY)
             throw new AccessDeniedException("File is read-only");
 
+        // Make sure all the file data is loaded if the file is being loaded by range
+        loadAllFileData();
+
         // Truncate the file
         m_cacheFile.truncate(siz);
 
@@ -409,6 +426,46 @@ public class FileCachedNetworkFile extends CachedNetworkFile {
         }
     }
 
+    /**
+     * Load a range of the file data on demand, if the file loader supports range loading
+     *
+     * @param fileOff long
+     * @param len long
+     * @return boolean true if the range has been loaded, false if the whole file must be loaded
+     * @throws IOException Error loading the file data
+     */
+    protected final boolean loadFileRange(long fileOff, long len)
+            throws IOException {
+
+        // Check if the file loader supports range loading
+        if (getLoader() instanceof RangeFileLoader == false)
+            return false;
+
+        // Indicate that an I/O is pending on this file whilst the range is loaded
+        try {
+            setIOPending(true);
+            return ((RangeFileLoader) getLoader()).loadFileRange(this, fileOff, len);
+        }
+        finally {
+            setIOPending(false);
+        }
+    }
+
+    /**
+     * Load all the remaining file data if the file is being loaded by range, must be called before the file data
+     * is modified
+     *
+     * @throws IOException Error loading the file data
+     */
+    protected final void loadAllFileData()
+            throws IOException {
+
+        FragmentMap fragMap = m_cacheFile.getFileInfo().getFragmentMap();
+
+        if (fragMap != null && m_cacheFile.isDataAvailable() == false)
+            loadFileRange(0L, fragMap.getDataLength());
+    }
+
     /**
      * Create a file load or save request. This method may be overridden to allow extending of the
      * SingleFileRequest class.
@@ -21,7 +21,9 @@ package org.filesys.server.filesys.db;
 
 import java.io.File;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.EnumSet;
 
 import org.filesys.debug.Debug;
@@ -117,9 +119,18 @@ public abstract class JdbcDBInterface implements DBInterface, DBConnectionPoolLi
 
     protected int m_onlineCheckInterval;
 
+    //	Time to wait for a pooled connection when all connections are in use, in milliseconds
+    protected long m_dbWaitTimeout = DBConnectionPool.DefaultWaitTimeout;
+
+    //	Number of prepared statements to cache per pooled connection
+    protected int m_stmtCacheSize = DBConnectionPool.DefaultStatementCacheSize;
+
     //	Data fragment size to store per BLOB when the file data is stored in the database
     protected long m_dataFragSize = DefaultFragSize;
 
+    // Number of entries to load per page for paged folder searches
+    protected int m_searchPageSize = DBPagedSearchContext.DefaultPageSize;
+
     //  Pending file save requests, used when the database goes offline
     protected FileRequestQueue m_pendingSaveRequests;
 
@@ -416,6 +427,38 @@ public abstract class JdbcDBInterface implements DBInterface, DBConnectionPoolLi
             }
         }
 
+        //  Check if the connection wait timeout has been specified, zero indicates requests do not wait
+        nameVal = params.getChild("ConnectionWaitTimeout");
+        if (nameVal != null) {
+            try {
+
+                // Parse the connection wait timeout value, in milliseconds
+                m_dbWaitTimeout = Long.parseLong(nameVal.getValue());
+                if (m_dbWaitTimeout < 0L || m_dbWaitTimeout > DBConnectionPool.MaximumWaitTimeout)
+                    throw new InvalidConfigurationException("Database connection wait timeout out of valid range (0-"
+                            + DBConnectionPool.MaximumWaitTimeout + ")");
+            }
+            catch (NumberFormatException ex) {
+                throw new InvalidConfigurationException("Database connection wait timeout value invalid, " + nameVal.getValue(), ex);
+            }
+        }
+
+        //  Check if the prepared statement cache size has been specified, zero disables statement caching
+        nameVal = params.getChild("StatementCacheSize");
+        if (nameVal != null) {
+            try {
+
+                // Parse the statement cache size value
+                m_stmtCacheSize = Integer.parseInt(nameVal.getValue());
+                if (m_stmtCacheSize < 0 || m_stmtCacheSize > DBConnectionPool.MaximumStatementCacheSize)
+                    throw new InvalidConfigurationException("Database statement cache size out of valid range (0-"
+                            + DBConnectionPool.MaximumStatementCacheSize + ")");
+            }
+            catch (NumberFormatException ex) {
+                throw new InvalidConfigurationException("Database statement cache size value invalid, " + nameVal.getValue(), ex);
+            }
+        }
+
         // Check if the startup database connection wait time has been specified
         nameVal = params.getChild("WaitForDatabase");
         if (nameVal != null) {
@@ -431,6 +474,22 @@ public abstract class JdbcDBInterface implements DBInterface, DBConnectionPoolLi
             }
         }
 
+        // Check if the folder search page size has been specified
+        nameVal = params.getChild("SearchPageSize");
+        if (nameVal != null) {
+            try {
+
+                // Parse the search page size value
+                m_searchPageSize = Integer.parseInt(nameVal.getValue());
+                if (m_searchPageSize < DBPagedSearchContext.MinimumPageSize || m_searchPageSize > DBPagedSearchContext.MaximumPageSize)
+                    throw new InvalidConfigurationException("Database search page size out of valid range (" + DBPagedSearchContext.MinimumPageSize
+                            + "-" + DBPagedSearchContext.MaximumPageSize + ")");
+            }
+            catch (NumberFormatException ex) {
+                throw new InvalidConfigurationException("Database search page size value invalid, " + nameVal.getValue(), ex);
+            }
+        }
+
         //  Check if debug output is enabled
         if (params.getChild("Debug") != null)
             m_debug = true;
@@ -482,8 +541,14 @@ public abstract class JdbcDBInterface implements DBInterface, DBConnectionPoolLi
     public void shutdownDatabase(DBDeviceContext context) {
 
         //	Close the database connection pool
-        if (m_connPool != null)
+        if (m_connPool != null) {
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug())
+                Debug.println("JDBCInterface: Connection pool " + m_connPool.toString());
+
             m_connPool.closePool();
+        }
     }
 
     /**
@@ -774,6 +839,15 @@ public abstract class JdbcDBInterface implements DBInterface, DBConnectionPoolLi
         return m_dataFragSize;
     }
 
+    /**
+     * Return the number of entries to load per page for paged folder searches
+     *
+     * @return int
+     */
+    protected final int getSearchPageSize() {
+        return m_searchPageSize;
+    }
+
     /**
      * Check if database interface debug output is enabled
      *
@@ -879,6 +953,8 @@ public abstract class JdbcDBInterface implements DBInterface, DBConnectionPoolLi
 
         //	Create the connection pool
         m_connPool = new DBConnectionPool(m_driver, m_dsn, m_userName, m_password, m_dbInitConns, m_dbMaxConns, callback);
+        m_connPool.setStatementCacheSize(m_stmtCacheSize);
+        m_connPool.setWaitTimeout(m_dbWaitTimeout);
 
         // Set the online check interval, if specified
         if (m_onlineCheckInterval != 0)
@@ -902,6 +978,63 @@ public abstract class JdbcDBInterface implements DBInterface, DBConnectionPoolLi
         throw new DBException("Feature not implemented");
     }
 
+    /**
+     * Execute a batch of statements as a single database transaction. Used by queue implementations to write
+     * batched file request inserts/deletes with one round trip and one commit. The connection auto-commit
+     * setting is restored before returning, the transaction is rolled back if the batch fails.
+     *
+     * @param conn Connection
+     * @param stmt PreparedStatement
+     * @return int
+     * @exception SQLException SQL error
+     */
+    protected final int executeBatchTransaction(Connection conn, PreparedStatement stmt)
+            throws SQLException {
+
+        // Run the batch with auto-commit disabled so the whole batch is committed once
+        boolean autoCommit = conn.getAutoCommit();
+        int updCnt = 0;
+
+        try {
+            if (autoCommit)
+                conn.setAutoCommit(false);
+
+            int[] updCnts = stmt.executeBatch();
+            conn.commit();
+
+            // Count the updated rows, drivers may not return exact counts for batched statements
+            for (int cnt : updCnts) {
+                if (cnt > 0)
+                    updCnt += cnt;
+                else if (cnt == Statement.SUCCESS_NO_INFO)
+                    updCnt++;
+            }
+        }
+        catch (SQLException ex) {
+
+            // Rollback the partial batch
+            try {
+                conn.rollback();
+            }
+            catch (SQLException ex2) {
+            }
+
+            throw ex;
+        }
+        finally {
+
+            // Restore the auto-commit setting
+            if (autoCommit)
+                conn.setAutoCommit(true);
+        }
+
+        // DEBUG
+        if (hasSQLDebug())
+            Debug.println("JDBCInterface: Batch transaction updated " + updCnt + " rows");
+
+        return updCnt;
+    }
+
     /**
      * Queue a file save request to the pending save queue as the database is offline
      *
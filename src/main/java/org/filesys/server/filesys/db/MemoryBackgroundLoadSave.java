@@ -251,7 +251,10 @@ public class MemoryBackgroundLoadSave {
                             }
                         }
 
-                        //	Add the request to the end of the in-memory queue
+                        //	Add the request to the end of the in-memory queue, a requeued save is processed after new requests
+                        if (fileReq.isType() == FileRequest.RequestType.Save)
+                            fileReq.setPriority(FileRequest.Priority.Low);
+
                         mi_queue.addRequest(fileReq);
                     }
                 }
@@ -277,9 +280,10 @@ public class MemoryBackgroundLoadSave {
         m_stateCache = stateCache;
         m_fileLoader = bgLoader;
 
-        //	Create the file request queues
-        m_readQueue = new FileRequestQueue();
-        m_writeQueue = new FileRequestQueue();
+        //	Create the file request queues, requests are processed in priority order and queued saves for the same
+        //	file are merged
+        m_readQueue = new FileRequestQueue(true);
+        m_writeQueue = new FileRequestQueue(true);
 
         //	Set the in-memory queue size and low water mark
         m_maxQueueSize = RequestQueueDefaultSize;
@@ -302,9 +306,10 @@ public class MemoryBackgroundLoadSave {
         m_stateCache = stateCache;
         m_fileLoader = bgLoader;
 
-        //	Create the file request queues
-        m_readQueue = new FileRequestQueue();
-        m_writeQueue = new FileRequestQueue();
+        //	Create the file request queues, requests are processed in priority order and queued saves for the same
+        //	file are merged
+        m_readQueue = new FileRequestQueue(true);
+        m_writeQueue = new FileRequestQueue(true);
 
         //	Set the in-memory queue size and low water mark
         m_maxQueueSize = RequestQueueDefaultSize;
@@ -20,10 +20,17 @@
 package org.filesys.server.filesys.db;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.filesys.debug.Debug;
 import org.filesys.server.SrvSession;
@@ -48,7 +55,11 @@ import org.filesys.server.filesys.loader.FileRequest;
 import org.filesys.server.filesys.loader.FileRequestQueue;
 import org.filesys.server.filesys.loader.FileSegment;
 import org.filesys.server.filesys.loader.FileSegmentInfo;
+import org.filesys.server.filesys.loader.FragmentLoader;
+import org.filesys.server.filesys.loader.FragmentMap;
 import org.filesys.server.filesys.loader.SingleFileRequest;
+import org.filesys.util.HexDump;
+import org.filesys.util.MemorySize;
 import org.filesys.util.NameValue;
 import org.filesys.util.NameValueList;
 import org.filesys.util.StringList;
@@ -66,7 +77,7 @@ import org.springframework.extensions.config.ConfigElement;
  *
  * @author gkspencer
  */
-public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLoader, FileStateListener {
+public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLoader, FileStateListener, RangeFileLoader {
 
     // Temporary sub-directory/file/Jar prefix
     public static final String TempDirPrefix    = "ldr";
@@ -97,6 +108,15 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
     // Memory buffer maximum size
     public final static long MAX_MEMORYBUFFER = 512L * 1024L; // 1/2Mb
 
+    // Content id hash algorithm, and buffer size used to hash the file data
+    public final static String ContentIdAlgorithm = "SHA-256";
+    private final static int ContentIdBufferSize = 64 * 1024;
+
+    // Default/minimum/maximum number of content addressed saves between removing unreferenced objects
+    public final static int DefaultContentCleanupSaves = 100;
+    public final static int MinimumContentCleanupSaves = 1;
+    public final static int MaximumContentCleanupSaves = 100000;
+
     // Name, used to prefix worker thread names
     private String m_name;
 
@@ -121,6 +141,20 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
     // Database object id interface used to load/save the file id/object id mappings
     private DBObjectIdInterface m_dbObjectIdInterface;
 
+    // Database content id interface, used when file data objects are shared by content
+    private DBContentIdInterface m_dbContentIdInterface;
+
+    // Content addressed save statistics, objects stored/saves that used an existing object, bytes not stored and
+    // unreferenced objects deleted
+    private AtomicLong m_contentStoreCnt = new AtomicLong();
+    private AtomicLong m_contentShareCnt = new AtomicLong();
+    private AtomicLong m_contentShareSize = new AtomicLong();
+    private AtomicLong m_contentDeleteCnt = new AtomicLong();
+
+    // Number of content addressed saves between removing unreferenced objects, and saves since the last removal
+    private int m_contentCleanupSaves = DefaultContentCleanupSaves;
+    private AtomicInteger m_contentCleanupCnt = new AtomicInteger();
+
     // Worker thread pool for loading/saving file data
     private BackgroundLoadSave m_backgroundLoader;
 
@@ -141,6 +175,22 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
     private int m_tempCount;
     private int m_tempMax;
 
+    // Temporary file cache, keeps loaded file data in the temporary area up to a disk space budget
+    private TempFileCache m_tempCache;
+
+    // Load file data on demand by range, number of fragments to prefetch and prefetch threads
+    private boolean m_rangeLoad;
+    private int m_rangePrefetch = FragmentLoader.DefaultPrefetch;
+    private int m_rangeThreads = FragmentLoader.DefaultThreads;
+    private long m_rangeFragSize = DEFAULT_FRAGSIZE;
+
+    private FragmentLoader m_fragLoader;
+
+    // Batched queue writes, linger time and maximum batch size
+    private boolean m_queueBatch;
+    private long m_batchLinger = BackgroundLoadSave.DefaultBatchLinger;
+    private int m_batchSize = BackgroundLoadSave.DefaultBatchSize;
+
     // List of file processors that process cached files before storing and after loading.
     private FileProcessorList m_fileProcessors;
 
@@ -221,6 +271,15 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
         return m_curTempDir;
     }
 
+    /**
+     * Return the temporary file cache, or null if not enabled
+     *
+     * @return TempFileCache
+     */
+    public final TempFileCache getTempFileCache() {
+        return m_tempCache;
+    }
+
     /**
      * Return the database object id interface
      *
@@ -230,6 +289,51 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
         return m_dbObjectIdInterface;
     }
 
+    /**
+     * Check if file data objects are shared by content
+     *
+     * @return boolean
+     */
+    public final boolean isContentAddressed() {
+        return m_dbContentIdInterface != null;
+    }
+
+    /**
+     * Return the count of file saves that stored a new object, in content addressed mode
+     *
+     * @return long
+     */
+    public final long getContentStoreCount() {
+        return m_contentStoreCnt.get();
+    }
+
+    /**
+     * Return the count of file saves that used an existing object, in content addressed mode
+     *
+     * @return long
+     */
+    public final long getContentShareCount() {
+        return m_contentShareCnt.get();
+    }
+
+    /**
+     * Return the total size of the file data that did not need to be stored, in content addressed mode
+     *
+     * @return long
+     */
+    public final long getContentShareSize() {
+        return m_contentShareSize.get();
+    }
+
+    /**
+     * Return the count of unreferenced objects deleted, in content addressed mode
+     *
+     * @return long
+     */
+    public final long getContentDeleteCount() {
+        return m_contentDeleteCnt.get();
+    }
+
     /**
      * Add a file processor to process files before storing and after loading.
      *
@@ -384,6 +488,13 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
             // Check if the file is being opened for sequential access and the data has not yet been loaded
             FileSegment fileSeg = cacheFile.getFileSegment();
 
+            // Update the temporary file cache statistics, and check if the cache is over budget
+            if (m_tempCache != null) {
+                if (create == false && params.isOverwrite() == false)
+                    m_tempCache.recordAccess(fileSeg.getFileInfo().hasStatus());
+                m_tempCache.checkCacheSize();
+            }
+
             if (create == true || params.isOverwrite() == true) {
 
                 // Indicate that the file data is available, this is a new file or the existing file is being
@@ -441,6 +552,10 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
             // Get the file segment details
             FileSegment fileSeg = cacheFile.getFileSegment();
 
+            // Update the temporary file size in the temporary file cache
+            if (m_tempCache != null)
+                m_tempCache.updateFileSize(fileSeg.getTemporaryFile());
+
             // Check if the file data has been updated, if so then queue a file save
             if (fileSeg.isUpdated() && netFile.hasDeleteOnClose() == false) {
 
@@ -538,6 +653,14 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
     public void deleteFile(String fname, int fid, int stid)
             throws IOException {
 
+        // Cancel any queued saves for the file, there is no need to save data for a deleted file
+        if (m_backgroundLoader != null)
+            m_backgroundLoader.cancelFileRequests(fid, stid);
+
+        // Remove the file from the temporary file cache
+        if (m_tempCache != null)
+            m_tempCache.removeFile(fid, stid);
+
         // Delete the file data from the database
         try {
 
@@ -566,6 +689,11 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
                     }
                 }
             }
+
+            // Release the content reference for the file, the object is deleted from the store by the next file save
+            // if it is no longer referenced
+            if (m_dbContentIdInterface != null)
+                m_dbContentIdInterface.deleteContentReference(fid, stid);
         }
         catch (Exception ex) {
 
@@ -730,6 +858,12 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
             fileSeg.deleteTemporaryFile();
         }
 
+        // Update the temporary file size in the temporary file cache, and check if the cache is over budget
+        if (m_tempCache != null && loadSts != BackgroundLoadSave.Status.Requeue) {
+            m_tempCache.updateFileSize(loadReq.getTemporaryFile());
+            m_tempCache.checkCacheSize();
+        }
+
         // Return the load file status
         return loadSts;
     }
@@ -772,11 +906,19 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
         // Save the file data
         try {
 
-            // Save the file data and get the assigned object id
-            String objectId = saveFileData(saveReq.getFileId(), saveReq.getStreamId(), fileSeg, req.getAttributes());
+            // Check if file data objects are shared by content
+            if (m_dbContentIdInterface != null) {
 
-            // Save the object id to the mapping database
-            getDBObjectIdInterface().saveObjectId(saveReq.getFileId(), saveReq.getStreamId(), objectId);
+                // Save the file data, or use an existing object with the same content
+                storeFileContent(saveReq, fileSeg);
+            } else {
+
+                // Save the file data and get the assigned object id
+                String objectId = saveFileData(saveReq.getFileId(), saveReq.getStreamId(), fileSeg, req.getAttributes());
+
+                // Save the object id to the mapping database
+                getDBObjectIdInterface().saveObjectId(saveReq.getFileId(), saveReq.getStreamId(), objectId);
+            }
 
             // Indicate that the save was successful
             saveSts = BackgroundLoadSave.Status.Success;
@@ -810,6 +952,183 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
         return saveSts;
     }
 
+    /**
+     * Save the file data in content addressed mode. The file data is hashed to generate the content id, if the content
+     * is already stored then the file is mapped to the existing object and no file data is stored.
+     *
+     * @param saveReq SingleFileRequest
+     * @param fileSeg FileSegment
+     * @exception DBException Database error
+     * @exception IOException I/O error
+     */
+    protected final void storeFileContent(SingleFileRequest saveReq, FileSegment fileSeg)
+            throws DBException, IOException {
+
+        // Generate the content id for the file data
+        int fileId = saveReq.getFileId();
+        int strmId = saveReq.getStreamId();
+
+        String contentId = generateContentId(fileSeg);
+
+        // Check if the content is already stored, if so then only the object id mapping is updated
+        String objectId = m_dbContentIdInterface.addContentReference(fileId, strmId, contentId);
+
+        if (objectId != null) {
+
+            // Update the content statistics
+            m_contentShareCnt.incrementAndGet();
+            m_contentShareSize.addAndGet(fileSeg.getFileLength());
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug())
+                Debug.println("## ObjIdLoader Save fid=" + fileId + ", stream=" + strmId + " using existing object " + objectId +
+                        ", content=" + contentId);
+        } else {
+
+            // Save the file data and get the assigned object id
+            String newObjectId = saveFileData(fileId, strmId, fileSeg, saveReq.getAttributes());
+
+            // Record the content, another save of the same content may have stored the content first
+            objectId = m_dbContentIdInterface.saveContentId(fileId, strmId, contentId, newObjectId);
+            m_contentStoreCnt.incrementAndGet();
+
+            if (objectId != null && objectId.equals(newObjectId) == false) {
+
+                // DEBUG
+                if (Debug.EnableInfo && hasDebug())
+                    Debug.println("## ObjIdLoader Content " + contentId + " stored by another save, deleting object " + newObjectId);
+
+                // Delete the duplicate object
+                deleteContentObject(newObjectId);
+            }
+        }
+
+        // Delete objects that are no longer referenced, in batches, unreferenced objects are also deleted when the
+        // loader is shutdown. The file save has completed so a cleanup error does not fail the save, the objects will
+        // be deleted by a later cleanup.
+        if (m_contentCleanupCnt.incrementAndGet() >= m_contentCleanupSaves) {
+            m_contentCleanupCnt.set(0);
+
+            try {
+                removeUnreferencedContent();
+            }
+            catch (DBException ex) {
+
+                // DEBUG
+                if (Debug.EnableError && hasDebug())
+                    Debug.println("## ObjIdLoader Failed to remove unreferenced content, " + ex.toString());
+            }
+        }
+    }
+
+    /**
+     * Remove the content records that are no longer referenced, and delete the objects from the store
+     *
+     * @exception DBException Database error
+     */
+    protected final void removeUnreferencedContent()
+            throws DBException {
+
+        // Get the objects that are no longer referenced
+        StringList unusedIds = m_dbContentIdInterface.removeUnreferencedContent();
+
+        if (unusedIds != null) {
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug())
+                Debug.println("## ObjIdLoader Deleting " + unusedIds.numberOfStrings() + " unreferenced object(s)");
+
+            for (int idx = 0; idx < unusedIds.numberOfStrings(); idx++)
+                deleteContentObject(unusedIds.getStringAt(idx));
+        }
+    }
+
+    /**
+     * Generate the content id for the file data, a hash of the file data
+     *
+     * @param fileSeg FileSegment
+     * @return String
+     * @exception IOException I/O error
+     */
+    protected final String generateContentId(FileSegment fileSeg)
+            throws IOException {
+
+        // Create the message digest
+        MessageDigest digest = null;
+
+        try {
+            digest = MessageDigest.getInstance(ContentIdAlgorithm);
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IOException("Content id algorithm not available, " + ContentIdAlgorithm, ex);
+        }
+
+        // Hash the file data
+        byte[] buf = new byte[ContentIdBufferSize];
+
+        try (FileInputStream fileIn = new FileInputStream(fileSeg.getTemporaryFile())) {
+
+            int rdLen = fileIn.read(buf);
+
+            while (rdLen > 0) {
+                digest.update(buf, 0, rdLen);
+                rdLen = fileIn.read(buf);
+            }
+        }
+
+        // Return the hash as a hex string
+        return HexDump.hexString(digest.digest());
+    }
+
+    /**
+     * Delete an unreferenced object from the store, errors are logged
+     *
+     * @param objectId String
+     */
+    private final void deleteContentObject(String objectId) {
+
+        try {
+
+            // Delete the object
+            deleteFileData(objectId);
+            m_contentDeleteCnt.incrementAndGet();
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug())
+                Debug.println("## ObjIdLoader Deleted unreferenced object " + objectId);
+        }
+        catch (IOException ex) {
+
+            // The content record has been removed so the object will not be deleted later, always report the error
+            if (Debug.EnableError)
+                Debug.println("## ObjIdLoader Failed to delete unreferenced object " + objectId + ", " + ex.toString(), Debug.Error);
+        }
+    }
+
+    /**
+     * Check if the loader can delete file data objects from the store, required for content addressed mode. Loaders
+     * that override deleteFileData() must also override this method to return true.
+     *
+     * @return boolean
+     */
+    protected boolean supportsContentDelete() {
+        return false;
+    }
+
+    /**
+     * Delete the file data object from the store. Called in content addressed mode when an object is no longer
+     * referenced by any file, loaders that support content addressed mode must override this method and
+     * supportsContentDelete(). The default implementation throws an exception so that the object is reported as not
+     * deleted.
+     *
+     * @param objectId String
+     * @exception IOException I/O error
+     */
+    protected void deleteFileData(String objectId)
+            throws IOException {
+        throw new IOException("Object delete not implemented by " + getClass().getName() + ", object " + objectId + " not deleted");
+    }
+
     /**
      * Load the file data
      *
@@ -835,6 +1154,129 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
     public abstract String saveFileData(int fileId, int streamId, FileSegment fileSeg, NameValueList attrs)
             throws IOException;
 
+    /**
+     * Check if the loader implementation supports loading a range of the file data, using the loadFileDataRange()
+     * method
+     *
+     * @return boolean
+     */
+    protected boolean supportsRangeLoad() {
+        return false;
+    }
+
+    /**
+     * Open a stream to read a range of the file data. Must be overridden by loader implementations that support
+     * range loading.
+     *
+     * @param fileId   int
+     * @param streamId int
+     * @param objectId String
+     * @param fileOff  long
+     * @param len      long
+     * @return InputStream
+     * @exception IOException I/O error
+     */
+    protected InputStream loadFileDataRange(int fileId, int streamId, String objectId, long fileOff, long len)
+            throws IOException {
+        throw new IOException("Range load not supported");
+    }
+
+    /**
+     * Load a range of file data on demand
+     *
+     * @param netFile FileCachedNetworkFile
+     * @param fileOff long
+     * @param len     long
+     * @return boolean
+     * @throws IOException I/O error
+     */
+    public boolean loadFileRange(FileCachedNetworkFile netFile, long fileOff, long len)
+            throws IOException {
+
+        // Check if range loading is enabled
+        FragmentLoader fragLoader = m_fragLoader;
+        if (fragLoader == null)
+            return false;
+
+        // Check if the file segment is being loaded by range, or switch the file segment to range loading
+        FileSegmentInfo segInfo = netFile.getFileSegment().getFileInfo();
+
+        if (segInfo.getFragmentMap() == null && initializeRangeLoad(netFile, segInfo) == false)
+            return false;
+
+        // Load the required range of the file data
+        fragLoader.loadRange(netFile.getFileId(), netFile.getStreamId(), segInfo, fileOff, len, CachedNetworkFile.DataLoadWaitTime);
+        return true;
+    }
+
+    /**
+     * Switch a file segment to range loading, if the file data has not been loaded and is larger than a single
+     * fragment
+     *
+     * @param netFile FileCachedNetworkFile
+     * @param segInfo FileSegmentInfo
+     * @return boolean
+     * @throws IOException I/O error
+     */
+    private final boolean initializeRangeLoad(FileCachedNetworkFile netFile, FileSegmentInfo segInfo)
+            throws IOException {
+
+        // File processors need the whole file, so are only run after a full load
+        if (hasFileProcessors() || netFile.getFileSize() <= m_rangeFragSize)
+            return false;
+
+        synchronized (segInfo) {
+
+            // Check if another thread has switched the segment to range loading
+            if (segInfo.getFragmentMap() != null)
+                return true;
+
+            // Only switch to range loading if a full file data load has not been started
+            if (segInfo.hasStatus() != FileSegmentInfo.State.Initial || segInfo.isQueued())
+                return false;
+
+            // Get the object id for the file
+            String objectId = null;
+
+            try {
+                objectId = getDBObjectIdInterface().loadObjectId(netFile.getFileId(), netFile.getStreamId());
+            }
+            catch (DBException ex) {
+
+                // DEBUG
+                if (Debug.EnableError && hasDebug())
+                    Debug.println("## ObjIdLoader range load object id error, " + ex.toString());
+            }
+
+            if (objectId == null)
+                return false;
+
+            // Set the temporary file to the full file length, fragments are written into place as they are loaded
+            long fileSize = netFile.getFileSize();
+            RandomAccessFile tempFile = new RandomAccessFile(segInfo.getTemporaryFile(), "rw");
+
+            try {
+                tempFile.setLength(fileSize);
+            }
+            finally {
+                tempFile.close();
+            }
+
+            // Set the fragment map, and mark the file data as loading
+            FragmentMap fragMap = new FragmentMap(fileSize, m_rangeFragSize);
+            fragMap.setObjectId(objectId);
+
+            segInfo.setFragmentMap(fragMap);
+            segInfo.setStatus(FileSegmentInfo.State.Loading);
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug())
+                Debug.println("## ObjIdLoader range load fid=" + netFile.getFileId() + ", stream=" + netFile.getStreamId() + ", " + segInfo);
+        }
+
+        return true;
+    }
+
     /**
      * Initialize the file loader using the specified parameters
      *
@@ -945,6 +1387,21 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
         } else
             m_tempMax = MaximumFilesPerSubDir;
 
+        // Check if the temporary file cache size has been specified, loaded file data is kept in the temporary area
+        // until the cache size is reached
+        ConfigElement cacheSize = params.getChild("TempCacheSize");
+
+        if (cacheSize != null) {
+
+            // Create the temporary file cache
+            long maxCache = MemorySize.getByteValue(cacheSize.getValue());
+
+            if (maxCache < TempFileCache.MinimumCacheSize)
+                throw new FileLoaderException("FileLoader TempCacheSize is below the minimum size (1Mb)");
+
+            m_tempCache = new TempFileCache(m_tempDir, maxCache, DBFileSegmentInfo);
+        }
+
         // Check if there are any file processors configured
         ConfigElement fileProcs = params.getChild("FileProcessors");
         if (fileProcs != null) {
@@ -1005,12 +1462,127 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
                 m_dbObjectIdInterface = (DBObjectIdInterface) getContext().getDBInterface();
             else
                 throw new FileLoaderException("Database interface does not implement object id interface");
+
+            // Check if file data objects should be shared by content
+            if (params.getChild("ContentAddressed") != null) {
+
+                if (getContext().getDBInterface() instanceof DBContentIdInterface)
+                    m_dbContentIdInterface = (DBContentIdInterface) getContext().getDBInterface();
+                else
+                    throw new FileLoaderException("Database interface does not implement content id interface");
+
+                // Unreferenced objects must be deleted from the store, the content record is removed before the
+                // object is deleted
+                if (supportsContentDelete() == false)
+                    throw new FileLoaderException("ContentAddressed requires a loader that supports deleting objects, " + getClass().getName());
+
+                // Check if the number of saves between removing unreferenced objects has been specified
+                ConfigElement nv = params.getChild("ContentCleanupSaves");
+                if (nv != null) {
+                    try {
+                        m_contentCleanupSaves = Integer.parseInt(nv.getValue());
+
+                        if (m_contentCleanupSaves < MinimumContentCleanupSaves || m_contentCleanupSaves > MaximumContentCleanupSaves)
+                            throw new FileLoaderException("ContentCleanupSaves out of valid range (" + MinimumContentCleanupSaves + " - "
+                                    + MaximumContentCleanupSaves + ")");
+                    }
+                    catch (NumberFormatException ex) {
+                        throw new FileLoaderException("Invalid ContentCleanupSaves value, " + nv.getValue());
+                    }
+                }
+            }
         } else
             throw new FileLoaderException("Requires database device context");
 
         // Check if background loader debug is enabled
         if (params.getChild("ThreadDebug") != null)
             m_threadDebug = true;
+
+        // Check if file data should be loaded on demand, by range
+        if (params.getChild("RangeLoad") != null) {
+
+            // Enable range loading
+            m_rangeLoad = true;
+
+            // Check if the number of fragments to prefetch has been specified
+            ConfigElement nv = params.getChild("RangePrefetch");
+            if (nv != null) {
+                try {
+                    m_rangePrefetch = Integer.parseInt(nv.getValue());
+
+                    if (m_rangePrefetch < 0 || m_rangePrefetch > FragmentLoader.MaximumPrefetch)
+                        throw new FileLoaderException("RangePrefetch out of valid range (0 - " + FragmentLoader.MaximumPrefetch + ")");
+                }
+                catch (NumberFormatException ex) {
+                    throw new FileLoaderException("Invalid RangePrefetch value, " + nv.getValue());
+                }
+            }
+
+            // Check if the number of prefetch threads has been specified
+            nv = params.getChild("RangeThreads");
+            if (nv != null) {
+                try {
+                    m_rangeThreads = Integer.parseInt(nv.getValue());
+
+                    if (m_rangeThreads < 1 || m_rangeThreads > FragmentLoader.MaximumThreads)
+                        throw new FileLoaderException("RangeThreads out of valid range (1 - " + FragmentLoader.MaximumThreads + ")");
+                }
+                catch (NumberFormatException ex) {
+                    throw new FileLoaderException("Invalid RangeThreads value, " + nv.getValue());
+                }
+            }
+
+            // Check if the fragment size has been specified
+            nv = params.getChild("RangeFragmentSize");
+            if (nv != null) {
+                try {
+                    m_rangeFragSize = MemorySize.getByteValue(nv.getValue());
+
+                    if (m_rangeFragSize < MIN_FRAGSIZE || m_rangeFragSize > MAX_FRAGSIZE)
+                        throw new FileLoaderException("RangeFragmentSize is out of valid range (64K - 1Gb)");
+                }
+                catch (NumberFormatException ex) {
+                    throw new FileLoaderException("Invalid RangeFragmentSize value, " + nv.getValue());
+                }
+            }
+        }
+
+        // Check if file request queue writes should be batched
+        if (params.getChild("QueueBatch") != null) {
+
+            // Enable batched queue writes
+            m_queueBatch = true;
+
+            // Check if the batch linger time has been specified
+            ConfigElement nv = params.getChild("QueueBatchLinger");
+            if (nv != null) {
+                try {
+                    m_batchLinger = Long.parseLong(nv.getValue());
+
+                    if (m_batchLinger < BackgroundLoadSave.MinimumBatchLinger || m_batchLinger > BackgroundLoadSave.MaximumBatchLinger)
+                        throw new FileLoaderException("QueueBatchLinger out of valid range (" + BackgroundLoadSave.MinimumBatchLinger + " - "
+                                + BackgroundLoadSave.MaximumBatchLinger + ")");
+                }
+                catch (NumberFormatException ex) {
+                    throw new FileLoaderException("Invalid QueueBatchLinger value, " + nv.getValue());
+                }
+            }
+
+            // Check if the maximum batch size has been specified
+            nv = params.getChild("QueueBatchSize");
+            if (nv != null) {
+                try {
+                    m_batchSize = Integer.parseInt(nv.getValue());
+
+                    if (m_batchSize < BackgroundLoadSave.MinimumBatchSize || m_batchSize > BackgroundLoadSave.MaximumBatchSize)
+                        throw new FileLoaderException("QueueBatchSize out of valid range (" + BackgroundLoadSave.MinimumBatchSize + " - "
+                                + BackgroundLoadSave.MaximumBatchSize + ")");
+                }
+                catch (NumberFormatException ex) {
+                    throw new FileLoaderException("Invalid QueueBatchSize value, " + nv.getValue());
+                }
+            }
+        }
     }
 
     /**
@@ -1054,6 +1626,12 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
                 Debug.println(ex);
         }
 
+        // Rebuild the temporary file cache from the files saved at the last shutdown
+        if (m_tempCache != null) {
+            m_tempCache.setDebug(hasDebug());
+            m_tempCache.loadCache();
+        }
+
         // Check if there are any file save requests pending in the queue database
         FileRequestQueue saveQueue = new FileRequestQueue();
 
@@ -1074,6 +1652,20 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
         // Start the file loader threads, start the request loading if there are pending file save requests
         m_backgroundLoader.startThreads(saveQueue.numberOfRequests());
 
+        // Enable batched queue writes, if enabled and supported by the database interface
+        if (m_queueBatch && m_backgroundLoader.enableBatchWrites(m_batchLinger, m_batchSize) == false)
+            Debug.println("[ObjIdLoader] Batched queue writes not supported by the database interface", Debug.Warn);
+
+        // Create the range loader, if enabled and supported by the loader implementation
+        if (m_rangeLoad) {
+            if (supportsRangeLoad()) {
+                m_fragLoader = new ObjectIdFragmentLoader("ObjIdLdrRange", m_rangeThreads, m_rangePrefetch);
+                m_fragLoader.setDebug(hasDebug());
+            }
+            else
+                Debug.println("[ObjIdLoader] Range loading not supported by the file loader", Debug.Warn);
+        }
+
         // Queue the recovered file save requests
         if (recoveredQueue != null) {
 
@@ -1093,6 +1685,40 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
         // Shutdown the background load/save thread pool
         if (m_backgroundLoader != null)
             m_backgroundLoader.shutdownThreads();
+
+        // Shutdown the range load prefetch threads
+        if (m_fragLoader != null) {
+            m_fragLoader.shutdown();
+            m_fragLoader = null;
+        }
+
+        // Delete the objects that are no longer referenced
+        if (m_dbContentIdInterface != null) {
+            try {
+                removeUnreferencedContent();
+            }
+            catch (DBException ex) {
+
+                // DEBUG
+                if (Debug.EnableError && hasDebug())
+                    Debug.println("[ObjIdLoader] Failed to remove unreferenced content, " + ex.toString());
+            }
+        }
+
+        // DEBUG
+        if (m_dbContentIdInterface != null && Debug.EnableInfo && hasDebug())
+            Debug.println("[ObjIdLoader] Content saves stored=" + getContentStoreCount() + ", shared=" + getContentShareCount() +
+                    ", sharedSize=" + getContentShareSize() + ", deleted=" + getContentDeleteCount());
+
+        // Save the temporary file cache so it can be used when the loader is restarted
+        if (m_tempCache != null) {
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug())
+                Debug.println("[ObjIdLoader] Temp file cache " + m_tempCache);
+
+            m_tempCache.saveCache();
+        }
     }
 
     /**
@@ -1296,8 +1922,8 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
 
         if (segInfo != null) {
 
-            // Check if the file has a request queued
-            if (segInfo.isQueued() == false) {
+            // Check if the file has a request queued, or fragments being loaded
+            if (segInfo.isQueued() == false && segInfo.isRangeLoading() == false) {
 
                 try {
 
@@ -1305,9 +1931,16 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
                     // if required.
                     if (segInfo.hasStatus() != FileSegmentInfo.State.Initial) {
 
+                        // Check if the temporary file can be kept in the temporary file cache
+                        boolean cached = false;
+
+                        if (m_tempCache != null)
+                            cached = m_tempCache.detachSegment(segInfo, (DBFileInfo) state.findAttribute(FileState.FileInformation));
+
                         // Delete the temporary file
                         try {
-                            segInfo.deleteTemporaryFile();
+                            if (cached == false)
+                                segInfo.deleteTemporaryFile();
                         }
                         catch (IOException ex) {
 
@@ -1324,6 +1957,7 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
 
                         // Remove the file segment, reset the file segment back to the initial state
                         state.removeAttribute(DBFileSegmentInfo);
+                        segInfo.setFragmentMap(null);
                         segInfo.setStatus(FileSegmentInfo.State.Initial);
 
                         // Reset the file state to indicate file data load required
@@ -1331,7 +1965,7 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
 
                         // Check if the temporary file sub-directory is now empty, and it is not the current temporary
                         // sub-directory
-                        if (segInfo.getTemporaryFile().startsWith(m_curTempName) == false) {
+                        if (cached == false && segInfo.getTemporaryFile().startsWith(m_curTempName) == false) {
 
                             // Check if the sub-directory is empty
                             File tempFile = new File(segInfo.getTemporaryFile());
@@ -1354,7 +1988,7 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
 
                         // Debug
                         if (Debug.EnableInfo && hasDebug())
-                            Debug.println("$$ Deleted temporary file " + segInfo.getTemporaryFile() + " [EXPIRED] $$");
+                            Debug.println("$$ " + (cached ? "Cached" : "Deleted") + " temporary file " + segInfo.getTemporaryFile() + " [EXPIRED] $$");
                     }
 
                     // If the file state is not to be deleted reset the file state expiration timer
@@ -1410,10 +2044,15 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
         // Check if the file state has an associated file
         FileSegmentInfo segInfo = (FileSegmentInfo) state.findAttribute(DBFileSegmentInfo);
 
-        if (segInfo != null && segInfo.isQueued() == false && segInfo.hasStatus() != FileSegmentInfo.State.SaveWait) {
+        if (segInfo != null && segInfo.isQueued() == false && segInfo.isRangeLoading() == false &&
+                segInfo.hasStatus() != FileSegmentInfo.State.SaveWait) {
 
             try {
 
+                // Remove the file from the temporary file cache
+                if (m_tempCache != null)
+                    m_tempCache.removeSegment(segInfo.getTemporaryFile());
+
                 // Delete the temporary file
                 segInfo.deleteTemporaryFile();
 
@@ -1452,7 +2091,26 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
 
             // Check if the file segment has been attached to the file state
             FileSegmentInfo fileSegInfo = (FileSegmentInfo) state.findAttribute(DBFileSegmentInfo);
-            if (fileSegInfo == null) {
+            DBFileInfo finfo = (DBFileInfo) state.findAttribute(FileState.FileInformation);
+            String cachedFile = null;
+
+            if (fileSegInfo == null && m_tempCache != null && params.isOverwrite() == false)
+                cachedFile = m_tempCache.findCachedFile(fid, stid, finfo, m_curTempDir);
+
+            if (cachedFile != null) {
+
+                // Use the file data from the temporary file cache
+                fileSegInfo = new FileSegmentInfo(cachedFile);
+                fileSeg = new FileSegment(fileSegInfo, params.isReadOnlyAccess() == false);
+                fileSeg.setStatus(FileSegmentInfo.State.Available);
+
+                // Add the segment to the file state cache
+                state.addAttribute(DBFileSegmentInfo, fileSegInfo);
+
+                // DEBUG
+                if (Debug.EnableInfo && hasDebug())
+                    Debug.println("## ObjIdLoader using cached file " + cachedFile);
+            } else if (fileSegInfo == null) {
 
                 // Check if we need to create a new temporary sub-drectory
                 if (m_tempCount++ >= m_tempMax)
@@ -1483,7 +2141,6 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
                 state.addAttribute(DBFileSegmentInfo, fileSegInfo);
 
                 // Check if the file is zero length, if so then set the file segment state to indicate it is available
-                DBFileInfo finfo = (DBFileInfo) state.findAttribute(FileState.FileInformation);
                 if (finfo != null && finfo.getSize() == 0)
                     fileSeg.setStatus(FileSegmentInfo.State.Available);
             } else {
@@ -1503,6 +2160,10 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
                 }
             }
 
+            // Add, or update, the file in the temporary file cache
+            if (m_tempCache != null)
+                m_tempCache.attachSegment(fid, stid, state, fileSegInfo);
+
             // Create the new network file
             netFile = new FileCachedNetworkFile(fname, fid, stid, did, m_stateCache.getFileStateProxy(state), fileSeg, this);
 
@@ -1519,6 +2180,47 @@ public abstract class ObjectIdFileLoader implements FileLoader, BackgroundFileLo
         return netFile;
     }
 
+    /**
+     * Object Id Fragment Loader Class
+     *
+     * <p>Loads fragments of the file data using the loader implementation range load method.
+     */
+    protected class ObjectIdFragmentLoader extends FragmentLoader {
+
+        /**
+         * Class constructor
+         *
+         * @param name     String
+         * @param threads  int
+         * @param prefetch int
+         */
+        public ObjectIdFragmentLoader(String name, int threads, int prefetch) {
+            super(name, threads, prefetch);
+        }
+
+        @Override
+        protected InputStream openFragment(int fileId, int streamId, FragmentMap fragMap, int fragNo)
+                throws IOException {
+            return loadFileDataRange(fileId, streamId, fragMap.getObjectId(), fragMap.getFragmentOffset(fragNo),
+                    fragMap.getFragmentLength(fragNo));
+        }
+
+        @Override
+        protected void rangeLoadComplete(FileSegmentInfo segInfo) {
+
+            // All fragments have been loaded, the file data is now available
+            segInfo.setStatus(FileSegmentInfo.State.Available);
+
+            // Update the temporary file size in the temporary file cache
+            if (m_tempCache != null)
+                m_tempCache.updateFileSize(segInfo.getTemporaryFile());
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug())
+                Debug.println("## ObjIdLoader range load complete, " + segInfo);
+        }
+    }
+
     /**
      * Set the database context
      *
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.server.filesys.db;
+
+import java.io.IOException;
+
+/**
+ * Range File Loader Interface
+ *
+ * <p>Optional interface implemented by file loaders that can load file data on demand, by range.
+ *
+ * @author gkspencer
+ */
+public interface RangeFileLoader {
+
+    /**
+     * Load the specified range of file data into the network file segment, returns when the range is available.
+     * Returns false if the file data cannot be loaded by range, in which case the whole file is loaded.
+     *
+     * @param netFile FileCachedNetworkFile
+     * @param fileOff long
+     * @param len     long
+     * @return boolean
+     * @exception IOException I/O error
+     */
+    public boolean loadFileRange(FileCachedNetworkFile netFile, long fileOff, long len)
+            throws IOException;
+}
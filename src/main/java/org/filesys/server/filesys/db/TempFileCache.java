@@ -0,0 +1,938 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.filesys.server.filesys.db;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.filesys.debug.Debug;
+import org.filesys.server.filesys.cache.FileState;
+import org.filesys.server.filesys.loader.FileSegmentInfo;
+import org.filesys.server.filesys.loader.SegmentInfo;
+
+/**
+ * Temporary File Cache Class
+ *
+ * <p>Keeps the loaded file segment temporary files of a file loader within a disk space budget. Temporary files are
+ * kept after the associated file state expires so that a later open of the file can use the local copy of the
+ * file data instead of loading it from the database again.
+ *
+ * <p>When the cache is over budget the least recently used files are evicted, files that have been accessed more
+ * than once get a second chance before they are evicted. Only file data that is available, not queued for a
+ * load/save and not open can be evicted.
+ *
+ * <p>On a clean shutdown the cached files are moved to a cache sub-directory of the temporary area and an index
+ * is written, the index is used to rebuild the cache when the file loader is restarted. A cached file is only used if
+ * the file size and modification date/time match the database copy of the file.
+ *
+ * @author gkspencer
+ */
+public class TempFileCache {
+
+    // Cache sub-directory and index file names
+    public static final String CacheDirName   = "cache";
+    public static final String IndexFileName  = "cache.idx";
+
+    // Minimum cache size
+    public static final long MinimumCacheSize = 1024L * 1024L;
+
+    // Time after an open that an open file segment cannot be evicted, allows the file open to complete
+    public static final long EvictGraceTime   = 10000L;
+
+    // Percentage of the cache size to evict down to when the cache is over budget
+    private static final int EvictTargetPercent = 90;
+
+    /**
+     * Cache Entry Class
+     */
+    protected static class CacheEntry {
+
+        // File id and stream id
+        int m_fid;
+        int m_stid;
+
+        // Temporary file path and size
+        String m_path;
+        long m_size;
+
+        // Access details
+        long m_lastAccess;
+        int m_accessCnt;
+
+        // File state and file segment, or null if the entry has been detached from the file state
+        FileState m_state;
+        FileSegmentInfo m_segInfo;
+
+        // Database file size and modification date/time, set when the entry is detached
+        long m_dbSize;
+        long m_dbModify;
+
+        // Eviction in progress
+        boolean m_evicting;
+
+        /**
+         * Class constructor
+         *
+         * @param fid  int
+         * @param stid int
+         * @param path String
+         */
+        CacheEntry(int fid, int stid, String path) {
+            m_fid = fid;
+            m_stid = stid;
+            m_path = path;
+        }
+
+        /**
+         * Check if the entry is attached to a file state
+         *
+         * @return boolean
+         */
+        final boolean isAttached() {
+            return m_segInfo != null;
+        }
+
+        /**
+         * Return the cache entry as a string
+         *
+         * @return String
+         */
+        public String toString() {
+            StringBuilder str = new StringBuilder();
+
+            str.append("[fid=");
+            str.append(m_fid);
+            str.append(",stid=");
+            str.append(m_stid);
+            str.append(",");
+            str.append(m_path);
+            str.append(",size=");
+            str.append(m_size);
+            str.append(",access=");
+            str.append(m_accessCnt);
+            str.append(isAttached() ? ",Attached" : ",Detached");
+            str.append("]");
+
+            return str.toString();
+        }
+    }
+
+    // Cache sub-directory
+    private File m_cacheDir;
+
+    // Maximum cache size, in bytes, and current size
+    private long m_maxSize;
+    private long m_usedSize;
+
+    // File state attribute name used for the file segment
+    private String m_segAttrName;
+
+    // Cache entries, by file id/stream id, in least recently used order
+    private LinkedHashMap<Long, CacheEntry> m_entries = new LinkedHashMap<Long, CacheEntry>();
+
+    // Cache entries, by temporary file path
+    private HashMap<String, CacheEntry> m_paths = new HashMap<String, CacheEntry>();
+
+    // Cache statistics
+    private long m_hitCnt;
+    private long m_missCnt;
+    private long m_reuseCnt;
+    private long m_evictCnt;
+    private long m_evictSize;
+    private long m_invalidCnt;
+    private int m_warmCnt;
+
+    // Debug enable
+    private boolean m_debug;
+
+    /**
+     * Class constructor
+     *
+     * @param tempDir     File
+     * @param maxSize     long
+     * @param segAttrName String
+     */
+    public TempFileCache(File tempDir, long maxSize, String segAttrName) {
+        m_cacheDir = new File(tempDir, CacheDirName).getAbsoluteFile();
+        m_maxSize = maxSize;
+        m_segAttrName = segAttrName;
+    }
+
+    /**
+     * Return the maximum cache size, in bytes
+     *
+     * @return long
+     */
+    public final long getMaximumSize() {
+        return m_maxSize;
+    }
+
+    /**
+     * Return the current cache size, in bytes
+     *
+     * @return long
+     */
+    public final synchronized long getUsedSize() {
+        return m_usedSize;
+    }
+
+    /**
+     * Return the number of cached files
+     *
+     * @return int
+     */
+    public final synchronized int numberOfFiles() {
+        return m_entries.size();
+    }
+
+    /**
+     * Return the count of file opens that used local file data
+     *
+     * @return long
+     */
+    public final synchronized long getHitCount() {
+        return m_hitCnt;
+    }
+
+    /**
+     * Return the count of file opens that required the file data to be loaded
+     *
+     * @return long
+     */
+    public final synchronized long getMissCount() {
+        return m_missCnt;
+    }
+
+    /**
+     * Return the cache hit ratio, as a percentage
+     *
+     * @return int
+     */
+    public final synchronized int getHitRatio() {
+        long total = m_hitCnt + m_missCnt;
+        if (total == 0)
+            return 0;
+        return (int) ((m_hitCnt * 100L) / total);
+    }
+
+    /**
+     * Return the count of detached temporary files that have been reused
+     *
+     * @return long
+     */
+    public final synchronized long getReuseCount() {
+        return m_reuseCnt;
+    }
+
+    /**
+     * Return the count of evicted temporary files
+     *
+     * @return long
+     */
+    public final synchronized long getEvictionCount() {
+        return m_evictCnt;
+    }
+
+    /**
+     * Return the total size of the evicted temporary files, in bytes
+     *
+     * @return long
+     */
+    public final synchronized long getEvictedSize() {
+        return m_evictSize;
+    }
+
+    /**
+     * Return the count of cached files that were discarded as the database copy of the file has changed
+     *
+     * @return long
+     */
+    public final synchronized long getInvalidCount() {
+        return m_invalidCnt;
+    }
+
+    /**
+     * Return the number of files loaded from the cache index at startup
+     *
+     * @return int
+     */
+    public final synchronized int getWarmStartCount() {
+        return m_warmCnt;
+    }
+
+    /**
+     * Check if debug output is enabled
+     *
+     * @return boolean
+     */
+    public final boolean hasDebug() {
+        return m_debug;
+    }
+
+    /**
+     * Enable/disable debug output
+     *
+     * @param dbg boolean
+     */
+    public final void setDebug(boolean dbg) {
+        m_debug = dbg;
+    }
+
+    /**
+     * Record a file open, count a cache hit if the file data is available locally
+     *
+     * @param sts SegmentInfo.State
+     */
+    public final synchronized void recordAccess(SegmentInfo.State sts) {
+        if (sts == SegmentInfo.State.Initial || sts == SegmentInfo.State.LoadWait || sts == SegmentInfo.State.Error)
+            m_missCnt++;
+        else
+            m_hitCnt++;
+    }
+
+    /**
+     * Find a detached temporary file for the specified file, and check that the local file data matches the
+     * database copy of the file. A cached file that does not match is deleted.
+     *
+     * <p>A file from the cache sub-directory is moved to the specified temporary sub-directory, so that a save of
+     * updated file data is not lost by the cache cleanup after a restart.
+     *
+     * @param fid     int
+     * @param stid    int
+     * @param finfo   DBFileInfo
+     * @param tempDir File
+     * @return String
+     */
+    public final synchronized String findCachedFile(int fid, int stid, DBFileInfo finfo, File tempDir) {
+
+        // Check if there is a detached entry for the file
+        CacheEntry entry = m_entries.get(makeKey(fid, stid));
+        if (entry == null || entry.isAttached() || entry.m_evicting)
+            return null;
+
+        // Check the cached file against the current database file details
+        File tempFile = new File(entry.m_path);
+
+        if (finfo != null && tempFile.length() == entry.m_size && finfo.getSize() == entry.m_dbSize &&
+                finfo.getModifyDateTime() == entry.m_dbModify) {
+
+            // Move a file from the cache sub-directory back to the temporary area
+            if (m_cacheDir.equals(tempFile.getParentFile())) {
+
+                File newFile = new File(tempDir, tempFile.getName()).getAbsoluteFile();
+                if (newFile.exists() == false && tempFile.renameTo(newFile)) {
+                    m_paths.remove(entry.m_path);
+                    entry.m_path = newFile.getAbsolutePath();
+                    m_paths.put(entry.m_path, entry);
+                }
+                else {
+
+                    // Failed to move the file, discard it
+                    removeEntry(entry);
+                    deleteFile(entry.m_path);
+
+                    return null;
+                }
+            }
+
+            return entry.m_path;
+        }
+
+        // Cached file data is out of date, delete it
+        removeEntry(entry);
+        deleteFile(entry.m_path);
+
+        m_invalidCnt++;
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("[TempCache] Discarded out of date file " + entry);
+
+        return null;
+    }
+
+    /**
+     * Attach a file segment to the cache, or update the cache entry if the file segment is already attached
+     *
+     * @param fid     int
+     * @param stid    int
+     * @param state   FileState
+     * @param segInfo FileSegmentInfo
+     */
+    public final synchronized void attachSegment(int fid, int stid, FileState state, FileSegmentInfo segInfo) {
+
+        // Check for an existing entry
+        Long key = makeKey(fid, stid);
+        CacheEntry entry = m_entries.get(key);
+
+        if (entry != null && entry.m_path.equals(segInfo.getTemporaryFile()) == false) {
+
+            // Entry is for an older temporary file, remove it. Delete the file if it is not in use.
+            removeEntry(entry);
+            if (entry.isAttached() == false)
+                deleteFile(entry.m_path);
+            entry = null;
+        }
+
+        if (entry == null) {
+
+            // Create a new cache entry
+            entry = new CacheEntry(fid, stid, segInfo.getTemporaryFile());
+            m_paths.put(entry.m_path, entry);
+        }
+        else {
+
+            // Remove the entry so it moves to the most recently used position
+            m_entries.remove(key);
+
+            // Count reuse of a detached file
+            if (entry.isAttached() == false)
+                m_reuseCnt++;
+        }
+
+        m_entries.put(key, entry);
+
+        // Update the entry details
+        entry.m_state = state;
+        entry.m_segInfo = segInfo;
+        entry.m_lastAccess = System.currentTimeMillis();
+        entry.m_accessCnt++;
+
+        setEntrySize(entry, new File(entry.m_path).length());
+    }
+
+    /**
+     * Update the size of a cached temporary file, after the file data has been loaded or updated
+     *
+     * @param path String
+     */
+    public final synchronized void updateFileSize(String path) {
+        CacheEntry entry = m_paths.get(path);
+        if (entry != null)
+            setEntrySize(entry, new File(path).length());
+    }
+
+    /**
+     * Detach a file segment from the cache as the associated file state is expiring. If the file data is
+     * available and unchanged the temporary file is kept in the cache, else the cache entry is removed.
+     *
+     * @param segInfo FileSegmentInfo
+     * @param finfo   DBFileInfo
+     * @return boolean true if the temporary file has been kept, false if the caller should delete it
+     */
+    public final synchronized boolean detachSegment(FileSegmentInfo segInfo, DBFileInfo finfo) {
+
+        // Find the cache entry
+        CacheEntry entry = m_paths.get(segInfo.getTemporaryFile());
+        if (entry == null)
+            return false;
+
+        // Only keep file data that is available and matches the database copy of the file
+        File tempFile = new File(entry.m_path);
+        long fileLen = tempFile.length();
+
+        if (entry.m_evicting || isEvictable(segInfo) == false || finfo == null || tempFile.exists() == false ||
+                finfo.getSize() != fileLen) {
+
+            // Remove the entry, the caller will delete the temporary file
+            removeEntry(entry);
+            return false;
+        }
+
+        // Detach the entry from the file state
+        entry.m_state = null;
+        entry.m_segInfo = null;
+        entry.m_dbSize = finfo.getSize();
+        entry.m_dbModify = finfo.getModifyDateTime();
+
+        setEntrySize(entry, fileLen);
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("[TempCache] Detached " + entry);
+
+        return true;
+    }
+
+    /**
+     * Remove a temporary file from the cache, the temporary file has been deleted or will be deleted by the caller
+     *
+     * @param path String
+     */
+    public final synchronized void removeSegment(String path) {
+        CacheEntry entry = m_paths.get(path);
+        if (entry != null)
+            removeEntry(entry);
+    }
+
+    /**
+     * Remove the cache entry for the specified file, the file has been deleted. A detached temporary file is deleted.
+     *
+     * @param fid  int
+     * @param stid int
+     */
+    public final synchronized void removeFile(int fid, int stid) {
+        CacheEntry entry = m_entries.get(makeKey(fid, stid));
+
+        if (entry != null) {
+            removeEntry(entry);
+            if (entry.isAttached() == false)
+                deleteFile(entry.m_path);
+        }
+    }
+
+    /**
+     * Check if the cache is over budget, and evict temporary files until the cache is back within budget.
+     *
+     * <p>Must not be called with a file state lock held.
+     */
+    public final void checkCacheSize() {
+
+        // Select the files to evict
+        List<CacheEntry> victims = null;
+
+        synchronized (this) {
+
+            // Check if the cache is over budget
+            if (m_usedSize <= m_maxSize)
+                return;
+
+            long target = (m_maxSize * EvictTargetPercent) / 100L;
+            long newSize = m_usedSize;
+            long graceTime = System.currentTimeMillis() - EvictGraceTime;
+
+            // Walk the entries in least recently used order. Files that have been accessed more than once get a
+            // second chance, they are only evicted if evicting the single access files does not free enough space.
+            victims = new ArrayList<CacheEntry>();
+            List<CacheEntry> secondChance = new ArrayList<CacheEntry>();
+
+            Iterator<CacheEntry> iter = m_entries.values().iterator();
+
+            while (iter.hasNext() && newSize > target) {
+                CacheEntry entry = iter.next();
+
+                // Skip files that are in use
+                if (entry.m_evicting || (entry.isAttached() && (entry.m_lastAccess > graceTime ||
+                        entry.m_state.getOpenCount() > 0 || isEvictable(entry.m_segInfo) == false)))
+                    continue;
+
+                if (entry.m_accessCnt > 1) {
+                    secondChance.add(entry);
+                }
+                else {
+                    victims.add(entry);
+                    newSize -= entry.m_size;
+                }
+            }
+
+            int idx = 0;
+
+            while (idx < secondChance.size() && newSize > target) {
+                CacheEntry entry = secondChance.get(idx++);
+                victims.add(entry);
+                newSize -= entry.m_size;
+            }
+
+            // Age the access counts of the files that survived, so that files that are no longer used will be
+            // evicted eventually
+            while (idx < secondChance.size()) {
+                CacheEntry entry = secondChance.get(idx++);
+                entry.m_accessCnt = entry.m_accessCnt / 2;
+            }
+
+            // Detached files can be evicted now, attached files need the file state lock
+            Iterator<CacheEntry> victimIter = victims.iterator();
+
+            while (victimIter.hasNext()) {
+                CacheEntry entry = victimIter.next();
+
+                if (entry.isAttached() == false) {
+                    m_evictCnt++;
+                    m_evictSize += entry.m_size;
+
+                    removeEntry(entry);
+                    deleteFile(entry.m_path);
+
+                    victimIter.remove();
+                }
+                else
+                    entry.m_evicting = true;
+            }
+        }
+
+        // Evict the attached files, the file state lock must be taken before the cache lock
+        for (CacheEntry entry : victims) {
+
+            FileState state = entry.m_state;
+            boolean evicted = false;
+
+            synchronized (state) {
+
+                // Make sure the file segment is still attached and has not been opened
+                FileSegmentInfo segInfo = entry.m_segInfo;
+
+                if (segInfo != null && state.findAttribute(m_segAttrName) == segInfo && state.getOpenCount() == 0 &&
+                        entry.m_lastAccess <= System.currentTimeMillis() - EvictGraceTime && isEvictable(segInfo)) {
+
+                    try {
+
+                        // Delete the temporary file
+                        segInfo.deleteTemporaryFile();
+
+                        // Reset the file segment and file state so the file data is loaded again when required
+                        state.removeAttribute(m_segAttrName);
+                        segInfo.setFragmentMap(null);
+                        segInfo.setStatus(SegmentInfo.State.Initial);
+
+                        state.setDataStatus(FileState.DataStatus.LoadWait);
+
+                        evicted = true;
+                    }
+                    catch (IOException ex) {
+
+                        // DEBUG
+                        if (Debug.EnableError && hasDebug())
+                            Debug.println("[TempCache] Failed to evict " + entry + ", " + ex.getMessage());
+                    }
+                }
+
+                synchronized (this) {
+                    entry.m_evicting = false;
+
+                    if (evicted) {
+                        m_evictCnt++;
+                        m_evictSize += entry.m_size;
+
+                        removeEntry(entry);
+                    }
+                }
+            }
+        }
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("[TempCache] Eviction complete, " + toString());
+    }
+
+    /**
+     * Load the cache index, saved by a clean shutdown, and rebuild the cache. Cached files that are not listed
+     * in the index are deleted.
+     */
+    public final void loadCache() {
+
+        // Make sure the cache sub-directory exists
+        if (m_cacheDir.exists() == false) {
+            m_cacheDir.mkdir();
+            return;
+        }
+
+        // Load the cache index, the index is deleted once loaded so that a crash does not leave a stale index
+        File idxFile = new File(m_cacheDir, IndexFileName);
+        HashSet<String> indexed = new HashSet<String>();
+
+        if (idxFile.exists()) {
+
+            BufferedReader in = null;
+
+            try {
+                in = new BufferedReader(new FileReader(idxFile));
+                String line = null;
+
+                while ((line = in.readLine()) != null) {
+
+                    // Parse the index record, 'fid,stid,size,dbSize,dbModify,accessCount,fileName'
+                    String[] fields = line.split(",", 7);
+                    if (fields.length != 7)
+                        continue;
+
+                    try {
+                        File cacheFile = new File(m_cacheDir, fields[6]);
+                        long size = Long.parseLong(fields[2]);
+
+                        if (cacheFile.exists() && cacheFile.length() == size) {
+
+                            // Add a detached cache entry for the file
+                            CacheEntry entry = new CacheEntry(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                                    cacheFile.getAbsolutePath());
+
+                            entry.m_dbSize = Long.parseLong(fields[3]);
+                            entry.m_dbModify = Long.parseLong(fields[4]);
+                            entry.m_accessCnt = Integer.parseInt(fields[5]);
+
+                            synchronized (this) {
+                                m_entries.put(makeKey(entry.m_fid, entry.m_stid), entry);
+                                m_paths.put(entry.m_path, entry);
+
+                                setEntrySize(entry, size);
+                                m_warmCnt++;
+                            }
+
+                            indexed.add(fields[6]);
+                        }
+                    }
+                    catch (NumberFormatException ex) {
+                    }
+                }
+            }
+            catch (IOException ex) {
+
+                // DEBUG
+                if (Debug.EnableError && hasDebug())
+                    Debug.println("[TempCache] Error loading cache index, " + ex.getMessage());
+            }
+            finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    }
+                    catch (IOException ex) {
+                    }
+                }
+            }
+
+            idxFile.delete();
+        }
+
+        // Delete any files that are not in the index
+        String[] files = m_cacheDir.list();
+
+        if (files != null) {
+            for (String fname : files) {
+                if (indexed.contains(fname) == false)
+                    deleteFile(new File(m_cacheDir, fname).getAbsolutePath());
+            }
+        }
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("[TempCache] Loaded " + m_warmCnt + " cached files, " + toString());
+
+        // Check if the cache size has been reduced since the cache was saved
+        checkCacheSize();
+    }
+
+    /**
+     * Save the cache at shutdown. Available file data is moved to the cache sub-directory and the cache index is
+     * written, other temporary files are left to be deleted when the file states are closed.
+     *
+     * <p>Must not be called with a file state lock held.
+     */
+    public final void saveCache() {
+
+        // Get a list of the cache entries
+        List<CacheEntry> entries = null;
+
+        synchronized (this) {
+            entries = new ArrayList<CacheEntry>(m_entries.values());
+        }
+
+        // Make sure the cache sub-directory exists
+        if (m_cacheDir.exists() == false)
+            m_cacheDir.mkdir();
+
+        // Move the cached files to the cache sub-directory and write the index
+        File idxFile = new File(m_cacheDir, IndexFileName);
+        File newIdx = new File(m_cacheDir, IndexFileName + ".new");
+
+        BufferedWriter out = null;
+        int saveCnt = 0;
+
+        try {
+            out = new BufferedWriter(new FileWriter(newIdx));
+
+            for (CacheEntry entry : entries) {
+
+                // Detach open file segments, if the file data is available and matches the database copy
+                FileState state = entry.m_state;
+
+                if (state != null) {
+                    synchronized (state) {
+                        FileSegmentInfo segInfo = entry.m_segInfo;
+                        if (segInfo == null || state.getOpenCount() > 0 || state.findAttribute(m_segAttrName) != segInfo ||
+                                detachSegment(segInfo, (DBFileInfo) state.findAttribute(FileState.FileInformation)) == false)
+                            continue;
+
+                        // Remove the file segment from the file state, the temporary file is moved to the cache
+                        state.removeAttribute(m_segAttrName);
+                    }
+                }
+
+                // Move the file to the cache sub-directory
+                File tempFile = new File(entry.m_path);
+                File cacheFile = new File(m_cacheDir, tempFile.getName()).getAbsoluteFile();
+
+                synchronized (this) {
+
+                    // Check the entry has not been removed
+                    if (m_paths.get(entry.m_path) != entry)
+                        continue;
+
+                    if (tempFile.equals(cacheFile) == false && tempFile.renameTo(cacheFile) == false) {
+                        removeEntry(entry);
+                        deleteFile(entry.m_path);
+                        continue;
+                    }
+                }
+
+                // Write the index record
+                out.write(entry.m_fid + "," + entry.m_stid + "," + entry.m_size + "," + entry.m_dbSize + "," +
+                        entry.m_dbModify + "," + entry.m_accessCnt + "," + cacheFile.getName());
+                out.newLine();
+
+                saveCnt++;
+            }
+
+            out.close();
+            out = null;
+
+            // Replace the index file
+            idxFile.delete();
+            if (newIdx.renameTo(idxFile) == false)
+                throw new IOException("Failed to rename " + newIdx.getName());
+        }
+        catch (IOException ex) {
+
+            // DEBUG
+            if (Debug.EnableError && hasDebug())
+                Debug.println("[TempCache] Error saving cache index, " + ex.getMessage());
+        }
+        finally {
+            if (out != null) {
+                try {
+                    out.close();
+                }
+                catch (IOException ex) {
+                }
+            }
+        }
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("[TempCache] Saved " + saveCnt + " cached files, " + toString());
+    }
+
+    /**
+     * Check if the file data for a file segment can be cached/evicted
+     *
+     * @param segInfo FileSegmentInfo
+     * @return boolean
+     */
+    private final boolean isEvictable(FileSegmentInfo segInfo) {
+        SegmentInfo.State sts = segInfo.hasStatus();
+        return (sts == SegmentInfo.State.Available || sts == SegmentInfo.State.Saved) && segInfo.isQueued() == false &&
+                segInfo.isUpdated() == false && segInfo.isRangeLoading() == false;
+    }
+
+    /**
+     * Remove a cache entry
+     *
+     * @param entry CacheEntry
+     */
+    private final void removeEntry(CacheEntry entry) {
+        Long key = makeKey(entry.m_fid, entry.m_stid);
+
+        if (m_entries.get(key) == entry)
+            m_entries.remove(key);
+        m_paths.remove(entry.m_path);
+
+        m_usedSize -= entry.m_size;
+        entry.m_size = 0;
+    }
+
+    /**
+     * Set the size of a cache entry, and update the cache size
+     *
+     * @param entry CacheEntry
+     * @param size  long
+     */
+    private final void setEntrySize(CacheEntry entry, long size) {
+        m_usedSize += size - entry.m_size;
+        entry.m_size = size;
+    }
+
+    /**
+     * Delete a cached file
+     *
+     * @param path String
+     */
+    private final void deleteFile(String path) {
+        File cacheFile = new File(path);
+
+        if (cacheFile.exists() && cacheFile.delete() == false && Debug.EnableError && hasDebug())
+            Debug.println("[TempCache] Failed to delete " + path);
+    }
+
+    /**
+     * Make the cache key for a file id and stream id
+     *
+     * @param fid  int
+     * @param stid int
+     * @return Long
+     */
+    private static final Long makeKey(int fid, int stid) {
+        return Long.valueOf(((long) fid << 32) | (stid & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Return the cache details as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        synchronized (this) {
+            str.append("[TempCache files=");
+            str.append(m_entries.size());
+            str.append(",used=");
+            str.append(m_usedSize);
+            str.append("/");
+            str.append(m_maxSize);
+            str.append(",hits=");
+            str.append(m_hitCnt);
+            str.append(",misses=");
+            str.append(m_missCnt);
+            str.append(",hitRatio=");
+            str.append(getHitRatio());
+            str.append("%,reused=");
+            str.append(m_reuseCnt);
+            str.append(",evicted=");
+            str.append(m_evictCnt);
+            str.append("/");
+            str.append(m_evictSize);
+            str.append(",invalid=");
+            str.append(m_invalidCnt);
+            str.append(",warm=");
+            str.append(m_warmCnt);
+            str.append("]");
+        }
+
+        return str.toString();
+    }
+}
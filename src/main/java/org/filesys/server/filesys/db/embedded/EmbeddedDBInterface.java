@@ -0,0 +1,2139 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.filesys.server.filesys.db.embedded;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.filesys.debug.Debug;
+import org.filesys.server.config.InvalidConfigurationException;
+import org.filesys.server.filesys.DirectoryNotEmptyException;
+import org.filesys.server.filesys.FileAttribute;
+import org.filesys.server.filesys.FileExistsException;
+import org.filesys.server.filesys.FileInfo;
+import org.filesys.server.filesys.FileName;
+import org.filesys.server.filesys.FileOpenParams;
+import org.filesys.server.filesys.FileStatus;
+import org.filesys.server.filesys.FileType;
+import org.filesys.server.filesys.cache.FileState;
+import org.filesys.server.filesys.db.DBDataDetails;
+import org.filesys.server.filesys.db.DBDataDetailsList;
+import org.filesys.server.filesys.db.DBDataInterface;
+import org.filesys.server.filesys.db.DBDataRangeInterface;
+import org.filesys.server.filesys.db.DBDeviceContext;
+import org.filesys.server.filesys.db.DBDiskDriver;
+import org.filesys.server.filesys.db.DBException;
+import org.filesys.server.filesys.db.DBFileInfo;
+import org.filesys.server.filesys.db.DBInterface;
+import org.filesys.server.filesys.db.DBPagedSearchContext;
+import org.filesys.server.filesys.db.DBQueueBatchInterface;
+import org.filesys.server.filesys.db.DBQueueInterface;
+import org.filesys.server.filesys.db.DBSearchContext;
+import org.filesys.server.filesys.db.JdbcDBInterface;
+import org.filesys.server.filesys.db.RetentionDetails;
+import org.filesys.server.filesys.loader.CachedFileInfo;
+import org.filesys.server.filesys.loader.FileRequest;
+import org.filesys.server.filesys.loader.FileRequestQueue;
+import org.filesys.server.filesys.loader.FileSegment;
+import org.filesys.server.filesys.loader.MultipleFileRequest;
+import org.filesys.server.filesys.loader.SingleFileRequest;
+import org.filesys.smb.server.ntfs.StreamInfo;
+import org.filesys.smb.server.ntfs.StreamInfoList;
+import org.filesys.util.MemorySize;
+import org.filesys.util.WildCard;
+import org.springframework.extensions.config.ConfigElement;
+
+/**
+ * Embedded Database Interface Class
+ *
+ * <p>Database interface that stores the filesystem metadata, the background load/save queue and the file data
+ * locally, without an external database server. The metadata and queue are stored in an embedded key/value store
+ * that uses a write-ahead log with memory mapped snapshots, see the KeyValueStore class. File and Jar data is stored
+ * as files below the store folder.
+ *
+ * <p>Folder entries are keyed by the parent folder id and the normalized file name, so file name lookups are a single
+ * key read and folder searches are a range scan that returns the entries in name order.
+ *
+ * @author gkspencer
+ */
+public class EmbeddedDBInterface implements DBInterface, DBQueueInterface, DBQueueBatchInterface, DBDataInterface, DBDataRangeInterface {
+
+    //	Constants
+    //
+    // Store folder names
+    public static final String MetadataFolder   = "metadata";
+    public static final String DataFolder       = "data";
+    public static final String JarFolder        = "jars";
+
+    // Data, Jar and temporary file extensions
+    public static final String DataFileExtension    = ".dat";
+    public static final String JarFileExtension     = ".jar";
+    public static final String TempFileExtension    = ".tmp";
+
+    // Minimum and maximum background log sync interval, in milliseconds
+    public static final long MinimumLogSyncInterval = 10L;
+    public static final long MaximumLogSyncInterval = 10000L;
+
+    // Store table key prefixes
+    private static final byte TableFile     = 'F';
+    private static final byte TableFolder   = 'D';
+    private static final byte TableStream   = 'S';
+    private static final byte TableData     = 'B';
+    private static final byte TableJar      = 'J';
+    private static final byte TableQueue    = 'Q';
+    private static final byte TableTrans    = 'T';
+    private static final byte TableCounter  = 'C';
+
+    // Id counters
+    private static final int CounterFileId  = 0;
+    private static final int CounterSeqNo   = 1;
+    private static final int CounterJarId   = 2;
+
+    private static final int NumCounters    = 3;
+
+    // Queue record encoding version
+    private static final int QueueRecordVersion = 1;
+
+    // Database device context
+    private DBDeviceContext m_dbCtx;
+
+    // Supported and requested features
+    private EnumSet<Feature> m_features = EnumSet.of(Feature.NTFS, Feature.Retention, Feature.Queue, Feature.Data, Feature.JarData);
+    private EnumSet<Feature> m_reqFeatures = EnumSet.noneOf(Feature.class);
+
+    // Store folder, key/value store, data and Jar folders
+    private File m_storeDir;
+    private KeyValueStore m_store;
+
+    private File m_dataDir;
+    private File m_jarDir;
+
+    // Lock used to serialize read-modify-write updates to the store
+    private final ReentrantLock m_updateLock = new ReentrantLock();
+
+    // Next file id, queue sequence number and Jar id
+    private int[] m_counters = new int[NumCounters];
+
+    // Queued requests that have been claimed by a queue loader
+    private Set<Integer> m_claimed = ConcurrentHashMap.newKeySet();
+
+    // Total size of the files in the filesystem
+    private AtomicLong m_usedSpace = new AtomicLong();
+
+    // Retention period, in milliseconds, or -1 if not enabled
+    private long m_retentionPeriod = -1L;
+
+    // Data fragment size, used by range loads
+    private long m_dataFragSize = JdbcDBInterface.DefaultFragSize;
+
+    // Number of entries to load per page for folder searches
+    private int m_searchPageSize = DBPagedSearchContext.DefaultPageSize;
+
+    // Debug enable
+    private boolean m_debug;
+
+    /**
+     * Default constructor
+     */
+    public EmbeddedDBInterface() {
+    }
+
+    /**
+     * Return the database interface name
+     *
+     * @return String
+     */
+    public String getDBInterfaceName() {
+        return "Embedded";
+    }
+
+    /**
+     * Determine if the database interface supports the specified feature
+     *
+     * @param feature Feature
+     * @return boolean
+     */
+    public boolean supportsFeature(Feature feature) {
+        return m_features.contains(feature);
+    }
+
+    /**
+     * Request the specified database features be enabled
+     *
+     * @param featureMask EnumSet&lt;Feature&gt;
+     * @exception DBException Database error
+     */
+    public void requestFeatures(EnumSet<Feature> featureMask)
+            throws DBException {
+
+        //	Check if there are any unsupported features requested
+        for (Feature curFeature : featureMask)
+            if (m_features.contains(curFeature) == false)
+                throw new DBException("Unsupported feature requested (" + curFeature.name() + ")");
+
+        //	Set the requested features
+        m_reqFeatures = EnumSet.copyOf(featureMask);
+    }
+
+    /**
+     * Check if data retention is enabled
+     *
+     * @return boolean
+     */
+    public final boolean isRetentionEnabled() {
+        return m_reqFeatures.contains(Feature.Retention);
+    }
+
+    /**
+     * Return the store folder
+     *
+     * @return File
+     */
+    public final File getStoreDirectory() {
+        return m_storeDir;
+    }
+
+    /**
+     * Check if debug output is enabled
+     *
+     * @return boolean
+     */
+    public final boolean hasDebug() {
+        return m_debug;
+    }
+
+    /**
+     * Initialize the database interface
+     *
+     * @param context DBDeviceContext
+     * @param params  ConfigElement
+     * @exception InvalidConfigurationException Failed to initialize the database interface
+     */
+    public void initializeDatabase(DBDeviceContext context, ConfigElement params)
+            throws InvalidConfigurationException {
+
+        //  Save the context
+        m_dbCtx = context;
+
+        //  Get the store folder
+        ConfigElement nameVal = params.getChild("StoreDirectory");
+        if (nameVal == null || nameVal.getValue() == null || nameVal.getValue().length() == 0)
+            throw new InvalidConfigurationException("Embedded database store directory not specified");
+
+        m_storeDir = new File(nameVal.getValue());
+
+        //  Create the key/value store
+        m_store = new KeyValueStore(new File(m_storeDir, MetadataFolder));
+
+        //  Check if the checkpoint size has been specified
+        nameVal = params.getChild("CheckpointSize");
+        if (nameVal != null) {
+            try {
+
+                // Parse the checkpoint size value
+                long cpSize = MemorySize.getByteValue(nameVal.getValue());
+                if (cpSize < KeyValueStore.MinimumCheckpointSize || cpSize > KeyValueStore.MaximumCheckpointSize)
+                    throw new InvalidConfigurationException("Embedded database checkpoint size out of valid range (" + KeyValueStore.MinimumCheckpointSize
+                            + "-" + KeyValueStore.MaximumCheckpointSize + ")");
+
+                m_store.setCheckpointSize(cpSize);
+            }
+            catch (NumberFormatException ex) {
+                throw new InvalidConfigurationException("Embedded database checkpoint size invalid, " + nameVal.getValue(), ex);
+            }
+        }
+
+        //  Check if the log should be synced in the background, rather than on each commit
+        nameVal = params.getChild("LogSyncInterval");
+        if (nameVal != null) {
+            try {
+
+                // Parse the log sync interval value
+                long syncInterval = Long.parseLong(nameVal.getValue());
+                if (syncInterval < MinimumLogSyncInterval || syncInterval > MaximumLogSyncInterval)
+                    throw new InvalidConfigurationException("Embedded database log sync interval out of valid range (" + MinimumLogSyncInterval
+                            + "-" + MaximumLogSyncInterval + ")");
+
+                m_store.setSyncInterval(syncInterval);
+            }
+            catch (NumberFormatException ex) {
+                throw new InvalidConfigurationException("Embedded database log sync interval invalid, " + nameVal.getValue(), ex);
+            }
+        }
+
+        //  Check if the data fragment size has been specified
+        nameVal = params.getChild("FragmentSize");
+        if (nameVal != null) {
+            try {
+
+                // Parse the fragment size value
+                m_dataFragSize = MemorySize.getByteValue(nameVal.getValue());
+                if (m_dataFragSize < JdbcDBInterface.MinFragSize || m_dataFragSize > JdbcDBInterface.MaxFragSize)
+                    throw new InvalidConfigurationException("Embedded database fragment size out of valid range (" + JdbcDBInterface.MinFragSize
+                            + "-" + JdbcDBInterface.MaxFragSize + ")");
+            }
+            catch (NumberFormatException ex) {
+                throw new InvalidConfigurationException("Embedded database fragment size invalid, " + nameVal.getValue(), ex);
+            }
+        }
+
+        //  Check if the search page size has been specified
+        nameVal = params.getChild("SearchPageSize");
+        if (nameVal != null) {
+            try {
+
+                // Parse the search page size value
+                m_searchPageSize = Integer.parseInt(nameVal.getValue());
+                if (m_searchPageSize < DBPagedSearchContext.MinimumPageSize || m_searchPageSize > DBPagedSearchContext.MaximumPageSize)
+                    throw new InvalidConfigurationException("Database search page size out of valid range (" + DBPagedSearchContext.MinimumPageSize
+                            + "-" + DBPagedSearchContext.MaximumPageSize + ")");
+            }
+            catch (NumberFormatException ex) {
+                throw new InvalidConfigurationException("Database search page size value invalid, " + nameVal.getValue(), ex);
+            }
+        }
+
+        //  Check if debug output is enabled
+        if (params.getChild("Debug") != null)
+            m_debug = true;
+
+        m_store.setDebug(hasDebug());
+
+        //  Copy the retention period from the context, value will be -1 if not enabled
+        m_retentionPeriod = context.getRetentionPeriod();
+
+        try {
+
+            // Open the store, and create the data folders
+            m_store.openStore();
+
+            m_dataDir = new File(m_storeDir, DataFolder);
+            m_jarDir = new File(m_storeDir, JarFolder);
+
+            m_dataDir.mkdirs();
+            m_jarDir.mkdirs();
+
+            // Load the id counters, and calculate the used file space
+            loadCounters();
+        }
+        catch (IOException ex) {
+
+            // Close the store
+            shutdownDatabase(context);
+
+            throw new InvalidConfigurationException("Failed to open embedded database, " + ex.getMessage(), ex);
+        }
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("[EmbeddedDB] Opened store=" + m_storeDir.getAbsolutePath() + ", nextFid=" + m_counters[CounterFileId]
+                    + ", usedSpace=" + m_usedSpace.get());
+    }
+
+    /**
+     * Shutdown the database interface
+     *
+     * @param context DBDeviceContext
+     */
+    public void shutdownDatabase(DBDeviceContext context) {
+
+        // Close the store
+        if (m_store != null) {
+            try {
+                m_store.closeStore();
+            }
+            catch (IOException ex) {
+
+                // DEBUG
+                if (Debug.EnableError)
+                    Debug.println("[EmbeddedDB] Error closing store, " + ex.toString(), Debug.Error);
+            }
+        }
+    }
+
+    /**
+     * Check if the database is online
+     *
+     * @return boolean
+     */
+    public boolean isOnline() {
+        return m_store != null && m_store.isOpen();
+    }
+
+    /**
+     * Check if a file/folder exists
+     *
+     * @param dirId int
+     * @param fname String
+     * @return FileStatus
+     * @exception DBException Database error
+     */
+    public FileStatus fileExists(int dirId, String fname)
+            throws DBException {
+
+        // Find the file record
+        FileRecord fileRec = findFileRecord(dirId, fname);
+
+        if (fileRec == null)
+            return FileStatus.NotExist;
+        return fileRec.isDirectory() ? FileStatus.DirectoryExists : FileStatus.FileExists;
+    }
+
+    /**
+     * Create a file record for a new file or folder
+     *
+     * @param fname  String
+     * @param dirId  int
+     * @param params FileOpenParams
+     * @param retain boolean
+     * @return int
+     * @exception DBException Database error
+     * @exception FileExistsException File record already exists
+     */
+    public int createFileRecord(String fname, int dirId, FileOpenParams params, boolean retain)
+            throws DBException, FileExistsException {
+
+        int fid = -1;
+        long lsn = 0L;
+
+        m_updateLock.lock();
+
+        try {
+
+            // Check if the file/folder already exists
+            byte[] folderKey = makeFolderKey(dirId, fname);
+            if (getStore().get(folderKey) != null)
+                throw new FileExistsException(fname);
+
+            // Allocate the file id, and create the file record
+            fid = nextId(CounterFileId);
+            FileRecord fileRec = new FileRecord(fid, dirId, fname);
+
+            long timeNow = System.currentTimeMillis();
+            fileRec.setDateTimes(timeNow);
+
+            if (params.hasCreationDateTime())
+                fileRec.setCreationDateTime(params.getCreationDateTime());
+
+            int attr = params.getAttributes();
+
+            if (params.isDirectory() || params.isFileType() == FileType.Directory) {
+                attr |= FileAttribute.Directory;
+
+                fileRec.setFileType(FileType.Directory);
+                fileRec.setMode(DBDiskDriver.DefaultNFSDirMode);
+            }
+            else {
+                if (params.isFileType() != null)
+                    fileRec.setFileType(params.isFileType());
+                fileRec.setMode(DBDiskDriver.DefaultNFSFileMode);
+            }
+
+            fileRec.setAttributes(attr);
+
+            // Set the retention period, if enabled
+            if (retain && isRetentionEnabled() && m_retentionPeriod > 0L)
+                fileRec.setRetention(timeNow, timeNow + m_retentionPeriod);
+
+            // Write the file record and folder entry
+            WriteBatch batch = new WriteBatch();
+
+            batch.put(makeKey(TableFile, fid), fileRec.encodeRecord());
+            batch.put(folderKey, encodeInt(fid));
+            putCounter(batch, CounterFileId);
+
+            lsn = writeBatch(batch);
+        }
+        finally {
+            m_updateLock.unlock();
+        }
+
+        syncBatch(lsn);
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("[EmbeddedDB] Created file name=" + fname + ", dirId=" + dirId + ", fid=" + fid);
+
+        return fid;
+    }
+
+    /**
+     * Create a stream record for a new file stream
+     *
+     * @param sname String
+     * @param fid   int
+     * @return int
+     * @exception DBException Database error
+     */
+    public int createStreamRecord(String sname, int fid)
+            throws DBException {
+
+        int stid = 1;
+        long lsn = 0L;
+
+        m_updateLock.lock();
+
+        try {
+
+            // Allocate the next stream id for the file
+            NavigableMap<byte[], byte[]> streams = getStore().scanPrefix(makeKey(TableStream, fid));
+            if (streams.isEmpty() == false)
+                stid = decodeInt(streams.lastKey(), 5) + 1;
+
+            // Write the stream record
+            StreamRecord streamRec = new StreamRecord(fid, stid, sname);
+            streamRec.setDateTimes(System.currentTimeMillis());
+
+            WriteBatch batch = new WriteBatch();
+            batch.put(makeKey(TableStream, fid, stid), streamRec.encodeRecord());
+
+            lsn = writeBatch(batch);
+        }
+        finally {
+            m_updateLock.unlock();
+        }
+
+        syncBatch(lsn);
+        return stid;
+    }
+
+    /**
+     * Delete a file or folder record
+     *
+     * @param dirId    int
+     * @param fid      int
+     * @param markOnly boolean
+     * @exception DBException Database error
+     * @exception IOException I/O error
+     * @exception DirectoryNotEmptyException Directory is not empty
+     */
+    public void deleteFileRecord(int dirId, int fid, boolean markOnly)
+            throws DBException, IOException, DirectoryNotEmptyException {
+
+        long lsn = 0L;
+
+        m_updateLock.lock();
+
+        try {
+
+            // Get the file record
+            FileRecord fileRec = loadFileRecord(fid);
+            if (fileRec == null)
+                return;
+
+            // Check if the folder is empty
+            if (fileRec.isDirectory() && getStore().scanPrefix(makeKey(TableFolder, fid)).isEmpty() == false)
+                throw new DirectoryNotEmptyException(fileRec.getName());
+
+            // Remove the folder entry
+            WriteBatch batch = new WriteBatch();
+            removeFolderEntry(fileRec, batch);
+
+            long usedSize = fileRec.isDirectory() || fileRec.isDeleted() ? 0L : fileRec.getSize();
+
+            if (markOnly) {
+
+                // Mark the file as deleted, keep the file record
+                fileRec.setDeleted(true);
+                batch.put(makeKey(TableFile, fid), fileRec.encodeRecord());
+            }
+            else {
+
+                // Delete the file record and stream records
+                batch.delete(makeKey(TableFile, fid));
+
+                for (byte[] streamKey : getStore().scanPrefix(makeKey(TableStream, fid)).keySet())
+                    batch.delete(streamKey);
+            }
+
+            lsn = writeBatch(batch);
+            m_usedSpace.addAndGet(-usedSize);
+        }
+        finally {
+            m_updateLock.unlock();
+        }
+
+        syncBatch(lsn);
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("[EmbeddedDB] Deleted file fid=" + fid + ", markOnly=" + markOnly);
+    }
+
+    /**
+     * Delete a file stream record
+     *
+     * @param fid      int
+     * @param stid     int
+     * @param markOnly boolean
+     * @exception DBException Database error
+     */
+    public void deleteStreamRecord(int fid, int stid, boolean markOnly)
+            throws DBException {
+
+        long lsn = 0L;
+
+        m_updateLock.lock();
+
+        try {
+
+            // Get the stream record
+            StreamRecord streamRec = loadStreamRecord(fid, stid);
+            if (streamRec == null)
+                return;
+
+            // Mark the stream as deleted, or delete the stream record
+            WriteBatch batch = new WriteBatch();
+
+            if (markOnly) {
+                streamRec.setDeleted(true);
+                batch.put(makeKey(TableStream, fid, stid), streamRec.encodeRecord());
+            }
+            else
+                batch.delete(makeKey(TableStream, fid, stid));
+
+            lsn = writeBatch(batch);
+        }
+        finally {
+            m_updateLock.unlock();
+        }
+
+        syncBatch(lsn);
+    }
+
+    /**
+     * Set file information for a file or folder
+     *
+     * @param dirId int
+     * @param fid   int
+     * @param finfo FileInfo
+     * @exception DBException Database error
+     */
+    public void setFileInformation(int dirId, int fid, FileInfo finfo)
+            throws DBException {
+
+        long lsn = 0L;
+
+        m_updateLock.lock();
+
+        try {
+
+            // Get the file record
+            FileRecord fileRec = loadFileRecord(fid);
+            if (fileRec == null)
+                return;
+
+            // Update the file record
+            long oldSize = fileRec.getSize();
+
+            if (fileRec.updateFrom(finfo) == false)
+                return;
+
+            WriteBatch batch = new WriteBatch();
+            batch.put(makeKey(TableFile, fid), fileRec.encodeRecord());
+
+            lsn = writeBatch(batch);
+
+            // Update the used file space
+            if (fileRec.isDirectory() == false && fileRec.isDeleted() == false)
+                m_usedSpace.addAndGet(fileRec.getSize() - oldSize);
+        }
+        finally {
+            m_updateLock.unlock();
+        }
+
+        syncBatch(lsn);
+    }
+
+    /**
+     * Set information for a file stream
+     *
+     * @param dirId int
+     * @param fid   int
+     * @param stid  int
+     * @param sinfo StreamInfo
+     * @exception DBException Database error
+     */
+    public void setStreamInformation(int dirId, int fid, int stid, StreamInfo sinfo)
+            throws DBException {
+
+        long lsn = 0L;
+
+        m_updateLock.lock();
+
+        try {
+
+            // Get the stream record, and update
+            StreamRecord streamRec = loadStreamRecord(fid, stid);
+            if (streamRec == null || streamRec.updateFrom(sinfo) == false)
+                return;
+
+            WriteBatch batch = new WriteBatch();
+            batch.put(makeKey(TableStream, fid, stid), streamRec.encodeRecord());
+
+            lsn = writeBatch(batch);
+        }
+        finally {
+            m_updateLock.unlock();
+        }
+
+        syncBatch(lsn);
+    }
+
+    /**
+     * Get the id for a file/folder, or -1 if the file/folder does not exist.
+     *
+     * @param dirid    int
+     * @param fname    String
+     * @param dirOnly  boolean
+     * @param caseLess boolean
+     * @return int
+     * @exception DBException Database error
+     */
+    public int getFileId(int dirid, String fname, boolean dirOnly, boolean caseLess)
+            throws DBException {
+
+        // Find the file record, folder entries are keyed using the normalized name
+        FileRecord fileRec = findFileRecord(dirid, fname);
+
+        if (fileRec == null || (dirOnly && fileRec.isDirectory() == false))
+            return -1;
+
+        if (caseLess == false && fileRec.getName().equals(fname) == false)
+            return -1;
+
+        return fileRec.getFileId();
+    }
+
+    /**
+     * Get information for a file or folder
+     *
+     * @param dirId     int
+     * @param fid       int
+     * @param infoLevel DBInterface.FileInfoLevel
+     * @return DBFileInfo
+     * @exception DBException Database error
+     */
+    public DBFileInfo getFileInformation(int dirId, int fid, DBInterface.FileInfoLevel infoLevel)
+            throws DBException {
+
+        // Get the file record
+        FileRecord fileRec = loadFileRecord(fid);
+
+        if (fileRec == null || fileRec.isDeleted())
+            return null;
+        return fileRec.getFileInformation(infoLevel);
+    }
+
+    /**
+     * Get information for a file stream
+     *
+     * @param fid       int
+     * @param stid      int
+     * @param infoLevel DBInterface.StreamInfoLevel
+     * @return StreamInfo
+     * @exception DBException Database error
+     */
+    public StreamInfo getStreamInformation(int fid, int stid, DBInterface.StreamInfoLevel infoLevel)
+            throws DBException {
+
+        // Get the stream record
+        StreamRecord streamRec = loadStreamRecord(fid, stid);
+
+        if (streamRec == null || streamRec.isDeleted())
+            return null;
+        return streamRec.getStreamInformation(infoLevel);
+    }
+
+    /**
+     * Return the list of streams for the specified file
+     *
+     * @param fid       int
+     * @param infoLevel DBInterface.StreamInfoLevel
+     * @return StreamInfoList
+     * @exception DBException Database error
+     */
+    public StreamInfoList getStreamsList(int fid, DBInterface.StreamInfoLevel infoLevel)
+            throws DBException {
+
+        // Scan the stream records for the file
+        StreamInfoList sList = new StreamInfoList();
+
+        for (byte[] data : getStore().scanPrefix(makeKey(TableStream, fid)).values()) {
+            StreamRecord streamRec = decodeStreamRecord(data);
+
+            if (streamRec.isDeleted() == false)
+                sList.addStream(streamRec.getStreamInformation(infoLevel));
+        }
+
+        return sList;
+    }
+
+    /**
+     * Rename a file or folder, may also change the parent directory.
+     *
+     * @param dirId   int
+     * @param fid     int
+     * @param newName String
+     * @param newDir  int
+     * @exception DBException Database error
+     * @exception FileNotFoundException File not found
+     */
+    public void renameFileRecord(int dirId, int fid, String newName, int newDir)
+            throws DBException, FileNotFoundException {
+
+        long lsn = 0L;
+
+        m_updateLock.lock();
+
+        try {
+
+            // Get the file record
+            FileRecord fileRec = loadFileRecord(fid);
+            if (fileRec == null || fileRec.isDeleted())
+                throw new FileNotFoundException("File record not found, fid=" + fid);
+
+            // Check if the new name is used by another file, a rename that only changes the case of the name
+            // uses the same folder entry
+            byte[] newKey = makeFolderKey(newDir, newName);
+            byte[] curFid = getStore().get(newKey);
+
+            if (curFid != null && decodeInt(curFid, 0) != fid)
+                throw new DBException("Rename target already exists, " + newName);
+
+            // Move the folder entry, and update the file record
+            WriteBatch batch = new WriteBatch();
+
+            removeFolderEntry(fileRec, batch);
+            batch.put(newKey, encodeInt(fid));
+
+            fileRec.setName(newDir, newName);
+            fileRec.setChangeDateTime(System.currentTimeMillis());
+
+            batch.put(makeKey(TableFile, fid), fileRec.encodeRecord());
+
+            lsn = writeBatch(batch);
+        }
+        finally {
+            m_updateLock.unlock();
+        }
+
+        syncBatch(lsn);
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("[EmbeddedDB] Renamed fid=" + fid + ", newName=" + newName + ", newDir=" + newDir);
+    }
+
+    /**
+     * Rename a file stream
+     *
+     * @param dirId   int
+     * @param fid     int
+     * @param stid    int
+     * @param newName String
+     * @exception DBException Database error
+     */
+    public void renameStreamRecord(int dirId, int fid, int stid, String newName)
+            throws DBException {
+
+        long lsn = 0L;
+
+        m_updateLock.lock();
+
+        try {
+
+            // Get the stream record
+            StreamRecord streamRec = loadStreamRecord(fid, stid);
+            if (streamRec == null)
+                return;
+
+            // Update the stream name
+            streamRec.setName(newName);
+
+            WriteBatch batch = new WriteBatch();
+            batch.put(makeKey(TableStream, fid, stid), streamRec.encodeRecord());
+
+            lsn = writeBatch(batch);
+        }
+        finally {
+            m_updateLock.unlock();
+        }
+
+        syncBatch(lsn);
+    }
+
+    /**
+     * Return the retention period expiry date/time for the specified file, or null if the file/folder
+     * is not under retention.
+     *
+     * @param dirId int
+     * @param fid   int
+     * @return RetentionDetails
+     * @exception DBException Database error
+     */
+    public RetentionDetails getFileRetentionDetails(int dirId, int fid)
+            throws DBException {
+
+        // Get the file record
+        FileRecord fileRec = loadFileRecord(fid);
+
+        if (fileRec == null || fileRec.hasRetention() == false)
+            return null;
+        return new RetentionDetails(fid, fileRec.getRetentionStart(), fileRec.getRetentionEnd());
+    }
+
+    /**
+     * Start a directory search
+     *
+     * @param dirid      int
+     * @param searchPath String
+     * @param attrib     int
+     * @param infoLevel  DBInterface.FileInfoLevel
+     * @param maxRecords int
+     * @return DBSearchContext
+     * @exception DBException Database error
+     */
+    public DBSearchContext startSearch(int dirid, String searchPath, int attrib, DBInterface.FileInfoLevel infoLevel, int maxRecords)
+            throws DBException {
+
+        // Check if the search is for a single file, or uses a wildcard filter. A trailing separator returns
+        // all entries in the folder.
+        String fileName = null;
+        WildCard filter = null;
+
+        if (searchPath.endsWith(FileName.DOS_SEPERATOR_STR) == false) {
+            String namePart = FileName.getFileNamePart(searchPath);
+
+            if (namePart != null && namePart.length() > 0) {
+                if (WildCard.containsWildcards(namePart) == false)
+                    fileName = namePart;
+                else if (WildCard.isWildcardAll(namePart) == false)
+                    filter = new WildCard(namePart, false);
+            }
+        }
+
+        // Create the search context, and load the first page of entries
+        EmbeddedSearchContext search = new EmbeddedSearchContext(this, dirid, fileName, filter, infoLevel, m_searchPageSize);
+        search.startPagedSearch();
+
+        return search;
+    }
+
+    /**
+     * Return the data for a symbolic link
+     *
+     * @param dirId int
+     * @param fid   int
+     * @return String
+     * @exception DBException Database error
+     */
+    public String readSymbolicLink(int dirId, int fid)
+            throws DBException {
+
+        //	Indicate that the feature is not implemented
+        throw new DBException("Feature not implemented");
+    }
+
+    /**
+     * Delete a symbolic link record
+     *
+     * @param dirId int
+     * @param fid   int
+     * @exception DBException Database error
+     */
+    public void deleteSymbolicLinkRecord(int dirId, int fid)
+            throws DBException {
+
+        //	Indicate that the feature is not implemented
+        throw new DBException("Feature not implemented");
+    }
+
+    /**
+     * Return the used file space, or -1 if not supported.
+     *
+     * @return long
+     */
+    public long getUsedFileSpace() {
+        return m_usedSpace.get();
+    }
+
+    /**
+     * Load a page of folder entries, ordered by the normalized file name, using a range scan of the folder entries
+     *
+     * @param dirId     int
+     * @param fileName  String, or null to return all entries
+     * @param startName String, or null to start at the first entry
+     * @param inclusive boolean
+     * @param maxRows   int
+     * @param infoLevel DBInterface.FileInfoLevel
+     * @param page      List of DBFileInfo
+     * @exception DBException Database error
+     */
+    protected final void loadFolderPage(int dirId, String fileName, String startName, boolean inclusive, int maxRows,
+                                        DBInterface.FileInfoLevel infoLevel, List<DBFileInfo> page)
+            throws DBException {
+
+        // Check for a single file search
+        if (fileName != null) {
+            if (startName == null || (inclusive && startName.equalsIgnoreCase(fileName))) {
+                FileRecord fileRec = findFileRecord(dirId, fileName);
+
+                if (fileRec != null)
+                    page.add(fileRec.getFileInformation(infoLevel));
+            }
+
+            return;
+        }
+
+        // Scan the folder entries, starting after the last entry of the previous page
+        byte[] fromKey = startName != null ? makeFolderKey(dirId, startName) : makeKey(TableFolder, dirId);
+        NavigableMap<byte[], byte[]> entries = getStore().scanRange(fromKey, startName == null || inclusive, makeKey(TableFolder, dirId + 1));
+
+        for (byte[] fidByts : entries.values()) {
+
+            // Get the file record for the folder entry
+            FileRecord fileRec = loadFileRecord(decodeInt(fidByts, 0));
+
+            if (fileRec != null && fileRec.isDeleted() == false) {
+                page.add(fileRec.getFileInformation(infoLevel));
+
+                if (page.size() >= maxRows)
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Queue a file request.
+     *
+     * @param fileReq FileRequest
+     * @exception DBException Database error
+     */
+    public void queueFileRequest(FileRequest fileReq)
+            throws DBException {
+
+        List<FileRequest> reqList = new ArrayList<FileRequest>(1);
+        reqList.add(fileReq);
+
+        queueFileRequests(reqList);
+    }
+
+    /**
+     * Queue a batch of file requests, the requests are written as a single log record
+     *
+     * @param reqList List of FileRequest
+     * @exception DBException Database error
+     */
+    public void queueFileRequests(List<FileRequest> reqList)
+            throws DBException {
+
+        long lsn = 0L;
+
+        m_updateLock.lock();
+
+        try {
+
+            // Add the queue records, and allocate the sequence numbers
+            WriteBatch batch = new WriteBatch();
+
+            for (FileRequest fileReq : reqList) {
+
+                // Only single file requests are queued, transaction requests are queued as single requests
+                if (fileReq instanceof SingleFileRequest == false)
+                    throw new DBException("Unsupported file request type, " + fileReq.getClass().getName());
+
+                SingleFileRequest singleReq = (SingleFileRequest) fileReq;
+                singleReq.setSequenceNumber(nextId(CounterSeqNo));
+
+                batch.put(makeQueueKey(singleReq), encodeQueueRecord(singleReq));
+            }
+
+            putCounter(batch, CounterSeqNo);
+            lsn = writeBatch(batch);
+        }
+        finally {
+            m_updateLock.unlock();
+        }
+
+        syncBatch(lsn);
+    }
+
+    /**
+     * Delete a file request from the pending queue.
+     *
+     * @param fileReq FileRequest
+     * @exception DBException Database error
+     */
+    public void deleteFileRequest(FileRequest fileReq)
+            throws DBException {
+
+        List<FileRequest> reqList = new ArrayList<FileRequest>(1);
+        reqList.add(fileReq);
+
+        deleteFileRequests(reqList);
+    }
+
+    /**
+     * Delete a batch of file requests from the pending queue, the deletes are written as a single log record
+     *
+     * @param reqList List of FileRequest
+     * @exception DBException Database error
+     */
+    public void deleteFileRequests(List<FileRequest> reqList)
+            throws DBException {
+
+        // Build the list of queue records to delete, a transaction request deletes all the files in the transaction
+        WriteBatch batch = new WriteBatch();
+
+        for (FileRequest fileReq : reqList) {
+            if (fileReq instanceof SingleFileRequest) {
+                if (((SingleFileRequest) fileReq).getSequenceNumber() != -1)
+                    batch.delete(makeQueueKey((SingleFileRequest) fileReq));
+            }
+            else if (fileReq instanceof MultipleFileRequest) {
+                for (byte[] tranKey : getStore().scanPrefix(makeKey(TableTrans, fileReq.getTransactionId())).keySet())
+                    batch.delete(tranKey);
+            }
+        }
+
+        if (batch.isEmpty())
+            return;
+
+        // Delete the queue records
+        syncBatch(writeBatch(batch));
+
+        // Release the claims on the deleted requests
+        for (FileRequest fileReq : reqList) {
+            if (fileReq instanceof SingleFileRequest)
+                m_claimed.remove(((SingleFileRequest) fileReq).getSequenceNumber());
+        }
+    }
+
+    /**
+     * Load a block of file requests from the database into the specified queue.
+     *
+     * @param seqNo    int
+     * @param reqType  FileRequest.RequestType
+     * @param reqQueue FileRequestQueue
+     * @param recLimit int
+     * @return int
+     * @exception DBException Database error
+     */
+    public int loadFileRequests(int seqNo, FileRequest.RequestType reqType, FileRequestQueue reqQueue, int recLimit)
+            throws DBException {
+        return loadQueueRecords(seqNo, reqType, reqQueue, recLimit, false);
+    }
+
+    /**
+     * Load and claim a block of file requests from the database into the specified queue.
+     *
+     * @param seqNo    int
+     * @param reqType  FileRequest.RequestType
+     * @param reqQueue FileRequestQueue
+     * @param recLimit int
+     * @return int
+     * @exception DBException Database error
+     */
+    public int claimFileRequests(int seqNo, FileRequest.RequestType reqType, FileRequestQueue reqQueue, int recLimit)
+            throws DBException {
+        return loadQueueRecords(seqNo, reqType, reqQueue, recLimit, true);
+    }
+
+    /**
+     * Load a transaction request from the queue.
+     *
+     * @param tranReq MultipleFileRequest
+     * @return MultipleFileRequest
+     * @exception DBException Database error
+     */
+    public MultipleFileRequest loadTransactionRequest(MultipleFileRequest tranReq)
+            throws DBException {
+
+        // Scan the queue records for the transaction
+        NavigableMap<byte[], byte[]> tranRecs = getStore().scanPrefix(makeKey(TableTrans, tranReq.getTransactionId()));
+        if (tranRecs.isEmpty())
+            return null;
+
+        for (Map.Entry<byte[], byte[]> entry : tranRecs.entrySet()) {
+
+            // Add the file details to the transaction
+            SingleFileRequest fileReq = decodeQueueRecord(decodeInt(entry.getKey(), 5), entry.getValue());
+            tranReq.addFileInfo(new CachedFileInfo(fileReq.getFileId(), fileReq.getStreamId(), fileReq.getTemporaryFile(), fileReq.getVirtualPath()));
+
+            if (tranReq.hasAttributes() == false && fileReq.hasAttributes())
+                tranReq.setAttributes(fileReq.getAttributesString());
+        }
+
+        return tranReq;
+    }
+
+    /**
+     * Perform a queue cleanup deleting temporary cache files that do not have an associated save or transaction
+     * request.
+     *
+     * @param tempDir        File
+     * @param tempDirPrefix  String
+     * @param tempFilePrefix String
+     * @param jarFilePrefix  String
+     * @return FileRequestQueue
+     * @exception DBException Database error
+     */
+    public FileRequestQueue performQueueCleanup(File tempDir, String tempDirPrefix, String tempFilePrefix, String jarFilePrefix)
+            throws DBException {
+
+        // Check the queued requests, load requests are discarded as the file data is requested again when the file
+        // is opened, save requests are discarded if the temporary file no longer exists
+        FileRequestQueue recoveredQueue = new FileRequestQueue();
+        Set<String> tempFiles = new HashSet<String>();
+
+        WriteBatch batch = new WriteBatch();
+
+        cleanupQueueRecords(getStore().scanPrefix(new byte[]{TableQueue}), 1, recoveredQueue, tempFiles, batch);
+        cleanupQueueRecords(getStore().scanPrefix(new byte[]{TableTrans}), 5, recoveredQueue, tempFiles, batch);
+
+        if (batch.isEmpty() == false)
+            syncBatch(writeBatch(batch));
+
+        // Claims are not valid across a restart
+        m_claimed.clear();
+
+        // Delete temporary files that are not referenced by a queued request, and cached Jar files
+        int delCnt = 0;
+        File[] tempDirs = tempDir.listFiles();
+
+        if (tempDirs != null) {
+            for (File curDir : tempDirs) {
+                if (curDir.isDirectory() == false || curDir.getName().startsWith(tempDirPrefix) == false)
+                    continue;
+
+                File[] files = curDir.listFiles();
+                if (files == null)
+                    continue;
+
+                for (File curFile : files) {
+                    String fname = curFile.getName();
+
+                    if ((fname.startsWith(tempFilePrefix) && tempFiles.contains(curFile.getAbsolutePath()) == false) ||
+                            fname.startsWith(jarFilePrefix)) {
+                        if (curFile.delete())
+                            delCnt++;
+                    }
+                }
+            }
+        }
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("[EmbeddedDB] Queue cleanup discarded=" + batch.numberOfOperations() + ", recovered=" + recoveredQueue.numberOfRequests()
+                    + ", deletedFiles=" + delCnt);
+
+        return recoveredQueue;
+    }
+
+    /**
+     * Return the file data details for the specified file or stream.
+     *
+     * @param fileId   int
+     * @param streamId int
+     * @return DBDataDetails
+     * @exception DBException Database error
+     */
+    public DBDataDetails getFileDataDetails(int fileId, int streamId)
+            throws DBException {
+
+        // Get the data record, no data record indicates an empty file
+        byte[] data = getStore().get(makeKey(TableData, fileId, streamId));
+        if (data == null)
+            return new DBDataDetails(fileId, streamId);
+
+        ByteBuffer buf = ByteBuffer.wrap(data);
+
+        int jarId = buf.getInt();
+        buf.getLong();
+
+        return new DBDataDetails(fileId, streamId, jarId, buf.getInt(), buf.getInt());
+    }
+
+    /**
+     * Return the maximum data fragment size supported
+     *
+     * @return long
+     */
+    public long getMaximumFragmentSize() {
+        return m_dataFragSize;
+    }
+
+    /**
+     * Load file data from the database into a temporary/local file
+     *
+     * @param fileId   int
+     * @param streamId int
+     * @param fileSeg  FileSegment
+     * @exception DBException Database error
+     * @exception IOException I/O error
+     */
+    public void loadFileData(int fileId, int streamId, FileSegment fileSeg)
+            throws DBException, IOException {
+
+        // Get the file data details
+        DBDataDetails dataDetails = getFileDataDetails(fileId, streamId);
+
+        if (dataDetails.isStoredInJar())
+            throw new DBException("File data is stored in a Jar, fid=" + fileId + ", stid=" + streamId);
+
+        // Copy the data file to the temporary file, if there is no data file create an empty file
+        File tempFile = new File(fileSeg.getTemporaryFile());
+        File dataFile = getDataFile(fileId, streamId);
+
+        if (dataFile.exists())
+            copyFile(dataFile, tempFile, false);
+        else
+            Files.write(tempFile.toPath(), new byte[0]);
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("[EmbeddedDB] Loaded data fid=" + fileId + ", stid=" + streamId + ", size=" + tempFile.length());
+    }
+
+    /**
+     * Load Jar file data from the database into a temporary file
+     *
+     * @param jarId  int
+     * @param jarSeg FileSegment
+     * @exception DBException Database error
+     * @exception IOException I/O error
+     */
+    public void loadJarData(int jarId, FileSegment jarSeg)
+            throws DBException, IOException {
+
+        // Copy the Jar file to the temporary file
+        File jarFile = getJarFile(jarId);
+        if (jarFile.exists() == false)
+            throw new DBException("Jar file not found, jarId=" + jarId);
+
+        copyFile(jarFile, new File(jarSeg.getTemporaryFile()), false);
+    }
+
+    /**
+     * Save the file data from the temporary/local file to the database
+     *
+     * @param fileId   int
+     * @param streamId int
+     * @param fileSeg  FileSegment
+     * @return int
+     * @exception DBException Database error
+     * @exception IOException I/O error
+     */
+    public int saveFileData(int fileId, int streamId, FileSegment fileSeg)
+            throws DBException, IOException {
+
+        // Copy the temporary file to the data file, via a temporary copy so that the previous data is replaced
+        // atomically
+        File dataFile = getDataFile(fileId, streamId);
+        File tmpFile = new File(dataFile.getPath() + TempFileExtension);
+
+        dataFile.getParentFile().mkdirs();
+
+        long fileSize = copyFile(new File(fileSeg.getTemporaryFile()), tmpFile, true);
+        Files.move(tmpFile.toPath(), dataFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        // Update the data record
+        int numFrags = (int) ((fileSize + m_dataFragSize - 1) / m_dataFragSize);
+        List<File> delFiles = new ArrayList<File>();
+        long lsn = 0L;
+
+        m_updateLock.lock();
+
+        try {
+            WriteBatch batch = new WriteBatch();
+            Map<Integer, Integer> jarRefs = new HashMap<Integer, Integer>();
+
+            releaseFileData(fileId, streamId, false, jarRefs, delFiles);
+
+            batch.put(makeKey(TableData, fileId, streamId), encodeDataRecord(-1, fileSize, numFrags, (int) m_dataFragSize));
+            putJarReferences(jarRefs, batch, delFiles);
+
+            lsn = writeBatch(batch);
+        }
+        finally {
+            m_updateLock.unlock();
+        }
+
+        syncBatch(lsn);
+        deleteFiles(delFiles);
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("[EmbeddedDB] Saved data fid=" + fileId + ", stid=" + streamId + ", size=" + fileSize + ", frags=" + numFrags);
+
+        return numFrags;
+    }
+
+    /**
+     * Save the file data from a Jar file to the database
+     *
+     * @param jarFile  String
+     * @param fileList DBDataDetailsList
+     * @return int
+     * @exception DBException Database error
+     * @exception IOException I/O error
+     */
+    public int saveJarData(String jarFile, DBDataDetailsList fileList)
+            throws DBException, IOException {
+
+        // Allocate the Jar id
+        int jarId = -1;
+
+        m_updateLock.lock();
+
+        try {
+            jarId = nextId(CounterJarId);
+        }
+        finally {
+            m_updateLock.unlock();
+        }
+
+        // Copy the Jar file to the Jar folder
+        File storeJar = getJarFile(jarId);
+        File tmpFile = new File(storeJar.getPath() + TempFileExtension);
+
+        copyFile(new File(jarFile), tmpFile, true);
+        Files.move(tmpFile.toPath(), storeJar.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        // Update the data records for the files in the Jar
+        List<File> delFiles = new ArrayList<File>();
+        long lsn = 0L;
+
+        m_updateLock.lock();
+
+        try {
+            WriteBatch batch = new WriteBatch();
+            Map<Integer, Integer> jarRefs = new HashMap<Integer, Integer>();
+
+            for (int idx = 0; idx < fileList.numberOfFiles(); idx++) {
+                DBDataDetails dataDetails = fileList.getFileAt(idx);
+
+                releaseFileData(dataDetails.getFileId(), dataDetails.getStreamId(), true, jarRefs, delFiles);
+
+                batch.put(makeKey(TableData, dataDetails.getFileId(), dataDetails.getStreamId()), encodeDataRecord(jarId, 0L, 0, 0));
+                dataDetails.setJarId(jarId);
+            }
+
+            // Add the Jar record, holds the number of files that reference the Jar
+            jarRefs.put(jarId, fileList.numberOfFiles());
+
+            putJarReferences(jarRefs, batch, delFiles);
+            putCounter(batch, CounterJarId);
+
+            lsn = writeBatch(batch);
+        }
+        finally {
+            m_updateLock.unlock();
+        }
+
+        syncBatch(lsn);
+        deleteFiles(delFiles);
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("[EmbeddedDB] Saved Jar jarId=" + jarId + ", files=" + fileList.numberOfFiles());
+
+        return jarId;
+    }
+
+    /**
+     * Delete the file data for the specified file/stream
+     *
+     * @param fileId   int
+     * @param streamId int
+     * @exception DBException Database error
+     * @exception IOException I/O error
+     */
+    public void deleteFileData(int fileId, int streamId)
+            throws DBException, IOException {
+
+        List<File> delFiles = new ArrayList<File>();
+        long lsn = 0L;
+
+        m_updateLock.lock();
+
+        try {
+
+            // Check if there is a data record
+            byte[] dataKey = makeKey(TableData, fileId, streamId);
+            if (getStore().get(dataKey) == null)
+                return;
+
+            // Delete the data record, and release the data file or Jar reference
+            WriteBatch batch = new WriteBatch();
+            Map<Integer, Integer> jarRefs = new HashMap<Integer, Integer>();
+
+            releaseFileData(fileId, streamId, true, jarRefs, delFiles);
+
+            batch.delete(dataKey);
+            putJarReferences(jarRefs, batch, delFiles);
+
+            lsn = writeBatch(batch);
+        }
+        finally {
+            m_updateLock.unlock();
+        }
+
+        syncBatch(lsn);
+        deleteFiles(delFiles);
+    }
+
+    /**
+     * Delete the file data for the specified Jar file
+     *
+     * @param jarId int
+     * @exception DBException Database error
+     * @exception IOException I/O error
+     */
+    public void deleteJarData(int jarId)
+            throws DBException, IOException {
+
+        // Delete the Jar record
+        WriteBatch batch = new WriteBatch();
+        batch.delete(makeKey(TableJar, jarId));
+
+        syncBatch(writeBatch(batch));
+
+        // Delete the Jar file
+        getJarFile(jarId).delete();
+    }
+
+    /**
+     * Open a stream to read a single file data fragment.
+     *
+     * @param fileId   int
+     * @param streamId int
+     * @param fragNo   int
+     * @return InputStream
+     * @exception DBException Database error
+     * @exception IOException I/O error
+     */
+    public InputStream loadFileDataFragment(int fileId, int streamId, int fragNo)
+            throws DBException, IOException {
+
+        // Get the file data details, fragments are only available for data that is not stored in a Jar
+        DBDataDetails dataDetails = getFileDataDetails(fileId, streamId);
+
+        if (dataDetails.isStoredInJar() || dataDetails.getDataFragmentSize() <= 0)
+            throw new DBException("File data fragments not available, fid=" + fileId + ", stid=" + streamId);
+
+        // Read the fragment from the data file
+        try (RandomAccessFile dataFile = new RandomAccessFile(getDataFile(fileId, streamId), "r")) {
+
+            long fragOff = (long) fragNo * dataDetails.getDataFragmentSize();
+            int fragLen = (int) Math.max(0L, Math.min(dataDetails.getDataFragmentSize(), dataFile.length() - fragOff));
+
+            byte[] fragData = new byte[fragLen];
+
+            if (fragLen > 0) {
+                dataFile.seek(fragOff);
+                dataFile.readFully(fragData);
+            }
+
+            return new ByteArrayInputStream(fragData);
+        }
+    }
+
+    /**
+     * Return the key/value store, or throw an exception if the store is not open
+     *
+     * @return KeyValueStore
+     * @exception DBException Store not open
+     */
+    protected final KeyValueStore getStore()
+            throws DBException {
+        if (m_store == null || m_store.isOpen() == false)
+            throw new DBException("Embedded database is offline");
+        return m_store;
+    }
+
+    /**
+     * Write a batch of updates to the store, returns the log sequence number to sync
+     *
+     * @param batch WriteBatch
+     * @return long
+     * @exception DBException Database error
+     */
+    private long writeBatch(WriteBatch batch)
+            throws DBException {
+        try {
+            return getStore().commitBatch(batch);
+        }
+        catch (IOException ex) {
+            throw new DBException("Embedded database write failed, " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Sync the store log up to the specified log sequence number, called after the update lock has been released
+     * so that concurrent updates share a log sync
+     *
+     * @param lsn long
+     * @exception DBException Database error
+     */
+    private void syncBatch(long lsn)
+            throws DBException {
+
+        if (lsn == 0L)
+            return;
+
+        try {
+            getStore().syncLog(lsn);
+        }
+        catch (IOException ex) {
+            throw new DBException("Embedded database log sync failed, " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Find the file record for a folder entry, returns null if the file does not exist or has been deleted
+     *
+     * @param dirId int
+     * @param fname String
+     * @return FileRecord
+     * @exception DBException Database error
+     */
+    private FileRecord findFileRecord(int dirId, String fname)
+            throws DBException {
+
+        // Get the file id from the folder entry
+        byte[] fidByts = getStore().get(makeFolderKey(dirId, fname));
+        if (fidByts == null)
+            return null;
+
+        // Get the file record
+        FileRecord fileRec = loadFileRecord(decodeInt(fidByts, 0));
+
+        if (fileRec == null || fileRec.isDeleted())
+            return null;
+        return fileRec;
+    }
+
+    /**
+     * Load a file record, returns null if the file record does not exist
+     *
+     * @param fid int
+     * @return FileRecord
+     * @exception DBException Database error
+     */
+    private FileRecord loadFileRecord(int fid)
+            throws DBException {
+
+        byte[] data = getStore().get(makeKey(TableFile, fid));
+        if (data == null)
+            return null;
+
+        try {
+            return FileRecord.decodeRecord(data);
+        }
+        catch (IOException ex) {
+            throw new DBException("Invalid file record, fid=" + fid, ex);
+        }
+    }
+
+    /**
+     * Load a stream record, returns null if the stream record does not exist
+     *
+     * @param fid  int
+     * @param stid int
+     * @return StreamRecord
+     * @exception DBException Database error
+     */
+    private StreamRecord loadStreamRecord(int fid, int stid)
+            throws DBException {
+
+        byte[] data = getStore().get(makeKey(TableStream, fid, stid));
+        if (data == null)
+            return null;
+        return decodeStreamRecord(data);
+    }
+
+    /**
+     * Decode a stream record
+     *
+     * @param data byte[]
+     * @return StreamRecord
+     * @exception DBException Database error
+     */
+    private StreamRecord decodeStreamRecord(byte[] data)
+            throws DBException {
+        try {
+            return StreamRecord.decodeRecord(data);
+        }
+        catch (IOException ex) {
+            throw new DBException("Invalid stream record", ex);
+        }
+    }
+
+    /**
+     * Remove the folder entry for a file record, if the entry still refers to the file
+     *
+     * @param fileRec FileRecord
+     * @param batch   WriteBatch
+     * @exception DBException Database error
+     */
+    private void removeFolderEntry(FileRecord fileRec, WriteBatch batch)
+            throws DBException {
+
+        byte[] folderKey = makeFolderKey(fileRec.getDirectoryId(), fileRec.getName());
+        byte[] fidByts = getStore().get(folderKey);
+
+        if (fidByts != null && decodeInt(fidByts, 0) == fileRec.getFileId())
+            batch.delete(folderKey);
+    }
+
+    /**
+     * Release the current data for a file/stream, the data file is added to the delete list, a Jar reference is
+     * released via the Jar reference counts. Must be called with the update lock held.
+     *
+     * @param fileId      int
+     * @param streamId    int
+     * @param delDataFile boolean
+     * @param jarRefs     Map of Jar id to reference count
+     * @param delFiles    List of files to delete once the update has been committed
+     * @exception DBException Database error
+     */
+    private void releaseFileData(int fileId, int streamId, boolean delDataFile, Map<Integer, Integer> jarRefs, List<File> delFiles)
+            throws DBException {
+
+        // Get the current data details
+        DBDataDetails dataDetails = getFileDataDetails(fileId, streamId);
+
+        if (dataDetails.isStoredInJar()) {
+
+            // Release the Jar reference
+            int jarId = dataDetails.getJarId();
+            Integer refCnt = jarRefs.get(jarId);
+
+            if (refCnt == null) {
+                byte[] jarRec = getStore().get(makeKey(TableJar, jarId));
+                refCnt = jarRec != null ? decodeInt(jarRec, 0) : 0;
+            }
+
+            jarRefs.put(jarId, refCnt - 1);
+        }
+        else if (delDataFile)
+            delFiles.add(getDataFile(fileId, streamId));
+    }
+
+    /**
+     * Add the updated Jar reference counts to a batch, Jars with no references are deleted
+     *
+     * @param jarRefs  Map of Jar id to reference count
+     * @param batch    WriteBatch
+     * @param delFiles List of files to delete once the update has been committed
+     */
+    private void putJarReferences(Map<Integer, Integer> jarRefs, WriteBatch batch, List<File> delFiles) {
+
+        for (Map.Entry<Integer, Integer> jarRef : jarRefs.entrySet()) {
+            if (jarRef.getValue() > 0)
+                batch.put(makeKey(TableJar, jarRef.getKey()), encodeInt(jarRef.getValue()));
+            else {
+                batch.delete(makeKey(TableJar, jarRef.getKey()));
+                delFiles.add(getJarFile(jarRef.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Check the queue records after a restart, add the save requests with a valid temporary file to the recovered
+     * queue, and add deletes for load requests and save requests with no temporary file
+     *
+     * @param queueRecs      NavigableMap of queue records
+     * @param seqOff         int
+     * @param recoveredQueue FileRequestQueue
+     * @param tempFiles      Set of temporary file paths that are referenced by a queued request
+     * @param batch          WriteBatch
+     * @exception DBException Database error
+     */
+    private void cleanupQueueRecords(NavigableMap<byte[], byte[]> queueRecs, int seqOff, FileRequestQueue recoveredQueue, Set<String> tempFiles,
+                                     WriteBatch batch)
+            throws DBException {
+
+        for (Map.Entry<byte[], byte[]> entry : queueRecs.entrySet()) {
+            SingleFileRequest fileReq = decodeQueueRecord(decodeInt(entry.getKey(), seqOff), entry.getValue());
+
+            if (fileReq.isType() == FileRequest.RequestType.Load)
+                batch.delete(entry.getKey());
+            else if (fileReq.isType() != FileRequest.RequestType.Delete) {
+                File tempFile = new File(fileReq.getTemporaryFile());
+
+                if (tempFile.exists()) {
+                    tempFiles.add(tempFile.getAbsolutePath());
+                    recoveredQueue.addRequest(fileReq);
+                }
+                else
+                    batch.delete(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Load queue records into the specified queue, optionally claiming the loaded records
+     *
+     * @param seqNo    int
+     * @param reqType  FileRequest.RequestType
+     * @param reqQueue FileRequestQueue
+     * @param recLimit int
+     * @param claim    boolean
+     * @return int
+     * @exception DBException Database error
+     */
+    private int loadQueueRecords(int seqNo, FileRequest.RequestType reqType, FileRequestQueue reqQueue, int recLimit, boolean claim)
+            throws DBException {
+
+        int loadCnt = 0;
+
+        // Transaction requests are loaded from the transaction records, in transaction order
+        if (reqType == FileRequest.RequestType.TransSave) {
+            for (Map.Entry<byte[], byte[]> entry : getStore().scanPrefix(new byte[]{TableTrans}).entrySet()) {
+                if (loadCnt >= recLimit)
+                    break;
+
+                reqQueue.addRequest(decodeQueueRecord(decodeInt(entry.getKey(), 5), entry.getValue()));
+                loadCnt++;
+            }
+
+            return loadCnt;
+        }
+
+        // Scan the queue records after the specified sequence number, the write queue loads all requests that are
+        // not load requests
+        NavigableMap<byte[], byte[]> queueRecs = getStore().scanPrefix(new byte[]{TableQueue}).tailMap(makeKey(TableQueue, seqNo), false);
+
+        for (Map.Entry<byte[], byte[]> entry : queueRecs.entrySet()) {
+            if (loadCnt >= recLimit)
+                break;
+
+            SingleFileRequest fileReq = decodeQueueRecord(decodeInt(entry.getKey(), 1), entry.getValue());
+
+            if ((reqType == FileRequest.RequestType.Load) != (fileReq.isType() == FileRequest.RequestType.Load))
+                continue;
+
+            // Claim the request, skip requests that are already claimed
+            if (claim && m_claimed.add(fileReq.getSequenceNumber()) == false)
+                continue;
+
+            reqQueue.addRequest(fileReq);
+            loadCnt++;
+        }
+
+        return loadCnt;
+    }
+
+    /**
+     * Load the id counters from the store, and calculate the used file space
+     *
+     * @exception IOException I/O error
+     */
+    private void loadCounters()
+            throws IOException {
+
+        // Load the id counters, ids start at one
+        for (int idx = 0; idx < NumCounters; idx++) {
+            byte[] counter = m_store.get(makeKey(TableCounter, idx));
+            m_counters[idx] = counter != null ? decodeInt(counter, 0) : 1;
+        }
+
+        // Calculate the used file space
+        long usedSpace = 0L;
+
+        for (byte[] data : m_store.scanPrefix(new byte[]{TableFile}).values()) {
+            FileRecord fileRec = FileRecord.decodeRecord(data);
+
+            if (fileRec.isDirectory() == false && fileRec.isDeleted() == false)
+                usedSpace += fileRec.getSize();
+        }
+
+        m_usedSpace.set(usedSpace);
+    }
+
+    /**
+     * Allocate the next id from a counter, must be called with the update lock held
+     *
+     * @param counter int
+     * @return int
+     */
+    private int nextId(int counter) {
+        return m_counters[counter]++;
+    }
+
+    /**
+     * Add the current value of a counter to a batch
+     *
+     * @param batch   WriteBatch
+     * @param counter int
+     */
+    private void putCounter(WriteBatch batch, int counter) {
+        batch.put(makeKey(TableCounter, counter), encodeInt(m_counters[counter]));
+    }
+
+    /**
+     * Return the data file for a file/stream
+     *
+     * @param fileId   int
+     * @param streamId int
+     * @return File
+     */
+    private File getDataFile(int fileId, int streamId) {
+
+        // Spread the data files over a number of sub-folders
+        String subDir = String.format("%02x", fileId & 0xFF);
+        return new File(new File(m_dataDir, subDir), fileId + "_" + streamId + DataFileExtension);
+    }
+
+    /**
+     * Return the store file for a Jar
+     *
+     * @param jarId int
+     * @return File
+     */
+    private File getJarFile(int jarId) {
+        return new File(m_jarDir, jarId + JarFileExtension);
+    }
+
+    /**
+     * Copy a file, returns the number of bytes copied
+     *
+     * @param fromFile File
+     * @param toFile   File
+     * @param sync     boolean
+     * @return long
+     * @exception IOException I/O error
+     */
+    private static long copyFile(File fromFile, File toFile, boolean sync)
+            throws IOException {
+
+        try (FileChannel inChannel = FileChannel.open(fromFile.toPath(), StandardOpenOption.READ);
+             FileChannel outChannel = FileChannel.open(toFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            long fileLen = inChannel.size();
+            long pos = 0L;
+
+            while (pos < fileLen)
+                pos += inChannel.transferTo(pos, fileLen - pos, outChannel);
+
+            if (sync)
+                outChannel.force(true);
+
+            return fileLen;
+        }
+    }
+
+    /**
+     * Delete a list of files
+     *
+     * @param delFiles List of File
+     */
+    private void deleteFiles(List<File> delFiles) {
+        for (File delFile : delFiles) {
+            if (delFile.exists() && delFile.delete() == false && Debug.EnableError && hasDebug())
+                Debug.println("[EmbeddedDB] Failed to delete " + delFile.getAbsolutePath(), Debug.Error);
+        }
+    }
+
+    /**
+     * Build the store key for a queue record
+     *
+     * @param fileReq SingleFileRequest
+     * @return byte[]
+     */
+    private static byte[] makeQueueKey(SingleFileRequest fileReq) {
+        if (fileReq.isTransaction())
+            return makeKey(TableTrans, fileReq.getTransactionId(), fileReq.getSequenceNumber());
+        return makeKey(TableQueue, fileReq.getSequenceNumber());
+    }
+
+    /**
+     * Encode a queue record
+     *
+     * @param fileReq SingleFileRequest
+     * @return byte[]
+     */
+    private static byte[] encodeQueueRecord(SingleFileRequest fileReq) {
+
+        try {
+            ByteArrayOutputStream byts = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(byts);
+
+            out.writeByte(QueueRecordVersion);
+            out.writeInt(fileReq.isType().intValue());
+            out.writeInt(fileReq.getFileId());
+            out.writeInt(fileReq.getStreamId());
+            out.writeInt(fileReq.getTransactionId());
+
+            out.writeUTF(fileReq.getTemporaryFile() != null ? fileReq.getTemporaryFile() : "");
+            out.writeUTF(fileReq.getVirtualPath() != null ? fileReq.getVirtualPath() : "");
+
+            String attrs = fileReq.getAttributesString();
+            out.writeBoolean(attrs != null);
+            if (attrs != null)
+                out.writeUTF(attrs);
+
+            return byts.toByteArray();
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException("Queue record encode failed", ex);
+        }
+    }
+
+    /**
+     * Decode a queue record
+     *
+     * @param seqNo int
+     * @param data  byte[]
+     * @return SingleFileRequest
+     * @exception DBException Invalid queue record
+     */
+    private static SingleFileRequest decodeQueueRecord(int seqNo, byte[] data)
+            throws DBException {
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+            if (in.readByte() != QueueRecordVersion)
+                throw new DBException("Unsupported queue record version, seqNo=" + seqNo);
+
+            FileRequest.RequestType reqType = FileRequest.RequestType.fromInt(in.readInt());
+            int fid = in.readInt();
+            int stid = in.readInt();
+            int tranId = in.readInt();
+
+            SingleFileRequest fileReq = new SingleFileRequest(reqType, fid, stid, in.readUTF(), in.readUTF(), seqNo, null);
+
+            if (tranId != -1)
+                fileReq.setTransactionId(tranId);
+
+            if (in.readBoolean())
+                fileReq.setAttributes(in.readUTF());
+
+            return fileReq;
+        }
+        catch (IOException ex) {
+            throw new DBException("Invalid queue record, seqNo=" + seqNo, ex);
+        }
+    }
+
+    /**
+     * Encode a data record
+     *
+     * @param jarId    int
+     * @param fileSize long
+     * @param numFrags int
+     * @param fragSize int
+     * @return byte[]
+     */
+    private static byte[] encodeDataRecord(int jarId, long fileSize, int numFrags, int fragSize) {
+        ByteBuffer buf = ByteBuffer.allocate(20);
+
+        buf.putInt(jarId);
+        buf.putLong(fileSize);
+        buf.putInt(numFrags);
+        buf.putInt(fragSize);
+
+        return buf.array();
+    }
+
+    /**
+     * Build a store key from a table prefix and id
+     *
+     * @param table byte
+     * @param id    int
+     * @return byte[]
+     */
+    private static byte[] makeKey(byte table, int id) {
+        return ByteBuffer.allocate(5).put(table).putInt(id).array();
+    }
+
+    /**
+     * Build a store key from a table prefix and two ids
+     *
+     * @param table byte
+     * @param id1   int
+     * @param id2   int
+     * @return byte[]
+     */
+    private static byte[] makeKey(byte table, int id1, int id2) {
+        return ByteBuffer.allocate(9).put(table).putInt(id1).putInt(id2).array();
+    }
+
+    /**
+     * Build the store key for a folder entry, the file name is normalized so that lookups are not case sensitive
+     *
+     * @param dirId int
+     * @param name  String
+     * @return byte[]
+     */
+    private static byte[] makeFolderKey(int dirId, String name) {
+        byte[] nameByts = FileState.normalizePath(name, false).getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(5 + nameByts.length).put(TableFolder).putInt(dirId).put(nameByts).array();
+    }
+
+    /**
+     * Encode an int value
+     *
+     * @param ival int
+     * @return byte[]
+     */
+    private static byte[] encodeInt(int ival) {
+        return ByteBuffer.allocate(4).putInt(ival).array();
+    }
+
+    /**
+     * Decode an int value
+     *
+     * @param buf byte[]
+     * @param off int
+     * @return int
+     */
+    private static int decodeInt(byte[] buf, int off) {
+        return ByteBuffer.wrap(buf, off, 4).getInt();
+    }
+}
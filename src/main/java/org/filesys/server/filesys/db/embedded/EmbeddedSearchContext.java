@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.filesys.server.filesys.db.embedded;
+
+import java.util.List;
+
+import org.filesys.server.filesys.db.DBException;
+import org.filesys.server.filesys.db.DBFileInfo;
+import org.filesys.server.filesys.db.DBInterface;
+import org.filesys.server.filesys.db.DBPagedSearchContext;
+import org.filesys.util.WildCard;
+
+/**
+ * Embedded Database Search Context Class
+ *
+ * <p>Paged folder search using a range scan of the folder entries in the embedded store. A search for a single file
+ * name, without wildcards, looks up the file directly.
+ *
+ * @author gkspencer
+ */
+public class EmbeddedSearchContext extends DBPagedSearchContext {
+
+    // Database interface
+    private EmbeddedDBInterface m_dbInterface;
+
+    // Folder id, file name for a single file search, and information level to return
+    private int m_dirId;
+    private String m_fileName;
+    private DBInterface.FileInfoLevel m_infoLevel;
+
+    /**
+     * Class constructor
+     *
+     * @param dbInterface EmbeddedDBInterface
+     * @param dirId       int
+     * @param fileName    String
+     * @param filter      WildCard
+     * @param infoLevel   DBInterface.FileInfoLevel
+     * @param pageSize    int
+     */
+    protected EmbeddedSearchContext(EmbeddedDBInterface dbInterface, int dirId, String fileName, WildCard filter,
+                                    DBInterface.FileInfoLevel infoLevel, int pageSize) {
+        super(filter, pageSize);
+
+        m_dbInterface = dbInterface;
+        m_dirId = dirId;
+        m_fileName = fileName;
+        m_infoLevel = infoLevel;
+    }
+
+    /**
+     * Load a page of folder entries, ordered by file name
+     *
+     * @param startName String, or null to start at the first entry
+     * @param inclusive boolean, true to include an entry that matches the start name
+     * @param maxRows   int
+     * @param page      List of DBFileInfo to add the entries to
+     * @exception DBException Database error
+     */
+    protected void loadPage(String startName, boolean inclusive, int maxRows, List<DBFileInfo> page)
+            throws DBException {
+        m_dbInterface.loadFolderPage(m_dirId, m_fileName, startName, inclusive, maxRows, m_infoLevel, page);
+    }
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.filesys.server.filesys.db.embedded;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.filesys.server.filesys.FileAttribute;
+import org.filesys.server.filesys.FileInfo;
+import org.filesys.server.filesys.FileType;
+import org.filesys.server.filesys.db.DBFileInfo;
+import org.filesys.server.filesys.db.DBInterface;
+
+/**
+ * File Record Class
+ *
+ * <p>File or folder details stored by the embedded database interface.
+ *
+ * @author gkspencer
+ */
+public class FileRecord {
+
+    // Record encoding version
+    private static final int RecordVersion = 1;
+
+    // File and parent folder id, file name
+    private int m_fid;
+    private int m_dirId;
+    private String m_name;
+
+    // File attributes, size and allocation size
+    private int m_attr;
+    private long m_size;
+    private long m_alloc;
+
+    // Creation, access, modify and change date/times
+    private long m_createDate;
+    private long m_accessDate;
+    private long m_modifyDate;
+    private long m_changeDate;
+
+    // Unix mode, user and group ids
+    private int m_mode;
+    private int m_uid;
+    private int m_gid;
+
+    // File type
+    private FileType m_fileType = FileType.RegularFile;
+
+    // File has been deleted to the trashcan
+    private boolean m_deleted;
+
+    // Retention period start and end date/times, zero if the file is not under retention
+    private long m_retainStart;
+    private long m_retainEnd;
+
+    /**
+     * Class constructor
+     *
+     * @param fid   int
+     * @param dirId int
+     * @param name  String
+     */
+    public FileRecord(int fid, int dirId, String name) {
+        m_fid = fid;
+        m_dirId = dirId;
+        m_name = name;
+    }
+
+    /**
+     * Return the file id
+     *
+     * @return int
+     */
+    public final int getFileId() {
+        return m_fid;
+    }
+
+    /**
+     * Return the parent folder id
+     *
+     * @return int
+     */
+    public final int getDirectoryId() {
+        return m_dirId;
+    }
+
+    /**
+     * Return the file name
+     *
+     * @return String
+     */
+    public final String getName() {
+        return m_name;
+    }
+
+    /**
+     * Return the file attributes
+     *
+     * @return int
+     */
+    public final int getAttributes() {
+        return m_attr;
+    }
+
+    /**
+     * Return the file size
+     *
+     * @return long
+     */
+    public final long getSize() {
+        return m_size;
+    }
+
+    /**
+     * Return the file type
+     *
+     * @return FileType
+     */
+    public final FileType isFileType() {
+        return m_fileType;
+    }
+
+    /**
+     * Check if the record is a folder
+     *
+     * @return boolean
+     */
+    public final boolean isDirectory() {
+        return m_fileType == FileType.Directory || (m_attr & FileAttribute.Directory) != 0;
+    }
+
+    /**
+     * Check if the file has been deleted to the trashcan
+     *
+     * @return boolean
+     */
+    public final boolean isDeleted() {
+        return m_deleted;
+    }
+
+    /**
+     * Check if the file is under retention
+     *
+     * @return boolean
+     */
+    public final boolean hasRetention() {
+        return m_retainEnd != 0L;
+    }
+
+    /**
+     * Return the retention period start date/time
+     *
+     * @return long
+     */
+    public final long getRetentionStart() {
+        return m_retainStart;
+    }
+
+    /**
+     * Return the retention period end date/time
+     *
+     * @return long
+     */
+    public final long getRetentionEnd() {
+        return m_retainEnd;
+    }
+
+    /**
+     * Set the parent folder id and file name
+     *
+     * @param dirId int
+     * @param name  String
+     */
+    public final void setName(int dirId, String name) {
+        m_dirId = dirId;
+        m_name = name;
+    }
+
+    /**
+     * Set the file attributes
+     *
+     * @param attr int
+     */
+    public final void setAttributes(int attr) {
+        m_attr = attr;
+    }
+
+    /**
+     * Set the file size
+     *
+     * @param size long
+     */
+    public final void setSize(long size) {
+        m_size = size;
+    }
+
+    /**
+     * Set the allocation size
+     *
+     * @param alloc long
+     */
+    public final void setAllocationSize(long alloc) {
+        m_alloc = alloc;
+    }
+
+    /**
+     * Set all the file date/times
+     *
+     * @param dateTime long
+     */
+    public final void setDateTimes(long dateTime) {
+        m_createDate = dateTime;
+        m_accessDate = dateTime;
+        m_modifyDate = dateTime;
+        m_changeDate = dateTime;
+    }
+
+    /**
+     * Set the creation date/time
+     *
+     * @param dateTime long
+     */
+    public final void setCreationDateTime(long dateTime) {
+        m_createDate = dateTime;
+    }
+
+    /**
+     * Set the access date/time
+     *
+     * @param dateTime long
+     */
+    public final void setAccessDateTime(long dateTime) {
+        m_accessDate = dateTime;
+    }
+
+    /**
+     * Set the modify date/time
+     *
+     * @param dateTime long
+     */
+    public final void setModifyDateTime(long dateTime) {
+        m_modifyDate = dateTime;
+    }
+
+    /**
+     * Set the change date/time
+     *
+     * @param dateTime long
+     */
+    public final void setChangeDateTime(long dateTime) {
+        m_changeDate = dateTime;
+    }
+
+    /**
+     * Set the Unix mode
+     *
+     * @param mode int
+     */
+    public final void setMode(int mode) {
+        m_mode = mode;
+    }
+
+    /**
+     * Set the user id
+     *
+     * @param uid int
+     */
+    public final void setUid(int uid) {
+        m_uid = uid;
+    }
+
+    /**
+     * Set the group id
+     *
+     * @param gid int
+     */
+    public final void setGid(int gid) {
+        m_gid = gid;
+    }
+
+    /**
+     * Set the file type
+     *
+     * @param fileType FileType
+     */
+    public final void setFileType(FileType fileType) {
+        m_fileType = fileType;
+    }
+
+    /**
+     * Set/clear the deleted flag
+     *
+     * @param deleted boolean
+     */
+    public final void setDeleted(boolean deleted) {
+        m_deleted = deleted;
+    }
+
+    /**
+     * Set the retention period
+     *
+     * @param startTime long
+     * @param endTime   long
+     */
+    public final void setRetention(long startTime, long endTime) {
+        m_retainStart = startTime;
+        m_retainEnd = endTime;
+    }
+
+    /**
+     * Update the record using the fields of a file information object that have the set flag
+     *
+     * @param finfo FileInfo
+     * @return boolean
+     */
+    public final boolean updateFrom(FileInfo finfo) {
+
+        // Check if there are any fields to update
+        if (finfo.getSetFileInformationFlags() == 0)
+            return false;
+
+        if (finfo.hasSetFlag(FileInfo.SetFileSize))
+            m_size = finfo.getSize();
+
+        if (finfo.hasSetFlag(FileInfo.SetAllocationSize))
+            m_alloc = finfo.getAllocationSize();
+
+        if (finfo.hasSetFlag(FileInfo.SetAttributes))
+            m_attr = finfo.getFileAttributes();
+
+        if (finfo.hasSetFlag(FileInfo.SetCreationDate))
+            m_createDate = finfo.getCreationDateTime();
+
+        if (finfo.hasSetFlag(FileInfo.SetAccessDate))
+            m_accessDate = finfo.getAccessDateTime();
+
+        if (finfo.hasSetFlag(FileInfo.SetModifyDate))
+            m_modifyDate = finfo.getModifyDateTime();
+
+        if (finfo.hasSetFlag(FileInfo.SetChangeDate))
+            m_changeDate = finfo.getChangeDateTime();
+
+        if (finfo.hasSetFlag(FileInfo.SetMode))
+            m_mode = finfo.getMode();
+
+        if (finfo.hasSetFlag(FileInfo.SetUid))
+            m_uid = finfo.getUid();
+
+        if (finfo.hasSetFlag(FileInfo.SetGid))
+            m_gid = finfo.getGid();
+
+        return true;
+    }
+
+    /**
+     * Return the file record as a file information object
+     *
+     * @param infoLevel DBInterface.FileInfoLevel
+     * @return DBFileInfo
+     */
+    public final DBFileInfo getFileInformation(DBInterface.FileInfoLevel infoLevel) {
+
+        // Create the file information, the name is always returned
+        DBFileInfo finfo = new DBFileInfo();
+        finfo.setFileName(m_name);
+
+        if (infoLevel == DBInterface.FileInfoLevel.NameOnly)
+            return finfo;
+
+        // Add the file and folder ids
+        finfo.setFileId(m_fid);
+        finfo.setDirectoryId(m_dirId);
+
+        if (infoLevel == DBInterface.FileInfoLevel.Ids)
+            return finfo;
+
+        // Add the file details
+        finfo.setFileAttributes(m_attr);
+        finfo.setSize(m_size);
+        finfo.setAllocationSize(m_alloc);
+
+        finfo.setCreationDateTime(m_createDate);
+        finfo.setAccessDateTime(m_accessDate);
+        finfo.setModifyDateTime(m_modifyDate);
+        finfo.setChangeDateTime(m_changeDate);
+
+        finfo.setMode(m_mode);
+        finfo.setUid(m_uid);
+        finfo.setGid(m_gid);
+
+        finfo.setFileType(m_fileType);
+
+        return finfo;
+    }
+
+    /**
+     * Encode the file record
+     *
+     * @return byte[]
+     */
+    public final byte[] encodeRecord() {
+
+        try {
+            ByteArrayOutputStream byts = new ByteArrayOutputStream(96 + m_name.length() * 2);
+            DataOutputStream out = new DataOutputStream(byts);
+
+            out.writeByte(RecordVersion);
+            out.writeInt(m_fid);
+            out.writeInt(m_dirId);
+            out.writeUTF(m_name);
+
+            out.writeInt(m_attr);
+            out.writeLong(m_size);
+            out.writeLong(m_alloc);
+
+            out.writeLong(m_createDate);
+            out.writeLong(m_accessDate);
+            out.writeLong(m_modifyDate);
+            out.writeLong(m_changeDate);
+
+            out.writeInt(m_mode);
+            out.writeInt(m_uid);
+            out.writeInt(m_gid);
+
+            out.writeByte(m_fileType.ordinal());
+            out.writeBoolean(m_deleted);
+
+            out.writeLong(m_retainStart);
+            out.writeLong(m_retainEnd);
+
+            return byts.toByteArray();
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException("File record encode failed", ex);
+        }
+    }
+
+    /**
+     * Decode a file record
+     *
+     * @param data byte[]
+     * @return FileRecord
+     * @exception IOException Invalid record
+     */
+    public static FileRecord decodeRecord(byte[] data)
+            throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+        if (in.readByte() != RecordVersion)
+            throw new IOException("Unsupported file record version");
+
+        FileRecord rec = new FileRecord(in.readInt(), in.readInt(), in.readUTF());
+
+        rec.m_attr = in.readInt();
+        rec.m_size = in.readLong();
+        rec.m_alloc = in.readLong();
+
+        rec.m_createDate = in.readLong();
+        rec.m_accessDate = in.readLong();
+        rec.m_modifyDate = in.readLong();
+        rec.m_changeDate = in.readLong();
+
+        rec.m_mode = in.readInt();
+        rec.m_uid = in.readInt();
+        rec.m_gid = in.readInt();
+
+        int fileType = in.readByte();
+        if (fileType >= 0 && fileType < FileType.values().length)
+            rec.m_fileType = FileType.values()[fileType];
+
+        rec.m_deleted = in.readBoolean();
+
+        rec.m_retainStart = in.readLong();
+        rec.m_retainEnd = in.readLong();
+
+        return rec;
+    }
+
+    /**
+     * Return the file record as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[FileRec fid=");
+        str.append(m_fid);
+        str.append(", dirId=");
+        str.append(m_dirId);
+        str.append(", name=");
+        str.append(m_name);
+        str.append(", type=");
+        str.append(m_fileType.name());
+        str.append(", size=");
+        str.append(m_size);
+
+        if (isDeleted())
+            str.append(", Deleted");
+
+        str.append("]");
+
+        return str.toString();
+    }
+}
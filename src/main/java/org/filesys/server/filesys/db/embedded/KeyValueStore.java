@@ -0,0 +1,1149 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.filesys.server.filesys.db.embedded;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+import org.filesys.debug.Debug;
+
+/**
+ * Key Value Store Class
+ *
+ * <p>Embedded sorted key/value store used by the embedded database interface. Keys and values are byte arrays, keys
+ * are ordered using an unsigned byte comparison so that records with a common key prefix, such as the entries of a
+ * folder, can be read using a range scan.
+ *
+ * <p>The store is log structured. All keys are held in a sorted in-memory table, each batch of updates is appended to
+ * the write-ahead log as a single checksummed record before being applied. Log writes are group committed, a single
+ * log sync covers all of the batches written since the previous sync. When the log grows past the checkpoint size the
+ * log is rolled over and the in-memory table is written to a new snapshot file by the checkpoint thread, the older logs
+ * are deleted once the snapshot is complete. Log records only contain whole key puts and deletes so the snapshot does
+ * not need to block writers, replaying the log on top of the snapshot gives the latest state.
+ *
+ * <p>At startup the snapshot and logs are read using memory mapped buffers and the logs are replayed over the snapshot,
+ * a partially written record at the end of the last log is discarded.
+ *
+ * <p>The store does not have an on-disk paged tier, the whole table is held on the Java heap and memory mapping is only
+ * used to read the snapshot and logs at startup. Each entry uses the key and value lengths plus around 70 bytes of
+ * table overhead. The embedded database stores a file record and a folder index entry per file, so each file or folder
+ * needs a few hundred bytes of heap, around 400MB per million files, and the heap must be sized for the largest
+ * expected filesystem. A checkpoint writes the whole table to a new snapshot.
+ *
+ * <p>If a log write fails the partially written record is truncated from the log. If the log cannot be truncated the
+ * store is marked as failed and further commits and checkpoints are rejected until the store is reopened.
+ *
+ * @author gkspencer
+ */
+public class KeyValueStore {
+
+    // Store file names
+    public static final String SnapshotFileName = "store.snap";
+    public static final String LockFileName     = "store.lck";
+    public static final String LogFilePrefix    = "store.";
+    public static final String LogFileExtension = ".log";
+
+    // Default, minimum and maximum log size that triggers a checkpoint
+    public static final long DefaultCheckpointSize  = 64L * 1024L * 1024L;
+    public static final long MinimumCheckpointSize  = 1024L * 1024L;
+    public static final long MaximumCheckpointSize  = 1024L * 1024L * 1024L;
+
+    // Snapshot file signature and version
+    private static final long SnapshotSignature = 0x4A46534B56534E50L;
+    private static final int SnapshotVersion    = 1;
+
+    // Snapshot trailer marker
+    private static final int SnapshotTrailer    = -1;
+
+    // Maximum log record size, and size of the window used to map the snapshot/log files
+    private static final int MaximumRecordSize  = 256 * 1024 * 1024;
+    private static final int MapWindowSize      = 64 * 1024 * 1024;
+
+    // Snapshot write buffer size
+    private static final int SnapshotBufferSize = 1024 * 1024;
+
+    // Store folder
+    private File m_storeDir;
+
+    // Sorted in-memory table
+    private ConcurrentSkipListMap<byte[], byte[]> m_table = new ConcurrentSkipListMap<byte[], byte[]>(Arrays::compareUnsigned);
+
+    // Current write-ahead log generation, channel and size
+    private long m_logGen;
+    private FileChannel m_logChannel;
+    private long m_logSize;
+
+    // Log sequence numbers, total bytes written to the logs and bytes synced to disk
+    private long m_writeLsn;
+    private long m_syncedLsn;
+
+    // Locks used to serialize log writes and log syncs, the sync lock must be taken before the write lock
+    private final Object m_writeLock = new Object();
+    private final Object m_syncLock = new Object();
+
+    // Log size that triggers a checkpoint, and interval to sync the log in the background, zero to sync on commit
+    private long m_checkpointSize = DefaultCheckpointSize;
+    private long m_syncInterval;
+
+    // Checkpoint thread, lock used to wait for checkpoint requests, and lock used to serialize checkpoints that must be
+    // taken before the sync lock
+    private Thread m_checkpointThread;
+    private final Object m_checkpointLock = new Object();
+    private final Object m_checkpointMutex = new Object();
+    private volatile boolean m_checkpointPending;
+    private volatile boolean m_shutdown;
+
+    // Store has failed, a failed log write could not be rolled back, further commits are rejected
+    private volatile boolean m_failed;
+
+    // Store lock file
+    private FileChannel m_lockChannel;
+    private FileLock m_lock;
+
+    // Statistics
+    private long m_commitCnt;
+    private long m_syncCnt;
+    private int m_checkpointCnt;
+    private int m_replayCnt;
+
+    // Debug enable
+    private boolean m_debug;
+
+    /**
+     * Memory Mapped File Reader Inner Class
+     *
+     * <p>Reads a file using a window of memory mapped buffer, the window is remapped when a read would cross the end
+     * of the current window.
+     */
+    private static class MappedReader {
+
+        // File channel and length
+        private FileChannel mi_channel;
+        private long mi_fileLen;
+
+        // Current mapped window, and the file offset of the window
+        private MappedByteBuffer mi_buf;
+        private long mi_base;
+
+        /**
+         * Class constructor
+         *
+         * @param channel FileChannel
+         * @param fileLen long
+         */
+        MappedReader(FileChannel channel, long fileLen) {
+            mi_channel = channel;
+            mi_fileLen = fileLen;
+        }
+
+        /**
+         * Return the current file position
+         *
+         * @return long
+         */
+        final long position() {
+            return mi_base + (mi_buf != null ? mi_buf.position() : 0);
+        }
+
+        /**
+         * Make sure the specified number of bytes can be read from the current buffer, remapping the window if
+         * required. Returns false if the file does not contain enough bytes.
+         *
+         * @param len int
+         * @return boolean
+         * @exception IOException I/O error
+         */
+        final boolean available(int len)
+                throws IOException {
+
+            // Check if the current window has enough data
+            if (mi_buf != null && mi_buf.remaining() >= len)
+                return true;
+
+            // Check if the file has enough data
+            long pos = position();
+            if (len < 0 || pos + len > mi_fileLen)
+                return false;
+
+            // Map a new window starting at the current position
+            long mapLen = Math.min(Math.max(MapWindowSize, len), mi_fileLen - pos);
+
+            mi_buf = mi_channel.map(FileChannel.MapMode.READ_ONLY, pos, mapLen);
+            mi_base = pos;
+
+            return true;
+        }
+
+        /**
+         * Return the current mapped buffer
+         *
+         * @return ByteBuffer
+         */
+        final ByteBuffer buffer() {
+            return mi_buf;
+        }
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param storeDir File
+     */
+    public KeyValueStore(File storeDir) {
+        m_storeDir = storeDir;
+    }
+
+    /**
+     * Return the store folder
+     *
+     * @return File
+     */
+    public final File getStoreDirectory() {
+        return m_storeDir;
+    }
+
+    /**
+     * Check if the store is open
+     *
+     * @return boolean
+     */
+    public final boolean isOpen() {
+        return m_logChannel != null;
+    }
+
+    /**
+     * Check if the store has failed, a failed log write could not be rolled back and commits are rejected
+     *
+     * @return boolean
+     */
+    public final boolean hasFailed() {
+        return m_failed;
+    }
+
+    /**
+     * Return the log size that triggers a checkpoint
+     *
+     * @return long
+     */
+    public final long getCheckpointSize() {
+        return m_checkpointSize;
+    }
+
+    /**
+     * Return the background log sync interval, in milliseconds, or zero if the log is synced on commit
+     *
+     * @return long
+     */
+    public final long getSyncInterval() {
+        return m_syncInterval;
+    }
+
+    /**
+     * Return the current log size
+     *
+     * @return long
+     */
+    public final long getLogSize() {
+        return m_logSize;
+    }
+
+    /**
+     * Return the number of batches committed
+     *
+     * @return long
+     */
+    public final long getCommitCount() {
+        return m_commitCnt;
+    }
+
+    /**
+     * Return the number of log syncs
+     *
+     * @return long
+     */
+    public final long getSyncCount() {
+        return m_syncCnt;
+    }
+
+    /**
+     * Return the number of checkpoints written
+     *
+     * @return int
+     */
+    public final int getCheckpointCount() {
+        return m_checkpointCnt;
+    }
+
+    /**
+     * Check if debug output is enabled
+     *
+     * @return boolean
+     */
+    public final boolean hasDebug() {
+        return m_debug;
+    }
+
+    /**
+     * Set the log size that triggers a checkpoint
+     *
+     * @param cpSize long
+     */
+    public final void setCheckpointSize(long cpSize) {
+        m_checkpointSize = cpSize;
+    }
+
+    /**
+     * Set the background log sync interval, in milliseconds, zero to sync the log on each commit
+     *
+     * @param interval long
+     */
+    public final void setSyncInterval(long interval) {
+        m_syncInterval = interval;
+    }
+
+    /**
+     * Enable/disable debug output
+     *
+     * @param dbg boolean
+     */
+    public final void setDebug(boolean dbg) {
+        m_debug = dbg;
+    }
+
+    /**
+     * Open the store, load the latest snapshot and replay the write-ahead logs
+     *
+     * @exception IOException I/O error
+     */
+    public final void openStore()
+            throws IOException {
+
+        // Make sure the store folder exists
+        if (m_storeDir.exists() == false && m_storeDir.mkdirs() == false)
+            throw new IOException("Failed to create store folder " + m_storeDir.getAbsolutePath());
+        else if (m_storeDir.isDirectory() == false)
+            throw new IOException("Store path is not a folder " + m_storeDir.getAbsolutePath());
+
+        // Lock the store so that it cannot be opened by another server
+        m_lockChannel = FileChannel.open(new File(m_storeDir, LockFileName).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        m_lock = m_lockChannel.tryLock();
+
+        if (m_lock == null) {
+            m_lockChannel.close();
+            m_lockChannel = null;
+
+            throw new IOException("Store is in use, " + m_storeDir.getAbsolutePath());
+        }
+
+        try {
+
+            // Load the snapshot, if available
+            long startTime = System.currentTimeMillis();
+            long firstGen = 1;
+
+            File snapFile = new File(m_storeDir, SnapshotFileName);
+            if (snapFile.exists())
+                firstGen = loadSnapshot(snapFile);
+
+            // Replay the logs written since the snapshot, delete older logs
+            List<Long> logGens = listLogGenerations();
+            long validLen = 0;
+
+            m_logGen = firstGen;
+
+            for (int idx = 0; idx < logGens.size(); idx++) {
+                long logGen = logGens.get(idx);
+
+                if (logGen < firstGen) {
+                    getLogFile(logGen).delete();
+                }
+                else {
+
+                    // Replay the log, only the last log may have a partial record at the end
+                    File logFile = getLogFile(logGen);
+                    validLen = replayLog(logFile);
+
+                    if (validLen < logFile.length() && idx < logGens.size() - 1)
+                        throw new IOException("Corrupt store log " + logFile.getName());
+
+                    m_logGen = logGen;
+                }
+            }
+
+            // Open the current log for writing, discard any partial record at the end of the log
+            m_logChannel = FileChannel.open(getLogFile(m_logGen).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+            if (m_logChannel.size() > validLen)
+                m_logChannel.truncate(validLen);
+            m_logChannel.position(validLen);
+
+            m_logSize = validLen;
+            m_writeLsn = validLen;
+            m_syncedLsn = validLen;
+
+            m_failed = false;
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug())
+                Debug.println("[KVStore] Opened store " + m_storeDir.getAbsolutePath() + ", keys=" + m_table.size() + ", replayed="
+                        + m_replayCnt + ", logGen=" + m_logGen + ", time=" + (System.currentTimeMillis() - startTime) + "ms");
+        }
+        catch (IOException ex) {
+
+            // Release the store lock
+            releaseLock();
+            throw ex;
+        }
+
+        // Start the checkpoint thread
+        m_shutdown = false;
+
+        m_checkpointThread = new Thread(new Runnable() {
+            public void run() {
+                runCheckpointThread();
+            }
+        });
+
+        m_checkpointThread.setName("KVStoreCheckpoint");
+        m_checkpointThread.setDaemon(true);
+        m_checkpointThread.start();
+    }
+
+    /**
+     * Close the store, writes a final checkpoint so that the next open does not need to replay the log
+     *
+     * @exception IOException I/O error
+     */
+    public final void closeStore()
+            throws IOException {
+
+        // Check if the store is open
+        if (isOpen() == false)
+            return;
+
+        // Stop the checkpoint thread
+        m_shutdown = true;
+
+        synchronized (m_checkpointLock) {
+            m_checkpointLock.notifyAll();
+        }
+
+        try {
+            m_checkpointThread.join(5000L);
+        }
+        catch (InterruptedException ex) {
+        }
+
+        try {
+
+            // Write a final checkpoint if there are updates in the log, and the store has not failed
+            if (m_logSize > 0 && m_failed == false)
+                checkpoint();
+        }
+        finally {
+
+            // Sync and close the log
+            synchronized (m_syncLock) {
+                synchronized (m_writeLock) {
+                    try {
+                        m_logChannel.force(false);
+                        m_logChannel.close();
+                    }
+                    finally {
+                        m_logChannel = null;
+                    }
+                }
+            }
+
+            // Release the store lock
+            releaseLock();
+        }
+
+        // DEBUG
+        if (Debug.EnableInfo && hasDebug())
+            Debug.println("[KVStore] Closed store " + toString());
+    }
+
+    /**
+     * Return the value for the specified key, or null if the key does not exist
+     *
+     * @param key byte[]
+     * @return byte[]
+     */
+    public final byte[] get(byte[] key) {
+        return m_table.get(key);
+    }
+
+    /**
+     * Return a read-only view of the keys in the specified range, ordered by key
+     *
+     * @param fromKey       byte[]
+     * @param fromInclusive boolean
+     * @param toKey         byte[]
+     * @return NavigableMap&lt;byte[], byte[]&gt;
+     */
+    public final NavigableMap<byte[], byte[]> scanRange(byte[] fromKey, boolean fromInclusive, byte[] toKey) {
+        return Collections.unmodifiableNavigableMap(m_table.subMap(fromKey, fromInclusive, toKey, false));
+    }
+
+    /**
+     * Return a read-only view of the keys that start with the specified prefix, ordered by key
+     *
+     * @param prefix byte[]
+     * @return NavigableMap&lt;byte[], byte[]&gt;
+     */
+    public final NavigableMap<byte[], byte[]> scanPrefix(byte[] prefix) {
+
+        // Find the first key after the prefix range
+        byte[] endKey = Arrays.copyOf(prefix, prefix.length);
+        int pos = endKey.length - 1;
+
+        while (pos >= 0 && endKey[pos] == (byte) 0xFF)
+            pos--;
+
+        if (pos < 0)
+            return Collections.unmodifiableNavigableMap(m_table.tailMap(prefix, true));
+
+        endKey[pos]++;
+        return scanRange(prefix, true, Arrays.copyOf(endKey, pos + 1));
+    }
+
+    /**
+     * Write a batch of updates to the log and apply the updates to the store. The log is not synced, the caller must
+     * call syncLog() with the returned log sequence number before reporting the updates as durable.
+     *
+     * @param batch WriteBatch
+     * @return long
+     * @exception IOException I/O error
+     */
+    public final long commitBatch(WriteBatch batch)
+            throws IOException {
+
+        // Build the log record, length and checksum followed by the batch payload
+        byte[] payload = batch.encodePayload();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer logRec = ByteBuffer.allocate(payload.length + 8);
+        logRec.putInt(payload.length);
+        logRec.putInt((int) crc.getValue());
+        logRec.put(payload);
+        logRec.flip();
+
+        long lsn = 0L;
+
+        synchronized (m_writeLock) {
+
+            // Check if the store is open, and has not failed
+            if (m_logChannel == null)
+                throw new IOException("Store is closed");
+            else if (m_failed)
+                throw new IOException("Store has failed, a log write could not be rolled back");
+
+            // Append the record to the log
+            try {
+                while (logRec.hasRemaining())
+                    m_logChannel.write(logRec);
+            }
+            catch (IOException ex) {
+
+                // Discard any part of the record that was written, so the next record is not appended after a
+                // partial record that would stop the log replay
+                try {
+                    m_logChannel.truncate(m_logSize);
+                    m_logChannel.position(m_logSize);
+                }
+                catch (IOException ex2) {
+
+                    // The log cannot be rolled back, reject further commits
+                    m_failed = true;
+
+                    // DEBUG
+                    if (Debug.EnableError)
+                        Debug.println("[KVStore] Failed to roll back log write, store failed, " + ex2.toString(), Debug.Error);
+                }
+
+                throw ex;
+            }
+
+            m_logSize += logRec.limit();
+            m_writeLsn += logRec.limit();
+            lsn = m_writeLsn;
+
+            // Apply the updates to the in-memory table
+            for (int idx = 0; idx < batch.numberOfOperations(); idx++) {
+                byte[] value = batch.getValueAt(idx);
+
+                if (value != null)
+                    m_table.put(batch.getKeyAt(idx), value);
+                else
+                    m_table.remove(batch.getKeyAt(idx));
+            }
+
+            m_commitCnt++;
+
+            // Check if the log has grown past the checkpoint size, wakeup the checkpoint thread
+            if (m_logSize >= m_checkpointSize && m_checkpointPending == false) {
+                m_checkpointPending = true;
+
+                synchronized (m_checkpointLock) {
+                    m_checkpointLock.notifyAll();
+                }
+            }
+        }
+
+        return lsn;
+    }
+
+    /**
+     * Sync the log to disk up to the specified log sequence number. Syncs are group committed, if another thread has
+     * already synced past the log sequence number then no sync is required. If background log syncs are enabled the
+     * method returns immediately.
+     *
+     * @param lsn long
+     * @exception IOException I/O error
+     */
+    public final void syncLog(long lsn)
+            throws IOException {
+
+        // Check if the log is synced by the checkpoint thread
+        if (m_syncInterval > 0)
+            return;
+
+        syncLogInternal(lsn);
+    }
+
+    /**
+     * Write a batch of updates and sync the log
+     *
+     * @param batch WriteBatch
+     * @exception IOException I/O error
+     */
+    public final void commit(WriteBatch batch)
+            throws IOException {
+        syncLog(commitBatch(batch));
+    }
+
+    /**
+     * Write a checkpoint, rolls over to a new log and writes the in-memory table to a new snapshot, then deletes the
+     * logs that are covered by the snapshot.
+     *
+     * @exception IOException I/O error
+     */
+    public final void checkpoint()
+            throws IOException {
+
+        // Only run one checkpoint at a time, the checkpoint thread may still be running a checkpoint when the store
+        // is closed
+        synchronized (m_checkpointMutex) {
+
+            long startTime = System.currentTimeMillis();
+            long snapGen = 0L;
+
+            // Roll over to a new log, the old log is synced before it is closed
+            synchronized (m_syncLock) {
+                synchronized (m_writeLock) {
+
+                    // Check if the store is open, and has not failed. A failed store is not checkpointed so that the
+                    // partial record stays at the end of the last log, where it is discarded when the store is opened.
+                    if (m_logChannel == null)
+                        throw new IOException("Store is closed");
+                    else if (m_failed)
+                        throw new IOException("Store has failed, a log write could not be rolled back");
+
+                    m_logChannel.force(false);
+                    m_syncedLsn = m_writeLsn;
+
+                    snapGen = m_logGen + 1;
+                    FileChannel newLog = FileChannel.open(getLogFile(snapGen).toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+                    m_logChannel.close();
+                    m_logChannel = newLog;
+
+                    m_logGen = snapGen;
+                    m_logSize = 0L;
+                }
+            }
+
+            // Write the snapshot, updates made whilst the snapshot is being written are also in the new log
+            long keyCnt = writeSnapshot(snapGen);
+
+            // Delete the logs covered by the snapshot
+            for (long logGen : listLogGenerations()) {
+                if (logGen < snapGen)
+                    getLogFile(logGen).delete();
+            }
+
+            m_checkpointCnt++;
+            m_checkpointPending = false;
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug())
+                Debug.println("[KVStore] Checkpoint gen=" + snapGen + ", keys=" + keyCnt + ", time=" + (System.currentTimeMillis() - startTime) + "ms");
+        }
+    }
+
+    /**
+     * Checkpoint thread, writes checkpoints when the log grows past the checkpoint size and syncs the log when
+     * background log syncs are enabled
+     */
+    private void runCheckpointThread() {
+
+        // Loop until shutdown
+        while (m_shutdown == false) {
+
+            try {
+
+                // Wait for a checkpoint request, or the log sync interval
+                synchronized (m_checkpointLock) {
+                    if (m_checkpointPending == false && m_shutdown == false)
+                        m_checkpointLock.wait(m_syncInterval);
+                }
+
+                if (m_shutdown)
+                    break;
+
+                // Sync the log, if background syncs are enabled
+                if (m_syncInterval > 0)
+                    syncLogInternal(Long.MAX_VALUE);
+
+                // Write a checkpoint, if requested
+                if (m_checkpointPending)
+                    checkpoint();
+            }
+            catch (InterruptedException ex) {
+            }
+            catch (IOException ex) {
+
+                // DEBUG
+                if (Debug.EnableError)
+                    Debug.println("[KVStore] Checkpoint error, " + ex.toString(), Debug.Error);
+
+                // Retry the checkpoint on the next request
+                m_checkpointPending = false;
+            }
+        }
+    }
+
+    /**
+     * Sync the log to disk up to the specified log sequence number
+     *
+     * @param lsn long
+     * @exception IOException I/O error
+     */
+    private void syncLogInternal(long lsn)
+            throws IOException {
+
+        synchronized (m_syncLock) {
+
+            // Check if another thread has already synced past the requested position
+            if (m_syncedLsn >= lsn)
+                return;
+
+            // Get the current write position, all records up to this position are synced
+            long writeLsn = 0L;
+            FileChannel logChannel = null;
+
+            synchronized (m_writeLock) {
+                writeLsn = m_writeLsn;
+                logChannel = m_logChannel;
+            }
+
+            if (logChannel == null)
+                throw new IOException("Store is closed");
+
+            if (writeLsn > m_syncedLsn) {
+                logChannel.force(false);
+
+                m_syncedLsn = writeLsn;
+                m_syncCnt++;
+            }
+        }
+    }
+
+    /**
+     * Load the snapshot file into the in-memory table, returns the first log generation to be replayed
+     *
+     * @param snapFile File
+     * @return long
+     * @exception IOException I/O error
+     */
+    private long loadSnapshot(File snapFile)
+            throws IOException {
+
+        try (FileChannel channel = FileChannel.open(snapFile.toPath(), StandardOpenOption.READ)) {
+
+            // Check the snapshot header
+            MappedReader reader = new MappedReader(channel, channel.size());
+
+            if (reader.available(20) == false)
+                throw new IOException("Invalid store snapshot, header too short");
+
+            ByteBuffer buf = reader.buffer();
+
+            if (buf.getLong() != SnapshotSignature || buf.getInt() != SnapshotVersion)
+                throw new IOException("Invalid store snapshot signature/version");
+
+            long firstGen = buf.getLong();
+
+            // Load the key/value entries
+            CRC32 crc = new CRC32();
+            long keyCnt = 0L;
+
+            while (true) {
+
+                // Get the key and value lengths, check for the trailer
+                if (reader.available(4) == false)
+                    throw new IOException("Invalid store snapshot, missing trailer");
+
+                int keyLen = reader.buffer().getInt();
+                if (keyLen == SnapshotTrailer)
+                    break;
+
+                if (reader.available(4) == false)
+                    throw new IOException("Invalid store snapshot, truncated entry");
+
+                int valLen = reader.buffer().getInt();
+
+                if (keyLen < 0 || valLen < 0 || reader.available(keyLen + valLen) == false)
+                    throw new IOException("Invalid store snapshot, truncated entry");
+
+                // Copy the key and value
+                buf = reader.buffer();
+
+                byte[] key = new byte[keyLen];
+                byte[] value = new byte[valLen];
+
+                buf.get(key);
+                buf.get(value);
+
+                crc.update(key);
+                crc.update(value);
+
+                m_table.put(key, value);
+                keyCnt++;
+            }
+
+            // Check the trailer
+            if (reader.available(16) == false)
+                throw new IOException("Invalid store snapshot, truncated trailer");
+
+            buf = reader.buffer();
+
+            if (buf.getLong() != keyCnt || buf.getLong() != crc.getValue())
+                throw new IOException("Invalid store snapshot, checksum error");
+
+            return firstGen;
+        }
+    }
+
+    /**
+     * Write the in-memory table to a new snapshot file, returns the number of keys written
+     *
+     * @param firstGen long
+     * @return long
+     * @exception IOException I/O error
+     */
+    private long writeSnapshot(long firstGen)
+            throws IOException {
+
+        // Write the snapshot to a temporary file
+        File tmpFile = new File(m_storeDir, SnapshotFileName + ".tmp");
+        long keyCnt = 0L;
+
+        try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            ByteBuffer buf = ByteBuffer.allocateDirect(SnapshotBufferSize);
+            CRC32 crc = new CRC32();
+
+            // Write the header
+            buf.putLong(SnapshotSignature);
+            buf.putInt(SnapshotVersion);
+            buf.putLong(firstGen);
+
+            // Write the key/value entries
+            for (Map.Entry<byte[], byte[]> entry : m_table.entrySet()) {
+                byte[] key = entry.getKey();
+                byte[] value = entry.getValue();
+
+                int entryLen = key.length + value.length + 8;
+
+                if (buf.remaining() < entryLen)
+                    writeBuffer(channel, buf);
+
+                if (buf.remaining() >= entryLen) {
+                    buf.putInt(key.length);
+                    buf.putInt(value.length);
+                    buf.put(key);
+                    buf.put(value);
+                }
+                else {
+
+                    // Entry is larger than the write buffer
+                    ByteBuffer entryBuf = ByteBuffer.allocate(entryLen);
+
+                    entryBuf.putInt(key.length);
+                    entryBuf.putInt(value.length);
+                    entryBuf.put(key);
+                    entryBuf.put(value);
+
+                    writeBuffer(channel, entryBuf);
+                }
+
+                crc.update(key);
+                crc.update(value);
+
+                keyCnt++;
+            }
+
+            // Write the trailer
+            if (buf.remaining() < 20)
+                writeBuffer(channel, buf);
+
+            buf.putInt(SnapshotTrailer);
+            buf.putLong(keyCnt);
+            buf.putLong(crc.getValue());
+
+            writeBuffer(channel, buf);
+
+            channel.force(true);
+        }
+
+        // Replace the previous snapshot
+        Files.move(tmpFile.toPath(), new File(m_storeDir, SnapshotFileName).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        syncStoreDirectory();
+
+        return keyCnt;
+    }
+
+    /**
+     * Replay a log file into the in-memory table, returns the length of the valid log records
+     *
+     * @param logFile File
+     * @return long
+     * @exception IOException I/O error
+     */
+    private long replayLog(File logFile)
+            throws IOException {
+
+        try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+
+            MappedReader reader = new MappedReader(channel, channel.size());
+            CRC32 crc = new CRC32();
+            long validLen = 0L;
+
+            while (reader.available(8)) {
+
+                // Get the record length and checksum
+                ByteBuffer buf = reader.buffer();
+
+                int recLen = buf.getInt();
+                int recCrc = buf.getInt();
+
+                // Check for a partial record at the end of the log
+                if (recLen <= 0 || recLen > MaximumRecordSize || reader.available(recLen) == false)
+                    break;
+
+                byte[] payload = new byte[recLen];
+                reader.buffer().get(payload);
+
+                crc.reset();
+                crc.update(payload);
+
+                if ((int) crc.getValue() != recCrc)
+                    break;
+
+                // Apply the log record
+                applyPayload(payload);
+
+                validLen = reader.position();
+                m_replayCnt++;
+            }
+
+            // DEBUG
+            if (Debug.EnableInfo && hasDebug() && validLen < channel.size())
+                Debug.println("[KVStore] Discarded partial record, log=" + logFile.getName() + ", validLen=" + validLen + ", logLen=" + channel.size());
+
+            return validLen;
+        }
+    }
+
+    /**
+     * Apply an encoded batch of updates to the in-memory table
+     *
+     * @param payload byte[]
+     * @exception IOException Invalid log record
+     */
+    private void applyPayload(byte[] payload)
+            throws IOException {
+
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(payload);
+            int opCnt = buf.getInt();
+
+            for (int idx = 0; idx < opCnt; idx++) {
+
+                // Get the operation and key
+                byte op = buf.get();
+                byte[] key = new byte[buf.getInt()];
+                buf.get(key);
+
+                // Apply the put or delete
+                if (op == WriteBatch.OpPut) {
+                    byte[] value = new byte[buf.getInt()];
+                    buf.get(value);
+
+                    m_table.put(key, value);
+                }
+                else if (op == WriteBatch.OpDelete)
+                    m_table.remove(key);
+                else
+                    throw new IOException("Invalid log record operation " + op);
+            }
+        }
+        catch (RuntimeException ex) {
+            throw new IOException("Invalid log record", ex);
+        }
+    }
+
+    /**
+     * Write the contents of a buffer to a channel, and clear the buffer
+     *
+     * @param channel FileChannel
+     * @param buf     ByteBuffer
+     * @exception IOException I/O error
+     */
+    private static void writeBuffer(FileChannel channel, ByteBuffer buf)
+            throws IOException {
+
+        buf.flip();
+
+        while (buf.hasRemaining())
+            channel.write(buf);
+
+        buf.clear();
+    }
+
+    /**
+     * Return the list of log generations in the store folder, in ascending order
+     *
+     * @return List&lt;Long&gt;
+     */
+    private List<Long> listLogGenerations() {
+
+        List<Long> logGens = new ArrayList<Long>();
+        String[] names = m_storeDir.list();
+
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(LogFilePrefix) && name.endsWith(LogFileExtension)) {
+                    try {
+                        logGens.add(Long.parseLong(name.substring(LogFilePrefix.length(), name.length() - LogFileExtension.length())));
+                    }
+                    catch (NumberFormatException ex) {
+                    }
+                }
+            }
+        }
+
+        Collections.sort(logGens);
+        return logGens;
+    }
+
+    /**
+     * Return the log file for the specified generation
+     *
+     * @param logGen long
+     * @return File
+     */
+    private File getLogFile(long logGen) {
+        return new File(m_storeDir, LogFilePrefix + String.format("%010d", logGen) + LogFileExtension);
+    }
+
+    /**
+     * Sync the store folder so that a snapshot rename is durable, not supported on all platforms
+     */
+    private void syncStoreDirectory() {
+        try (FileChannel dirChannel = FileChannel.open(m_storeDir.toPath(), StandardOpenOption.READ)) {
+            dirChannel.force(true);
+        }
+        catch (IOException ex) {
+        }
+    }
+
+    /**
+     * Release the store lock
+     */
+    private void releaseLock() {
+        try {
+            if (m_lock != null)
+                m_lock.release();
+            if (m_lockChannel != null)
+                m_lockChannel.close();
+        }
+        catch (IOException ex) {
+        }
+
+        m_lock = null;
+        m_lockChannel = null;
+    }
+
+    /**
+     * Return the store details as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[KVStore ");
+        str.append(m_storeDir.getAbsolutePath());
+        str.append(", logGen=");
+        str.append(m_logGen);
+        str.append(", logSize=");
+        str.append(m_logSize);
+        str.append(", commits=");
+        str.append(getCommitCount());
+        str.append(", syncs=");
+        str.append(getSyncCount());
+        str.append(", checkpoints=");
+        str.append(getCheckpointCount());
+        str.append("]");
+
+        return str.toString();
+    }
+}
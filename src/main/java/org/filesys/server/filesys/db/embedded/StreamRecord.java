@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.filesys.server.filesys.db.embedded;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.filesys.server.filesys.db.DBInterface;
+import org.filesys.smb.server.ntfs.StreamInfo;
+
+/**
+ * Stream Record Class
+ *
+ * <p>NTFS stream details stored by the embedded database interface.
+ *
+ * @author gkspencer
+ */
+public class StreamRecord {
+
+    // Record encoding version
+    private static final int RecordVersion = 1;
+
+    // File and stream id, stream name
+    private int m_fid;
+    private int m_stid;
+    private String m_name;
+
+    // Stream size and allocation size
+    private long m_size;
+    private long m_alloc;
+
+    // Creation, access and modify date/times
+    private long m_createDate;
+    private long m_accessDate;
+    private long m_modifyDate;
+
+    // Stream has been deleted to the trashcan
+    private boolean m_deleted;
+
+    /**
+     * Class constructor
+     *
+     * @param fid  int
+     * @param stid int
+     * @param name String
+     */
+    public StreamRecord(int fid, int stid, String name) {
+        m_fid = fid;
+        m_stid = stid;
+        m_name = name;
+    }
+
+    /**
+     * Return the file id
+     *
+     * @return int
+     */
+    public final int getFileId() {
+        return m_fid;
+    }
+
+    /**
+     * Return the stream id
+     *
+     * @return int
+     */
+    public final int getStreamId() {
+        return m_stid;
+    }
+
+    /**
+     * Return the stream name
+     *
+     * @return String
+     */
+    public final String getName() {
+        return m_name;
+    }
+
+    /**
+     * Check if the stream has been deleted to the trashcan
+     *
+     * @return boolean
+     */
+    public final boolean isDeleted() {
+        return m_deleted;
+    }
+
+    /**
+     * Set the stream name
+     *
+     * @param name String
+     */
+    public final void setName(String name) {
+        m_name = name;
+    }
+
+    /**
+     * Set all the stream date/times
+     *
+     * @param dateTime long
+     */
+    public final void setDateTimes(long dateTime) {
+        m_createDate = dateTime;
+        m_accessDate = dateTime;
+        m_modifyDate = dateTime;
+    }
+
+    /**
+     * Set/clear the deleted flag
+     *
+     * @param deleted boolean
+     */
+    public final void setDeleted(boolean deleted) {
+        m_deleted = deleted;
+    }
+
+    /**
+     * Update the record using the fields of a stream information object that have the set flag
+     *
+     * @param sinfo StreamInfo
+     * @return boolean
+     */
+    public final boolean updateFrom(StreamInfo sinfo) {
+
+        // Check if there are any fields to update
+        if (sinfo.getSetStreamInformationFlags() == 0)
+            return false;
+
+        if (sinfo.hasSetFlag(StreamInfo.SetStreamSize))
+            m_size = sinfo.getSize();
+
+        if (sinfo.hasSetFlag(StreamInfo.SetAllocationSize))
+            m_alloc = sinfo.getAllocationSize();
+
+        if (sinfo.hasSetFlag(StreamInfo.SetCreationDate))
+            m_createDate = sinfo.getCreationDateTime();
+
+        if (sinfo.hasSetFlag(StreamInfo.SetAccessDate))
+            m_accessDate = sinfo.getAccessDateTime();
+
+        if (sinfo.hasSetFlag(StreamInfo.SetModifyDate))
+            m_modifyDate = sinfo.getModifyDateTime();
+
+        return true;
+    }
+
+    /**
+     * Return the stream record as a stream information object
+     *
+     * @param infoLevel DBInterface.StreamInfoLevel
+     * @return StreamInfo
+     */
+    public final StreamInfo getStreamInformation(DBInterface.StreamInfoLevel infoLevel) {
+
+        // Create the stream information, the name is always returned
+        StreamInfo sinfo = new StreamInfo();
+        sinfo.setName(m_name);
+
+        if (infoLevel == DBInterface.StreamInfoLevel.NameOnly)
+            return sinfo;
+
+        // Add the file and stream ids
+        sinfo.setFileId(m_fid);
+        sinfo.setStreamId(m_stid);
+
+        if (infoLevel == DBInterface.StreamInfoLevel.Ids)
+            return sinfo;
+
+        // Add the stream details
+        sinfo.setSize(m_size);
+        sinfo.setAllocationSize(m_alloc);
+
+        sinfo.setCreationDateTime(m_createDate);
+        sinfo.setAccessDateTime(m_accessDate);
+        sinfo.setModifyDateTime(m_modifyDate);
+
+        return sinfo;
+    }
+
+    /**
+     * Encode the stream record
+     *
+     * @return byte[]
+     */
+    public final byte[] encodeRecord() {
+
+        try {
+            ByteArrayOutputStream byts = new ByteArrayOutputStream(64 + m_name.length() * 2);
+            DataOutputStream out = new DataOutputStream(byts);
+
+            out.writeByte(RecordVersion);
+            out.writeInt(m_fid);
+            out.writeInt(m_stid);
+            out.writeUTF(m_name);
+
+            out.writeLong(m_size);
+            out.writeLong(m_alloc);
+
+            out.writeLong(m_createDate);
+            out.writeLong(m_accessDate);
+            out.writeLong(m_modifyDate);
+
+            out.writeBoolean(m_deleted);
+
+            return byts.toByteArray();
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException("Stream record encode failed", ex);
+        }
+    }
+
+    /**
+     * Decode a stream record
+     *
+     * @param data byte[]
+     * @return StreamRecord
+     * @exception IOException Invalid record
+     */
+    public static StreamRecord decodeRecord(byte[] data)
+            throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+        if (in.readByte() != RecordVersion)
+            throw new IOException("Unsupported stream record version");
+
+        StreamRecord rec = new StreamRecord(in.readInt(), in.readInt(), in.readUTF());
+
+        rec.m_size = in.readLong();
+        rec.m_alloc = in.readLong();
+
+        rec.m_createDate = in.readLong();
+        rec.m_accessDate = in.readLong();
+        rec.m_modifyDate = in.readLong();
+
+        rec.m_deleted = in.readBoolean();
+
+        return rec;
+    }
+
+    /**
+     * Return the stream record as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[StreamRec fid=");
+        str.append(m_fid);
+        str.append(", stid=");
+        str.append(m_stid);
+        str.append(", name=");
+        str.append(m_name);
+        str.append(", size=");
+        str.append(m_size);
+
+        if (isDeleted())
+            str.append(", Deleted");
+
+        str.append("]");
+
+        return str.toString();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.filesys.server.filesys.db.embedded;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write Batch Class
+ *
+ * <p>Holds a list of key/value store updates that are written to the write-ahead log as a single log record, and
+ * applied to the store atomically.
+ *
+ * @author gkspencer
+ */
+public class WriteBatch {
+
+    // Log record operation types
+    protected static final byte OpPut       = 1;
+    protected static final byte OpDelete    = 2;
+
+    // Keys and values, a null value indicates a delete
+    private List<byte[]> m_keys;
+    private List<byte[]> m_values;
+
+    // Encoded length of the batch
+    private int m_encLen = 4;
+
+    /**
+     * Default constructor
+     */
+    public WriteBatch() {
+        m_keys = new ArrayList<byte[]>();
+        m_values = new ArrayList<byte[]>();
+    }
+
+    /**
+     * Add a put of a key/value to the batch
+     *
+     * @param key   byte[]
+     * @param value byte[]
+     */
+    public final void put(byte[] key, byte[] value) {
+        if (value == null)
+            throw new IllegalArgumentException("Null value for key/value store put");
+
+        m_keys.add(key);
+        m_values.add(value);
+
+        m_encLen += 9 + key.length + value.length;
+    }
+
+    /**
+     * Add a delete of a key to the batch
+     *
+     * @param key byte[]
+     */
+    public final void delete(byte[] key) {
+        m_keys.add(key);
+        m_values.add(null);
+
+        m_encLen += 5 + key.length;
+    }
+
+    /**
+     * Return the number of operations in the batch
+     *
+     * @return int
+     */
+    public final int numberOfOperations() {
+        return m_keys.size();
+    }
+
+    /**
+     * Check if the batch is empty
+     *
+     * @return boolean
+     */
+    public final boolean isEmpty() {
+        return m_keys.isEmpty();
+    }
+
+    /**
+     * Return the key for the specified operation
+     *
+     * @param idx int
+     * @return byte[]
+     */
+    protected final byte[] getKeyAt(int idx) {
+        return m_keys.get(idx);
+    }
+
+    /**
+     * Return the value for the specified operation, or null for a delete
+     *
+     * @param idx int
+     * @return byte[]
+     */
+    protected final byte[] getValueAt(int idx) {
+        return m_values.get(idx);
+    }
+
+    /**
+     * Clear the batch
+     */
+    public final void clear() {
+        m_keys.clear();
+        m_values.clear();
+
+        m_encLen = 4;
+    }
+
+    /**
+     * Encode the batch operations into a log record payload
+     *
+     * @return byte[]
+     */
+    protected final byte[] encodePayload() {
+
+        // Allocate the payload buffer, pack the operation count and operations
+        ByteBuffer buf = ByteBuffer.allocate(m_encLen);
+        buf.putInt(m_keys.size());
+
+        for (int idx = 0; idx < m_keys.size(); idx++) {
+            byte[] key = m_keys.get(idx);
+            byte[] value = m_values.get(idx);
+
+            buf.put(value != null ? OpPut : OpDelete);
+            buf.putInt(key.length);
+            buf.put(key);
+
+            if (value != null) {
+                buf.putInt(value.length);
+                buf.put(value);
+            }
+        }
+
+        return buf.array();
+    }
+
+    /**
+     * Return the write batch as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[Batch ops=");
+        str.append(numberOfOperations());
+        str.append(", len=");
+        str.append(m_encLen);
+        str.append("]");
+
+        return str.toString();
+    }
+}
@@ -88,6 +88,14 @@ public class FileRequest {
         }
     }
 
+    //	Request priorities, loads are for a user waiting on a file open so are processed ahead of saves, requeued
+    //	requests are processed after new requests
+    public enum Priority {
+        High,
+        Normal,
+        Low
+    }
+
     //  Standard attribute names
     public final static String AttrUserName = "UserName";
     public final static String AttrProtocol = "Protocol";
@@ -95,6 +103,9 @@ public class FileRequest {
     //	File request type
     private RequestType m_reqType;
 
+    //	Request priority
+    private Priority m_priority;
+
     //	Thread id of the worker thread that is servicing the request
     private int m_threadId;
 
@@ -112,6 +123,7 @@ public class FileRequest {
      */
     protected FileRequest(RequestType typ) {
         m_reqType = typ;
+        m_priority = typ == RequestType.Load ? Priority.High : Priority.Normal;
     }
 
     /**
@@ -123,6 +135,15 @@ public class FileRequest {
         return m_reqType;
     }
 
+    /**
+     * Return the request priority
+     *
+     * @return Priority
+     */
+    public final Priority getPriority() {
+        return m_priority;
+    }
+
     /**
      * Return the thread id of the worker thread servicing the request
      *
@@ -159,6 +180,15 @@ public class FileRequest {
         return m_tranId;
     }
 
+    /**
+     * Set the request priority
+     *
+     * @param priority Priority
+     */
+    public final void setPriority(Priority priority) {
+        m_priority = priority;
+    }
+
     /**
      * Set the thread id of the worker thread servicing the request
      *
@@ -19,25 +19,78 @@
 
 package org.filesys.server.filesys.loader;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * File Request Queue Class
  *
  * <p>Synchronized queue of FileRequest objects.
  *
+ * <p>A priority queue processes requests in priority order, and in arrival order within each priority. A priority
+ * queue also merges a save request with a queued save request for the same file and stream, and allows the queued
+ * saves for a file to be cancelled when the file is deleted.
+ *
  * @author gkspencer
  */
 public class FileRequestQueue {
 
-    //	List of file requests
-    private LinkedList<FileRequest> m_queue;
+    //	Number of request priorities
+    private static final int NumPriorities = FileRequest.Priority.values().length;
+
+    //	Lists of file requests, one per priority for a priority queue
+    private List<LinkedList<FileRequest>> m_queues;
+    private int m_count;
+
+    //	Priority queue, order requests by priority and merge save requests
+    private boolean m_priority;
+
+    //	Queued save requests, by file id and stream id, used to merge save requests
+    private HashMap<Long, SingleFileRequest> m_pendingSaves;
+
+    //	Queue statistics, per priority
+    private long[] m_queuedCnt = new long[NumPriorities];
+    private long[] m_removedCnt = new long[NumPriorities];
+
+    private long m_mergedCnt;
+    private long m_cancelledCnt;
 
     /**
      * Class constructor
      */
     public FileRequestQueue() {
-        m_queue = new LinkedList<FileRequest>();
+        this(false);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param priority boolean
+     */
+    public FileRequestQueue(boolean priority) {
+        m_priority = priority;
+
+        int numQueues = priority ? NumPriorities : 1;
+        m_queues = new ArrayList<LinkedList<FileRequest>>(numQueues);
+
+        for (int i = 0; i < numQueues; i++)
+            m_queues.add(new LinkedList<FileRequest>());
+
+        if (priority)
+            m_pendingSaves = new HashMap<Long, SingleFileRequest>();
+    }
+
+    /**
+     * Check if the queue orders requests by priority
+     *
+     * @return boolean
+     */
+    public final boolean isPriorityQueue() {
+        return m_priority;
     }
 
     /**
@@ -46,21 +99,100 @@ public class FileRequestQueue {
      * @return int
      */
     public final synchronized int numberOfRequests() {
-        return m_queue.size();
+        return m_count;
+    }
+
+    /**
+     * Return the number of requests in the queue with the specified priority
+     *
+     * @param priority FileRequest.Priority
+     * @return int
+     */
+    public final synchronized int numberOfRequests(FileRequest.Priority priority) {
+        if (m_priority)
+            return m_queues.get(priority.ordinal()).size();
+
+        // Count the requests with the required priority
+        int cnt = 0;
+
+        for (FileRequest req : m_queues.get(0)) {
+            if (req.getPriority() == priority)
+                cnt++;
+        }
+
+        return cnt;
     }
 
     /**
-     * Add a request to the queue
+     * Return the number of requests that have been added to the queue with the specified priority
+     *
+     * @param priority FileRequest.Priority
+     * @return long
+     */
+    public final synchronized long getQueuedCount(FileRequest.Priority priority) {
+        return m_queuedCnt[priority.ordinal()];
+    }
+
+    /**
+     * Return the number of requests that have been removed from the queue with the specified priority
+     *
+     * @param priority FileRequest.Priority
+     * @return long
+     */
+    public final synchronized long getRemovedCount(FileRequest.Priority priority) {
+        return m_removedCnt[priority.ordinal()];
+    }
+
+    /**
+     * Return the number of save requests that have been merged with a queued save request
+     *
+     * @return long
+     */
+    public final synchronized long getMergedCount() {
+        return m_mergedCnt;
+    }
+
+    /**
+     * Return the number of queued requests that have been cancelled
+     *
+     * @return long
+     */
+    public final synchronized long getCancelledCount() {
+        return m_cancelledCnt;
+    }
+
+    /**
+     * Add a request to the queue. For a priority queue, if there is already a queued save request for the same
+     * file, stream and temporary file then the new request is merged with the queued request and is returned, the
+     * caller should discard the merged request.
      *
      * @param req FileRequest
+     * @return FileRequest
      */
-    public final synchronized void addRequest(FileRequest req) {
+    public final synchronized FileRequest addRequest(FileRequest req) {
+
+        //	Check if the save request can be merged with a queued save request
+        if (m_priority && isMergeableSave(req)) {
+            SingleFileRequest saveReq = (SingleFileRequest) req;
+            Long saveKey = makeFileKey(saveReq.getFileId(), saveReq.getStreamId());
+            SingleFileRequest queuedReq = m_pendingSaves.get(saveKey);
+
+            if (queuedReq != null && queuedReq != saveReq && sameTemporaryFile(queuedReq, saveReq)) {
+                m_mergedCnt++;
+                return saveReq;
+            }
+
+            m_pendingSaves.put(saveKey, saveReq);
+        }
 
         //	Add the request to the queue
-        m_queue.add(req);
+        m_queues.get(queueIndex(req)).add(req);
+        m_queuedCnt[req.getPriority().ordinal()]++;
+        m_count++;
 
         //	Notify workers that there is a request to process
         notifyAll();
+        return null;
     }
 
     /**
@@ -76,7 +208,7 @@ public class FileRequestQueue {
         waitWhileEmpty();
 
         //	Get the request from the head of the queue
-        return m_queue.removeFirst();
+        return removeNextRequest();
     }
 
     /**
@@ -87,14 +219,65 @@ public class FileRequestQueue {
     public final synchronized FileRequest removeRequestNoWait() {
 
         //	Get the request from the head of the queue
-        return m_queue.removeFirst();
+        return removeNextRequest();
+    }
+
+    /**
+     * Remove the queued save requests for the specified file and stream, used when the file is deleted. Only
+     * supported by a priority queue, returns the list of removed requests, or null if no requests were removed.
+     *
+     * @param fid  int
+     * @param stid int
+     * @return List of FileRequest
+     */
+    public final synchronized List<FileRequest> removeFileRequests(int fid, int stid) {
+
+        //	Only priority queues track save requests
+        if (m_priority == false)
+            return null;
+
+        m_pendingSaves.remove(makeFileKey(fid, stid));
+
+        //	Remove the save requests for the file
+        List<FileRequest> cancelList = new ArrayList<FileRequest>();
+
+        for (LinkedList<FileRequest> queue : m_queues) {
+            Iterator<FileRequest> iter = queue.iterator();
+
+            while (iter.hasNext()) {
+                FileRequest req = iter.next();
+
+                if (isMergeableSave(req) && ((SingleFileRequest) req).getFileId() == fid && ((SingleFileRequest) req).getStreamId() == stid) {
+                    iter.remove();
+                    cancelList.add(req);
+                }
+            }
+        }
+
+        if (cancelList.isEmpty())
+            return null;
+
+        m_count -= cancelList.size();
+        m_cancelledCnt += cancelList.size();
+
+        if (m_count == 0)
+            notifyAll();
+
+        return cancelList;
     }
 
     /**
      * Remove all requests from the queue
      */
-    public final void removeAllRequests() {
-        m_queue.clear();
+    public final synchronized void removeAllRequests() {
+        for (LinkedList<FileRequest> queue : m_queues)
+            queue.clear();
+
+        if (m_pendingSaves != null)
+            m_pendingSaves.clear();
+
+        m_count = 0;
+        notifyAll();
     }
 
     /**
@@ -106,7 +289,7 @@ public class FileRequestQueue {
             throws InterruptedException {
 
         //	Wait until some work arrives on the queue
-        while (m_queue.size() == 0)
+        while (m_count == 0)
             wait();
     }
 
@@ -119,7 +302,111 @@ public class FileRequestQueue {
             throws InterruptedException {
 
         //	Wait until the request queue is empty
-        while (m_queue.size() != 0)
+        while (m_count != 0)
             wait();
     }
+
+    /**
+     * Return the queue details as a string
+     *
+     * @return String
+     */
+    public synchronized String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[Queued=");
+        str.append(m_count);
+
+        for (FileRequest.Priority priority : FileRequest.Priority.values()) {
+            str.append(",");
+            str.append(priority.name());
+            str.append("=");
+            str.append(m_queuedCnt[priority.ordinal()]);
+            str.append("/");
+            str.append(m_removedCnt[priority.ordinal()]);
+        }
+
+        str.append(",Merged=");
+        str.append(m_mergedCnt);
+        str.append(",Cancelled=");
+        str.append(m_cancelledCnt);
+        str.append("]");
+
+        return str.toString();
+    }
+
+    /**
+     * Remove the next request from the queue, in priority order. Must be called with the queue locked.
+     *
+     * @return FileRequest
+     */
+    private FileRequest removeNextRequest() {
+
+        //	Find the highest priority request
+        for (LinkedList<FileRequest> queue : m_queues) {
+            if (queue.isEmpty() == false) {
+                FileRequest req = queue.removeFirst();
+                m_count--;
+                m_removedCnt[req.getPriority().ordinal()]++;
+
+                //	A save request that is being processed can no longer be merged
+                if (m_priority && isMergeableSave(req)) {
+                    SingleFileRequest saveReq = (SingleFileRequest) req;
+                    m_pendingSaves.remove(makeFileKey(saveReq.getFileId(), saveReq.getStreamId()), saveReq);
+                }
+
+                //	Notify any threads waiting for the queue to empty
+                if (m_count == 0)
+                    notifyAll();
+
+                return req;
+            }
+        }
+
+        throw new NoSuchElementException();
+    }
+
+    /**
+     * Return the queue index for a request
+     *
+     * @param req FileRequest
+     * @return int
+     */
+    private int queueIndex(FileRequest req) {
+        return m_priority ? req.getPriority().ordinal() : 0;
+    }
+
+    /**
+     * Check if a request is a standalone save request that can be merged with another save request
+     *
+     * @param req FileRequest
+     * @return boolean
+     */
+    private static boolean isMergeableSave(FileRequest req) {
+        return req.isType() == FileRequest.RequestType.Save && req.isTransaction() == false && req instanceof SingleFileRequest;
+    }
+
+    /**
+     * Check if two save requests use the same temporary file
+     *
+     * @param req1 SingleFileRequest
+     * @param req2 SingleFileRequest
+     * @return boolean
+     */
+    private static boolean sameTemporaryFile(SingleFileRequest req1, SingleFileRequest req2) {
+        if (req1.getTemporaryFile() == null)
+            return req2.getTemporaryFile() == null;
+        return req1.getTemporaryFile().equals(req2.getTemporaryFile());
+    }
+
+    /**
+     * Build the key for a file id and stream id
+     *
+     * @param fid  int
+     * @param stid int
+     * @return Long
+     */
+    private static Long makeFileKey(int fid, int stid) {
+        return ((long) fid << 32) | (stid & 0xFFFFFFFFL);
+    }
 }
@@ -37,6 +37,9 @@ public class FileSegmentInfo extends SegmentInfo {
     //	Temporary file path
     private String m_tempFile;
 
+    //	Fragment map, when the file data is being loaded by range
+    private volatile FragmentMap m_fragMap;
+
     /**
      * Default constructor
      */
@@ -64,6 +67,42 @@ public class FileSegmentInfo extends SegmentInfo {
         return m_tempFile;
     }
 
+    /**
+     * Return the fragment map, or null if the file data is not being loaded by range
+     *
+     * @return FragmentMap
+     */
+    public final FragmentMap getFragmentMap() {
+        return m_fragMap;
+    }
+
+    /**
+     * Check if the file data is being loaded by range, and there are fragments currently being loaded
+     *
+     * @return boolean
+     */
+    public final boolean isRangeLoading() {
+        FragmentMap fragMap = m_fragMap;
+        return fragMap != null && fragMap.hasLoadingFragments();
+    }
+
+    /**
+     * Check if the file data is available
+     *
+     * @param fileOff long
+     * @param len int
+     * @return boolean
+     */
+    public boolean isDataAvailable( long fileOff, int len) {
+
+        // If the file data is being loaded by range check if the required fragments have been loaded
+        FragmentMap fragMap = m_fragMap;
+
+        if ( fragMap != null && hasStatus() == State.Loading)
+            return fragMap.isRangeLoaded( fileOff, len);
+        return super.isDataAvailable( fileOff, len);
+    }
+
     /**
      * Delete the temporary file used by the file segment
      *
@@ -99,6 +138,15 @@ public class FileSegmentInfo extends SegmentInfo {
         return tempFile.length();
     }
 
+    /**
+     * Set the fragment map, used when the file data is loaded by range
+     *
+     * @param fragMap FragmentMap
+     */
+    public final void setFragmentMap(FragmentMap fragMap) {
+        m_fragMap = fragMap;
+    }
+
     /**
      * Set the temporary file that is used to hold the local copy of the file data
      *
@@ -127,6 +175,11 @@ public class FileSegmentInfo extends SegmentInfo {
         if (isQueued())
             str.append(",Queued");
 
+        if (m_fragMap != null) {
+            str.append(",");
+            str.append(m_fragMap);
+        }
+
         str.append("]");
 
         return str.toString();
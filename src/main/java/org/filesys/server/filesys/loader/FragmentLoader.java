@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.server.filesys.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.filesys.debug.Debug;
+import org.filesys.server.filesys.FileOfflineException;
+
+/**
+ * Fragment Loader Class
+ *
+ * <p>Loads file data on demand, by range, into the local temporary file of a file segment. The fragments covering a
+ * read request are loaded by the reading thread, the following fragments are prefetched by a small pool of background
+ * threads. Fragments already being loaded by another thread are waited for.
+ *
+ * <p>The file loader provides the fragment data via the openFragment() method.
+ *
+ * @author gkspencer
+ */
+public abstract class FragmentLoader {
+
+    // Default number of fragments to prefetch, and prefetch threads
+    public static final int DefaultPrefetch = 2;
+    public static final int DefaultThreads  = 2;
+
+    public static final int MaximumPrefetch = 32;
+    public static final int MaximumThreads  = 16;
+
+    // Maximum queued prefetch requests
+    private static final int MaximumQueuedPrefetch = 256;
+
+    // Poll interval when waiting for fragments being loaded by other threads
+    private static final long FragmentPollTime = 250L;
+
+    // Copy buffer size
+    private static final int CopyBufferSize = 64 * 1024;
+
+    // Loader name
+    private String m_name;
+
+    // Number of fragments to prefetch after the requested range
+    private int m_prefetch;
+
+    // Prefetch thread pool
+    private ThreadPoolExecutor m_prefetchPool;
+
+    // Debug enable
+    private boolean m_debug;
+
+    // Statistics
+    private AtomicLong m_loadCount = new AtomicLong();
+    private AtomicLong m_prefetchCount = new AtomicLong();
+    private AtomicLong m_loadBytes = new AtomicLong();
+
+    /**
+     * Class constructor
+     *
+     * @param name     String
+     * @param threads  int
+     * @param prefetch int
+     */
+    public FragmentLoader(String name, int threads, int prefetch) {
+        m_name = name;
+        m_prefetch = prefetch;
+
+        // Create the prefetch thread pool
+        if (m_prefetch > 0) {
+            final AtomicInteger threadId = new AtomicInteger(1);
+
+            m_prefetchPool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(MaximumQueuedPrefetch), (Runnable r) -> {
+                        Thread thread = new Thread(r);
+                        thread.setDaemon(true);
+                        thread.setName(m_name + "_Prefetch" + threadId.getAndIncrement());
+                        return thread;
+                    });
+            m_prefetchPool.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Return the loader name
+     *
+     * @return String
+     */
+    public final String getName() {
+        return m_name;
+    }
+
+    /**
+     * Return the number of fragments to prefetch
+     *
+     * @return int
+     */
+    public final int getPrefetchCount() {
+        return m_prefetch;
+    }
+
+    /**
+     * Check if debug output is enabled
+     *
+     * @return boolean
+     */
+    public final boolean hasDebug() {
+        return m_debug;
+    }
+
+    /**
+     * Enable/disable debug output
+     *
+     * @param dbg boolean
+     */
+    public final void setDebug(boolean dbg) {
+        m_debug = dbg;
+    }
+
+    /**
+     * Open a stream to read the data for the specified fragment
+     *
+     * @param fileId   int
+     * @param streamId int
+     * @param fragMap  FragmentMap
+     * @param fragNo   int
+     * @return InputStream
+     * @exception IOException I/O error
+     */
+    protected abstract InputStream openFragment(int fileId, int streamId, FragmentMap fragMap, int fragNo)
+        throws IOException;
+
+    /**
+     * All fragments of the file have been loaded
+     *
+     * @param segInfo FileSegmentInfo
+     */
+    protected abstract void rangeLoadComplete(FileSegmentInfo segInfo);
+
+    /**
+     * Load the fragments covering the specified range of the file, and queue prefetch of the following fragments.
+     * Returns when the range is available in the temporary file.
+     *
+     * @param fileId   int
+     * @param streamId int
+     * @param segInfo  FileSegmentInfo
+     * @param fileOff  long
+     * @param len      long
+     * @param waitTime long
+     * @exception IOException I/O error
+     */
+    public final void loadRange(int fileId, int streamId, FileSegmentInfo segInfo, long fileOff, long len, long waitTime)
+        throws IOException {
+
+        FragmentMap fragMap = segInfo.getFragmentMap();
+        if (fragMap == null)
+            throw new IOException("File segment is not range loaded");
+
+        // Check for a range past the end of the file data
+        long endOff = Math.min(fileOff + len, fragMap.getDataLength());
+        if (fileOff >= endOff)
+            return;
+
+        int firstFrag = fragMap.getFragmentIndex(fileOff);
+        int lastFrag = fragMap.getFragmentIndex(endOff - 1);
+
+        // Load the fragments that are not loaded, or being loaded by another thread
+        loadFragments(fileId, streamId, segInfo, fragMap, firstFrag, lastFrag);
+
+        // Queue prefetch of the following fragments
+        if (m_prefetchPool != null) {
+            int endFrag = Math.min(lastFrag + m_prefetch, fragMap.getFragmentCount() - 1);
+
+            for (int fragNo = lastFrag + 1; fragNo <= endFrag; fragNo++) {
+                if (fragMap.claimFragment(fragNo))
+                    queuePrefetch(fileId, streamId, segInfo, fragMap, fragNo);
+            }
+        }
+
+        // Wait for fragments that are being loaded by other threads
+        long endTime = System.currentTimeMillis() + waitTime;
+
+        while (fragMap.isRangeLoaded(fileOff, len) == false) {
+
+            // Check if the wait has timed out
+            if (System.currentTimeMillis() >= endTime)
+                throw new FileOfflineException("File data not available");
+
+            // Wait for the fragments to be loaded
+            segInfo.waitForData(FragmentPollTime, fileOff, (int) Math.min(len, Integer.MAX_VALUE));
+
+            // Check for fragments that failed to load in another thread, load them using this thread
+            loadFragments(fileId, streamId, segInfo, fragMap, firstFrag, lastFrag);
+        }
+    }
+
+    /**
+     * Shutdown the prefetch threads
+     */
+    public final void shutdown() {
+        if (m_prefetchPool != null) {
+            m_prefetchPool.shutdownNow();
+            m_prefetchPool = null;
+        }
+    }
+
+    /**
+     * Load the unclaimed fragments in the specified fragment range
+     *
+     * @param fileId    int
+     * @param streamId  int
+     * @param segInfo   FileSegmentInfo
+     * @param fragMap   FragmentMap
+     * @param firstFrag int
+     * @param lastFrag  int
+     * @exception IOException I/O error
+     */
+    private void loadFragments(int fileId, int streamId, FileSegmentInfo segInfo, FragmentMap fragMap, int firstFrag, int lastFrag)
+        throws IOException {
+
+        for (int fragNo = firstFrag; fragNo <= lastFrag; fragNo++) {
+            if (fragMap.claimFragment(fragNo))
+                loadFragment(fileId, streamId, segInfo, fragMap, fragNo);
+        }
+    }
+
+    /**
+     * Queue a prefetch of a claimed fragment
+     *
+     * @param fileId   int
+     * @param streamId int
+     * @param segInfo  FileSegmentInfo
+     * @param fragMap  FragmentMap
+     * @param fragNo   int
+     */
+    private void queuePrefetch(final int fileId, final int streamId, final FileSegmentInfo segInfo, final FragmentMap fragMap,
+                               final int fragNo) {
+        try {
+            m_prefetchPool.execute(() -> {
+                try {
+                    loadFragment(fileId, streamId, segInfo, fragMap, fragNo);
+                    m_prefetchCount.incrementAndGet();
+                }
+                catch (IOException ex) {
+
+                    // DEBUG
+                    if (Debug.EnableError && hasDebug())
+                        Debug.println("[" + getName() + "] Prefetch failed, fid=" + fileId + ", frag=" + fragNo + ", " + ex);
+                }
+            });
+        }
+        catch (RejectedExecutionException ex) {
+
+            // Prefetch queue is full, release the fragment so it is loaded on demand
+            fragMap.fragmentFailed(fragNo);
+        }
+    }
+
+    /**
+     * Load a claimed fragment into the temporary file
+     *
+     * @param fileId   int
+     * @param streamId int
+     * @param segInfo  FileSegmentInfo
+     * @param fragMap  FragmentMap
+     * @param fragNo   int
+     * @exception IOException I/O error
+     */
+    private void loadFragment(int fileId, int streamId, FileSegmentInfo segInfo, FragmentMap fragMap, int fragNo)
+        throws IOException {
+
+        InputStream in = null;
+        RandomAccessFile out = null;
+        boolean loaded = false;
+
+        long fragOff = fragMap.getFragmentOffset(fragNo);
+        long fragLen = fragMap.getFragmentLength(fragNo);
+
+        try {
+
+            // Check that the temporary file still exists, it may have been expired
+            File tempFile = new File(segInfo.getTemporaryFile());
+            if (tempFile.exists() == false)
+                throw new IOException("Temporary file deleted, " + segInfo.getTemporaryFile());
+
+            // Copy the fragment data into place in the temporary file
+            in = openFragment(fileId, streamId, fragMap, fragNo);
+            out = new RandomAccessFile(tempFile, "rw");
+            out.seek(fragOff);
+
+            byte[] buf = new byte[(int) Math.min(CopyBufferSize, fragLen)];
+            long remaining = fragLen;
+
+            while (remaining > 0) {
+                int rdlen = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (rdlen == -1)
+                    break;
+
+                out.write(buf, 0, rdlen);
+                remaining -= rdlen;
+            }
+
+            if (remaining > 0)
+                throw new IOException("Short fragment, fid=" + fileId + ", frag=" + fragNo + ", missing=" + remaining);
+
+            loaded = true;
+        }
+        finally {
+
+            // Close the fragment stream and temporary file
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException ex) {
+                }
+            }
+
+            if (out != null) {
+                try {
+                    out.close();
+                }
+                catch (IOException ex) {
+                }
+            }
+
+            // Update the fragment map, and wakeup any threads waiting for the fragment
+            if (loaded) {
+                m_loadCount.incrementAndGet();
+                m_loadBytes.addAndGet(fragLen);
+
+                if (fragMap.fragmentLoaded(fragNo))
+                    rangeLoadComplete(segInfo);
+            }
+            else
+                fragMap.fragmentFailed(fragNo);
+
+            segInfo.signalDataAvailable();
+        }
+
+        // DEBUG
+        if (Debug.EnableDbg && hasDebug())
+            Debug.println("[" + getName() + "] Loaded fid=" + fileId + ", stream=" + streamId + ", frag=" + fragNo + ", " + fragMap);
+    }
+
+    /**
+     * Return the fragment loader details as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[");
+        str.append(getName());
+        str.append(" prefetch=");
+        str.append(getPrefetchCount());
+        str.append(",loaded=");
+        str.append(m_loadCount.get());
+        str.append(",prefetched=");
+        str.append(m_prefetchCount.get());
+        str.append(",bytes=");
+        str.append(m_loadBytes.get());
+        str.append("]");
+
+        return str.toString();
+    }
+}
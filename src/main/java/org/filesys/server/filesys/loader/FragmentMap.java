@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.server.filesys.loader;
+
+import java.util.BitSet;
+
+/**
+ * Fragment Map Class
+ *
+ * <p>Tracks which fragments of a file have been loaded into the local temporary file when the file data is loaded
+ * on demand, by range, rather than as a single load of the whole file.
+ *
+ * @author gkspencer
+ */
+public class FragmentMap {
+
+    // File data length and fragment size
+    private long m_dataLen;
+    private long m_fragSize;
+    private int m_fragCount;
+
+    // Loaded fragments, and fragments that are currently being loaded
+    private BitSet m_loaded;
+    private BitSet m_loading;
+
+    private int m_loadedCount;
+
+    // Object id of the file data, if the loader uses object ids
+    private String m_objectId;
+
+    /**
+     * Class constructor
+     *
+     * @param dataLen  long
+     * @param fragSize long
+     */
+    public FragmentMap(long dataLen, long fragSize) {
+        m_dataLen = dataLen;
+        m_fragSize = fragSize;
+
+        m_fragCount = (int) ((dataLen + fragSize - 1) / fragSize);
+
+        m_loaded = new BitSet(m_fragCount);
+        m_loading = new BitSet(m_fragCount);
+    }
+
+    /**
+     * Return the file data length
+     *
+     * @return long
+     */
+    public final long getDataLength() {
+        return m_dataLen;
+    }
+
+    /**
+     * Return the fragment size
+     *
+     * @return long
+     */
+    public final long getFragmentSize() {
+        return m_fragSize;
+    }
+
+    /**
+     * Return the number of fragments
+     *
+     * @return int
+     */
+    public final int getFragmentCount() {
+        return m_fragCount;
+    }
+
+    /**
+     * Return the index of the fragment that contains the specified file offset
+     *
+     * @param fileOff long
+     * @return int
+     */
+    public final int getFragmentIndex(long fileOff) {
+        return (int) (fileOff / m_fragSize);
+    }
+
+    /**
+     * Return the file offset of the specified fragment
+     *
+     * @param fragNo int
+     * @return long
+     */
+    public final long getFragmentOffset(int fragNo) {
+        return fragNo * m_fragSize;
+    }
+
+    /**
+     * Return the length of the specified fragment, the last fragment may be shorter than the fragment size
+     *
+     * @param fragNo int
+     * @return long
+     */
+    public final long getFragmentLength(int fragNo) {
+        return Math.min(m_fragSize, m_dataLen - getFragmentOffset(fragNo));
+    }
+
+    /**
+     * Return the object id of the file data
+     *
+     * @return String
+     */
+    public final String getObjectId() {
+        return m_objectId;
+    }
+
+    /**
+     * Set the object id of the file data
+     *
+     * @param objectId String
+     */
+    public final void setObjectId(String objectId) {
+        m_objectId = objectId;
+    }
+
+    /**
+     * Return the number of loaded fragments
+     *
+     * @return int
+     */
+    public final synchronized int numberOfLoadedFragments() {
+        return m_loadedCount;
+    }
+
+    /**
+     * Check if all fragments have been loaded
+     *
+     * @return boolean
+     */
+    public final synchronized boolean isComplete() {
+        return m_loadedCount == m_fragCount;
+    }
+
+    /**
+     * Check if any fragments are currently being loaded
+     *
+     * @return boolean
+     */
+    public final synchronized boolean hasLoadingFragments() {
+        return m_loading.isEmpty() == false;
+    }
+
+    /**
+     * Check if the specified fragment has been loaded
+     *
+     * @param fragNo int
+     * @return boolean
+     */
+    public final synchronized boolean isFragmentLoaded(int fragNo) {
+        return m_loaded.get(fragNo);
+    }
+
+    /**
+     * Check if the specified range of file data has been loaded
+     *
+     * @param fileOff long
+     * @param len     long
+     * @return boolean
+     */
+    public final synchronized boolean isRangeLoaded(long fileOff, long len) {
+
+        // Range past the end of the data is always available
+        long endOff = Math.min(fileOff + len, m_dataLen);
+        if (fileOff >= endOff)
+            return true;
+
+        // Check for an unloaded fragment within the range
+        int firstFrag = getFragmentIndex(fileOff);
+        int lastFrag = getFragmentIndex(endOff - 1);
+
+        int nextClear = m_loaded.nextClearBit(firstFrag);
+        return nextClear > lastFrag;
+    }
+
+    /**
+     * Claim a fragment for loading, the fragment is claimed if it has not been loaded and is not being loaded by
+     * another thread
+     *
+     * @param fragNo int
+     * @return boolean
+     */
+    public final synchronized boolean claimFragment(int fragNo) {
+        if (fragNo < 0 || fragNo >= m_fragCount || m_loaded.get(fragNo) || m_loading.get(fragNo))
+            return false;
+
+        m_loading.set(fragNo);
+        return true;
+    }
+
+    /**
+     * Mark a claimed fragment as loaded
+     *
+     * @param fragNo int
+     * @return boolean true if all fragments are now loaded
+     */
+    public final synchronized boolean fragmentLoaded(int fragNo) {
+        m_loading.clear(fragNo);
+
+        if (m_loaded.get(fragNo) == false) {
+            m_loaded.set(fragNo);
+            m_loadedCount++;
+        }
+
+        return m_loadedCount == m_fragCount;
+    }
+
+    /**
+     * Release the claim on a fragment that failed to load, so that the fragment may be loaded again
+     *
+     * @param fragNo int
+     */
+    public final synchronized void fragmentFailed(int fragNo) {
+        m_loading.clear(fragNo);
+    }
+
+    /**
+     * Return the fragment map details as a string
+     *
+     * @return String
+     */
+    public synchronized String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[Frags ");
+        str.append(m_loadedCount);
+        str.append("/");
+        str.append(m_fragCount);
+        str.append(",size=");
+        str.append(m_fragSize);
+        str.append(",len=");
+        str.append(m_dataLen);
+
+        if (m_loading.isEmpty() == false) {
+            str.append(",loading=");
+            str.append(m_loading);
+        }
+
+        str.append("]");
+
+        return str.toString();
+    }
+}
@@ -154,6 +154,10 @@ public class NTIOCtl {
     // Base value for custom control codes
     public static final int FsCtlCustom                 = 0x800;
 
+    // Server side copy control codes, processed by the SMB server
+    public static final int SrvRequestResumeKey         = 0x00140078;
+    public static final int SrvCopyChunk                = 0x001440F2;
+
     /**
      * Extract the device type from an I/O control code
      *
@@ -1374,7 +1374,7 @@ class CoreProtocolHandler extends ProtocolHandler {
 
         // Debug
         if (Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.Dbg.FILEIO))
-            m_sess.debugPrintln("File Lock [" + netFile.getFileId() + "] : Offset=" + lockoff + " ,Count=" + lockcnt);
+            m_sess.debugPrintln("File Lock [{}] : Offset={} ,Count={}", netFile.getFileId(), lockoff, lockcnt);
 
         // ***** Always return a success status, simulated locking ****
         //
@@ -1626,7 +1626,7 @@ class CoreProtocolHandler extends ProtocolHandler {
 
         // Debug
         if (Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.Dbg.FILEIO))
-            m_sess.debugPrintln("File Read [" + netFile.getFileId() + "] : Size=" + reqcnt + " ,Pos=" + reqoff);
+            m_sess.debugPrintln("File Read [{}] : Size={} ,Pos={}", netFile.getFileId(), reqcnt, reqoff);
 
         // Read data from the file
         SMBSrvPacket respPkt = smbPkt;
@@ -2924,7 +2924,7 @@ class CoreProtocolHandler extends ProtocolHandler {
 
         // Debug
         if (Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.Dbg.FILEIO))
-            m_sess.debugPrintln("File UnLock [" + netFile.getFileId() + "] : Offset=" + lockoff + " ,Count=" + lockcnt);
+            m_sess.debugPrintln("File UnLock [{}] : Offset={} ,Count={}", netFile.getFileId(), lockoff, lockcnt);
 
         // ***** Always return a success status, simulated locking ****
         //
@@ -3007,7 +3007,7 @@ class CoreProtocolHandler extends ProtocolHandler {
 
         // Debug
         if (Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.Dbg.FILEIO))
-            m_sess.debugPrintln("File Write [" + netFile.getFileId() + "] : Size=" + wrtcnt + " ,Pos=" + wrtoff);
+            m_sess.debugPrintln("File Write [{}] : Size={} ,Pos={}", netFile.getFileId(), wrtcnt, wrtoff);
 
         // Write data to the file
         byte[] buf = parser.getBuffer();
@@ -3123,7 +3123,7 @@ class CoreProtocolHandler extends ProtocolHandler {
 
         // Debug
         if (Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.Dbg.FILEIO))
-            m_sess.debugPrintln("File Write And Close [" + netFile.getFileId() + "] : Size=" + wrtcnt + " ,Pos=" + wrtoff);
+            m_sess.debugPrintln("File Write And Close [{}] : Size={} ,Pos={}", netFile.getFileId(), wrtcnt, wrtoff);
 
         // Write data to the file
         byte[] buf = parser.getBuffer();
@@ -376,7 +376,7 @@ class LanManProtocolHandler extends CoreProtocolHandler {
 
         // Debug
         if (Debug.EnableDbg && m_sess.hasDebug(SMBSrvSession.Dbg.FILE))
-            Debug.println("Chained File Read AndX : Size=" + maxCount + " ,Pos=" + offset);
+            Debug.println(Debug.Debug, "Chained File Read AndX : Size={} ,Pos={}", maxCount, offset);
 
         // Read data from the file
         byte[] buf = respPkt.getBuffer();
@@ -991,7 +991,7 @@ class LanManProtocolHandler extends CoreProtocolHandler {
 
         // Debug
         if (Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.Dbg.FILEIO))
-            m_sess.debugPrintln("File Read AndX [" + netFile.getFileId() + "] : Size=" + maxCount + " ,Pos=" + offset);
+            m_sess.debugPrintln("File Read AndX [{}] : Size={} ,Pos={}", netFile.getFileId(), maxCount, offset);
 
         // Read data from the file
         SMBSrvPacket respPkt = smbPkt;
@@ -2960,7 +2960,7 @@ class LanManProtocolHandler extends CoreProtocolHandler {
 
         // Debug
         if (Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.Dbg.FILEIO))
-            m_sess.debugPrintln("File Write AndX [" + netFile.getFileId() + "] : Size=" + dataLen + " ,Pos=" + offset);
+            m_sess.debugPrintln("File Write AndX [{}] : Size={} ,Pos={}", netFile.getFileId(), dataLen, offset);
 
         // Write data to the file
         byte[] buf = parser.getBuffer();
@@ -22,9 +22,11 @@ package org.filesys.smb.server;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.security.SecureRandom;
 import java.sql.Time;
 import java.util.EnumSet;
 import java.util.Set;
+import java.util.concurrent.CompletionException;
 
 import org.filesys.debug.Debug;
 import org.filesys.locking.FileLock;
@@ -87,6 +89,13 @@ public class NTProtocolHandler extends CoreProtocolHandler {
     // NTFS streams information buffer size
     public static final int NTFSStreamsInfoBufsize = 4096;    // 4K buffer
 
+    // Server side copy limits, resume key length and buffer size used when the disk driver cannot copy the data
+    public static final int CopyChunkMaxChunks      = 256;
+    public static final int CopyChunkMaxChunkSize   = 1024 * 1024;
+    public static final int CopyChunkMaxDataSize    = 16 * 1024 * 1024;
+    public static final int CopyChunkResumeKeyLen   = 24;
+    public static final int CopyChunkBufferSize     = 64 * 1024;
+
     // Security descriptor to allow Everyone access, returned by the QuerySecurityDescrptor NT
     // transaction when NTFS streams are enabled for a virtual filesystem.
     private static byte[] _sdEveryOne = {0x01, 0x00, 0x04, (byte) 0x80, 0x14, 0x00, 0x00, 0x00, 0x20, 0x00, 0x00, 0x00, 0x00,
@@ -95,6 +104,9 @@ public class NTProtocolHandler extends CoreProtocolHandler {
             0x00, 0x00, 0x00, 0x14, 0x00, (byte) 0xff, 0x01, 0x1f, 0x00, 0x01, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00,
             0x00, 0x00, 0x00};
 
+    // Random value included in the server side copy resume keys returned by this session
+    private int m_resumeKeyNonce;
+
     /**
      * Class constructor.
      */
@@ -567,7 +579,7 @@ public class NTProtocolHandler extends CoreProtocolHandler {
 
         // Debug
         if (Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.Dbg.FILE))
-            m_sess.debugPrintln("Chained File Read AndX : Size=" + maxCount + " ,Pos=" + offset);
+            m_sess.debugPrintln("Chained File Read AndX : Size={} ,Pos={}", maxCount, offset);
 
         // Read data from the file
         byte[] buf = respPkt.getBuffer();
@@ -2086,9 +2098,12 @@ public class NTProtocolHandler extends CoreProtocolHandler {
             return;
         }
 
+        // Check if the request has chained commands
+        boolean chainedReq = parser.hasAndXCommand();
+
         // Debug
         if (Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.Dbg.FILEIO))
-            m_sess.debugPrintln("File Read AndX [" + netFile.getFileId() + "] : Size=" + maxCount + " ,Pos=" + offset);
+            m_sess.debugPrintln("File Read AndX [{}] : Size={} ,Pos={}", netFile.getFileId(), maxCount, offset);
 
         // Read data from the file
         SMBSrvPacket respPkt = smbPkt;
@@ -2126,12 +2141,23 @@ public class NTProtocolHandler extends CoreProtocolHandler {
             if (dataLen < maxCount)
                 maxCount = dataLen;
 
+            // Check if the disk driver supports asynchronous I/O, the response is sent when the read completes
+            if ( chainedReq == false && disk instanceof AsyncDiskInterface && ((AsyncDiskInterface) disk).supportsAsyncIO( conn)) {
+                procReadAndXAsync( smbPkt, respPkt, parser, (AsyncDiskInterface) disk, conn, netFile, dataPos, maxCount, offset);
+                throw new DeferredPacketException( "Asynchronous read in progress");
+            }
+
             // Read from the file
             // Synchronize reads using the network file
             synchronized (netFile) {
                 rdlen = disk.readFile(m_sess, conn, netFile, buf, dataPos, maxCount, offset);
             }
         }
+        catch (DeferredPacketException ex) {
+
+            // Asynchronous read in progress, rethrow the exception
+            throw ex;
+        }
         catch (InvalidDeviceInterfaceException ex) {
 
             // Failed to get/initialize the disk interface
@@ -2190,6 +2216,33 @@ public class NTProtocolHandler extends CoreProtocolHandler {
         }
 
         // Return the data block
+        buildReadAndXResponse(parser, dataPos, rdlen);
+
+        // Check if there is a chained command, or commands
+        if (parser.hasAndXCommand()) {
+
+            // Process any chained commands, AndX
+            int pos = procAndXCommands(smbPkt, parser, netFile);
+
+            // Send the read andX response
+            m_sess.sendResponseSMB(smbPkt.getAssociatedPacket(), pos);
+        }
+        else {
+
+            // Send the normal read andX response
+            m_sess.sendResponseSMB(respPkt);
+        }
+    }
+
+    /**
+     * Build the read andX response parameters
+     *
+     * @param parser  SMBV1Parser
+     * @param dataPos int
+     * @param rdlen   int
+     */
+    private final void buildReadAndXResponse(SMBV1Parser parser, int dataPos, int rdlen) {
+
         parser.setAndXCommand(0xFF); // no chained command
         parser.setParameter(1, 0);
         parser.setParameter(2, 0); // bytes remaining, for pipes only
@@ -2204,21 +2257,88 @@ public class NTProtocolHandler extends CoreProtocolHandler {
 
         // Set the byte count
         parser.setByteCount((dataPos + rdlen) - parser.getByteOffset());
+    }
 
-        // Check if there is a chained command, or commands
-        if (parser.hasAndXCommand()) {
+    /**
+     * Start an asynchronous file read, the read andX response is sent and the request packet released when the
+     * read completes.
+     *
+     * @param smbPkt   Request packet
+     * @param respPkt  Response packet, may be the request packet
+     * @param parser   Response parser
+     * @param disk     AsyncDiskInterface
+     * @param conn     TreeConnection
+     * @param netFile  NetworkFile
+     * @param dataPos  Position of the read data in the response buffer
+     * @param maxCount Maximum length to read
+     * @param offset   File offset
+     */
+    private final void procReadAndXAsync(final SMBSrvPacket smbPkt, final SMBSrvPacket respPkt, final SMBV1Parser parser,
+                                         AsyncDiskInterface disk, TreeConnection conn, final NetworkFile netFile,
+                                         final int dataPos, int maxCount, final long offset) {
 
-            // Process any chained commands, AndX
-            int pos = procAndXCommands(smbPkt, parser, netFile);
+        disk.readFileAsync(m_sess, conn, netFile, respPkt.getBuffer(), dataPos, maxCount, offset).whenComplete(( rdlen, err) -> {
 
-            // Send the read andX response
-            m_sess.sendResponseSMB(smbPkt.getAssociatedPacket(), pos);
-        }
-        else {
+            try {
 
-            // Send the normal read andX response
-            m_sess.sendResponseSMB(respPkt);
-        }
+                // Check if the read failed
+                if ( err != null)
+                    sendAsyncIOError( smbPkt, netFile, err, false);
+                else {
+
+                    // Return the data block
+                    buildReadAndXResponse( parser, dataPos, rdlen);
+                    m_sess.sendResponseSMB( respPkt);
+                }
+            }
+            catch ( Exception ex) {
+
+                // Debug
+                if (Debug.EnableError && m_sess.hasDebug(SMBSrvSession.Dbg.FILEIO))
+                    m_sess.debugPrintln("Async Read AndX response error [" + netFile.getFileId() + "] : " + ex.toString());
+            }
+            finally {
+
+                // Release the request packet, and any associated response packet
+                m_sess.getPacketPool().releasePacket( smbPkt);
+            }
+        });
+    }
+
+    /**
+     * Send an error response for a failed asynchronous read or write
+     *
+     * @param smbPkt  Request packet
+     * @param netFile NetworkFile
+     * @param err     Throwable
+     * @param write   true for a write request, false for a read request
+     * @exception IOException I/O error
+     * @exception SMBSrvException SMB error
+     */
+    private final void sendAsyncIOError(SMBSrvPacket smbPkt, NetworkFile netFile, Throwable err, boolean write)
+            throws IOException, SMBSrvException {
+
+        // Get the original exception
+        if ( err instanceof CompletionException && err.getCause() != null)
+            err = err.getCause();
+
+        // Debug
+        if (Debug.EnableError && m_sess.hasDebug(SMBSrvSession.Dbg.FILEIO))
+            m_sess.debugPrintln("Async File " + ( write ? "Write" : "Read") + " Error [" + netFile.getFileId() + "] : " + err.toString());
+
+        // Map the exception to an SMB error
+        if ( err instanceof AccessDeniedException)
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTAccessDenied, SMBStatus.DOSAccessDenied, SMBStatus.ErrDos);
+        else if ( err instanceof LockConflictException)
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTLockConflict, write ? SMBStatus.DOSAccessDenied : SMBStatus.DOSLockConflict, SMBStatus.ErrDos);
+        else if ( err instanceof DiskOfflineException)
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTObjectPathNotFound, SMBStatus.HRDDriveNotReady, SMBStatus.ErrHrd);
+        else if ( write && err instanceof DiskFullException)
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTDiskFull, SMBStatus.HRDWriteFault, SMBStatus.ErrHrd);
+        else if ( write)
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.HRDWriteFault, SMBStatus.ErrHrd);
+        else
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTFileOffline, SMBStatus.HRDReadFault, SMBStatus.ErrHrd);
     }
 
     /**
@@ -4553,7 +4673,7 @@ public class NTProtocolHandler extends CoreProtocolHandler {
 
         // Debug
         if (Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.Dbg.FILEIO))
-            m_sess.debugPrintln("File Write AndX [" + netFile.getFileId() + "] : Size=" + dataLen + " ,Pos=" + offset);
+            m_sess.debugPrintln("File Write AndX [{}] : Size={} ,Pos={}", netFile.getFileId(), dataLen, offset);
 
         // Write data to the file
         byte[] buf = parser.getBuffer();
@@ -4565,6 +4685,12 @@ public class NTProtocolHandler extends CoreProtocolHandler {
             // Access the disk interface that is associated with the shared device
             DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
 
+            // Check if the disk driver supports asynchronous I/O, the response is sent when the write completes
+            if ( parser.hasAndXCommand() == false && disk instanceof AsyncDiskInterface && ((AsyncDiskInterface) disk).supportsAsyncIO( conn)) {
+                procWriteAndXAsync( smbPkt, parser, (AsyncDiskInterface) disk, conn, netFile, dataPos, dataLen, dataLenHigh, offset);
+                throw new DeferredPacketException( "Asynchronous write in progress");
+            }
+
             // Synchronize writes using the network file
             synchronized (netFile) {
 
@@ -4572,6 +4698,11 @@ public class NTProtocolHandler extends CoreProtocolHandler {
                 wrtlen = disk.writeFile(m_sess, conn, netFile, buf, dataPos, dataLen, offset);
             }
         }
+        catch (DeferredPacketException ex) {
+
+            // Asynchronous write in progress, rethrow the exception
+            throw ex;
+        }
         catch (InvalidDeviceInterfaceException ex) {
 
             // Failed to get/initialize the disk interface
@@ -4630,6 +4761,25 @@ public class NTProtocolHandler extends CoreProtocolHandler {
         }
 
         // Return the count of bytes actually written
+        buildWriteAndXResponse(parser, wrtlen, dataLen, dataLenHigh);
+
+        // Send the write response
+        m_sess.sendResponseSMB(smbPkt);
+
+        // Report file size change notifications every so often
+        notifyWriteAndXSizeChange(conn, netFile);
+    }
+
+    /**
+     * Build the write andX response parameters
+     *
+     * @param parser      SMBV1Parser
+     * @param wrtlen      int
+     * @param dataLen     int
+     * @param dataLenHigh int
+     */
+    private final void buildWriteAndXResponse(SMBV1Parser parser, int wrtlen, int dataLen, int dataLenHigh) {
+
         parser.setSuccessStatus();
         parser.setParameterCount(6);
         parser.setAndXCommand(0xFF);
@@ -4647,13 +4797,18 @@ public class NTProtocolHandler extends CoreProtocolHandler {
 
         parser.setByteCount(0);
         parser.setParameter(1, parser.getLength());
+    }
 
-        // Send the write response
-        m_sess.sendResponseSMB(smbPkt);
+    /**
+     * Report file size change notifications every so often
+     *
+     * <p>We do not report every write due to the increased overhead of change notifications
+     *
+     * @param conn    TreeConnection
+     * @param netFile NetworkFile
+     */
+    private final void notifyWriteAndXSizeChange(TreeConnection conn, NetworkFile netFile) {
 
-        // Report file size change notifications every so often
-        //
-        // We do not report every write due to the increased overhead of change notifications
         DiskDeviceContext diskCtx = (DiskDeviceContext) conn.getContext();
 
         if (netFile.getWriteCount() % FileSizeChangeRate == 0 && diskCtx.hasFileServerNotifications() && netFile.getFullName() != null) {
@@ -4666,6 +4821,55 @@ public class NTProtocolHandler extends CoreProtocolHandler {
         }
     }
 
+    /**
+     * Start an asynchronous file write, the write andX response is sent and the request packet released when the
+     * write completes.
+     *
+     * @param smbPkt      Request packet
+     * @param parser      SMBV1Parser
+     * @param disk        AsyncDiskInterface
+     * @param conn        TreeConnection
+     * @param netFile     NetworkFile
+     * @param dataPos     Position of the write data in the request buffer
+     * @param dataLen     Length of data to write
+     * @param dataLenHigh int
+     * @param offset      File offset
+     */
+    private final void procWriteAndXAsync(final SMBSrvPacket smbPkt, final SMBV1Parser parser, AsyncDiskInterface disk,
+                                          final TreeConnection conn, final NetworkFile netFile, int dataPos, final int dataLen,
+                                          final int dataLenHigh, long offset) {
+
+        disk.writeFileAsync(m_sess, conn, netFile, parser.getBuffer(), dataPos, dataLen, offset).whenComplete(( wrtlen, err) -> {
+
+            try {
+
+                // Check if the write failed
+                if ( err != null)
+                    sendAsyncIOError( smbPkt, netFile, err, true);
+                else {
+
+                    // Return the count of bytes actually written
+                    buildWriteAndXResponse( parser, wrtlen, dataLen, dataLenHigh);
+                    m_sess.sendResponseSMB( smbPkt);
+
+                    // Report file size change notifications every so often
+                    notifyWriteAndXSizeChange( conn, netFile);
+                }
+            }
+            catch ( Exception ex) {
+
+                // Debug
+                if (Debug.EnableError && m_sess.hasDebug(SMBSrvSession.Dbg.FILEIO))
+                    m_sess.debugPrintln("Async Write AndX response error [" + netFile.getFileId() + "] : " + ex.toString());
+            }
+            finally {
+
+                // Release the request packet
+                m_sess.getPacketPool().releasePacket( smbPkt);
+            }
+        });
+    }
+
     /**
      * Process the file create/open request.
      *
@@ -5962,47 +6166,27 @@ public class NTProtocolHandler extends CoreProtocolHandler {
             return;
         }
 
+        // Check for the server side copy I/O controls, these are processed by the server
+        if (ctrlCode == NTIOCtl.SrvRequestResumeKey) {
+            procRequestResumeKey(smbPkt, parser, conn, fid);
+            return;
+        }
+        else if (ctrlCode == NTIOCtl.SrvCopyChunk) {
+            procCopyChunk(tbuf, smbPkt, parser, vc, conn, disk, fid);
+            return;
+        }
+
         // Check if the disk interface implements the optional IO control interface
         if (disk instanceof IOCtlInterface) {
 
             // Access the IO control interface
             IOCtlInterface ioControl = (IOCtlInterface) disk;
-            SMBSrvPacket respPkt = smbPkt;
+            DataBuffer response = null;
 
             try {
 
                 // Pass the request to the IO control interface for processing
-                DataBuffer response = ioControl.processIOControl(m_sess, conn, ctrlCode, fid, tbuf.getDataBuffer(), fsctrl, filter);
-
-                // Pack the response
-                if (response != null) {
-
-                    // Check if a larger buffer needs to be allocated for the response packet
-                    int respPktLen = parser.calculateResponseLength(0, response.getLength(), 1);
-
-                    if (parser.getBufferLength() < respPktLen) {
-
-                        // Allocate a larger response packet
-                        SMBSrvPacket pkt = m_sess.getPacketPool().allocatePacket(respPktLen, smbPkt, parser.getLength());
-
-                        // Create a new packet from the new buffer
-                        respPkt = new SMBSrvPacket(pkt.getBuffer());
-
-                        // Create a parser for the response
-                        respPkt.setParser( SMBSrvPacket.Version.V1);
-                        parser = (SMBV1Parser) respPkt.getParser();
-                    }
-
-                    // Pack the response data block
-                    parser.initTransactReply(null, 0, response.getBuffer(), response.getLength(), 1);
-                    parser.setSetupParameter(0, response.getLength());
-                }
-                else {
-
-                    // Pack an empty response data block
-                    parser.initTransactReply(null, 0, null, 0, 1);
-                    parser.setSetupParameter(0, 0);
-                }
+                response = ioControl.processIOControl(m_sess, conn, ctrlCode, fid, tbuf.getDataBuffer(), fsctrl, filter);
             }
             catch (IOControlNotImplementedException ex) {
 
@@ -6018,7 +6202,7 @@ public class NTProtocolHandler extends CoreProtocolHandler {
             }
 
             // Send the IOCtl response
-            m_sess.sendResponseSMB(respPkt);
+            sendNTTransactIOCtlResponse(smbPkt, parser, response);
         }
         else {
 
@@ -6027,6 +6211,347 @@ public class NTProtocolHandler extends CoreProtocolHandler {
         }
     }
 
+    /**
+     * Pack and send an NT I/O control transaction response
+     *
+     * @param smbPkt   SMBSrvPacket
+     * @param parser   SMBV1Parser
+     * @param response DataBuffer, or null for an empty response
+     * @exception IOException I/O error
+     */
+    private final void sendNTTransactIOCtlResponse(SMBSrvPacket smbPkt, SMBV1Parser parser, DataBuffer response)
+            throws IOException {
+
+        SMBSrvPacket respPkt = smbPkt;
+
+        // Pack the response
+        if (response != null) {
+
+            // Check if a larger buffer needs to be allocated for the response packet
+            int respPktLen = parser.calculateResponseLength(0, response.getLength(), 1);
+
+            if (parser.getBufferLength() < respPktLen) {
+
+                // Allocate a larger response packet
+                SMBSrvPacket pkt = m_sess.getPacketPool().allocatePacket(respPktLen, smbPkt, parser.getLength());
+
+                // Create a new packet from the new buffer
+                respPkt = new SMBSrvPacket(pkt.getBuffer());
+
+                // Create a parser for the response
+                respPkt.setParser( SMBSrvPacket.Version.V1);
+                parser = (SMBV1Parser) respPkt.getParser();
+            }
+
+            // Pack the response data block
+            parser.initTransactReply(null, 0, response.getBuffer(), response.getLength(), 1);
+            parser.setSetupParameter(0, response.getLength());
+        }
+        else {
+
+            // Pack an empty response data block
+            parser.initTransactReply(null, 0, null, 0, 1);
+            parser.setSetupParameter(0, 0);
+        }
+
+        // Send the IOCtl response
+        m_sess.sendResponseSMB(respPkt);
+    }
+
+    /**
+     * Process a server side copy request resume key I/O control. The resume key identifies the open file as the
+     * source of a following copy chunk request.
+     *
+     * @param smbPkt SMBSrvPacket
+     * @param parser SMBV1Parser
+     * @param conn   TreeConnection
+     * @param fid    int
+     * @exception IOException I/O error
+     * @exception SMBSrvException SMB error
+     */
+    private final void procRequestResumeKey(SMBSrvPacket smbPkt, SMBV1Parser parser, TreeConnection conn, int fid)
+            throws IOException, SMBSrvException {
+
+        // Get the file details
+        NetworkFile netFile = conn.findFile(fid);
+
+        if (netFile == null || netFile.isDirectory()) {
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTInvalidParameter, SMBStatus.DOSInvalidHandle, SMBStatus.ErrDos);
+            return;
+        }
+
+        // Generate the random value used to validate resume keys for this session
+        if (m_resumeKeyNonce == 0) {
+            SecureRandom rand = new SecureRandom();
+
+            while (m_resumeKeyNonce == 0)
+                m_resumeKeyNonce = rand.nextInt();
+        }
+
+        // Build the resume key, followed by a zero length context
+        DataBuffer response = new DataBuffer(CopyChunkResumeKeyLen + 4);
+
+        response.putInt(m_resumeKeyNonce);
+        response.putShort(parser.getUserId());
+        response.putShort(conn.getId());
+        response.putShort(fid);
+        response.putShort(0);
+        response.putInt(System.identityHashCode(netFile));
+        response.putZeros(CopyChunkResumeKeyLen - 16);
+        response.putInt(0);
+
+        // Debug
+        if (Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.Dbg.TRAN))
+            m_sess.debugPrintln("NT IOCtl request resume key, fid=" + fid + ", file=" + netFile.getFullName());
+
+        // Send the resume key
+        sendNTTransactIOCtlResponse(smbPkt, parser, response);
+    }
+
+    /**
+     * Process a server side copy chunk I/O control, copy ranges of data from the file identified by the resume key
+     * to the destination file without the data being sent to the client
+     *
+     * @param tbuf   SrvTransactBuffer
+     * @param smbPkt SMBSrvPacket
+     * @param parser SMBV1Parser
+     * @param vc     VirtualCircuit
+     * @param conn   TreeConnection
+     * @param disk   DiskInterface
+     * @param fid    int
+     * @exception IOException I/O error
+     * @exception SMBSrvException SMB error
+     */
+    private final void procCopyChunk(SrvTransactBuffer tbuf, SMBSrvPacket smbPkt, SMBV1Parser parser, VirtualCircuit vc,
+                                     TreeConnection conn, DiskInterface disk, int fid)
+            throws IOException, SMBSrvException {
+
+        // Check the destination file, it must be open for write access
+        NetworkFile destFile = conn.findFile(fid);
+
+        if (destFile == null || destFile.isDirectory()) {
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTInvalidParameter, SMBStatus.DOSInvalidHandle, SMBStatus.ErrDos);
+            return;
+        }
+
+        if (conn.hasWriteAccess() == false || destFile.getGrantedAccess() == NetworkFile.Access.READ_ONLY ||
+                destFile.getGrantedAccess() == NetworkFile.Access.ATTRIBUTES_ONLY) {
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTAccessDenied, SMBStatus.DOSAccessDenied, SMBStatus.ErrDos);
+            return;
+        }
+
+        // Unpack the resume key and chunk count
+        DataBuffer dataBuf = tbuf.getDataBuffer();
+
+        if (dataBuf == null || dataBuf.getAvailableLength() < CopyChunkResumeKeyLen + 8) {
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTInvalidParameter, SMBStatus.SRVNonSpecificError, SMBStatus.ErrSrv);
+            return;
+        }
+
+        int nonce = dataBuf.getInt();
+        int srcUid = dataBuf.getShort();
+        int srcTreeId = dataBuf.getShort();
+        int srcFid = dataBuf.getShort();
+        dataBuf.skipBytes(2);
+        int srcHash = dataBuf.getInt();
+        dataBuf.skipBytes(CopyChunkResumeKeyLen - 16);
+
+        int chunkCnt = dataBuf.getInt();
+        dataBuf.skipBytes(4);
+
+        // Find the source file using the resume key, the file must still be open on this session
+        NetworkFile srcFile = null;
+        TreeConnection srcConn = null;
+
+        if (m_resumeKeyNonce != 0 && nonce == m_resumeKeyNonce) {
+            VirtualCircuit srcVC = srcUid == vc.getId() ? vc : m_sess.findVirtualCircuit(srcUid);
+
+            if (srcVC != null)
+                srcConn = srcVC.findConnection(srcTreeId);
+
+            if (srcConn != null)
+                srcFile = srcConn.findFile(srcFid);
+
+            if (srcFile != null && System.identityHashCode(srcFile) != srcHash)
+                srcFile = null;
+        }
+
+        if (srcFile == null) {
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTObjectNotFound, SMBStatus.DOSFileNotFound, SMBStatus.ErrDos);
+            return;
+        }
+
+        // Check the source file can be read
+        if (srcConn.hasReadAccess() == false || srcFile.getGrantedAccess() == NetworkFile.Access.WRITE_ONLY ||
+                srcFile.getGrantedAccess() == NetworkFile.Access.ATTRIBUTES_ONLY) {
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTAccessDenied, SMBStatus.DOSAccessDenied, SMBStatus.ErrDos);
+            return;
+        }
+
+        // Validate the chunk list against the server limits
+        if (chunkCnt <= 0 || chunkCnt > CopyChunkMaxChunks || dataBuf.getAvailableLength() < chunkCnt * 24) {
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTInvalidParameter, SMBStatus.SRVNonSpecificError, SMBStatus.ErrSrv);
+            return;
+        }
+
+        long[] srcOffsets = new long[chunkCnt];
+        long[] destOffsets = new long[chunkCnt];
+        int[] lengths = new int[chunkCnt];
+        long totalLen = 0L;
+
+        for (int i = 0; i < chunkCnt; i++) {
+            srcOffsets[i] = dataBuf.getLong();
+            destOffsets[i] = dataBuf.getLong();
+            lengths[i] = dataBuf.getInt();
+            dataBuf.skipBytes(4);
+
+            totalLen += lengths[i] & 0xFFFFFFFFL;
+
+            if (lengths[i] <= 0 || lengths[i] > CopyChunkMaxChunkSize || totalLen > CopyChunkMaxDataSize ||
+                    srcOffsets[i] < 0 || destOffsets[i] < 0) {
+                m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTInvalidParameter, SMBStatus.SRVNonSpecificError, SMBStatus.ErrSrv);
+                return;
+            }
+        }
+
+        // Debug
+        if (Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.Dbg.TRAN))
+            m_sess.debugPrintln("NT IOCtl copy chunk, from=" + srcFile.getFullName() + ", to=" + destFile.getFullName() +
+                    ", chunks=" + chunkCnt + ", len=" + totalLen);
+
+        // Copy the chunks
+        int chunksWritten = 0;
+        long totalWritten = 0L;
+
+        try {
+
+            // Get the source disk interface, the source file may be on a different share
+            DiskInterface srcDisk = (DiskInterface) srcConn.getSharedDevice().getInterface();
+            byte[] copyBuf = null;
+
+            for (int i = 0; i < chunkCnt; i++) {
+
+                // Copy the chunk using the disk driver, if both files are on the same driver and it supports copying
+                long copyLen = -1L;
+
+                if (srcDisk == disk && disk instanceof ServerCopyInterface)
+                    copyLen = ((ServerCopyInterface) disk).copyFileData(m_sess, conn, srcFile, srcOffsets[i], destFile, destOffsets[i], lengths[i]);
+
+                // Copy the chunk using read/write requests to the disk drivers
+                if (copyLen == -1L) {
+                    if (copyBuf == null)
+                        copyBuf = new byte[CopyChunkBufferSize];
+
+                    copyLen = copyChunkData(srcDisk, srcConn, srcFile, srcOffsets[i], disk, conn, destFile, destOffsets[i], lengths[i], copyBuf);
+                }
+
+                totalWritten += copyLen;
+
+                // Check if the chunk extends past the end of the source file
+                if (copyLen < lengths[i]) {
+                    m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTInvalidViewSize, SMBStatus.HRDReadFault, SMBStatus.ErrHrd);
+                    return;
+                }
+
+                chunksWritten++;
+            }
+        }
+        catch (InvalidDeviceInterfaceException ex) {
+
+            // Failed to get/initialize the disk interface
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTInvalidParameter, SMBStatus.DOSInvalidData, SMBStatus.ErrDos);
+            return;
+        }
+        catch (AccessDeniedException ex) {
+
+            // Not allowed to read or write the file
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTAccessDenied, SMBStatus.DOSAccessDenied, SMBStatus.ErrDos);
+            return;
+        }
+        catch (LockConflictException ex) {
+
+            // Part of the source or destination file is locked
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTLockConflict, SMBStatus.DOSLockConflict, SMBStatus.ErrDos);
+            return;
+        }
+        catch (DiskFullException ex) {
+
+            // Disk is full
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.NTDiskFull, SMBStatus.HRDWriteFault, SMBStatus.ErrHrd);
+            return;
+        }
+        catch (IOException ex) {
+
+            // Debug
+            if (Debug.EnableError && m_sess.hasDebug(SMBSrvSession.Dbg.FILEIO))
+                m_sess.debugPrintln("Copy chunk error, from=" + srcFile.getFullName() + ", to=" + destFile.getFullName() + " : " + ex.toString());
+
+            // Failed to copy the data
+            m_sess.sendErrorResponseSMB(smbPkt, SMBStatus.HRDWriteFault, SMBStatus.ErrHrd);
+            return;
+        }
+
+        // Return the count of chunks and bytes written
+        DataBuffer response = new DataBuffer(12);
+
+        response.putInt(chunksWritten);
+        response.putInt(0);
+        response.putInt((int) totalWritten);
+
+        sendNTTransactIOCtlResponse(smbPkt, parser, response);
+
+        // Report the file size change
+        notifyWriteAndXSizeChange(conn, destFile);
+    }
+
+    /**
+     * Copy a chunk of data by reading from the source file and writing to the destination file
+     *
+     * @param srcDisk  DiskInterface
+     * @param srcConn  TreeConnection
+     * @param srcFile  NetworkFile
+     * @param srcOff   long
+     * @param destDisk DiskInterface
+     * @param destConn TreeConnection
+     * @param destFile NetworkFile
+     * @param destOff  long
+     * @param len      int
+     * @param buf      byte[]
+     * @return long Number of bytes copied
+     * @exception IOException I/O error
+     */
+    private final long copyChunkData(DiskInterface srcDisk, TreeConnection srcConn, NetworkFile srcFile, long srcOff,
+                                     DiskInterface destDisk, TreeConnection destConn, NetworkFile destFile, long destOff,
+                                     int len, byte[] buf)
+            throws IOException {
+
+        long copied = 0L;
+
+        while (copied < len) {
+
+            // Read the next block from the source file
+            int rdlen = 0;
+            int blkLen = (int) Math.min(buf.length, len - copied);
+
+            synchronized (srcFile) {
+                rdlen = srcDisk.readFile(m_sess, srcConn, srcFile, buf, 0, blkLen, srcOff + copied);
+            }
+
+            // Check for end of file
+            if (rdlen <= 0)
+                break;
+
+            // Write the block to the destination file
+            synchronized (destFile) {
+                destDisk.writeFile(m_sess, destConn, destFile, buf, 0, rdlen, destOff + copied);
+            }
+
+            copied += rdlen;
+        }
+
+        return copied;
+    }
+
     /**
      * Process an NT query security descriptor transaction
      *
@@ -0,0 +1,680 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.smb.server.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.filesys.util.MemorySize;
+
+/**
+ * Block Cache Class
+ *
+ * <p>Shared per-share cache of file data blocks held in off-heap memory. Blocks are keyed by the file identity
+ * and block index, and are evicted using the CLOCK algorithm when the memory budget has been used.
+ *
+ * <p>Cached data is invalidated when a file is written, truncated, renamed or deleted via the disk driver. Each file
+ * has a version that is incremented when a range is invalidated, and a new identity when the whole file is
+ * invalidated, so that a block loaded while the file is being written is not published to the cache.
+ *
+ * @author gkspencer
+ */
+public class BlockCache {
+
+    // Maximum size of each off-heap memory slab
+    private static final int MaxSlabSize = 64 * MemorySize.MEGABYTE_INT;
+
+    // Off-heap memory slabs holding the cached block data
+    private ByteBuffer[] m_slabs;
+    private int m_blocksPerSlab;
+
+    // Block size and cache slots
+    private int m_blockSize;
+    private CacheSlot[] m_slots;
+
+    // CLOCK hand position
+    private int m_clockHand;
+
+    // Map of block keys to cache slots
+    private ConcurrentHashMap<BlockKey, CacheSlot> m_blockMap;
+
+    // Map of file paths to cached file details
+    private ConcurrentHashMap<String, CachedFile> m_fileMap;
+
+    // Cached file id generator
+    private AtomicLong m_fileIdGen = new AtomicLong();
+
+    // Cache statistics
+    private AtomicLong m_hits = new AtomicLong();
+    private AtomicLong m_misses = new AtomicLong();
+    private AtomicLong m_evictions = new AtomicLong();
+    private AtomicLong m_invalidations = new AtomicLong();
+
+    /**
+     * Block Key Class
+     */
+    protected static final class BlockKey {
+
+        // Cached file id and block index
+        private final long m_fileId;
+        private final long m_blockIdx;
+
+        /**
+         * Class constructor
+         *
+         * @param fileId long
+         * @param blockIdx long
+         */
+        protected BlockKey(long fileId, long blockIdx) {
+            m_fileId = fileId;
+            m_blockIdx = blockIdx;
+        }
+
+        public boolean equals(Object obj) {
+            if ( obj instanceof BlockKey) {
+                BlockKey key = (BlockKey) obj;
+                return key.m_fileId == m_fileId && key.m_blockIdx == m_blockIdx;
+            }
+            return false;
+        }
+
+        public int hashCode() {
+            return Long.hashCode( m_fileId * 31L + m_blockIdx);
+        }
+    }
+
+    /**
+     * Cache Slot Class
+     *
+     * <p>A slot is locked whilst its data is being read or loaded.
+     */
+    protected static final class CacheSlot {
+
+        // Slab and offset of the slot data
+        private final int m_slab;
+        private final int m_offset;
+
+        // Current block key and owning file, or null if the slot is free, and the length of valid data
+        private BlockKey m_key;
+        private CachedFile m_file;
+        private int m_len;
+
+        // CLOCK reference bit
+        private volatile boolean m_referenced;
+
+        /**
+         * Class constructor
+         *
+         * @param slab int
+         * @param offset int
+         */
+        protected CacheSlot(int slab, int offset) {
+            m_slab = slab;
+            m_offset = offset;
+        }
+    }
+
+    /**
+     * Cached File Class
+     *
+     * <p>Identity of a cached file, with the file size and modification time when the first block was cached
+     * so that changes made outside of the server can be detected.
+     */
+    protected static final class CachedFile {
+
+        // Unique id used in the block keys
+        private final long m_fileId;
+
+        // File size and modify date/time when the file was added to the cache
+        private final long m_fileSize;
+        private final long m_modifyDate;
+
+        // Version, incremented when a range of the file is invalidated
+        private final AtomicLong m_version = new AtomicLong();
+
+        // Indexes of the cached blocks for this file
+        private final Set<Long> m_blocks = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Class constructor
+         *
+         * @param fileId long
+         * @param fileSize long
+         * @param modifyDate long
+         */
+        protected CachedFile(long fileId, long fileSize, long modifyDate) {
+            m_fileId = fileId;
+            m_fileSize = fileSize;
+            m_modifyDate = modifyDate;
+        }
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param cacheSize long
+     * @param blockSize int
+     */
+    public BlockCache(long cacheSize, int blockSize) {
+
+        // Calculate the number of cache slots
+        m_blockSize = blockSize;
+        m_blocksPerSlab = MaxSlabSize / blockSize;
+
+        int numBlocks = (int) Math.max(1L, cacheSize / blockSize);
+        int numSlabs = (numBlocks + m_blocksPerSlab - 1) / m_blocksPerSlab;
+
+        // Allocate the off-heap memory slabs
+        m_slabs = new ByteBuffer[numSlabs];
+        int blocksLeft = numBlocks;
+
+        for ( int i = 0; i < numSlabs; i++) {
+            int slabBlocks = Math.min( blocksLeft, m_blocksPerSlab);
+            m_slabs[i] = ByteBuffer.allocateDirect( slabBlocks * blockSize);
+            blocksLeft -= slabBlocks;
+        }
+
+        // Allocate the cache slots
+        m_slots = new CacheSlot[numBlocks];
+
+        for ( int i = 0; i < numBlocks; i++)
+            m_slots[i] = new CacheSlot( i / m_blocksPerSlab, (i % m_blocksPerSlab) * blockSize);
+
+        // Allocate the block and file maps
+        m_blockMap = new ConcurrentHashMap<>( numBlocks);
+        m_fileMap = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Return the cache block size
+     *
+     * @return int
+     */
+    public final int getBlockSize() {
+        return m_blockSize;
+    }
+
+    /**
+     * Return the cache size, in bytes
+     *
+     * @return long
+     */
+    public final long getCacheSize() {
+        return (long) m_slots.length * m_blockSize;
+    }
+
+    /**
+     * Return the count of cached blocks
+     *
+     * @return int
+     */
+    public final int numberOfBlocks() {
+        return m_blockMap.size();
+    }
+
+    /**
+     * Return the cache hit count
+     *
+     * @return long
+     */
+    public final long getHitCount() {
+        return m_hits.get();
+    }
+
+    /**
+     * Return the cache miss count
+     *
+     * @return long
+     */
+    public final long getMissCount() {
+        return m_misses.get();
+    }
+
+    /**
+     * Return the block eviction count
+     *
+     * @return long
+     */
+    public final long getEvictionCount() {
+        return m_evictions.get();
+    }
+
+    /**
+     * Return the file invalidation count
+     *
+     * @return long
+     */
+    public final long getInvalidationCount() {
+        return m_invalidations.get();
+    }
+
+    /**
+     * Read file data via the cache, loading any blocks that are not cached from the file
+     *
+     * @param netFile JavaNIONetworkFile
+     * @param buf byte[]
+     * @param bufPos int
+     * @param len int
+     * @param fileOff long
+     * @return int Length of data read, or -1 if the read is at/beyond end of file
+     * @exception IOException I/O error
+     */
+    public final int readFile(JavaNIONetworkFile netFile, byte[] buf, int bufPos, int len, long fileOff)
+        throws IOException {
+
+        // Make sure any buffered writes for the range have been written to the file
+        netFile.flushOverlappingWrites( fileOff, len);
+
+        // Get the cached file details
+        CachedFile cFile = getCachedFile( netFile.m_path);
+        int rdlen = 0;
+
+        while ( rdlen < len) {
+
+            // Get the block index and offset within the block
+            long curOff = fileOff + rdlen;
+            long blockIdx = curOff / m_blockSize;
+            int blockOff = (int) (curOff % m_blockSize);
+
+            // Copy data from the cached block, or load the block
+            BlockKey key = new BlockKey( cFile.m_fileId, blockIdx);
+            int cpylen = copyFromCache( key, buf, bufPos + rdlen, len - rdlen, blockOff);
+
+            if ( cpylen == -1) {
+
+                // Load the block from the file
+                m_misses.incrementAndGet();
+                cpylen = loadBlock( netFile, cFile, key, buf, bufPos + rdlen, len - rdlen, blockOff);
+            }
+            else
+                m_hits.incrementAndGet();
+
+            // Check for end of file
+            if ( cpylen <= 0)
+                break;
+
+            rdlen += cpylen;
+
+            // Check if the block is a partial block, ie. end of file
+            if ( blockOff + cpylen < m_blockSize && rdlen < len)
+                break;
+        }
+
+        // Return the read length, or end of file
+        return rdlen == 0 && len > 0 ? -1 : rdlen;
+    }
+
+    /**
+     * Check if a file opened by the server has been changed outside of the server since it was cached, if so then
+     * invalidate the cached data
+     *
+     * @param path Path
+     * @param fileSize long
+     * @param modifyDate long
+     */
+    public final void validateFile(Path path, long fileSize, long modifyDate) {
+
+        CachedFile cFile = m_fileMap.get( path.toString());
+
+        if ( cFile != null && (cFile.m_fileSize != fileSize || cFile.m_modifyDate != modifyDate)) {
+
+            // Invalidate the cached data
+            invalidateFile( path);
+
+            // Record the current file size and modify date/time, so that later opens do not invalidate the file again
+            m_fileMap.putIfAbsent( path.toString(), new CachedFile( m_fileIdGen.incrementAndGet(), fileSize, modifyDate));
+        }
+    }
+
+    /**
+     * Invalidate the cached blocks for a range of a file
+     *
+     * @param path Path
+     * @param fileOff long
+     * @param len long
+     */
+    public final void invalidateRange(Path path, long fileOff, long len) {
+
+        CachedFile cFile = m_fileMap.get( path.toString());
+        if ( cFile == null || len <= 0)
+            return;
+
+        // Update the file version and unmap the blocks that overlap the range, under the file lock so a block
+        // load cannot publish a block between the version update and the block removal
+        long lastBlock = (fileOff + len - 1) / m_blockSize;
+        List<BlockKey> removedKeys = new ArrayList<BlockKey>();
+        List<CacheSlot> removedSlots = new ArrayList<CacheSlot>();
+
+        synchronized ( cFile) {
+
+            cFile.m_version.incrementAndGet();
+
+            for ( long blockIdx = fileOff / m_blockSize; blockIdx <= lastBlock; blockIdx++) {
+                if ( cFile.m_blocks.remove( blockIdx)) {
+                    BlockKey key = new BlockKey( cFile.m_fileId, blockIdx);
+                    CacheSlot slot = m_blockMap.remove( key);
+
+                    if ( slot != null) {
+                        removedKeys.add( key);
+                        removedSlots.add( slot);
+                    }
+                }
+            }
+        }
+
+        // Release the cache slots
+        for ( int idx = 0; idx < removedSlots.size(); idx++)
+            releaseSlot( removedKeys.get( idx), removedSlots.get( idx));
+    }
+
+    /**
+     * Invalidate all cached blocks for a file
+     *
+     * @param path Path
+     */
+    public final void invalidateFile(Path path) {
+
+        // Remove the file, a new file id will be allocated the next time the file is cached
+        CachedFile cFile = m_fileMap.remove( path.toString());
+
+        if ( cFile != null) {
+            m_invalidations.incrementAndGet();
+            removeFileBlocks( cFile);
+        }
+    }
+
+    /**
+     * Invalidate all cached files with the specified path prefix, used when a folder is renamed or deleted
+     *
+     * @param path Path
+     */
+    public final void invalidateFolder(Path path) {
+
+        // Build the folder path prefix
+        String prefix = path.toString();
+        if ( prefix.endsWith( File.separator) == false)
+            prefix = prefix + File.separator;
+
+        // Remove all files within the folder tree
+        Iterator<Map.Entry<String, CachedFile>> iterFiles = m_fileMap.entrySet().iterator();
+
+        while ( iterFiles.hasNext()) {
+            Map.Entry<String, CachedFile> entry = iterFiles.next();
+
+            if ( entry.getKey().startsWith( prefix)) {
+                iterFiles.remove();
+                m_invalidations.incrementAndGet();
+                removeFileBlocks( entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Return the cached file details for a path, add the file to the cache if not found
+     *
+     * @param path Path
+     * @return CachedFile
+     * @exception IOException I/O error
+     */
+    private CachedFile getCachedFile(Path path)
+        throws IOException {
+
+        CachedFile cFile = m_fileMap.get( path.toString());
+
+        if ( cFile == null) {
+
+            // Create the cached file details, the file id changes each time the file is invalidated
+            CachedFile newFile = new CachedFile( m_fileIdGen.incrementAndGet(), Files.size( path),
+                                                 Files.getLastModifiedTime( path).toMillis());
+            cFile = m_fileMap.putIfAbsent( path.toString(), newFile);
+            if ( cFile == null)
+                cFile = newFile;
+        }
+
+        return cFile;
+    }
+
+    /**
+     * Copy data from a cached block
+     *
+     * @param key BlockKey
+     * @param buf byte[]
+     * @param bufPos int
+     * @param len int
+     * @param blockOff int
+     * @return int Length copied, or -1 if the block is not cached
+     */
+    private int copyFromCache(BlockKey key, byte[] buf, int bufPos, int len, int blockOff) {
+
+        CacheSlot slot = m_blockMap.get( key);
+        if ( slot == null)
+            return -1;
+
+        synchronized ( slot) {
+
+            // Check the slot has not been reused
+            if ( key.equals( slot.m_key) == false)
+                return -1;
+
+            slot.m_referenced = true;
+
+            // Copy the data
+            int cpylen = Math.min( len, slot.m_len - blockOff);
+            if ( cpylen <= 0)
+                return 0;
+
+            ByteBuffer slab = m_slabs[ slot.m_slab].duplicate();
+            slab.position( slot.m_offset + blockOff);
+            slab.get( buf, bufPos, cpylen);
+
+            return cpylen;
+        }
+    }
+
+    /**
+     * Load a block from the file into a free cache slot, and copy the requested data
+     *
+     * @param netFile JavaNIONetworkFile
+     * @param cFile CachedFile
+     * @param key BlockKey
+     * @param buf byte[]
+     * @param bufPos int
+     * @param len int
+     * @param blockOff int
+     * @return int Length copied
+     * @exception IOException I/O error
+     */
+    private int loadBlock(JavaNIONetworkFile netFile, CachedFile cFile, BlockKey key, byte[] buf, int bufPos, int len, int blockOff)
+        throws IOException {
+
+        // Allocate a slot
+        long version = cFile.m_version.get();
+        CacheSlot slot = allocateSlot();
+
+        synchronized ( slot) {
+
+            // Evict the current block under the slot lock, the slot may have been allocated to another loader that
+            // published a block after the slot was allocated
+            evictSlot( slot);
+
+            // Read the block from the file into the slot
+            ByteBuffer slab = m_slabs[ slot.m_slab].duplicate();
+            slab.position( slot.m_offset);
+            slab.limit( slot.m_offset + m_blockSize);
+
+            int blkLen = netFile.readBlock( slab, key.m_blockIdx * m_blockSize);
+            if ( blkLen < 0)
+                blkLen = 0;
+
+            // Copy the requested data
+            int cpylen = Math.min( len, blkLen - blockOff);
+
+            if ( cpylen > 0) {
+                slab.position( slot.m_offset + blockOff);
+                slab.get( buf, bufPos, cpylen);
+            }
+
+            // Only publish the block if the file has not been invalidated whilst the block was loaded, the check and
+            // publish are done under the file lock used by invalidateRange()
+            if ( blkLen > 0) {
+                synchronized ( cFile) {
+                    if ( cFile.m_version.get() == version && m_fileMap.get( netFile.m_path.toString()) == cFile) {
+                        slot.m_key = key;
+                        slot.m_file = cFile;
+                        slot.m_len = blkLen;
+                        slot.m_referenced = true;
+
+                        cFile.m_blocks.add( key.m_blockIdx);
+                        m_blockMap.put( key, slot);
+                    }
+                }
+            }
+
+            return Math.max( cpylen, 0);
+        }
+    }
+
+    /**
+     * Allocate a cache slot using the CLOCK algorithm, the current block is evicted by the caller whilst holding the
+     * slot lock
+     *
+     * @return CacheSlot
+     */
+    private CacheSlot allocateSlot() {
+
+        CacheSlot slot = null;
+
+        synchronized ( m_slots) {
+
+            // Find a slot that has not been referenced since the last pass of the clock hand
+            while ( slot == null) {
+                CacheSlot curSlot = m_slots[ m_clockHand];
+                m_clockHand = (m_clockHand + 1) % m_slots.length;
+
+                if ( curSlot.m_referenced)
+                    curSlot.m_referenced = false;
+                else
+                    slot = curSlot;
+            }
+        }
+
+        return slot;
+    }
+
+    /**
+     * Evict the current block in a cache slot, if any. The caller must hold the slot lock.
+     *
+     * @param slot CacheSlot
+     */
+    private void evictSlot(CacheSlot slot) {
+
+        if ( slot.m_key != null) {
+            m_blockMap.remove( slot.m_key, slot);
+            slot.m_file.m_blocks.remove( slot.m_key.m_blockIdx);
+
+            slot.m_key = null;
+            slot.m_file = null;
+            slot.m_len = 0;
+
+            m_evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Remove the cached blocks for a file
+     *
+     * @param cFile CachedFile
+     */
+    private void removeFileBlocks(CachedFile cFile) {
+
+        Iterator<Long> iterBlocks = cFile.m_blocks.iterator();
+
+        while ( iterBlocks.hasNext()) {
+            removeBlock( new BlockKey( cFile.m_fileId, iterBlocks.next()));
+            iterBlocks.remove();
+        }
+    }
+
+    /**
+     * Remove a cached block, the slot is marked as unreferenced so it is reused first
+     *
+     * @param key BlockKey
+     */
+    private void removeBlock(BlockKey key) {
+
+        CacheSlot slot = m_blockMap.remove( key);
+        if ( slot != null)
+            releaseSlot( key, slot);
+    }
+
+    /**
+     * Release a cache slot that has been removed from the block map, if the slot still holds the block
+     *
+     * @param key BlockKey
+     * @param slot CacheSlot
+     */
+    private void releaseSlot(BlockKey key, CacheSlot slot) {
+
+        synchronized ( slot) {
+            if ( key.equals( slot.m_key)) {
+                slot.m_key = null;
+                slot.m_file = null;
+                slot.m_len = 0;
+                slot.m_referenced = false;
+            }
+        }
+    }
+
+    /**
+     * Return the block cache details as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[BlockCache size=");
+        str.append(getCacheSize() / MemorySize.MEGABYTE);
+        str.append("M");
+        str.append(",blockSize=");
+        str.append(m_blockSize);
+        str.append(",blocks=");
+        str.append(numberOfBlocks());
+        str.append(",hits=");
+        str.append(getHitCount());
+        str.append(",misses=");
+        str.append(getMissCount());
+        str.append(",evictions=");
+        str.append(getEvictionCount());
+        str.append(",invalidations=");
+        str.append(getInvalidationCount());
+        str.append("]");
+
+        return str.toString();
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.smb.server.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.filesys.debug.Debug;
+import org.filesys.server.thread.ThreadRequestPool;
+import org.filesys.server.thread.TimedThreadRequest;
+
+/**
+ * File Handle Cache Class
+ *
+ * <p>Reference counted cache of open file channels, shared by all open files for the same path and access mode
+ * whichever protocol opened the file. When the last user of a channel closes it the channel is kept open for a
+ * grace period so that a following open of the same file can reuse it.
+ *
+ * <p>Only the underlying channel is shared, each open file has its own network file object so the protocol
+ * level sharing mode and access checks are unchanged. Users of a shared channel must use positional reads and
+ * writes.
+ *
+ * @author gkspencer
+ */
+public class FileHandleCache implements Runnable {
+
+    // Open channels, keyed by path and access mode
+    private HashMap<String, SharedHandle> m_handles = new HashMap<>();
+
+    // Count of idle channels, that have no users
+    private int m_idleCount;
+
+    // Grace period for idle channels, in milliseconds, and maximum number of idle channels
+    private long m_gracePeriod;
+    private int m_maxIdle;
+
+    // Reaper thread, or timed request when using the thread pool
+    private Thread m_reaperThread;
+    private ReaperTimedRequest m_threadReq;
+
+    // Shutdown request flag
+    private volatile boolean m_shutdown;
+
+    // Statistics
+    private AtomicLong m_opens = new AtomicLong();
+    private AtomicLong m_reused = new AtomicLong();
+
+    /**
+     * Shared Handle Class
+     */
+    public static final class SharedHandle {
+
+        // Cache key and file channel
+        private final String m_key;
+        private final FileChannel m_channel;
+
+        // Reference count, and time the channel became idle
+        private int m_refCount;
+        private long m_idleSince;
+
+        // Set when the handle has been removed from the cache, the channel is closed when the last user releases it
+        private boolean m_detached;
+
+        /**
+         * Class constructor
+         *
+         * @param key String
+         * @param channel FileChannel
+         */
+        protected SharedHandle(String key, FileChannel channel) {
+            m_key = key;
+            m_channel = channel;
+        }
+
+        /**
+         * Return the file channel
+         *
+         * @return FileChannel
+         */
+        public final FileChannel getChannel() {
+            return m_channel;
+        }
+    }
+
+    /**
+     * Reaper Timed Thread Request Class
+     */
+    private class ReaperTimedRequest extends TimedThreadRequest {
+
+        /**
+         * Constructor
+         *
+         * @param name     String
+         * @param interval long
+         */
+        public ReaperTimedRequest(String name, long interval) {
+            super(name, -interval, interval);
+        }
+
+        /**
+         * Close expired idle channels
+         */
+        protected void runTimedRequest() {
+
+            // Close idle channels that have expired
+            closeExpiredHandles();
+
+            // Clear the repeat interval if the cache is shutting down
+            if ( m_shutdown)
+                setRepeatInterval(0L);
+        }
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param gracePeriod long
+     * @param maxIdle int
+     */
+    public FileHandleCache(long gracePeriod, int maxIdle) {
+        m_gracePeriod = gracePeriod;
+        m_maxIdle = maxIdle;
+    }
+
+    /**
+     * Return the idle channel grace period, in milliseconds
+     *
+     * @return long
+     */
+    public final long getGracePeriod() {
+        return m_gracePeriod;
+    }
+
+    /**
+     * Return the count of open channels
+     *
+     * @return int
+     */
+    public final synchronized int numberOfHandles() {
+        return m_handles.size();
+    }
+
+    /**
+     * Return the count of idle channels
+     *
+     * @return int
+     */
+    public final synchronized int numberOfIdleHandles() {
+        return m_idleCount;
+    }
+
+    /**
+     * Return the count of channels opened
+     *
+     * @return long
+     */
+    public final long getOpenCount() {
+        return m_opens.get();
+    }
+
+    /**
+     * Return the count of opens that reused a cached channel
+     *
+     * @return long
+     */
+    public final long getReuseCount() {
+        return m_reused.get();
+    }
+
+    /**
+     * Acquire a channel for the specified path and access mode, reuse an open channel if available
+     *
+     * @param path Path
+     * @param readWrite boolean
+     * @return SharedHandle
+     * @exception IOException I/O error
+     */
+    public final SharedHandle acquireHandle(Path path, boolean readWrite)
+        throws IOException {
+
+        String key = buildKey( path, readWrite);
+
+        // Check for an open channel
+        synchronized ( this) {
+            SharedHandle handle = m_handles.get( key);
+
+            if ( handle != null) {
+                if ( handle.m_refCount++ == 0)
+                    m_idleCount--;
+
+                m_reused.incrementAndGet();
+                return handle;
+            }
+        }
+
+        // Open a new channel, outside of the cache lock
+        Set<StandardOpenOption> openOptions = null;
+        if ( readWrite)
+            openOptions = EnumSet.of( StandardOpenOption.READ, StandardOpenOption.WRITE);
+        else
+            openOptions = EnumSet.of( StandardOpenOption.READ);
+
+        FileChannel channel = FileChannel.open( path, openOptions);
+        m_opens.incrementAndGet();
+
+        // Add the channel to the cache, another thread may have opened the same file
+        SharedHandle handle = null;
+
+        synchronized ( this) {
+            handle = m_handles.get( key);
+
+            if ( handle == null) {
+                handle = new SharedHandle( key, channel);
+                m_handles.put( key, handle);
+                channel = null;
+            }
+            else if ( handle.m_refCount == 0)
+                m_idleCount--;
+
+            handle.m_refCount++;
+        }
+
+        // Close the channel if another thread added a channel for the same file
+        if ( channel != null)
+            channel.close();
+
+        return handle;
+    }
+
+    /**
+     * Release a channel, the channel is kept open for the grace period if it has no other users
+     *
+     * @param handle SharedHandle
+     */
+    public final void releaseHandle(SharedHandle handle) {
+
+        boolean closeChannel = false;
+
+        synchronized ( this) {
+
+            // Check if there are other users of the channel
+            if ( --handle.m_refCount > 0)
+                return;
+
+            // Close the channel if the handle has been removed from the cache, or there are too many idle channels
+            if ( handle.m_detached || m_gracePeriod == 0L || m_idleCount >= m_maxIdle || m_shutdown) {
+
+                if ( handle.m_detached == false)
+                    m_handles.remove( handle.m_key);
+                closeChannel = true;
+            }
+            else {
+
+                // Keep the channel open for the grace period
+                handle.m_idleSince = System.currentTimeMillis();
+                m_idleCount++;
+            }
+        }
+
+        if ( closeChannel)
+            closeChannel( handle);
+    }
+
+    /**
+     * Remove the channels for a path from the cache, used when the file is deleted or renamed so that a new file
+     * with the same path does not use the old channel. Idle channels are closed, active channels are closed when
+     * the last user releases them.
+     *
+     * @param path Path
+     */
+    public final void removeHandles(Path path) {
+        removeHandles( buildKey( path, false), false);
+        removeHandles( buildKey( path, true), false);
+    }
+
+    /**
+     * Remove all channels for files within a folder tree
+     *
+     * @param path Path
+     */
+    public final void removeFolderHandles(Path path) {
+
+        String prefix = path.toString();
+        if ( prefix.endsWith( File.separator) == false)
+            prefix = prefix + File.separator;
+
+        removeHandles( prefix, true);
+    }
+
+    /**
+     * Close idle channels that have been idle for longer than the grace period
+     */
+    protected final void closeExpiredHandles() {
+
+        List<SharedHandle> closeList = null;
+
+        synchronized ( this) {
+
+            if ( m_idleCount == 0)
+                return;
+
+            long expireTime = System.currentTimeMillis() - m_gracePeriod;
+            Iterator<SharedHandle> iterHandles = m_handles.values().iterator();
+
+            while ( iterHandles.hasNext()) {
+                SharedHandle handle = iterHandles.next();
+
+                if ( handle.m_refCount == 0 && (handle.m_idleSince <= expireTime || m_shutdown)) {
+                    iterHandles.remove();
+                    m_idleCount--;
+
+                    if ( closeList == null)
+                        closeList = new ArrayList<>();
+                    closeList.add( handle);
+                }
+            }
+        }
+
+        // Close the expired channels, outside of the cache lock
+        if ( closeList != null) {
+            for ( SharedHandle handle : closeList)
+                closeChannel( handle);
+        }
+    }
+
+    /**
+     * Reaper thread
+     */
+    public void run() {
+
+        while ( m_shutdown == false) {
+
+            // Wait for the grace period
+            try {
+                Thread.sleep( m_gracePeriod);
+            }
+            catch (InterruptedException ex) {
+            }
+
+            // Check for shutdown
+            if ( m_shutdown)
+                return;
+
+            // Close expired idle channels
+            try {
+                closeExpiredHandles();
+            }
+            catch (Throwable ex) {
+                Debug.println(ex);
+            }
+        }
+    }
+
+    /**
+     * Start the idle channel reaper
+     *
+     * @param name String
+     * @param threadPool ThreadRequestPool
+     */
+    public final void startReaper(String name, ThreadRequestPool threadPool) {
+
+        // Check if idle channels are kept open
+        if ( m_gracePeriod == 0L)
+            return;
+
+        // If the thread pool is not available then use a seperate thread
+        if ( threadPool == null) {
+
+            m_reaperThread = new Thread(this);
+            m_reaperThread.setDaemon(true);
+            m_reaperThread.setName(name);
+            m_reaperThread.start();
+        }
+        else {
+
+            // Queue a timed request to the thread pool, interval is in seconds
+            long intervalSecs = Math.max(1L, m_gracePeriod / 1000L);
+
+            m_threadReq = new ReaperTimedRequest(name, intervalSecs);
+            threadPool.queueTimedRequest(m_threadReq);
+        }
+    }
+
+    /**
+     * Request the cache to shutdown, idle channels are closed
+     */
+    public final void shutdownRequest() {
+        m_shutdown = true;
+
+        if ( m_reaperThread != null) {
+            try {
+                m_reaperThread.interrupt();
+            }
+            catch (Exception ex) {
+            }
+        }
+
+        // Close all idle channels
+        closeExpiredHandles();
+    }
+
+    /**
+     * Remove handles matching a key, or key prefix
+     *
+     * @param key String
+     * @param prefix boolean
+     */
+    private void removeHandles(String key, boolean prefix) {
+
+        List<SharedHandle> closeList = null;
+
+        synchronized ( this) {
+
+            Iterator<SharedHandle> iterHandles = m_handles.values().iterator();
+
+            while ( iterHandles.hasNext()) {
+                SharedHandle handle = iterHandles.next();
+
+                if (( prefix && handle.m_key.startsWith( key)) || ( prefix == false && handle.m_key.equals( key))) {
+
+                    // Remove from the cache, close now if idle, else mark so it is closed on release
+                    iterHandles.remove();
+
+                    if ( handle.m_refCount == 0) {
+                        m_idleCount--;
+
+                        if ( closeList == null)
+                            closeList = new ArrayList<>();
+                        closeList.add( handle);
+                    }
+                    else
+                        handle.m_detached = true;
+                }
+            }
+        }
+
+        // Close the idle channels, outside of the cache lock
+        if ( closeList != null) {
+            for ( SharedHandle handle : closeList)
+                closeChannel( handle);
+        }
+    }
+
+    /**
+     * Build the cache key for a path and access mode
+     *
+     * @param path Path
+     * @param readWrite boolean
+     * @return String
+     */
+    private static String buildKey(Path path, boolean readWrite) {
+        return path.toString() + (readWrite ? "\u0000RW" : "\u0000RO");
+    }
+
+    /**
+     * Close a channel, ignore errors
+     *
+     * @param handle SharedHandle
+     */
+    private static void closeChannel(SharedHandle handle) {
+        try {
+            handle.m_channel.close();
+        }
+        catch (IOException ex) {
+        }
+    }
+
+    /**
+     * Return the handle cache details as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[HandleCache open=");
+        str.append(numberOfHandles());
+        str.append(",idle=");
+        str.append(numberOfIdleHandles());
+        str.append(",opens=");
+        str.append(getOpenCount());
+        str.append(",reused=");
+        str.append(getReuseCount());
+        str.append("]");
+
+        return str.toString();
+    }
+}
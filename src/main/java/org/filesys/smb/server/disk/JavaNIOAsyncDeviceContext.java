@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.smb.server.disk;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.filesys.server.core.DeviceContextException;
+import org.springframework.extensions.config.ConfigElement;
+
+/**
+ * Java NIO Asynchronous I/O Filesystem Device Context Class
+ *
+ * <p>Adds the asynchronous file channel I/O thread pool to the Java NIO device context.
+ *
+ * @author gkspencer
+ */
+public class JavaNIOAsyncDeviceContext extends JavaNIODeviceContext {
+
+    // Default, minimum and maximum asynchronous I/O threads
+    private static final int DefaultAsyncIOThreads = 8;
+    private static final int MinimumAsyncIOThreads = 1;
+    private static final int MaximumAsyncIOThreads = 256;
+
+    // Asynchronous I/O thread pool
+    private ExecutorService m_asyncExecutor;
+
+    /**
+     * Class constructor
+     *
+     * @param name String
+     * @param args ConfigElement
+     * @throws DeviceContextException Error initializing the device context
+     */
+    public JavaNIOAsyncDeviceContext(String name, ConfigElement args) throws DeviceContextException {
+        super(name, args);
+
+        // Get the asynchronous I/O thread pool size
+        int asyncThreads = DefaultAsyncIOThreads;
+        ConfigElement threadsElem = args.getChild( "AsyncIOThreads");
+
+        if ( threadsElem != null) {
+            try {
+                asyncThreads = Integer.parseInt( threadsElem.getValue());
+            }
+            catch ( NumberFormatException ex) {
+                throw new DeviceContextException("Invalid AsyncIOThreads value, " + threadsElem.getValue());
+            }
+
+            if ( asyncThreads < MinimumAsyncIOThreads || asyncThreads > MaximumAsyncIOThreads)
+                throw new DeviceContextException("AsyncIOThreads out of valid range (" + MinimumAsyncIOThreads + " - " + MaximumAsyncIOThreads + ")");
+        }
+
+        // Create the asynchronous I/O thread pool, using daemon threads
+        final String threadPrefix = "AsyncIO_" + name + "_";
+
+        m_asyncExecutor = Executors.newFixedThreadPool( asyncThreads, new ThreadFactory() {
+            private AtomicInteger mi_threadId = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread ioThread = new Thread( r, threadPrefix + mi_threadId.incrementAndGet());
+                ioThread.setDaemon( true);
+                return ioThread;
+            }
+        });
+    }
+
+    /**
+     * Return the asynchronous I/O thread pool
+     *
+     * @return ExecutorService
+     */
+    protected final ExecutorService getAsyncExecutor() {
+        return m_asyncExecutor;
+    }
+
+    /**
+     * Close the device context
+     */
+    public void CloseContext() {
+
+        // Call the base class
+        super.CloseContext();
+
+        // Shutdown the asynchronous I/O thread pool
+        if ( m_asyncExecutor != null) {
+            m_asyncExecutor.shutdown();
+            m_asyncExecutor = null;
+        }
+    }
+}
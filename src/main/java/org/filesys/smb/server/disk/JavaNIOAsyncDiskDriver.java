@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.smb.server.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.filesys.server.SrvSession;
+import org.filesys.server.core.DeviceContextException;
+import org.filesys.server.filesys.AccessDeniedException;
+import org.filesys.server.filesys.AsyncDiskInterface;
+import org.filesys.server.filesys.FileOpenParams;
+import org.filesys.server.filesys.NetworkFile;
+import org.filesys.server.filesys.TreeConnection;
+import org.springframework.extensions.config.ConfigElement;
+
+/**
+ * Java NIO Asynchronous I/O Disk Driver Class
+ *
+ * <p>Extends the Java NIO disk driver to provide non-blocking reads and writes using an asynchronous file channel,
+ * so the protocol worker threads are not blocked whilst file I/O is in progress.
+ *
+ * <p>Reads on shares using the shared block cache, and writes on shares using write behind buffering, are completed
+ * synchronously as the data is usually already in memory.
+ *
+ * @author gkspencer
+ */
+public class JavaNIOAsyncDiskDriver extends JavaNIODiskDriver implements AsyncDiskInterface {
+
+    /**
+     * Class constructor
+     */
+    public JavaNIOAsyncDiskDriver() {
+        super();
+    }
+
+    /**
+     * Create the device context for a share
+     *
+     * @param shareName String
+     * @param args      ConfigElement
+     * @return JavaNIODeviceContext
+     * @throws DeviceContextException Error creating the device context
+     */
+    protected JavaNIODeviceContext createDeviceContext(String shareName, ConfigElement args)
+        throws DeviceContextException {
+        return new JavaNIOAsyncDeviceContext( shareName, args);
+    }
+
+    /**
+     * Check if asynchronous I/O is available for the specified tree connection
+     *
+     * @param tree Tree connection
+     * @return boolean
+     */
+    public boolean supportsAsyncIO(TreeConnection tree) {
+        return tree.getContext() instanceof JavaNIOAsyncDeviceContext;
+    }
+
+    /**
+     * Open a file, the open runs on the asynchronous I/O thread pool
+     *
+     * @param sess   Server session
+     * @param tree   Tree connection
+     * @param params File open parameters
+     * @return CompletableFuture&lt;NetworkFile&gt;
+     */
+    public CompletableFuture<NetworkFile> openFileAsync(final SrvSession<?> sess, final TreeConnection tree, final FileOpenParams params) {
+
+        JavaNIOAsyncDeviceContext ctx = (JavaNIOAsyncDeviceContext) tree.getContext();
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return openFile( sess, tree, params);
+            }
+            catch ( IOException ex) {
+                throw new CompletionException( ex);
+            }
+        }, ctx.getAsyncExecutor());
+    }
+
+    /**
+     * Read a block of data from a file
+     *
+     * @param sess    Session details
+     * @param tree    Tree connection
+     * @param file    Network file
+     * @param buf     Buffer to return data to
+     * @param bufPos  Starting position in the return buffer
+     * @param siz     Maximum size of data to return
+     * @param filePos File offset to read data
+     * @return CompletableFuture&lt;Integer&gt; Number of bytes read
+     */
+    public CompletableFuture<Integer> readFileAsync(SrvSession<?> sess, TreeConnection tree, NetworkFile file, byte[] buf, int bufPos,
+                                                    int siz, long filePos) {
+
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+        JavaNIOAsyncDeviceContext ctx = (JavaNIOAsyncDeviceContext) tree.getContext();
+
+        try {
+
+            //	Check if the file is a directory
+            if (file.isDirectory())
+                throw new AccessDeniedException();
+
+            //  Use the synchronous read if the data is cached, or the file is not a Java NIO file
+            if ( ctx.hasBlockCache() || file instanceof JavaNIONetworkFile == false) {
+                result.complete( readFile( sess, tree, file, buf, bufPos, siz, filePos));
+                return result;
+            }
+
+            //  Write out any buffered data that overlaps the read
+            JavaNIONetworkFile nioFile = (JavaNIONetworkFile) file;
+            nioFile.flushOverlappingWrites( filePos, siz);
+
+            //  Start the read
+            AsynchronousFileChannel asyncChannel = nioFile.getAsyncChannel( ctx.getAsyncExecutor());
+            ByteBuffer bytBuf = ByteBuffer.wrap( buf, bufPos, siz);
+
+            asyncChannel.read( bytBuf, filePos, null, new CompletionHandler<Integer, Object>() {
+                public void completed(Integer rdlen, Object attachment) {
+
+                    //  If we have reached end of file return a zero length read
+                    result.complete( rdlen.intValue() == -1 ? 0 : rdlen);
+                }
+
+                public void failed(Throwable ex, Object attachment) {
+                    result.completeExceptionally( ex);
+                }
+            });
+        }
+        catch ( Exception ex) {
+            result.completeExceptionally( ex);
+        }
+
+        return result;
+    }
+
+    /**
+     * Write a block of data to a file
+     *
+     * @param sess    Server session
+     * @param tree    Tree connection
+     * @param file    Network file details
+     * @param buf     Data to be written
+     * @param bufoff  Offset within the buffer that the data starts
+     * @param siz     Data length
+     * @param fileoff Position within the file that the data is to be written.
+     * @return CompletableFuture&lt;Integer&gt; Number of bytes actually written
+     */
+    public CompletableFuture<Integer> writeFileAsync(SrvSession<?> sess, TreeConnection tree, NetworkFile file, byte[] buf, int bufoff,
+                                                     int siz, long fileoff) {
+
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+        JavaNIOAsyncDeviceContext ctx = (JavaNIOAsyncDeviceContext) tree.getContext();
+
+        try {
+
+            //	Check if the file is a directory
+            if (file.isDirectory())
+                throw new AccessDeniedException();
+
+            //  Use the synchronous write if the data is buffered, or the file is not a Java NIO file
+            if ( file instanceof JavaNIONetworkFile == false || ((JavaNIONetworkFile) file).hasWriteBehind()) {
+                result.complete( writeFile( sess, tree, file, buf, bufoff, siz, fileoff));
+                return result;
+            }
+
+            //  Start the write, a single write may not write all of the data so continue until the write is complete
+            final JavaNIONetworkFile nioFile = (JavaNIONetworkFile) file;
+            final AsynchronousFileChannel asyncChannel = nioFile.getAsyncChannel( ctx.getAsyncExecutor());
+            final ByteBuffer bytBuf = ByteBuffer.wrap( buf, bufoff, siz);
+            final long startOff = fileoff;
+
+            asyncChannel.write( bytBuf, startOff, null, new CompletionHandler<Integer, Object>() {
+                public void completed(Integer wrlen, Object attachment) {
+
+                    //  Check if there is more data to write
+                    if ( bytBuf.hasRemaining()) {
+                        asyncChannel.write( bytBuf, startOff + ( bytBuf.position() - bufoff), null, this);
+                        return;
+                    }
+
+                    //  Update the file details
+                    nioFile.asyncWriteCompleted( startOff, siz);
+                    result.complete( siz);
+                }
+
+                public void failed(Throwable ex, Object attachment) {
+                    result.completeExceptionally( ex);
+                }
+            });
+        }
+        catch ( Exception ex) {
+            result.completeExceptionally( ex);
+        }
+
+        return result;
+    }
+
+    /**
+     * Flush any buffered output for the specified file, the flush runs on the asynchronous I/O thread pool
+     *
+     * @param sess Server session
+     * @param tree Tree connection
+     * @param file Network file context.
+     * @return CompletableFuture&lt;Void&gt;
+     */
+    public CompletableFuture<Void> flushFileAsync(final SrvSession<?> sess, final TreeConnection tree, final NetworkFile file) {
+
+        JavaNIOAsyncDeviceContext ctx = (JavaNIOAsyncDeviceContext) tree.getContext();
+
+        return CompletableFuture.runAsync(() -> {
+            try {
+                flushFile( sess, tree, file);
+            }
+            catch ( IOException ex) {
+                throw new CompletionException( ex);
+            }
+        }, ctx.getAsyncExecutor());
+    }
+}
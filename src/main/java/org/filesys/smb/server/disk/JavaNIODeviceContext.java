@@ -18,9 +18,13 @@
 package org.filesys.smb.server.disk;
 
 import org.filesys.debug.Debug;
+import org.filesys.server.config.CoreServerConfigSection;
+import org.filesys.server.config.ServerConfiguration;
 import org.filesys.server.core.DeviceContextException;
 import org.filesys.server.filesys.DiskDeviceContext;
+import org.filesys.server.filesys.DiskSharedDevice;
 import org.filesys.server.filesys.FileSystem;
+import org.filesys.server.thread.ThreadRequestPool;
 import org.filesys.util.MemorySize;
 import org.springframework.extensions.config.ConfigElement;
 
@@ -41,6 +45,26 @@ public class JavaNIODeviceContext extends DiskDeviceContext {
     // Default large file size
     private static final long DefaultLargeFileSize  = 500 * MemorySize.MEGABYTE;
 
+    // Default, minimum and maximum write behind buffer size
+    private static final int DefaultWriteBehindSize = 256 * MemorySize.KILOBYTE_INT;
+    private static final int MinimumWriteBehindSize = 64 * MemorySize.KILOBYTE_INT;
+    private static final int MaximumWriteBehindSize = 16 * MemorySize.MEGABYTE_INT;
+
+    // Default and minimum write behind flush timeout, in milliseconds
+    private static final long DefaultWriteBehindTimeout = 2000L;
+    private static final long MinimumWriteBehindTimeout = 100L;
+
+    // Default and minimum block cache size, default/minimum/maximum cache block size
+    private static final long DefaultBlockCacheSize = 64 * MemorySize.MEGABYTE;
+    private static final long MinimumBlockCacheSize = MemorySize.MEGABYTE;
+    private static final int DefaultCacheBlockSize = 64 * MemorySize.KILOBYTE_INT;
+    private static final int MinimumCacheBlockSize = 4 * MemorySize.KILOBYTE_INT;
+    private static final int MaximumCacheBlockSize = MemorySize.MEGABYTE_INT;
+
+    // Default handle cache grace period, in milliseconds, and default maximum idle handles
+    private static final long DefaultHandleGracePeriod = 5000L;
+    private static final int DefaultMaxIdleHandles = 256;
+
     // Default trachcan folder name
     private static final String TrashcanFolderName  = ".Trashcan";
 
@@ -50,6 +74,19 @@ public class JavaNIODeviceContext extends DiskDeviceContext {
     // Large file size, require special processing for deletes/truncates
     private long m_largeFileSize = DefaultLargeFileSize;
 
+    // Write behind buffer size per open file, zero if write behind is disabled, and flush timeout
+    private int m_writeBehindSize;
+    private long m_writeBehindTimeout = DefaultWriteBehindTimeout;
+
+    // Write behind flusher, flushes buffers that have timed out
+    private WriteBehindFlusher m_writeBehindFlusher;
+
+    // Shared block cache for file data, if enabled
+    private BlockCache m_blockCache;
+
+    // Shared open file handle cache, if enabled
+    private FileHandleCache m_handleCache;
+
     /**
      * Class constructor
      *
@@ -110,6 +147,103 @@ public class JavaNIODeviceContext extends DiskDeviceContext {
                     m_largeFileSize = MinimumLargeFileSize;
             }
 
+            // Check if write behind buffering of small sequential writes is enabled
+            ConfigElement writeBehind = args.getChild( "WriteBehind");
+            if ( writeBehind != null) {
+
+                // Get the per file buffer size
+                m_writeBehindSize = DefaultWriteBehindSize;
+                String attrVal = writeBehind.getAttribute( "size");
+
+                if ( attrVal != null && attrVal.length() > 0) {
+                    try {
+                        m_writeBehindSize = MemorySize.getByteValueInt( attrVal);
+                    }
+                    catch ( NumberFormatException ex) {
+                        throw new DeviceContextException("Invalid write behind size value, " + attrVal);
+                    }
+
+                    if ( m_writeBehindSize < MinimumWriteBehindSize || m_writeBehindSize > MaximumWriteBehindSize)
+                        throw new DeviceContextException("Write behind size out of valid range (" + MinimumWriteBehindSize/MemorySize.KILOBYTE_INT +
+                                "K - " + MaximumWriteBehindSize/MemorySize.MEGABYTE_INT + "M)");
+                }
+
+                // Get the flush timeout, in milliseconds
+                attrVal = writeBehind.getAttribute( "timeout");
+
+                if ( attrVal != null && attrVal.length() > 0) {
+                    try {
+                        m_writeBehindTimeout = Long.parseLong( attrVal);
+                    }
+                    catch ( NumberFormatException ex) {
+                        throw new DeviceContextException("Invalid write behind timeout value, " + attrVal);
+                    }
+
+                    if ( m_writeBehindTimeout < MinimumWriteBehindTimeout)
+                        m_writeBehindTimeout = MinimumWriteBehindTimeout;
+                }
+            }
+
+            // Check if the shared block cache is enabled
+            ConfigElement blockCache = args.getChild( "BlockCache");
+            if ( blockCache != null) {
+
+                // Get the cache size and block size
+                long cacheSize = DefaultBlockCacheSize;
+                int blockSize = DefaultCacheBlockSize;
+
+                try {
+                    String attrVal = blockCache.getAttribute( "size");
+                    if ( attrVal != null && attrVal.length() > 0)
+                        cacheSize = MemorySize.getByteValue( attrVal);
+
+                    attrVal = blockCache.getAttribute( "blockSize");
+                    if ( attrVal != null && attrVal.length() > 0)
+                        blockSize = MemorySize.getByteValueInt( attrVal);
+                }
+                catch ( NumberFormatException ex) {
+                    throw new DeviceContextException("Invalid block cache setting, " + ex.getMessage());
+                }
+
+                if ( cacheSize < MinimumBlockCacheSize)
+                    throw new DeviceContextException("Block cache size must be at least " + MinimumBlockCacheSize/MemorySize.MEGABYTE + "M");
+
+                if ( blockSize < MinimumCacheBlockSize || blockSize > MaximumCacheBlockSize || Integer.bitCount( blockSize) != 1)
+                    throw new DeviceContextException("Block cache block size must be a power of 2 between " + MinimumCacheBlockSize/MemorySize.KILOBYTE_INT +
+                            "K and " + MaximumCacheBlockSize/MemorySize.MEGABYTE_INT + "M");
+
+                // Create the block cache
+                m_blockCache = new BlockCache( cacheSize, blockSize);
+            }
+
+            // Check if the open file handle cache is enabled
+            ConfigElement handleCache = args.getChild( "HandleCache");
+            if ( handleCache != null) {
+
+                // Get the idle handle grace period and maximum idle handles
+                long gracePeriod = DefaultHandleGracePeriod;
+                int maxIdle = DefaultMaxIdleHandles;
+
+                try {
+                    String attrVal = handleCache.getAttribute( "timeout");
+                    if ( attrVal != null && attrVal.length() > 0)
+                        gracePeriod = Long.parseLong( attrVal);
+
+                    attrVal = handleCache.getAttribute( "maxIdle");
+                    if ( attrVal != null && attrVal.length() > 0)
+                        maxIdle = Integer.parseInt( attrVal);
+                }
+                catch ( NumberFormatException ex) {
+                    throw new DeviceContextException("Invalid handle cache setting, " + ex.getMessage());
+                }
+
+                if ( gracePeriod < 0L || maxIdle < 0)
+                    throw new DeviceContextException("Invalid handle cache setting, values must not be negative");
+
+                // Create the handle cache
+                m_handleCache = new FileHandleCache( gracePeriod, maxIdle);
+            }
+
             // Get the trashcan folder path
             ConfigElement trashCanPath = args.getChild("TrashcanPath");
             if ( trashCanPath != null) {
@@ -195,4 +329,148 @@ public class JavaNIODeviceContext extends DiskDeviceContext {
     protected final long getLargeFileSize() {
         return m_largeFileSize;
     }
+
+    /**
+     * Check if write behind buffering is enabled
+     *
+     * @return boolean
+     */
+    protected final boolean hasWriteBehind() {
+        return m_writeBehindSize > 0;
+    }
+
+    /**
+     * Return the per file write behind buffer size
+     *
+     * @return int
+     */
+    protected final int getWriteBehindSize() {
+        return m_writeBehindSize;
+    }
+
+    /**
+     * Return the write behind buffer flush timeout, in milliseconds
+     *
+     * @return long
+     */
+    protected final long getWriteBehindTimeout() {
+        return m_writeBehindTimeout;
+    }
+
+    /**
+     * Return the write behind flusher
+     *
+     * @return WriteBehindFlusher
+     */
+    protected final WriteBehindFlusher getWriteBehindFlusher() {
+        return m_writeBehindFlusher;
+    }
+
+    /**
+     * Check if the shared block cache is enabled
+     *
+     * @return boolean
+     */
+    protected final boolean hasBlockCache() {
+        return m_blockCache != null;
+    }
+
+    /**
+     * Return the shared block cache
+     *
+     * @return BlockCache
+     */
+    protected final BlockCache getBlockCache() {
+        return m_blockCache;
+    }
+
+    /**
+     * Check if the open file handle cache is enabled
+     *
+     * @return boolean
+     */
+    protected final boolean hasHandleCache() {
+        return m_handleCache != null;
+    }
+
+    /**
+     * Return the open file handle cache
+     *
+     * @return FileHandleCache
+     */
+    protected final FileHandleCache getHandleCache() {
+        return m_handleCache;
+    }
+
+    /**
+     * Start the filesystem
+     *
+     * @param share DiskSharedDevice
+     * @throws DeviceContextException Error starting the filesystem
+     */
+    public void startFilesystem(DiskSharedDevice share)
+        throws DeviceContextException {
+
+        // Get the thread pool, if available
+        ThreadRequestPool threadPool = null;
+        ServerConfiguration config = share.getConfiguration();
+
+        if ( config != null) {
+            CoreServerConfigSection coreConfig = (CoreServerConfigSection) config.getConfigSection(CoreServerConfigSection.SectionName);
+            if ( coreConfig != null)
+                threadPool = coreConfig.getThreadPool();
+        }
+
+        // Start the write behind flusher, use the thread pool if available
+        if ( hasWriteBehind()) {
+
+            m_writeBehindFlusher = new WriteBehindFlusher( m_writeBehindTimeout, hasDebug());
+            m_writeBehindFlusher.startFlusher( "WriteBehind_" + share.getName(), threadPool);
+
+            // DEBUG
+            if ( hasDebug())
+                Debug.println("Share " + getShareName() + ", write behind enabled, size=" + m_writeBehindSize/MemorySize.KILOBYTE_INT +
+                        "K, timeout=" + m_writeBehindTimeout + "ms");
+        }
+
+        // Start the idle handle reaper for the handle cache
+        if ( hasHandleCache())
+            m_handleCache.startReaper( "HandleCache_" + share.getName(), threadPool);
+    }
+
+    /**
+     * Close the device context
+     */
+    public void CloseContext() {
+
+        // Shutdown the write behind flusher, flushes any remaining buffered data
+        if ( m_writeBehindFlusher != null) {
+            m_writeBehindFlusher.shutdownRequest();
+            m_writeBehindFlusher = null;
+        }
+
+        // Shutdown the handle cache, closes idle handles
+        if ( m_handleCache != null) {
+
+            // DEBUG
+            if ( hasDebug())
+                Debug.println("Share " + getShareName() + ", " + m_handleCache);
+
+            m_handleCache.shutdownRequest();
+            m_handleCache = null;
+        }
+
+        // Release the block cache
+        if ( m_blockCache != null) {
+
+            // DEBUG
+            if ( hasDebug())
+                Debug.println("Share " + getShareName() + ", " + m_blockCache);
+
+            m_blockCache = null;
+        }
+
+        // Call the base class
+        super.CloseContext();
+    }
 }
@@ -23,6 +23,8 @@ package org.filesys.smb.server.disk;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.*;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.attribute.FileTime;
@@ -50,7 +52,7 @@ import org.springframework.extensions.config.ConfigElement;
  *
  * @author gkspencer
  */
-public class JavaNIODiskDriver implements DiskInterface {
+public class JavaNIODiskDriver implements DiskInterface, ServerCopyInterface, ChannelTransferInterface {
 
     //	SMB date used as the creation date/time for all files
     protected static long _globalCreateDate = System.currentTimeMillis();
@@ -237,6 +239,22 @@ public class JavaNIODiskDriver implements DiskInterface {
         netFile.setGrantedAccess(NetworkFile.Access.READ_WRITE);
         netFile.setFullName(params.getPath());
 
+        //  Enable write behind buffering, if configured
+        JavaNIODeviceContext nioCtx = (JavaNIODeviceContext) ctx;
+
+        if ( nioCtx.hasWriteBehind())
+            netFile.setWriteBehind( new WriteBehindBuffer( nioCtx.getWriteBehindSize()), nioCtx.getWriteBehindFlusher());
+
+        //  Use shared file channels, if configured
+        if ( nioCtx.hasHandleCache())
+            netFile.setHandleCache( nioCtx.getHandleCache());
+
+        //  Enable the shared block cache, if configured, invalidate any cached data for a file with the same path
+        if ( nioCtx.hasBlockCache()) {
+            nioCtx.getBlockCache().invalidateFile( newPath);
+            netFile.setBlockCache( nioCtx.getBlockCache());
+        }
+
         //  Check if the file is a hidden file
         if (Files.isHidden(newPath))
             netFile.setAttributes(FileAttribute.Hidden);
@@ -325,6 +343,13 @@ public class JavaNIODiskDriver implements DiskInterface {
         //  Check if the file exists, and it is a file
         if ( Files.exists( filePath) && Files.isDirectory( filePath) == false) {
 
+            // Invalidate any cached data for the file, and close idle cached handles
+            if ( ctx.hasBlockCache())
+                ctx.getBlockCache().invalidateFile( filePath);
+
+            if ( ctx.hasHandleCache())
+                ctx.getHandleCache().removeHandles( filePath);
+
             // If the file size is below the large file threshold then delete the file
             if ( Files.size( filePath) < ctx.getLargeFileSize()) {
 
@@ -711,7 +736,7 @@ public class JavaNIODiskDriver implements DiskInterface {
             throw new AccessDeniedException("File " + filePath.toString() + " is read-only");
 
         //	Create the network file object for the opened file/folder
-        NetworkFile netFile = new JavaNIONetworkFile(filePath, params.getPath());
+        JavaNIONetworkFile netFile = new JavaNIONetworkFile(filePath, params.getPath());
 
         if (params.isReadOnlyAccess())
             netFile.setGrantedAccess(NetworkFile.Access.READ_ONLY);
@@ -729,6 +754,23 @@ public class JavaNIODiskDriver implements DiskInterface {
             netFile.setAttributes(FileAttribute.Directory);
         else {
 
+            //  Enable write behind buffering for writeable files, if configured
+            JavaNIODeviceContext nioCtx = (JavaNIODeviceContext) ctx;
+
+            if ( nioCtx.hasWriteBehind() && params.isReadOnlyAccess() == false)
+                netFile.setWriteBehind( new WriteBehindBuffer( nioCtx.getWriteBehindSize()), nioCtx.getWriteBehindFlusher());
+
+            //  Use shared file channels, if configured
+            if ( nioCtx.hasHandleCache())
+                netFile.setHandleCache( nioCtx.getHandleCache());
+
+            //  Enable the shared block cache, if configured. Check if the file has been changed outside of the
+            //  server since it was cached.
+            if ( nioCtx.hasBlockCache()) {
+                nioCtx.getBlockCache().validateFile( filePath, netFile.getFileSize(), netFile.getModifyDate());
+                netFile.setBlockCache( nioCtx.getBlockCache());
+            }
+
             //	Check for common hidden files
             if (Files.isHidden(filePath))
                 netFile.setAttributes(FileAttribute.Hidden);
@@ -768,8 +810,14 @@ public class JavaNIODiskDriver implements DiskInterface {
         if (file.isDirectory())
             throw new AccessDeniedException();
 
-        //  Read the file
-        int rdlen = file.readFile(buf, siz, bufPos, filePos);
+        //  Read the file, via the shared block cache if enabled
+        int rdlen = 0;
+        JavaNIODeviceContext ctx = (JavaNIODeviceContext) tree.getContext();
+
+        if ( ctx.hasBlockCache() && file instanceof JavaNIONetworkFile)
+            rdlen = ctx.getBlockCache().readFile((JavaNIONetworkFile) file, buf, bufPos, siz, filePos);
+        else
+            rdlen = file.readFile(buf, siz, bufPos, filePos);
 
         //  If we have reached end of file return a zero length read
         if (rdlen == -1)
@@ -807,6 +855,20 @@ public class JavaNIODiskDriver implements DiskInterface {
         if ( Files.exists(newPath) && oldName.equalsIgnoreCase( newName) == false)
             throw new FileExistsException("Rename file, path exists " + newName);
 
+        //  Close idle cached handles for the old and new paths
+        JavaNIODeviceContext nioCtx = (JavaNIODeviceContext) ctx;
+
+        if ( nioCtx.hasHandleCache()) {
+            FileHandleCache handleCache = nioCtx.getHandleCache();
+
+            if ( Files.isDirectory( oldPath))
+                handleCache.removeFolderHandles( oldPath);
+            else {
+                handleCache.removeHandles( oldPath);
+                handleCache.removeHandles( newPath);
+            }
+        }
+
         //  Rename the file
         try {
             Files.move( oldPath, newPath, StandardCopyOption.REPLACE_EXISTING);
@@ -814,6 +876,20 @@ public class JavaNIODiskDriver implements DiskInterface {
         catch ( Exception ex) {
             throw new IOException("Rename " + oldPath + " to " + newPath + " failed");
         }
+
+        //  Invalidate any cached data for the old and new paths
+        if ( nioCtx.hasBlockCache()) {
+            BlockCache blockCache = nioCtx.getBlockCache();
+
+            if ( Files.isDirectory( newPath)) {
+                blockCache.invalidateFolder( oldPath);
+                blockCache.invalidateFolder( newPath);
+            }
+            else {
+                blockCache.invalidateFile( oldPath);
+                blockCache.invalidateFile( newPath);
+            }
+        }
     }
 
     /**
@@ -1013,6 +1089,95 @@ public class JavaNIODiskDriver implements DiskInterface {
         return siz;
     }
 
+    /**
+     * Copy a range of data from one open file to another, the data is copied by the file channels without passing
+     * through the server buffers
+     *
+     * @param sess     Server session
+     * @param tree     Tree connection
+     * @param srcFile  Source file
+     * @param srcOff   Source file offset
+     * @param destFile Destination file
+     * @param destOff  Destination file offset
+     * @param len      Length of data to copy
+     * @return long Number of bytes copied, or -1 if the files are not Java NIO files
+     * @exception IOException I/O error
+     */
+    public long copyFileData(SrvSession<?> sess, TreeConnection tree, NetworkFile srcFile, long srcOff, NetworkFile destFile,
+                             long destOff, long len)
+            throws IOException {
+
+        //	Check if either file is a directory
+        if (srcFile.isDirectory() || destFile.isDirectory())
+            throw new AccessDeniedException();
+
+        //  Check that both files are Java NIO files
+        if ( srcFile instanceof JavaNIONetworkFile == false || destFile instanceof JavaNIONetworkFile == false)
+            return -1L;
+
+        //  Copy the data
+        return ((JavaNIONetworkFile) srcFile).copyTo( srcOff, (JavaNIONetworkFile) destFile, destOff, len);
+    }
+
+    /**
+     * Check if channel transfers are available for the specified file
+     *
+     * @param tree Tree connection
+     * @param file Network file
+     * @return boolean
+     */
+    public boolean supportsChannelTransfer(TreeConnection tree, NetworkFile file) {
+        return file instanceof JavaNIONetworkFile && file.isDirectory() == false;
+    }
+
+    /**
+     * Transfer data from a file to a channel
+     *
+     * @param sess    Server session
+     * @param tree    Tree connection
+     * @param file    Network file
+     * @param filePos File offset to transfer data from
+     * @param len     Maximum length of data to transfer
+     * @param target  Channel to write the data to
+     * @return long Number of bytes transferred, or -1 if the file offset is at or beyond the end of file
+     * @exception IOException I/O error
+     */
+    public long transferToChannel(SrvSession<?> sess, TreeConnection tree, NetworkFile file, long filePos, long len,
+                                  WritableByteChannel target)
+            throws IOException {
+
+        //	Check if the file is a directory
+        if (file.isDirectory())
+            throw new AccessDeniedException();
+
+        //  Transfer the data
+        return ((JavaNIONetworkFile) file).transferTo( filePos, len, target);
+    }
+
+    /**
+     * Transfer data from a channel to a file
+     *
+     * @param sess    Server session
+     * @param tree    Tree connection
+     * @param file    Network file
+     * @param src     Channel to read the data from
+     * @param filePos File offset to write the data to
+     * @param len     Maximum length of data to transfer
+     * @return long Number of bytes transferred, zero if no data was available
+     * @exception IOException I/O error
+     */
+    public long transferFromChannel(SrvSession<?> sess, TreeConnection tree, NetworkFile file, ReadableByteChannel src,
+                                    long filePos, long len)
+            throws IOException {
+
+        //	Check if the file is a directory
+        if (file.isDirectory())
+            throw new AccessDeniedException();
+
+        //  Transfer the data
+        return ((JavaNIONetworkFile) file).transferFrom( src, filePos, len);
+    }
+
     /**
      * Parse and validate the parameter string and create a device context for this share
      *
@@ -1025,7 +1190,7 @@ public class JavaNIODiskDriver implements DiskInterface {
             throws DeviceContextException {
 
         // Parse the configuration and return the device context for this share
-        JavaNIODeviceContext ctx = new JavaNIODeviceContext( shareName, args);
+        JavaNIODeviceContext ctx = createDeviceContext( shareName, args);
 
         // If the trashcan folder is configured then check if there are any trash files left over from a previous
         // server run
@@ -1063,6 +1228,19 @@ public class JavaNIODiskDriver implements DiskInterface {
         return ctx;
     }
 
+    /**
+     * Create the device context for a share, can be overridden to use a device context sub-class
+     *
+     * @param shareName String
+     * @param args      ConfigElement
+     * @return JavaNIODeviceContext
+     * @throws DeviceContextException Error creating the device context
+     */
+    protected JavaNIODeviceContext createDeviceContext(String shareName, ConfigElement args)
+        throws DeviceContextException {
+        return new JavaNIODeviceContext( shareName, args);
+    }
+
     /**
      * Connection opened to this disk device
      *
@@ -27,7 +27,10 @@ import org.filesys.smb.SeekType;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -35,6 +38,7 @@ import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
 import java.util.EnumSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Network file implementation that uses the java.io.File class.
@@ -49,9 +53,29 @@ public class JavaNIONetworkFile extends NetworkFile {
     //	File channel used to read/write the actual file
     protected FileChannel m_io;
 
+    //  Shared channel from the handle cache, if enabled, and the handle cache
+    protected FileHandleCache.SharedHandle m_handle;
+    protected FileHandleCache m_handleCache;
+
+    //  Asynchronous file channel, opened on first use by the asynchronous disk driver
+    protected AsynchronousFileChannel m_asyncIo;
+
+    //  Current file position. The file channel may be shared so all I/O uses positional reads/writes.
+    protected long m_filePos;
+
     //	End of file flag
     protected boolean m_eof;
 
+    //  Write behind buffer and flusher, if enabled for the share
+    protected WriteBehindBuffer m_writeBuf;
+    protected WriteBehindFlusher m_flusher;
+
+    //  Shared block cache for the share, if enabled
+    protected BlockCache m_blockCache;
+
+    //  Delayed write error from a background flush of the write behind buffer
+    private volatile IOException m_delayedWriteErr;
+
     /**
      * Class constructor.
      *
@@ -125,9 +149,37 @@ public class JavaNIONetworkFile extends NetworkFile {
         //  Close the file, if used
         if (m_io != null) {
 
-            //	Close the file
-            m_io.close();
+            //  Flush any buffered data, make sure the file is closed if the flush fails
+            IOException flushErr = null;
+
+            try {
+                writeBehindFlush();
+            }
+            catch (IOException ex) {
+                flushErr = ex;
+            }
+
+            if (m_flusher != null)
+                m_flusher.removeFile(this);
+
+            //	Close the file, or release the shared channel
+            if (m_handle != null) {
+                m_handleCache.releaseHandle(m_handle);
+                m_handle = null;
+            }
+            else
+                m_io.close();
+
             m_io = null;
+            m_filePos = 0L;
+
+            //  Close the asynchronous channel, if used
+            synchronized (this) {
+                if (m_asyncIo != null) {
+                    m_asyncIo.close();
+                    m_asyncIo = null;
+                }
+            }
 
             //	Set the last modified date/time for the file
             if (this.getWriteCount() > 0)
@@ -135,6 +187,10 @@ public class JavaNIONetworkFile extends NetworkFile {
 
             //	Indicate that the file is closed
             setClosed(true);
+
+            //  Report the flush error
+            if (flushErr != null)
+                throw flushErr;
         }
     }
 
@@ -146,12 +202,8 @@ public class JavaNIONetworkFile extends NetworkFile {
     public long currentPosition() {
 
         //  Check if the file is open
-        try {
-            if (m_io != null)
-                return m_io.position();
-        }
-        catch (Exception ex) {
-        }
+        if (m_io != null)
+            return m_filePos;
 
         return 0;
     }
@@ -165,8 +217,10 @@ public class JavaNIONetworkFile extends NetworkFile {
             throws IOException {
 
         //	Flush all buffered data
-        if (m_io != null)
+        if (m_io != null) {
+            writeBehindFlush();
             m_io.force( false);
+        }
     }
 
     /**
@@ -178,7 +232,10 @@ public class JavaNIONetworkFile extends NetworkFile {
     public boolean isEndOfFile() throws IOException {
 
         //  Check if we reached end of file
-        if (m_io != null && m_io.position() == m_io.size())
+        if (m_io != null)
+            writeBehindFlush();
+
+        if (m_io != null && m_filePos >= m_io.size())
             return true;
         return false;
     }
@@ -197,13 +254,21 @@ public class JavaNIONetworkFile extends NetworkFile {
             //	Check if the file is open
             if (m_io == null) {
 
-                //  Open the file
-                Set<StandardOpenOption> openOptions = null;
-                if ( getGrantedAccess() == Access.READ_WRITE)
-                    openOptions = EnumSet.of( StandardOpenOption.READ, StandardOpenOption.WRITE);
-                else
-                    openOptions = EnumSet.of( StandardOpenOption.READ);
-                m_io = FileChannel.open( m_path, openOptions);
+                //  Open the file, or use a shared channel from the handle cache
+                if ( m_handleCache != null) {
+                    m_handle = m_handleCache.acquireHandle( m_path, getGrantedAccess() == Access.READ_WRITE);
+                    m_io = m_handle.getChannel();
+                }
+                else {
+                    Set<StandardOpenOption> openOptions = null;
+                    if ( getGrantedAccess() == Access.READ_WRITE)
+                        openOptions = EnumSet.of( StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    else
+                        openOptions = EnumSet.of( StandardOpenOption.READ);
+                    m_io = FileChannel.open( m_path, openOptions);
+                }
+
+                m_filePos = 0L;
 
                 //	Indicate that the file is open
                 setClosed(false);
@@ -228,13 +293,16 @@ public class JavaNIONetworkFile extends NetworkFile {
         if (m_io == null)
             openFile(false);
 
-        //	Seek to the required file position
-        if (currentPosition() != fileOff)
-            seekFile(fileOff, SeekType.StartOfFile);
+        //  Flush buffered data if the read overlaps it
+        flushOverlappingWrites(fileOff, len);
 
         //  Read from the file
         ByteBuffer bytBuf = ByteBuffer.wrap( buf, pos, len);
-        int rdlen = m_io.read( bytBuf);
+        int rdlen = m_io.read( bytBuf, fileOff);
+
+        //  Update the file position
+        if (rdlen > 0)
+            m_filePos = fileOff + rdlen;
 
         //	Return the actual length of data read
         return rdlen;
@@ -254,26 +322,27 @@ public class JavaNIONetworkFile extends NetworkFile {
         if (m_io == null)
             openFile(false);
 
+        //  Flush buffered data, the file size may be used to calculate the new position
+        if (typ == SeekType.EndOfFile)
+            writeBehindFlush();
+
         //  Check if the current file position is the required file position
         switch (typ) {
 
             //  From start of file
             case SeekType.StartOfFile:
-                if (currentPosition() != pos)
-                    m_io.position( pos);
+                m_filePos = pos;
                 break;
 
             //  From current position
             case SeekType.CurrentPos:
-                m_io.position( m_io.position() + pos);
+                m_filePos += pos;
                 break;
 
             //  From end of file
-            case SeekType.EndOfFile: {
-                long newPos = m_io.size() + pos;
-                m_io.position(newPos);
-            }
-            break;
+            case SeekType.EndOfFile:
+                m_filePos = m_io.size() + pos;
+                break;
         }
 
         //  Return the new file position
@@ -292,8 +361,10 @@ public class JavaNIONetworkFile extends NetworkFile {
         //  Open the file, if not already open
         if (m_io == null)
             openFile(true);
-        else
+        else {
+            writeBehindFlush();
             m_io.force( false);
+        }
 
         //	Check if the file length is being truncated or extended
         boolean extendFile = siz > getFileSize() ? true : false;
@@ -304,6 +375,10 @@ public class JavaNIONetworkFile extends NetworkFile {
             // Set the file to the required length
             m_io.truncate(siz);
 
+            // Invalidate any cached data for the file
+            if (m_blockCache != null)
+                m_blockCache.invalidateFile(m_path);
+
             //	Update the file size
             setFileSize(siz);
         }
@@ -335,11 +410,19 @@ public class JavaNIONetworkFile extends NetworkFile {
         if (m_io == null)
             openFile(true);
 
+        //  Flush any buffered data before writing at the current file position
+        writeBehindFlush();
+
         //  Write to the file
         ByteBuffer bytBuf = ByteBuffer.wrap( buf, pos, len);
+        long writePos = m_filePos;
 
         while ( bytBuf.hasRemaining())
-            m_io.write(bytBuf);
+            m_filePos += m_io.write(bytBuf, m_filePos);
+
+        //  Invalidate any cached data for the updated range
+        if (m_blockCache != null)
+            m_blockCache.invalidateRange(m_path, writePos, len);
 
         //	Update the write count for the file
         incrementWriteCount();
@@ -364,6 +447,10 @@ public class JavaNIONetworkFile extends NetworkFile {
         if (m_io == null)
             openFile(true);
 
+        //  Check if the write can be buffered
+        if (m_writeBuf != null && len > 0 && writeBehind(buf, len, pos, offset))
+            return;
+
         //	We need to seek to the write position. If the write position is off the end of the file
         //	we must null out the area between the current end of file and the write position.
         long fileLen = m_io.size();
@@ -378,14 +465,18 @@ public class JavaNIONetworkFile extends NetworkFile {
         if (len == 0)
             return;
 
-        //	Seek to the write position
-        m_io.position(offset);
-
-        //  Write to the file
+        //  Write to the file at the write position
         ByteBuffer bytBuf = ByteBuffer.wrap( buf, pos, len);
+        long writePos = offset;
 
         while( bytBuf.hasRemaining())
-            m_io.write(bytBuf);
+            writePos += m_io.write(bytBuf, writePos);
+
+        m_filePos = writePos;
+
+        //  Invalidate any cached data for the updated range
+        if (m_blockCache != null)
+            m_blockCache.invalidateRange(m_path, offset, len);
 
         //	Update the write count for the file
         incrementWriteCount();
@@ -396,4 +487,466 @@ public class JavaNIONetworkFile extends NetworkFile {
         if ( newLen > getFileSize())
             setFileSize( newLen);
     }
+
+    /**
+     * Enable write behind buffering for the file
+     *
+     * @param writeBuf WriteBehindBuffer
+     * @param flusher WriteBehindFlusher
+     */
+    public final void setWriteBehind(WriteBehindBuffer writeBuf, WriteBehindFlusher flusher) {
+        m_writeBuf = writeBuf;
+        m_flusher = flusher;
+    }
+
+    /**
+     * Set the handle cache used to share open file channels, must be set before the file is opened
+     *
+     * @param handleCache FileHandleCache
+     */
+    public final void setHandleCache(FileHandleCache handleCache) {
+        m_handleCache = handleCache;
+    }
+
+    /**
+     * Return the asynchronous file channel for the file, opening it if required. The channel is not shared via
+     * the handle cache.
+     *
+     * @param executor ExecutorService used to run the I/O completion handlers
+     * @return AsynchronousFileChannel
+     * @exception IOException I/O error
+     */
+    protected final synchronized AsynchronousFileChannel getAsyncChannel(ExecutorService executor)
+            throws IOException {
+
+        //  Make sure the file is open
+        if (m_io == null)
+            openFile(false);
+
+        //  Open the asynchronous channel
+        if (m_asyncIo == null) {
+            Set<StandardOpenOption> openOptions = null;
+            if ( getGrantedAccess() == Access.READ_WRITE)
+                openOptions = EnumSet.of( StandardOpenOption.READ, StandardOpenOption.WRITE);
+            else
+                openOptions = EnumSet.of( StandardOpenOption.READ);
+
+            m_asyncIo = AsynchronousFileChannel.open( m_path, openOptions, executor);
+        }
+
+        return m_asyncIo;
+    }
+
+    /**
+     * Update the file details after an asynchronous write has completed
+     *
+     * @param offset long
+     * @param len int
+     */
+    protected final void asyncWriteCompleted(long offset, int len) {
+        rangeWritten(offset, len);
+    }
+
+    /**
+     * Copy a range of data from this file to another file using the file channels, so the operating system can copy
+     * the data without it passing through the JVM
+     *
+     * @param srcOff long
+     * @param destFile JavaNIONetworkFile
+     * @param destOff long
+     * @param len long
+     * @return long Number of bytes copied, less than the requested length if the end of this file is reached
+     * @exception IOException I/O error
+     */
+    public final long copyTo(long srcOff, JavaNIONetworkFile destFile, long destOff, long len)
+            throws IOException {
+
+        //  Open the files, if not already open
+        if (m_io == null)
+            openFile(false);
+
+        if (destFile.m_io == null)
+            destFile.openFile(false);
+
+        //  Write out any buffered data that overlaps the source or destination ranges
+        flushOverlappingWrites(srcOff, len);
+        destFile.flushOverlappingWrites(destOff, len);
+
+        //  Copy the data. The destination channel writes at its current position, the channel may be shared so
+        //  lock it whilst the position is in use.
+        long copied = 0L;
+        FileChannel destIo = destFile.m_io;
+
+        synchronized (destIo) {
+            destIo.position(destOff);
+
+            while (copied < len) {
+                long cnt = m_io.transferTo(srcOff + copied, len - copied, destIo);
+                if (cnt <= 0)
+                    break;
+                copied += cnt;
+            }
+        }
+
+        //  Update the destination file details
+        if (copied > 0)
+            destFile.rangeWritten(destOff, copied);
+
+        return copied;
+    }
+
+    /**
+     * Transfer a range of data from this file to a channel, so the operating system can send the data without it
+     * passing through the JVM
+     *
+     * @param fileOff long
+     * @param len long
+     * @param target WritableByteChannel
+     * @return long Number of bytes transferred, or -1 if the offset is at or beyond the end of file
+     * @exception IOException I/O error
+     */
+    public final long transferTo(long fileOff, long len, WritableByteChannel target)
+            throws IOException {
+
+        //  Open the file, if not already open
+        if (m_io == null)
+            openFile(false);
+
+        //  Write out any buffered data that overlaps the range
+        flushOverlappingWrites(fileOff, len);
+
+        //  Check for end of file
+        if (fileOff >= m_io.size())
+            return -1L;
+
+        //  Transfer the data, a non-blocking channel may not accept all of the data
+        long cnt = m_io.transferTo(fileOff, len, target);
+
+        if (cnt > 0)
+            m_filePos = fileOff + cnt;
+
+        return cnt;
+    }
+
+    /**
+     * Transfer data from a channel to this file, so the operating system can receive the data without it passing
+     * through the JVM
+     *
+     * @param src ReadableByteChannel
+     * @param fileOff long
+     * @param len long
+     * @return long Number of bytes transferred, zero if no data was available
+     * @exception IOException I/O error
+     */
+    public final long transferFrom(ReadableByteChannel src, long fileOff, long len)
+            throws IOException {
+
+        //  Open the file, if not already open
+        if (m_io == null)
+            openFile(true);
+
+        //  Write out any buffered data that overlaps the range
+        flushOverlappingWrites(fileOff, len);
+
+        //  The transfer does not write beyond the end of file, extend the file if the offset is beyond the end of file
+        if (fileOff > m_io.size())
+            m_io.write(ByteBuffer.allocate(1), fileOff - 1);
+
+        //  Transfer the data, a non-blocking channel may not have all of the data available
+        long cnt = m_io.transferFrom(src, fileOff, len);
+
+        //  Update the file details
+        if (cnt > 0)
+            rangeWritten(fileOff, cnt);
+
+        return cnt;
+    }
+
+    /**
+     * Update the file details after data has been written to the file without using the write methods
+     *
+     * @param offset long
+     * @param len long
+     */
+    private void rangeWritten(long offset, long len) {
+
+        //  Invalidate any cached data for the updated range
+        if (m_blockCache != null)
+            m_blockCache.invalidateRange(m_path, offset, len);
+
+        //	Update the write count, file position and file size
+        incrementWriteCount();
+        m_filePos = offset + len;
+
+        if (offset + len > getFileSize())
+            setFileSize(offset + len);
+    }
+
+    /**
+     * Set the shared block cache used to cache data for this file
+     *
+     * @param blockCache BlockCache
+     */
+    public final void setBlockCache(BlockCache blockCache) {
+        m_blockCache = blockCache;
+    }
+
+    /**
+     * Flush buffered writes if they overlap the specified range of the file
+     *
+     * @param fileOff long
+     * @param len long
+     * @exception IOException I/O error
+     */
+    protected final void flushOverlappingWrites(long fileOff, long len)
+            throws IOException {
+
+        // Check if write behind is enabled
+        if (m_writeBuf == null)
+            return;
+
+        boolean overlaps = false;
+
+        synchronized (m_writeBuf) {
+            overlaps = m_writeBuf.overlaps(fileOff, len);
+        }
+
+        if (overlaps)
+            writeBehindFlush();
+    }
+
+    /**
+     * Read a block of data using a positional read, the file channel position is not changed
+     *
+     * @param buf ByteBuffer
+     * @param fileOff long
+     * @return int Length of data read, or -1 at end of file
+     * @exception IOException I/O error
+     */
+    protected final int readBlock(ByteBuffer buf, long fileOff)
+            throws IOException {
+
+        //  Open the file, if not already open
+        if (m_io == null)
+            openFile(false);
+
+        //  Read until the buffer is full or end of file
+        int rdlen = 0;
+
+        while (buf.hasRemaining()) {
+            int len = m_io.read(buf, fileOff + rdlen);
+            if (len == -1)
+                break;
+            rdlen += len;
+        }
+
+        return rdlen == 0 ? -1 : rdlen;
+    }
+
+    /**
+     * Check if write behind buffering is enabled for the file
+     *
+     * @return boolean
+     */
+    public final boolean hasWriteBehind() {
+        return m_writeBuf != null;
+    }
+
+    /**
+     * Return the time the oldest buffered data was written, or zero if there is no buffered data
+     *
+     * @return long
+     */
+    public final long getWriteBehindBufferedAt() {
+        if (m_writeBuf == null)
+            return 0L;
+
+        synchronized (m_writeBuf) {
+            return m_writeBuf.getBufferedAt();
+        }
+    }
+
+    /**
+     * Flush the write behind buffer from a background thread. Any error is reported via the delayed
+     * write error flag, and is returned by the next write, flush or close of the file.
+     *
+     * @return boolean false if the flush failed
+     */
+    public final boolean flushWriteBehind() {
+
+        // Check if write behind is enabled
+        if (m_writeBuf == null)
+            return true;
+
+        try {
+            writeBufferedData();
+        }
+        catch (IOException ex) {
+
+            // Save the error to report to the client on the next request for the file
+            m_delayedWriteErr = ex;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Byte range locks are changing, flush the buffered data so it is visible to other clients
+     */
+    protected void byteRangeLocksChanged() {
+
+        // Flush any buffered data
+        if (m_writeBuf != null)
+            flushWriteBehind();
+    }
+
+    /**
+     * Add a write to the write behind buffer, flushing the buffer if the write is not contiguous or
+     * the buffer is full.
+     *
+     * @param buf byte[]
+     * @param len int
+     * @param pos int
+     * @param offset long
+     * @return boolean true if the write was buffered, false if the caller should write the data
+     * @exception IOException I/O error
+     */
+    private boolean writeBehind(byte[] buf, int len, int pos, long offset)
+            throws IOException {
+
+        // Report any error from a background flush
+        checkDelayedWriteError();
+
+        IOException flushErr = null;
+        boolean buffered = false;
+
+        synchronized (m_writeBuf) {
+
+            try {
+
+                // Flush the buffer if the write does not follow on from the buffered data
+                if (m_writeBuf.canAppend(offset, len) == false)
+                    writeBuffer();
+
+                // Buffer the write if it fits
+                if (m_writeBuf.canAppend(offset, len)) {
+                    m_writeBuf.append(buf, pos, len, offset);
+                    buffered = true;
+
+                    // Write a full buffer to the file
+                    if (m_writeBuf.isFull())
+                        writeBuffer();
+                }
+            }
+            catch (IOException ex) {
+                flushErr = ex;
+            }
+        }
+
+        // Report a flush error
+        if (flushErr != null) {
+            setDelayedWriteError(true);
+            throw flushErr;
+        }
+
+        // Update the file position, write count and file size for buffered data
+        if (buffered) {
+            m_filePos = offset + len;
+            incrementWriteCount();
+
+            long newLen = offset + len;
+            if (newLen > getFileSize())
+                setFileSize(newLen);
+
+            // Make sure the flusher is tracking the file
+            if (m_flusher != null)
+                m_flusher.addFile(this);
+        }
+
+        return buffered;
+    }
+
+    /**
+     * Write any buffered data to the file, and report any earlier background flush error
+     *
+     * @exception IOException I/O error
+     */
+    private void writeBehindFlush()
+            throws IOException {
+
+        // Check if write behind is enabled
+        if (m_writeBuf == null)
+            return;
+
+        // Write the buffered data, then check for an earlier background flush error
+        writeBufferedData();
+        checkDelayedWriteError();
+    }
+
+    /**
+     * Write any buffered data to the file
+     *
+     * @exception IOException I/O error
+     */
+    private void writeBufferedData()
+            throws IOException {
+
+        IOException flushErr = null;
+
+        synchronized (m_writeBuf) {
+
+            // Write the buffered data, if the file is still open
+            if (m_io != null) {
+                try {
+                    writeBuffer();
+                }
+                catch (IOException ex) {
+                    flushErr = ex;
+                }
+            }
+            else
+                m_writeBuf.clear();
+        }
+
+        // Set the delayed write error status if the flush failed
+        if (flushErr != null) {
+            setDelayedWriteError(true);
+            throw flushErr;
+        }
+    }
+
+    /**
+     * Write the write behind buffer to the file channel, and invalidate any cached data for the range. The caller
+     * must hold the write behind buffer lock.
+     *
+     * @exception IOException I/O error
+     */
+    private void writeBuffer()
+            throws IOException {
+
+        long bufOff = m_writeBuf.getFileOffset();
+        int bufLen = m_writeBuf.getLength();
+
+        m_writeBuf.writeTo(m_io);
+
+        if (m_blockCache != null)
+            m_blockCache.invalidateRange(m_path, bufOff, bufLen);
+    }
+
+    /**
+     * Throw an I/O exception if an earlier buffered write failed, the error is only reported once
+     *
+     * @exception IOException Delayed write error
+     */
+    private void checkDelayedWriteError()
+            throws IOException {
+
+        if (m_delayedWriteErr != null) {
+            IOException ex = m_delayedWriteErr;
+            m_delayedWriteErr = null;
+
+            throw new IOException("Delayed write failed, " + getFullName(), ex);
+        }
+    }
 }
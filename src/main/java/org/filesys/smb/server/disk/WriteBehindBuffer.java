@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.smb.server.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Write Behind Buffer Class
+ *
+ * <p>Collects small sequential writes to an open file so they can be written to the file channel as a single
+ * large write. The buffer holds a single contiguous range of the file, the first write into an empty buffer
+ * sets the range start, and the buffer limit is adjusted so that a full buffer ends on a block boundary.
+ *
+ * <p>The buffer is not thread safe, callers must synchronize on the buffer object.
+ *
+ * @author gkspencer
+ */
+public class WriteBehindBuffer {
+
+    // Block size used to align full buffer writes
+    public static final int BlockSize = 4096;
+
+    // Buffered data
+    private byte[] m_buf;
+
+    // File offset of the start of the buffered data, and length of buffered data
+    private long m_fileOff;
+    private int m_len;
+
+    // Buffer limit for the current range, so that a full buffer ends on a block boundary
+    private int m_limit;
+
+    // Time the first write was added to the buffer, zero if the buffer is empty
+    private long m_bufferedAt;
+
+    /**
+     * Class constructor
+     *
+     * @param bufSize int
+     */
+    public WriteBehindBuffer(int bufSize) {
+
+        // Round the buffer size up to a whole number of blocks
+        if ( bufSize < BlockSize)
+            bufSize = BlockSize;
+        else if (( bufSize % BlockSize) != 0)
+            bufSize = (bufSize + BlockSize - 1) & ~(BlockSize - 1);
+
+        m_buf = new byte[bufSize];
+    }
+
+    /**
+     * Return the buffer capacity
+     *
+     * @return int
+     */
+    public final int getCapacity() {
+        return m_buf.length;
+    }
+
+    /**
+     * Check if the buffer is empty
+     *
+     * @return boolean
+     */
+    public final boolean isEmpty() {
+        return m_len == 0;
+    }
+
+    /**
+     * Check if the buffer is full
+     *
+     * @return boolean
+     */
+    public final boolean isFull() {
+        return m_len > 0 && m_len == m_limit;
+    }
+
+    /**
+     * Return the file offset of the buffered data
+     *
+     * @return long
+     */
+    public final long getFileOffset() {
+        return m_fileOff;
+    }
+
+    /**
+     * Return the length of the buffered data
+     *
+     * @return int
+     */
+    public final int getLength() {
+        return m_len;
+    }
+
+    /**
+     * Return the file offset just past the end of the buffered data
+     *
+     * @return long
+     */
+    public final long getEndOffset() {
+        return m_fileOff + m_len;
+    }
+
+    /**
+     * Return the time the oldest data was added to the buffer, or zero if the buffer is empty
+     *
+     * @return long
+     */
+    public final long getBufferedAt() {
+        return m_bufferedAt;
+    }
+
+    /**
+     * Check if the specified file range overlaps the buffered data
+     *
+     * @param fileOff long
+     * @param len long
+     * @return boolean
+     */
+    public final boolean overlaps(long fileOff, long len) {
+        if ( m_len == 0)
+            return false;
+        return fileOff < getEndOffset() && fileOff + len > m_fileOff;
+    }
+
+    /**
+     * Check if a write can be added to the buffer without a flush, the write must follow on from the buffered
+     * data and fit within the current buffer limit.
+     *
+     * @param fileOff long
+     * @param len int
+     * @return boolean
+     */
+    public final boolean canAppend(long fileOff, int len) {
+        if ( m_len == 0)
+            return len <= m_buf.length - (int) (fileOff % BlockSize);
+        return fileOff == getEndOffset() && len <= m_limit - m_len;
+    }
+
+    /**
+     * Add data to the buffer. The caller must check that the data can be appended using canAppend().
+     *
+     * @param buf byte[]
+     * @param pos int
+     * @param len int
+     * @param fileOff long
+     */
+    public final void append(byte[] buf, int pos, int len, long fileOff) {
+
+        // Check if this is the first write into the buffer, set the range start and the aligned limit
+        if ( m_len == 0) {
+            m_fileOff = fileOff;
+            m_limit = m_buf.length - (int) (fileOff % BlockSize);
+            m_bufferedAt = System.currentTimeMillis();
+        }
+
+        // Copy the data to the buffer
+        System.arraycopy(buf, pos, m_buf, m_len, len);
+        m_len += len;
+    }
+
+    /**
+     * Write the buffered data to the file channel, using a positional write so the channel position is not
+     * changed. The buffer is emptied even if the write fails.
+     *
+     * @param channel FileChannel
+     * @exception IOException I/O error
+     */
+    public final void writeTo(FileChannel channel)
+            throws IOException {
+
+        // Check if there is any buffered data
+        if ( m_len == 0)
+            return;
+
+        try {
+
+            // Write the buffered data
+            ByteBuffer bytBuf = ByteBuffer.wrap(m_buf, 0, m_len);
+            long fileOff = m_fileOff;
+
+            while ( bytBuf.hasRemaining())
+                fileOff += channel.write(bytBuf, fileOff);
+        }
+        finally {
+
+            // Empty the buffer
+            clear();
+        }
+    }
+
+    /**
+     * Discard any buffered data
+     */
+    public final void clear() {
+        m_len = 0;
+        m_limit = 0;
+        m_bufferedAt = 0L;
+    }
+
+    /**
+     * Return the write behind buffer details as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[WriteBehind off=");
+        str.append(m_fileOff);
+        str.append(",len=");
+        str.append(m_len);
+        str.append("/");
+        str.append(m_buf.length);
+        str.append("]");
+
+        return str.toString();
+    }
+}
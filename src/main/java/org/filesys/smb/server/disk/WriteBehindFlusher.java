@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.filesys.smb.server.disk;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.filesys.debug.Debug;
+import org.filesys.server.thread.ThreadRequestPool;
+import org.filesys.server.thread.TimedThreadRequest;
+
+/**
+ * Write Behind Flusher Class
+ *
+ * <p>Flushes write behind buffers that have held data for longer than the flush timeout. Runs as a timed
+ * request on the server thread pool, if available, else uses a seperate thread.
+ *
+ * @author gkspencer
+ */
+public class WriteBehindFlusher implements Runnable {
+
+    // Files with buffered data
+    private Set<JavaNIONetworkFile> m_files = ConcurrentHashMap.newKeySet();
+
+    // Flush timeout, in milliseconds
+    private long m_timeout;
+
+    // Flusher thread, or timed request when using the thread pool
+    private Thread m_flushThread;
+    private FlushTimedRequest m_threadReq;
+
+    // Shutdown request flag
+    private volatile boolean m_shutdown;
+
+    // Debug enable
+    private boolean m_debug;
+
+    /**
+     * Flush Timed Thread Request Class
+     */
+    private class FlushTimedRequest extends TimedThreadRequest {
+
+        /**
+         * Constructor
+         *
+         * @param name     String
+         * @param interval long
+         */
+        public FlushTimedRequest(String name, long interval) {
+            super(name, -interval, interval);
+        }
+
+        /**
+         * Flush timed out buffers
+         */
+        protected void runTimedRequest() {
+
+            // Flush any buffers that have timed out
+            flushExpiredBuffers();
+
+            // Clear the repeat interval if the flusher is shutting down
+            if ( m_shutdown)
+                setRepeatInterval(0L);
+        }
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param timeout long
+     * @param debug boolean
+     */
+    public WriteBehindFlusher(long timeout, boolean debug) {
+        m_timeout = timeout;
+        m_debug = debug;
+    }
+
+    /**
+     * Return the flush timeout, in milliseconds
+     *
+     * @return long
+     */
+    public final long getTimeout() {
+        return m_timeout;
+    }
+
+    /**
+     * Return the count of files with buffered data
+     *
+     * @return int
+     */
+    public final int numberOfFiles() {
+        return m_files.size();
+    }
+
+    /**
+     * Add a file with buffered data
+     *
+     * @param netFile JavaNIONetworkFile
+     */
+    public final void addFile(JavaNIONetworkFile netFile) {
+        m_files.add(netFile);
+    }
+
+    /**
+     * Remove a file from the buffered file list
+     *
+     * @param netFile JavaNIONetworkFile
+     */
+    public final void removeFile(JavaNIONetworkFile netFile) {
+        m_files.remove(netFile);
+    }
+
+    /**
+     * Flush buffers that have held data for longer than the flush timeout
+     */
+    protected final void flushExpiredBuffers() {
+
+        // Check if there are any files with buffered data
+        if ( m_files.isEmpty())
+            return;
+
+        long expireTime = System.currentTimeMillis() - m_timeout;
+        Iterator<JavaNIONetworkFile> iterFiles = m_files.iterator();
+        List<JavaNIONetworkFile> keepFiles = new ArrayList<JavaNIONetworkFile>();
+
+        while ( iterFiles.hasNext()) {
+
+            // Remove the file from the list before checking the buffer, a writer that buffers more data will
+            // add the file back to the list
+            JavaNIONetworkFile netFile = iterFiles.next();
+            iterFiles.remove();
+
+            // Check if the buffered data for the file has expired
+            long bufferedAt = netFile.getWriteBehindBufferedAt();
+
+            if ( bufferedAt != 0L && bufferedAt <= expireTime) {
+
+                // Flush the buffered data, errors are reported via the delayed write error flag on the file
+                if ( netFile.flushWriteBehind() == false && m_debug)
+                    Debug.println("[WriteBehind] Delayed write failed, file=" + netFile.getFullName());
+            }
+
+            // Keep the file in the list if it still has buffered data
+            if ( netFile.getWriteBehindBufferedAt() != 0L)
+                keepFiles.add(netFile);
+        }
+
+        // Add back the files that still have buffered data
+        m_files.addAll(keepFiles);
+    }
+
+    /**
+     * Flusher thread
+     */
+    public void run() {
+
+        while ( m_shutdown == false) {
+
+            // Wait for the flush interval
+            try {
+                Thread.sleep(m_timeout);
+            }
+            catch (InterruptedException ex) {
+            }
+
+            // Check for shutdown
+            if ( m_shutdown)
+                return;
+
+            // Flush buffers that have timed out
+            try {
+                flushExpiredBuffers();
+            }
+            catch (Throwable ex) {
+                Debug.println(ex);
+            }
+        }
+    }
+
+    /**
+     * Start the flusher
+     *
+     * @param name String
+     * @param threadPool ThreadRequestPool
+     */
+    public final void startFlusher(String name, ThreadRequestPool threadPool) {
+
+        // If the thread pool is not available then use a seperate thread
+        if ( threadPool == null) {
+
+            m_flushThread = new Thread(this);
+            m_flushThread.setDaemon(true);
+            m_flushThread.setName(name);
+            m_flushThread.start();
+        }
+        else {
+
+            // Queue a timed request to the thread pool, interval is in seconds
+            long intervalSecs = Math.max(1L, m_timeout / 1000L);
+
+            m_threadReq = new FlushTimedRequest(name, intervalSecs);
+            threadPool.queueTimedRequest(m_threadReq);
+        }
+    }
+
+    /**
+     * Request the flusher to shutdown, any remaining buffered data is flushed
+     */
+    public final void shutdownRequest() {
+        m_shutdown = true;
+
+        if ( m_flushThread != null) {
+            try {
+                m_flushThread.interrupt();
+            }
+            catch (Exception ex) {
+            }
+        }
+
+        // Flush any remaining buffered data
+        for ( JavaNIONetworkFile netFile : m_files)
+            netFile.flushWriteBehind();
+        m_files.clear();
+    }
+}
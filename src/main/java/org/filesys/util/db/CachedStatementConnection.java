@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2024 GK Spencer
+ *
+ * JFileServer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JFileServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JFileServer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.filesys.util.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.filesys.debug.Debug;
+
+/**
+ * Cached Statement Connection Class
+ *
+ * <p>Wraps a pooled database connection with a least recently used cache of prepared statements, keyed by the SQL
+ * text. A call to prepareStatement(String) returns an idle cached statement for the same SQL if available, closing
+ * the statement returns it to the cache rather than closing it. Statements that are evicted from the cache, or that
+ * failed with an SQL error, are closed. All cached statements are closed when the connection is closed.
+ *
+ * <p>A statement is only used by one caller at a time, if the same SQL is prepared again whilst the cached statement
+ * is in use a new statement is prepared. Each caller gets a new statement handle, a handle cannot be used after it has
+ * been closed. Before a statement is returned to the cache any open result sets are closed,
+ * and the parameters, warnings, maximum rows, fetch size and query timeout are reset. Result sets are wrapped so that
+ * getStatement() returns the statement proxy.
+ *
+ * @author gkspencer
+ */
+public class CachedStatementConnection implements InvocationHandler {
+
+    // Connection methods that are intercepted
+    private static final String MethodPrepareStatement = "prepareStatement";
+    private static final String MethodClose            = "close";
+    private static final String MethodIsClosed         = "isClosed";
+    private static final String MethodEquals           = "equals";
+    private static final String MethodHashCode         = "hashCode";
+    private static final String MethodUnwrap           = "unwrap";
+    private static final String MethodGetConnection    = "getConnection";
+    private static final String MethodGetStatement     = "getStatement";
+
+    // Real database connection, and the connection proxy handed out by the pool
+    private Connection m_conn;
+    private Connection m_proxy;
+
+    // Connection pool that owns the connection, holds the cache size and statistics
+    private DBConnectionPool m_pool;
+
+    // Idle prepared statements, in least recently used order
+    private LinkedHashMap<String, CachedStatement> m_cache = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true);
+
+    /**
+     * Cached Statement Class
+     *
+     * <p>Holds a real prepared statement that is cached by the connection. Each time the statement is checked out a new
+     * statement handle proxy is returned, closing the handle returns the statement to the connection statement cache.
+     */
+    protected class CachedStatement {
+
+        // SQL text and real prepared statement
+        private String m_sql;
+        private PreparedStatement m_stmt;
+
+        // Statement had an SQL error
+        private boolean m_failed;
+
+        // Statement settings when prepared, restored before the statement is cached
+        private int m_defMaxRows;
+        private int m_defFetchSize;
+        private int m_defQueryTimeout;
+
+        // Result sets returned to the caller that have not been closed
+        private List<ResultSet> m_resultSets = new ArrayList<ResultSet>(2);
+
+        /**
+         * Class constructor
+         *
+         * @param sql  String
+         * @param stmt PreparedStatement
+         * @exception SQLException SQL error
+         */
+        protected CachedStatement(String sql, PreparedStatement stmt)
+                throws SQLException {
+            m_sql = sql;
+            m_stmt = stmt;
+
+            m_defMaxRows = stmt.getMaxRows();
+            m_defFetchSize = stmt.getFetchSize();
+            m_defQueryTimeout = stmt.getQueryTimeout();
+        }
+
+        /**
+         * Return a new statement handle proxy for the caller. Handles from earlier check outs are closed, so a caller
+         * that keeps a reference to a statement after closing it cannot use, or close, the statement whilst it is in
+         * use by another caller.
+         *
+         * @return PreparedStatement
+         */
+        protected final PreparedStatement checkOut() {
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, new StatementHandle(this));
+        }
+
+        /**
+         * Reset the statement so it can be reused by another caller. Closes open result sets, and resets the
+         * parameters, warnings and statement settings.
+         *
+         * @exception SQLException SQL error
+         */
+        protected final void resetStatement()
+                throws SQLException {
+
+            // Close any result sets the caller did not close
+            for (ResultSet rs : m_resultSets)
+                rs.close();
+            m_resultSets.clear();
+
+            // Reset the statement settings
+            if (m_stmt.getMaxRows() != m_defMaxRows)
+                m_stmt.setMaxRows(m_defMaxRows);
+            if (m_stmt.getFetchSize() != m_defFetchSize)
+                m_stmt.setFetchSize(m_defFetchSize);
+            if (m_stmt.getQueryTimeout() != m_defQueryTimeout)
+                m_stmt.setQueryTimeout(m_defQueryTimeout);
+
+            m_stmt.clearWarnings();
+            m_stmt.clearParameters();
+        }
+
+        /**
+         * Wrap a result set so that getStatement() returns the statement handle proxy
+         *
+         * @param rs        ResultSet
+         * @param stmtProxy PreparedStatement
+         * @return ResultSet
+         */
+        private ResultSet wrapResultSet(ResultSet rs, PreparedStatement stmtProxy) {
+            if (m_resultSets.contains(rs) == false)
+                m_resultSets.add(rs);
+            return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                    new CachedResultSet(this, rs, stmtProxy));
+        }
+
+        /**
+         * Close the real prepared statement
+         */
+        protected final void closeStatement() {
+            try {
+                m_stmt.close();
+            }
+            catch (SQLException ex) {
+                if (Debug.hasDumpStackTraces())
+                    Debug.println(ex);
+            }
+        }
+    }
+
+    /**
+     * Statement Handle Class
+     *
+     * <p>Prepared statement proxy handler for a single check out of a cached statement. Closing the handle returns the
+     * statement to the connection statement cache, the handle cannot be used after it has been closed.
+     */
+    protected class StatementHandle implements InvocationHandler {
+
+        // Cached statement
+        private CachedStatement m_cachedStmt;
+
+        // Handle has been closed by the caller
+        private boolean m_closed;
+
+        /**
+         * Class constructor
+         *
+         * @param cachedStmt CachedStatement
+         */
+        protected StatementHandle(CachedStatement cachedStmt) {
+            m_cachedStmt = cachedStmt;
+        }
+
+        /**
+         * Prepared statement method call
+         *
+         * @param proxy  Object
+         * @param method Method
+         * @param args   Object[]
+         * @return Object
+         * @exception Throwable Error from the statement method
+         */
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+
+            // Check for the intercepted methods
+            String name = method.getName();
+
+            if (name.equals(MethodClose)) {
+
+                // Return the statement to the cache, only close once
+                if (m_closed == false) {
+                    m_closed = true;
+                    returnStatement(m_cachedStmt);
+                }
+                return null;
+            }
+            else if (name.equals(MethodIsClosed))
+                return m_closed || m_cachedStmt.m_stmt.isClosed();
+            else if (name.equals(MethodEquals))
+                return proxy == args[0];
+            else if (name.equals(MethodHashCode))
+                return System.identityHashCode(proxy);
+            else if (name.equals(MethodGetConnection))
+                return m_proxy;
+            else if (m_closed)
+                throw new SQLException("Statement is closed");
+
+            // Pass the call to the real statement, wrap returned result sets
+            try {
+                Object ret = method.invoke(m_cachedStmt.m_stmt, args);
+
+                if (ret instanceof ResultSet)
+                    return m_cachedStmt.wrapResultSet((ResultSet) ret, (PreparedStatement) proxy);
+                return ret;
+            }
+            catch (InvocationTargetException ex) {
+
+                // Do not reuse a statement that had an SQL error
+                if (ex.getCause() instanceof SQLException)
+                    m_cachedStmt.m_failed = true;
+                throw ex.getCause();
+            }
+        }
+    }
+
+    /**
+     * Cached Result Set Class
+     *
+     * <p>Result set proxy handler that returns the statement handle proxy from getStatement(), so the caller cannot get
+     * at the real statement and close it whilst it is cached.
+     */
+    protected static class CachedResultSet implements InvocationHandler {
+
+        // Statement that returned the result set, the statement handle proxy and the real result set
+        private CachedStatement m_cachedStmt;
+        private PreparedStatement m_stmtProxy;
+        private ResultSet m_rs;
+
+        /**
+         * Class constructor
+         *
+         * @param cachedStmt CachedStatement
+         * @param rs         ResultSet
+         * @param stmtProxy  PreparedStatement
+         */
+        protected CachedResultSet(CachedStatement cachedStmt, ResultSet rs, PreparedStatement stmtProxy) {
+            m_cachedStmt = cachedStmt;
+            m_stmtProxy = stmtProxy;
+            m_rs = rs;
+        }
+
+        /**
+         * Result set method call
+         *
+         * @param proxy  Object
+         * @param method Method
+         * @param args   Object[]
+         * @return Object
+         * @exception Throwable Error from the result set method
+         */
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+
+            // Check for the intercepted methods
+            String name = method.getName();
+
+            if (name.equals(MethodGetStatement))
+                return m_stmtProxy;
+            else if (name.equals(MethodEquals))
+                return proxy == args[0];
+            else if (name.equals(MethodHashCode))
+                return System.identityHashCode(proxy);
+            else if (name.equals(MethodClose))
+                m_cachedStmt.m_resultSets.remove(m_rs);
+
+            // Pass the call to the real result set
+            try {
+                return method.invoke(m_rs, args);
+            }
+            catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param conn Connection
+     * @param pool DBConnectionPool
+     */
+    protected CachedStatementConnection(Connection conn, DBConnectionPool pool) {
+        m_conn = conn;
+        m_pool = pool;
+
+        m_proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, this);
+    }
+
+    /**
+     * Wrap a database connection with a prepared statement cache
+     *
+     * @param conn Connection
+     * @param pool DBConnectionPool
+     * @return Connection
+     */
+    public static Connection wrapConnection(Connection conn, DBConnectionPool pool) {
+        return new CachedStatementConnection(conn, pool).m_proxy;
+    }
+
+    /**
+     * Return the number of idle statements in the cache
+     *
+     * @return int
+     */
+    public final synchronized int numberOfCachedStatements() {
+        return m_cache.size();
+    }
+
+    /**
+     * Close all cached statements
+     */
+    public final void closeStatements() {
+
+        // Remove the idle statements from the cache
+        List<CachedStatement> stmts = null;
+
+        synchronized (this) {
+            stmts = new ArrayList<CachedStatement>(m_cache.size());
+
+            stmts.addAll(m_cache.values());
+            m_cache.clear();
+        }
+
+        // Close the statements
+        for (CachedStatement stmt : stmts)
+            stmt.closeStatement();
+    }
+
+    /**
+     * Connection method call
+     *
+     * @param proxy  Object
+     * @param method Method
+     * @param args   Object[]
+     * @return Object
+     * @exception Throwable Error from the connection method
+     */
+    public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+
+        // Check for the intercepted methods
+        String name = method.getName();
+
+        if (name.equals(MethodPrepareStatement) && args.length == 1 && m_pool.getStatementCacheSize() > 0)
+            return prepareStatement((String) args[0]);
+        else if (name.equals(MethodClose)) {
+
+            // Close the cached statements, then the connection
+            closeStatements();
+            m_conn.close();
+            return null;
+        }
+        else if (name.equals(MethodEquals))
+            return proxy == args[0];
+        else if (name.equals(MethodHashCode))
+            return System.identityHashCode(proxy);
+        else if (name.equals(MethodUnwrap) && ((Class<?>) args[0]).isInstance(m_conn))
+            return m_conn;
+
+        // Pass the call to the real connection
+        try {
+            return method.invoke(m_conn, args);
+        }
+        catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Return a prepared statement for the SQL, from the cache if available
+     *
+     * @param sql String
+     * @return PreparedStatement
+     * @exception SQLException SQL error
+     */
+    private PreparedStatement prepareStatement(String sql)
+            throws SQLException {
+
+        // Check for an idle cached statement, the statement is removed from the cache whilst in use
+        CachedStatement cachedStmt = null;
+
+        synchronized (this) {
+            cachedStmt = m_cache.remove(sql);
+        }
+
+        if (cachedStmt != null) {
+            m_pool.statementCacheHit();
+            return cachedStmt.checkOut();
+        }
+
+        // Prepare a new statement
+        m_pool.statementCacheMiss();
+        PreparedStatement newStmt = m_conn.prepareStatement(sql);
+
+        try {
+            return new CachedStatement(sql, newStmt).checkOut();
+        }
+        catch (SQLException ex) {
+            newStmt.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Return a statement to the cache, evicting the least recently used statements if the cache is full
+     *
+     * @param cachedStmt CachedStatement
+     */
+    private void returnStatement(CachedStatement cachedStmt) {
+
+        // Reset the statement, close it if it cannot be reused
+        boolean reuse = cachedStmt.m_failed == false && m_pool.getStatementCacheSize() > 0;
+
+        if (reuse) {
+            try {
+                if (m_conn.isClosed() || cachedStmt.m_stmt.isClosed())
+                    reuse = false;
+                else
+                    cachedStmt.resetStatement();
+            }
+            catch (SQLException ex) {
+                reuse = false;
+            }
+        }
+
+        if (reuse == false) {
+            cachedStmt.closeStatement();
+            return;
+        }
+
+        // Add the statement to the cache, if there is already an idle statement for the SQL close this statement
+        List<CachedStatement> evicted = null;
+
+        synchronized (this) {
+            if (m_cache.containsKey(cachedStmt.m_sql))
+                reuse = false;
+            else {
+                m_cache.put(cachedStmt.m_sql, cachedStmt);
+
+                // Evict the least recently used statements
+                Iterator<CachedStatement> iter = m_cache.values().iterator();
+
+                while (m_cache.size() > m_pool.getStatementCacheSize() && iter.hasNext()) {
+                    if (evicted == null)
+                        evicted = new ArrayList<CachedStatement>(2);
+                    evicted.add(iter.next());
+                    iter.remove();
+                }
+            }
+        }
+
+        if (reuse == false)
+            cachedStmt.closeStatement();
+
+        // Close the evicted statements
+        if (evicted != null) {
+            for (CachedStatement stmt : evicted) {
+                stmt.closeStatement();
+                m_pool.statementCacheEviction();
+            }
+        }
+    }
+}
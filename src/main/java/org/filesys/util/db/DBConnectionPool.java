@@ -22,16 +22,25 @@ package org.filesys.util.db;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.filesys.debug.Debug;
 
 /**
  * Database Connection Pool Class
  *
+ * <p>The free connection list and the connection lease table are lock free. When all connections are in use
+ * requests wait, up to the connection wait timeout, and released connections are handed to the waiting requests
+ * in first in, first out order. The connection reaper checks leases and validates idle connections without
+ * blocking requests for connections.
+ *
  * @author gkspencer
  */
 public class DBConnectionPool {
@@ -47,6 +56,14 @@ public class DBConnectionPool {
     public final static int DefaultMinSize = 5;
     public final static int DefaultMaxSize = 10;
 
+    //	Default and maximum number of prepared statements to cache per connection
+    public final static int DefaultStatementCacheSize = 32;
+    public final static int MaximumStatementCacheSize = 1024;
+
+    //	Default and maximum time to wait for a connection when all connections are in use, in milliseconds
+    public final static long DefaultWaitTimeout = 5000L;
+    public final static long MaximumWaitTimeout = 300000L;
+
     //	Default connection lease time
     private final static long DefaultLease = 30000;    //	30 seconds
 
@@ -67,16 +84,27 @@ public class DBConnectionPool {
     //	Connection lease time, in milliseconds
     private long m_leaseTime = DefaultLease;
 
-    //	Free/in use connection pools
-    private List<Connection> m_freePool;
-    private Hashtable<Connection, Long> m_allocPool;
+    //	Time to wait for a connection when all connections are in use, in milliseconds, zero to not wait
+    private long m_waitTimeout = DefaultWaitTimeout;
+
+    //	Free connections, and in use connections with the lease expiry time
+    private ConcurrentLinkedQueue<Connection> m_freePool;
+    private ConcurrentHashMap<Connection, Long> m_allocPool;
+
+    //	Number of free connections, and total number of connections including connections being opened
+    private AtomicInteger m_freeCount = new AtomicInteger();
+    private AtomicInteger m_connCount = new AtomicInteger();
+
+    //	Requests waiting for a connection, in arrival order
+    private ConcurrentLinkedQueue<ConnectionWaiter> m_waiters = new ConcurrentLinkedQueue<ConnectionWaiter>();
 
     //	Connection reaper thread
     private DBConnectionReaper m_reaper;
     private Thread m_reaperThread;
 
-    // Database connection status
-    private boolean m_online;
+    // Database connection status, connection pool closed
+    private volatile boolean m_online;
+    private volatile boolean m_closed;
 
     // Database connection pool event listener
     private DBConnectionPoolListener m_dbListener;
@@ -84,6 +112,96 @@ public class DBConnectionPool {
     // Database callbacks, used to override various default actions
     private DBCallbacks m_callback;
 
+    // Number of prepared statements to cache per connection, zero disables statement caching
+    private volatile int m_stmtCacheSize = DefaultStatementCacheSize;
+
+    // Prepared statement cache statistics
+    private AtomicLong m_stmtCacheHits = new AtomicLong();
+    private AtomicLong m_stmtCacheMisses = new AtomicLong();
+    private AtomicLong m_stmtCacheEvictions = new AtomicLong();
+
+    // Connection statistics
+    private AtomicLong m_connCreated = new AtomicLong();
+    private AtomicLong m_connClosed = new AtomicLong();
+
+    private AtomicLong m_waitCount = new AtomicLong();
+    private AtomicLong m_waitTime = new AtomicLong();
+    private AtomicLong m_maxWaitTime = new AtomicLong();
+    private AtomicLong m_waitTimeouts = new AtomicLong();
+
+    /**
+     * Connection Waiter Class
+     *
+     * <p>Request waiting for a connection to be released. The connection is handed directly to the waiter, a
+     * waiter is either satisfied or cancelled, whichever happens first.
+     */
+    protected static class ConnectionWaiter {
+
+        // Waiter states
+        private static final int Waiting   = 0;
+        private static final int Satisfied = 1;
+        private static final int Cancelled = 2;
+
+        // Waiting thread
+        private Thread m_thread;
+
+        // Waiter state, and the connection handed to the waiter
+        private AtomicInteger m_state = new AtomicInteger(Waiting);
+        private volatile Connection m_conn;
+
+        /**
+         * Class constructor
+         *
+         * @param thread Thread
+         */
+        protected ConnectionWaiter(Thread thread) {
+            m_thread = thread;
+        }
+
+        /**
+         * Hand a connection to the waiter, returns false if the waiter has been cancelled or already satisfied
+         *
+         * @param conn Connection
+         * @return boolean
+         */
+        protected final boolean offer(Connection conn) {
+            m_conn = conn;
+
+            if (m_state.compareAndSet(Waiting, Satisfied) == false)
+                return false;
+
+            LockSupport.unpark(m_thread);
+            return true;
+        }
+
+        /**
+         * Cancel the wait, returns false if the waiter has already been handed a connection
+         *
+         * @return boolean
+         */
+        protected final boolean cancel() {
+            return m_state.compareAndSet(Waiting, Cancelled);
+        }
+
+        /**
+         * Check if the waiter has been handed a connection
+         *
+         * @return boolean
+         */
+        protected final boolean isSatisfied() {
+            return m_state.get() == Satisfied;
+        }
+
+        /**
+         * Return the connection handed to the waiter
+         *
+         * @return Connection
+         */
+        protected final Connection getConnection() {
+            return m_conn;
+        }
+    }
+
     /**
      * Database Connection Reaper Thread Class
      *
@@ -99,7 +217,7 @@ public class DBConnectionPool {
         private long m_wakeup;
 
         //	Shutdown request flag
-        private boolean m_shutdown = false;
+        private volatile boolean m_shutdown = false;
 
         // Database online check interval, as number of thread wakeups
         private int m_onlineCheckInterval = ConnectionCheck;
@@ -136,25 +254,32 @@ public class DBConnectionPool {
         public void run() {
 
             //	Load the initial free connection pool
-            synchronized (m_freePool) {
+            try {
 
-                try {
+                //	Allocate a pool of connections
+                while (m_connCount.get() < getMinimumPoolSize() && m_shutdown == false) {
+                    m_connCount.incrementAndGet();
+                    Connection conn = null;
 
-                    //	Allocate a pool of connections
-                    while (m_freePool.size() < getMinimumPoolSize()) {
-                        Connection conn = createConnection();
-                        if (conn != null)
-                            m_freePool.add(conn);
+                    try {
+                        conn = openConnection();
+                    }
+                    finally {
+                        if (conn == null)
+                            m_connCount.decrementAndGet();
                     }
 
-                    // Indicate that the connection pool is online
-                    m_online = true;
-                    notifyConnectionPoolState();
-                }
-                catch (SQLException ex) {
-                    if ( Debug.hasDumpStackTraces())
-                        Debug.println( ex);
+                    if (conn != null)
+                        addFreeConnection(conn);
                 }
+
+                // Indicate that the connection pool is online
+                m_online = true;
+                notifyConnectionPoolState();
+            }
+            catch (SQLException ex) {
+                if ( Debug.hasDumpStackTraces())
+                    Debug.println( ex);
             }
 
             //	Loop forever, or until shutdown
@@ -176,185 +301,110 @@ public class DBConnectionPool {
                 //  Update the loop counter
                 loopCnt++;
 
-                //	Check for expired connection leases
-                synchronized (m_allocPool) {
+                //	DEBUG
+                if ( DEBUG)
+                    Debug.println("DBConnectionReaper " + DBConnectionPool.this.toString());
 
-                    //	DEBUG
-                    if ( DEBUG)
-					    Debug.println("DBConnectionReaper allocPool=" + m_allocPool.size() + ", freePool=" + m_freePool.size());
+                //	Check for expired connection leases, the lease table is not locked
+                long timeNow = System.currentTimeMillis();
 
-                    //	Get the current time
-                    long timeNow = System.currentTimeMillis();
+                for (Map.Entry<Connection, Long> entry : m_allocPool.entrySet()) {
 
-                    //	Enumerate the allocated connection pool
-                    Enumeration<Connection> enm = m_allocPool.keys();
+                    //	Get the connection
+                    Connection conn = entry.getKey();
+                    long expire = entry.getValue();
                     boolean removeConn = false;
 
-                    while (enm.hasMoreElements()) {
+                    //	Check if the connection lease has expired
+                    if (expire != PermanentLease && expire < timeNow)
+                        removeConn = true;
+                    else if (expire == PermanentLease) {
 
-                        //	Get the connection
+                        // Check if the connection has been closed or the server is down
+                        removeConn = isConnectionValid(conn) == false;
 
-                        Connection conn = enm.nextElement();
-                        Long expire = m_allocPool.get(conn);
-
-                        //	Check if the connection lease has expired
-                        if (expire.longValue() != PermanentLease && expire.longValue() < timeNow)
-                            removeConn = true;
-                        else if (expire.longValue() == PermanentLease) {
-
-                            try {
-
-                                // Check if the connection has been closed or the server is down
-                                if (conn.isClosed())
-                                    removeConn = true;
-                                else {
-
-                                    // Toggle the auto-commit flag on the connection, this will check the connection on most
-                                    // databases
-                                    boolean autoCommit = conn.getAutoCommit();
-                                    conn.setAutoCommit(true);
-                                    conn.setAutoCommit(autoCommit);
-                                }
-                            }
-                            catch (SQLException ex) {
-                                if ( Debug.hasDumpStackTraces())
-                                    Debug.println( ex);
-
-                                removeConn = true;
-                            }
+                        // DEBUG
+                        if (removeConn == true)
+                            Debug.println("DBConnectionReaper Permanent lease connection error");
+                    }
 
-                            // DEBUG
-                            if (removeConn == true)
-                                Debug.println("DBConnectionReaper Permanent lease connection error");
-                        }
+                    // Check if the connection should be closed, if the lease has been renewed or the connection
+                    // released then leave the connection
+                    if (removeConn == true && m_allocPool.remove(conn, entry.getValue())) {
 
-                        // Check if the connection should be closed
-                        if (removeConn == true) {
-
-                            //	Connection lease has expired, remove from the allocated list and close the connection
-                            m_allocPool.remove(conn);
-                            try {
-                                conn.close();
-                                Debug.println("DBConnectionReaper closed expired connection, conn=" + conn);
-                            }
-                            catch (SQLException ex) {
-                                if ( Debug.hasDumpStackTraces())
-                                    Debug.println( ex);
-                            }
-                        }
+                        //	Connection lease has expired, close the connection
+                        closeConnection(conn);
+                        Debug.println("DBConnectionReaper closed expired connection, conn=" + conn);
                     }
                 }
 
-                //	Check if the free pool has grown too far
-                synchronized (m_freePool) {
-
-                    //	Release connections from the free pool until below the maximum connection limit
-                    while (m_freePool.size() > getMaximumPoolSize()) {
+                //	Release connections from the free pool until below the maximum connection limit
+                while (m_freeCount.get() > getMaximumPoolSize()) {
 
-                        //	DEBUG
-                        if ( DEBUG)
-                            Debug.println("DBConnectionReaper trimming free pool, " + m_freePool.size() + "/" + getMaximumPoolSize());
+                    //	DEBUG
+                    if ( DEBUG)
+                        Debug.println("DBConnectionReaper trimming free pool, " + m_freeCount.get() + "/" + getMaximumPoolSize());
 
-                        //	Remove a connection from the free pool and close the connection
-                        Connection conn = m_freePool.remove(0);
+                    //	Remove a connection from the free pool and close the connection
+                    Connection conn = pollFreeConnection();
+                    if (conn == null)
+                        break;
 
-                        if (conn != null) {
-                            try {
-                                conn.close();
-                            }
-                            catch (SQLException ex) {
-                                if ( Debug.hasDumpStackTraces())
-                                    Debug.println( ex);
-                            }
-                        }
-                    }
+                    closeConnection(conn);
                 }
 
                 // Check the connections in the free pool to see if they have been timed out by the server
                 if (loopCnt % m_onlineCheckInterval == 0 || isOnline() == false) {
 
-                    synchronized (m_freePool) {
+                    // DEBUG
+                    if ( DEBUG)
+                        Debug.println( "DBConnectionReaper Checking free pool connection status ...");
 
-                        // DEBUG
-                        if ( DEBUG)
-                            Debug.println( "DBConnectionReaper Checking free pool connection status ...");
-
-                        //  Check if the connections in the free pool are still connected/valid
-                        int idx = 0;
-
-                        while (idx < m_freePool.size()) {
-
-                            // Get the current connection
-                            Connection conn = m_freePool.get(idx);
-
-                            try {
-
-                                // Check if the connection is closed
-                                if (conn.isClosed()) {
-
-                                    // Remove the connection from the free pool
-                                    m_freePool.remove(idx);
-
-                                    // DEBUG
-                                    if ( DEBUG)
-                                        Debug.println( "DBConnectionReaper Removed closed connection from free pool");
-                                }
-                                else {
-
-                                    // Toggle the auto-commit flag on the connection, this will check the connection on most
-                                    // databases
-                                    boolean autoCommit = conn.getAutoCommit();
-                                    conn.setAutoCommit(true);
-                                    conn.setAutoCommit(autoCommit);
-
-                                    // Update the connection index
-                                    idx++;
-                                }
-                            }
-                            catch (SQLException ex) {
-
-                                if ( Debug.hasDumpStackTraces())
-                                    Debug.println( ex);
-
-                                // Remove the current connection from the free pool
-                                try {
-                                    m_freePool.remove(idx);
-                                    conn.close();
-                                }
-                                catch (Exception ex2) {
-                                    if ( Debug.hasDumpStackTraces())
-                                        Debug.println( ex);
-                                }
-
-                                // DEBUG
-                                if ( DEBUG)
-                                    Debug.println( "DBConnectionReaper Removed closed connection from free pool (exception)");
-                            }
-                        }
+                    //  Check if the connections in the free pool are still connected/valid, each connection is
+                    //  removed from the free pool whilst it is checked so requests are not blocked by the check
+                    int checkCnt = m_freeCount.get();
 
-                        if (isOnline()) {
+                    while (checkCnt-- > 0) {
 
-                            // Check if the free and allocated pools are empty, this indicates that the database server
-                            // is offline
-                            if (m_freePool.size() == 0 && m_allocPool.size() == 0) {
+                        // Get the next free connection
+                        Connection conn = pollFreeConnection();
+                        if (conn == null)
+                            break;
 
-                                // Database server appears to be offline
-                                m_online = false;
-                                notifyConnectionPoolState();
-                            }
-                        }
+                        // Return valid connections to the pool, or hand to a waiting request
+                        if (isConnectionValid(conn))
+                            addFreeConnection(conn);
                         else {
+                            closeConnection(conn);
 
-                            // Try and get a connection from the pool, this will check if the database server is back online
-                            Connection conn = getConnection();
-                            if (conn != null)
-                                releaseConnection(conn);
+                            // DEBUG
+                            if ( DEBUG)
+                                Debug.println( "DBConnectionReaper Removed closed connection from free pool");
                         }
+                    }
 
-                        // DEBUG
-                        if ( DEBUG)
-                            Debug.println( "DBConnectionReaper Free pool check done.");
+                    if (isOnline()) {
+
+                        // Check if the free and allocated pools are empty, this indicates that the database server
+                        // is offline
+                        if (m_freeCount.get() == 0 && m_allocPool.isEmpty()) {
+
+                            // Database server appears to be offline
+                            m_online = false;
+                            notifyConnectionPoolState();
+                        }
+                    }
+                    else {
+
+                        // Try and get a connection from the pool, this will check if the database server is back online
+                        Connection conn = getConnection(System.currentTimeMillis() + getLeaseTime(), 0L);
+                        if (conn != null)
+                            releaseConnection(conn);
                     }
+
+                    // DEBUG
+                    if ( DEBUG)
+                        Debug.println( "DBConnectionReaper Free pool check done.");
                 }
             }
         }
@@ -462,8 +512,8 @@ public class DBConnectionPool {
         Class.forName(m_dbDriver).newInstance();
 
         //  Allocate the free and in use connection pools
-        m_freePool = new ArrayList<Connection>();
-        m_allocPool = new Hashtable<Connection, Long>();
+        m_freePool = new ConcurrentLinkedQueue<Connection>();
+        m_allocPool = new ConcurrentHashMap<Connection, Long>();
 
         //  Start the connection reaper thread
         m_reaper = new DBConnectionReaper(getLeaseTime());
@@ -536,13 +586,58 @@ public class DBConnectionPool {
         return m_leaseTime;
     }
 
+    /**
+     * Get the time to wait for a connection when all connections are in use, in milliseconds
+     *
+     * @return long
+     */
+    public final long getWaitTimeout() {
+        return m_waitTimeout;
+    }
+
+    /**
+     * Get the number of prepared statements cached per connection
+     *
+     * @return int
+     */
+    public final int getStatementCacheSize() {
+        return m_stmtCacheSize;
+    }
+
+    /**
+     * Get the number of prepared statement requests that used a cached statement
+     *
+     * @return long
+     */
+    public final long getStatementCacheHits() {
+        return m_stmtCacheHits.get();
+    }
+
+    /**
+     * Get the number of prepared statement requests that prepared a new statement
+     *
+     * @return long
+     */
+    public final long getStatementCacheMisses() {
+        return m_stmtCacheMisses.get();
+    }
+
+    /**
+     * Get the number of cached prepared statements that have been evicted and closed
+     *
+     * @return long
+     */
+    public final long getStatementCacheEvictions() {
+        return m_stmtCacheEvictions.get();
+    }
+
     /**
      * Get the available connection count
      *
      * @return int
      */
-    public final synchronized int getAvailableConnections() {
-        return m_freePool.size();
+    public final int getAvailableConnections() {
+        return m_freeCount.get();
     }
 
     /**
@@ -550,10 +645,74 @@ public class DBConnectionPool {
      *
      * @return int
      */
-    public final synchronized int getAllocatedConnections() {
+    public final int getAllocatedConnections() {
         return m_allocPool.size();
     }
 
+    /**
+     * Get the number of requests currently waiting for a connection
+     *
+     * @return int
+     */
+    public final int getWaitingRequests() {
+        return m_waiters.size();
+    }
+
+    /**
+     * Get the number of database connections that have been opened
+     *
+     * @return long
+     */
+    public final long getConnectionsCreated() {
+        return m_connCreated.get();
+    }
+
+    /**
+     * Get the number of database connections that have been closed
+     *
+     * @return long
+     */
+    public final long getConnectionsClosed() {
+        return m_connClosed.get();
+    }
+
+    /**
+     * Get the number of requests that had to wait for a connection
+     *
+     * @return long
+     */
+    public final long getWaitCount() {
+        return m_waitCount.get();
+    }
+
+    /**
+     * Get the average time requests waited for a connection, in milliseconds
+     *
+     * @return long
+     */
+    public final long getAverageWaitTime() {
+        long waitCnt = m_waitCount.get();
+        return waitCnt > 0 ? TimeUnit.NANOSECONDS.toMillis(m_waitTime.get() / waitCnt) : 0L;
+    }
+
+    /**
+     * Get the longest time a request waited for a connection, in milliseconds
+     *
+     * @return long
+     */
+    public final long getMaximumWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(m_maxWaitTime.get());
+    }
+
+    /**
+     * Get the number of requests that timed out waiting for a connection
+     *
+     * @return long
+     */
+    public final long getWaitTimeoutCount() {
+        return m_waitTimeouts.get();
+    }
+
     /**
      * Get a connection from the pool
      *
@@ -577,50 +736,43 @@ public class DBConnectionPool {
 
     /**
      * Get a connection from the pool with the specified lease time. A lease time of -1 indicates that
-     * the connection lease is permanent.
+     * the connection lease is permanent. If all connections are in use the request waits for a connection
+     * to be released, up to the connection wait timeout.
      *
      * @param expireTime long
      * @return Connection
      */
     public final Connection getConnection(long expireTime) {
+        return getConnection(expireTime, getWaitTimeout());
+    }
 
-        //	Check for a connection in the free pool
-        Connection conn = null;
-
-        synchronized (m_freePool) {
+    /**
+     * Get a connection from the pool with the specified lease time, waiting up to the specified time if all
+     * connections are in use. Returns null if a connection is not available.
+     *
+     * @param expireTime long
+     * @param waitTime   long
+     * @return Connection
+     */
+    private Connection getConnection(long expireTime, long waitTime) {
 
-            //	Check if the free pool has a connection
-            if (m_freePool.size() > 0) {
+        //	Check if the pool has been closed
+        if (m_closed)
+            return null;
 
-                //	Get the connection
-                conn = m_freePool.remove(0);
+        //	Check for a connection in the free pool, do not take a free connection ahead of waiting requests
+        Connection conn = null;
 
-                try {
-                    if (conn.isClosed())
-                        conn = null;
-                }
-                catch (SQLException ex) {
-                    conn = null;
-                    Debug.println("%%%%% SQL Connection Error: " + ex.toString());
-                }
-            }
-            else if (isOnline() == false) {
+        if (m_waiters.isEmpty())
+            conn = pollValidFreeConnection();
 
-                // Try and create a new connection, if we succeed then the database server is back online
-                try {
+        //  Check if the database server is offline
+        if (isOnline() == false) {
 
-                    // Create a new database connection
-                    conn = createConnection();
-                }
-                catch (SQLException ex) {
-                    if ( Debug.hasDumpStackTraces())
-                        Debug.println( ex);
-                }
-            }
-        }
+            // Try and create a new connection, if we succeed then the database server is back online
+            if (conn == null)
+                conn = reserveAndOpenConnection();
 
-        //  Check if the database server is back online
-        if (isOnline() == false) {
             if (conn != null) {
                 m_online = true;
                 notifyConnectionPoolState();
@@ -629,33 +781,17 @@ public class DBConnectionPool {
                 return null;
         }
 
-        //	Allocate a new connection if there are spare slots available
-        synchronized (m_allocPool) {
+        //	If a connection has not been allocated and there are spare slots available then create a new connection,
+        //	else wait for a connection to be released
+        if (conn == null)
+            conn = reserveAndOpenConnection();
 
-            //	If the connection is valid add it to the allocated pool
-            if (conn != null)
-                m_allocPool.put(conn, new Long(expireTime));
-            else {
-
-                //	If a connection has not been allocated and there are spare slots available then
-                //	create a new connection.
-                if (m_allocPool.size() < getMaximumPoolSize()) {
+        if (conn == null && waitTime > 0L)
+            conn = waitForFreeConnection(waitTime);
 
-                    try {
-
-                        //	Create a new connection
-                        conn = createConnection();
-
-                        //	Add the connection to the in use list
-                        m_allocPool.put(conn, new Long(expireTime));
-                    }
-                    catch (SQLException ex) {
-                        conn = null;
-                        Debug.println("%%%%% SQL Connection Error: " + ex.toString());
-                    }
-                }
-            }
-        }
+        //	If the connection is valid add it to the allocated pool
+        if (conn != null)
+            m_allocPool.put(conn, expireTime);
 
         //	Return the connection
         return conn;
@@ -668,28 +804,26 @@ public class DBConnectionPool {
      */
     public final void releaseConnection(Connection conn) {
 
-        //	Remove the connection from the in use pool and put it back in the free list
-        synchronized (m_allocPool) {
-            Object curConn = m_allocPool.remove(conn);
-            if (curConn == null)
-                return;
-        }
+        //	Remove the connection from the in use pool
+        if (m_allocPool.remove(conn) == null)
+            return;
 
-        //	Add the connection to the free pool
-        synchronized (m_freePool) {
+        //	Add the connection back to the free pool, or hand to a waiting request, if not closed
+        try {
+            if (m_closed == false && conn.isClosed() == false)
+                addFreeConnection(conn);
+            else {
+                closeConnection(conn);
 
-            //	Add the connection back to the free pool, if not closed
-            try {
-                if (conn.isClosed() == false) {
-                    m_freePool.add(conn);
-                }
-                else
+                if (m_closed == false)
                     Debug.println("***** Connection closed *****");
             }
-            catch (Exception ex) {
-                if ( Debug.hasDumpStackTraces())
-                    Debug.println( ex);
-            }
+        }
+        catch (Exception ex) {
+            if ( Debug.hasDumpStackTraces())
+                Debug.println( ex);
+
+            closeConnection(conn);
         }
     }
 
@@ -710,15 +844,8 @@ public class DBConnectionPool {
      */
     public final void renewLease(Connection conn, long expireTime) {
 
-        synchronized (m_allocPool) {
-
-            //	Check that the connection is in the allocated pool
-            if (m_allocPool.remove(conn) == null)
-                return;
-
-            //	Update the expire time for the lease and add back to the allocated pool
-            m_allocPool.put(conn, new Long(expireTime));
-        }
+        //	Update the expire time for the lease, if the connection is in the allocated pool
+        m_allocPool.replace(conn, expireTime);
     }
 
     /**
@@ -727,46 +854,35 @@ public class DBConnectionPool {
     public final void closePool() {
 
         //	Shutdown the connection reaper thread
+        m_closed = true;
         m_reaper.shutdownRequest();
 
-        //	Close all allocated database connections
-        if (m_allocPool.size() > 0) {
+        //	Wake any requests waiting for a connection
+        ConnectionWaiter waiter = m_waiters.poll();
 
-            //	Close all allocated connections
-            Enumeration<Connection> enm = m_allocPool.keys();
+        while (waiter != null) {
+            waiter.offer(null);
+            waiter = m_waiters.poll();
+        }
 
-            while (enm.hasMoreElements()) {
+        //	Close all allocated database connections
+        Iterator<Connection> iter = m_allocPool.keySet().iterator();
 
-                //	Close the connection
-                Connection conn = enm.nextElement();
-                try {
-                    conn.close();
-                }
-                catch (SQLException ex) {
-                }
-            }
+        while (iter.hasNext()) {
 
-            //	Clear the allocated pool
-            m_allocPool.clear();
+            //	Close the connection
+            Connection conn = iter.next();
+            iter.remove();
+
+            closeConnection(conn);
         }
 
         //	Close all free database connections
-        if (m_freePool.size() > 0) {
-
-            //	Close the free pool connections
-            for (int i = 0; i < m_freePool.size(); i++) {
-
-                //	Get the current connection
-                Connection conn = m_freePool.get(i);
-                try {
-                    conn.close();
-                }
-                catch (SQLException ex) {
-                }
-            }
+        Connection conn = pollFreeConnection();
 
-            //	Clear the free pool
-            m_freePool.clear();
+        while (conn != null) {
+            closeConnection(conn);
+            conn = pollFreeConnection();
         }
     }
 
@@ -790,6 +906,26 @@ public class DBConnectionPool {
         m_leaseTime = leaseTime;
     }
 
+    /**
+     * Set the time to wait for a connection when all connections are in use, in milliseconds. Zero indicates
+     * that requests do not wait.
+     *
+     * @param waitTimeout long
+     */
+    public final void setWaitTimeout(long waitTimeout) {
+        m_waitTimeout = waitTimeout;
+    }
+
+    /**
+     * Set the number of prepared statements to cache per connection, zero disables statement caching. Idle cached
+     * statements above the new limit are closed as the connections are used.
+     *
+     * @param cacheSize int
+     */
+    public final void setStatementCacheSize(int cacheSize) {
+        m_stmtCacheSize = cacheSize;
+    }
+
     /**
      * Set the online check interval, in seconds
      *
@@ -844,14 +980,304 @@ public class DBConnectionPool {
             throws SQLException {
 
         //	Create a new database connection, use the callback interface if available
+        Connection conn = null;
+
         if ( m_callback != null) {
 
             // Use the callback interface to delegate the connection creation
-            return m_callback.createConnectionForPool(getDSN(), getUserName(), getPassword());
+            conn = m_callback.createConnectionForPool(getDSN(), getUserName(), getPassword());
+        }
+        else {
+
+            // Use the default connection creation
+            conn = DriverManager.getConnection(getDSN(), getUserName(), getPassword());
         }
 
-        // Use the default connection creation
-        return DriverManager.getConnection(getDSN(), getUserName(), getPassword());
+        // Wrap the connection with a prepared statement cache
+        if (conn == null)
+            return null;
+        return CachedStatementConnection.wrapConnection(conn, this);
+    }
+
+    /**
+     * Record a prepared statement cache hit
+     */
+    protected final void statementCacheHit() {
+        m_stmtCacheHits.incrementAndGet();
+    }
+
+    /**
+     * Record a prepared statement cache miss
+     */
+    protected final void statementCacheMiss() {
+        m_stmtCacheMisses.incrementAndGet();
+    }
+
+    /**
+     * Record a prepared statement cache eviction
+     */
+    protected final void statementCacheEviction() {
+        m_stmtCacheEvictions.incrementAndGet();
+    }
+
+    /**
+     * Open a new database connection
+     *
+     * @return Connection
+     * @throws SQLException Error creating the connection
+     */
+    private Connection openConnection()
+            throws SQLException {
+
+        Connection conn = createConnection();
+        if (conn != null)
+            m_connCreated.incrementAndGet();
+        return conn;
+    }
+
+    /**
+     * Open a new database connection if the pool has not reached the maximum number of connections
+     *
+     * @return Connection
+     */
+    private Connection reserveAndOpenConnection() {
+
+        //	Reserve a connection slot
+        int connCnt = m_connCount.get();
+
+        while (connCnt < getMaximumPoolSize()) {
+            if (m_connCount.compareAndSet(connCnt, connCnt + 1))
+                break;
+            connCnt = m_connCount.get();
+        }
+
+        if (connCnt >= getMaximumPoolSize())
+            return null;
+
+        //	Create a new connection, release the slot if the connection fails
+        Connection conn = null;
+
+        try {
+            conn = openConnection();
+        }
+        catch (SQLException ex) {
+            Debug.println("%%%%% SQL Connection Error: " + ex.toString());
+        }
+        finally {
+            if (conn == null)
+                m_connCount.decrementAndGet();
+        }
+
+        return conn;
+    }
+
+    /**
+     * Remove a connection from the free pool
+     *
+     * @return Connection
+     */
+    private Connection pollFreeConnection() {
+        Connection conn = m_freePool.poll();
+        if (conn != null)
+            m_freeCount.decrementAndGet();
+        return conn;
+    }
+
+    /**
+     * Remove a connection from the free pool, closed connections are discarded
+     *
+     * @return Connection
+     */
+    private Connection pollValidFreeConnection() {
+
+        Connection conn = pollFreeConnection();
+
+        while (conn != null) {
+            try {
+                if (conn.isClosed() == false)
+                    return conn;
+            }
+            catch (SQLException ex) {
+                Debug.println("%%%%% SQL Connection Error: " + ex.toString());
+            }
+
+            //	Discard the closed connection
+            closeConnection(conn);
+            conn = pollFreeConnection();
+        }
+
+        return null;
+    }
+
+    /**
+     * Hand a connection to the longest waiting request, returns false if there are no waiting requests
+     *
+     * @param conn Connection
+     * @return boolean
+     */
+    private boolean handOffConnection(Connection conn) {
+
+        ConnectionWaiter waiter = m_waiters.poll();
+
+        while (waiter != null) {
+            if (waiter.offer(conn))
+                return true;
+            waiter = m_waiters.poll();
+        }
+
+        return false;
+    }
+
+    /**
+     * Add a connection to the free pool, or hand to a waiting request
+     *
+     * @param conn Connection
+     */
+    private void addFreeConnection(Connection conn) {
+
+        //	Give the connection to a waiting request, if any
+        if (handOffConnection(conn))
+            return;
+
+        m_freePool.offer(conn);
+        m_freeCount.incrementAndGet();
+
+        //	Recheck for requests that started waiting whilst the connection was being added to the free pool
+        while (m_waiters.isEmpty() == false) {
+            Connection freeConn = pollFreeConnection();
+            if (freeConn == null)
+                break;
+
+            if (handOffConnection(freeConn) == false) {
+                m_freePool.offer(freeConn);
+                m_freeCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Wait for a connection to be released, in first in, first out order, up to the specified wait time
+     *
+     * @param waitTime long
+     * @return Connection
+     */
+    private Connection waitForFreeConnection(long waitTime) {
+
+        // Queue the request
+        long startTime = System.nanoTime();
+        long endTime = startTime + TimeUnit.MILLISECONDS.toNanos(waitTime);
+
+        m_waitCount.incrementAndGet();
+
+        ConnectionWaiter waiter = new ConnectionWaiter(Thread.currentThread());
+        m_waiters.offer(waiter);
+
+        // Recheck the free pool, a connection may have been released whilst the request was being queued
+        Connection conn = pollValidFreeConnection();
+
+        if (conn != null) {
+            if (waiter.cancel()) {
+                m_waiters.remove(waiter);
+                recordWaitTime(startTime);
+
+                return conn;
+            }
+
+            // The request has already been handed a connection, return the extra connection
+            addFreeConnection(conn);
+        }
+
+        // Wait for a connection to be handed to the request
+        while (waiter.isSatisfied() == false) {
+
+            long waitNanos = endTime - System.nanoTime();
+
+            if (waitNanos <= 0L || m_closed || Thread.currentThread().isInterrupted()) {
+
+                // Cancel the wait, unless a connection has just been handed to the request
+                if (waiter.cancel()) {
+                    m_waiters.remove(waiter);
+                    m_waitTimeouts.incrementAndGet();
+                    recordWaitTime(startTime);
+
+                    return null;
+                }
+            }
+            else
+                LockSupport.parkNanos(this, waitNanos);
+        }
+
+        recordWaitTime(startTime);
+        return waiter.getConnection();
+    }
+
+    /**
+     * Update the connection wait time statistics
+     *
+     * @param startTime long
+     */
+    private void recordWaitTime(long startTime) {
+        long waitTime = System.nanoTime() - startTime;
+
+        m_waitTime.addAndGet(waitTime);
+        m_maxWaitTime.accumulateAndGet(waitTime, Math::max);
+    }
+
+    /**
+     * Close a database connection that has been removed from the pool, if there are requests waiting for a
+     * connection then open a replacement connection
+     *
+     * @param conn Connection
+     */
+    private void closeConnection(Connection conn) {
+
+        try {
+            conn.close();
+        }
+        catch (SQLException ex) {
+            if ( Debug.hasDumpStackTraces())
+                Debug.println( ex);
+        }
+
+        m_connCount.decrementAndGet();
+        m_connClosed.incrementAndGet();
+
+        //	Open a replacement connection for a waiting request
+        if (m_closed == false && m_waiters.isEmpty() == false) {
+            Connection newConn = reserveAndOpenConnection();
+            if (newConn != null)
+                addFreeConnection(newConn);
+        }
+    }
+
+    /**
+     * Check if a connection is still connected to the database server
+     *
+     * @param conn Connection
+     * @return boolean
+     */
+    private boolean isConnectionValid(Connection conn) {
+
+        try {
+
+            // Check if the connection has been closed or the server is down
+            if (conn.isClosed())
+                return false;
+
+            // Toggle the auto-commit flag on the connection, this will check the connection on most
+            // databases
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(true);
+            conn.setAutoCommit(autoCommit);
+
+            return true;
+        }
+        catch (SQLException ex) {
+            if ( Debug.hasDumpStackTraces())
+                Debug.println( ex);
+        }
+
+        return false;
     }
 
     /**
@@ -912,4 +1338,45 @@ public class DBConnectionPool {
         // Return the database connection status
         return dbConn != null ? true : false;
     }
+
+    /**
+     * Return the connection pool details as a string
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[DBConnectionPool active=");
+        str.append(getAllocatedConnections());
+        str.append(", idle=");
+        str.append(getAvailableConnections());
+        str.append(", conns=");
+        str.append(m_connCount.get());
+        str.append("/");
+        str.append(getMaximumPoolSize());
+        str.append(", waiting=");
+        str.append(getWaitingRequests());
+        str.append(", waits=");
+        str.append(getWaitCount());
+        str.append(", avgWait=");
+        str.append(getAverageWaitTime());
+        str.append("ms, maxWait=");
+        str.append(getMaximumWaitTime());
+        str.append("ms, timeouts=");
+        str.append(getWaitTimeoutCount());
+        str.append(", created=");
+        str.append(getConnectionsCreated());
+        str.append(", closed=");
+        str.append(getConnectionsClosed());
+        str.append(", stmtHits=");
+        str.append(getStatementCacheHits());
+        str.append(", stmtMisses=");
+        str.append(getStatementCacheMisses());
+        str.append(", stmtEvictions=");
+        str.append(getStatementCacheEvictions());
+        str.append("]");
+
+        return str.toString();
+    }
 }